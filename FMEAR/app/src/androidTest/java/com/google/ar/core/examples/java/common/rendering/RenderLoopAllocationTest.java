@@ -0,0 +1,323 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.content.Context;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.Matrix;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+
+import com.google.ar.core.Pose;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks that the render loop does not allocate once a dataset is loaded. The renderers draw into
+ * an offscreen surface, and the allocations of the test thread are counted while frames are drawn.
+ * The planes move, change shape and lose tracking, and the point clouds change on every frame, so
+ * that the pooled sorting, the mesh rebuilds and the point uploads are measured too.
+ *
+ * <p>It runs on an OpenGL ES 2.0 and an OpenGL ES 3.0 context, since the object renderer has a
+ * backend for each, and is skipped for 3.0 on devices without it.
+ */
+@RunWith(Parameterized.class)
+public class RenderLoopAllocationTest {
+  private static final int NUM_WARM_UP_FRAMES = 10;
+  private static final int NUM_FRAMES = 100;
+  private static final long LOAD_TIMEOUT_MS = 10000;
+  private static final int NUM_POINTS = 64;
+
+  private static final EnumSet<ObjectRenderer.RenderingOptions> DRAW_OPAQUE =
+          EnumSet.of(ObjectRenderer.RenderingOptions.DRAW_OPAQUE);
+  private static final EnumSet<ObjectRenderer.RenderingOptions> DRAW_TRANSPARENT =
+          EnumSet.of(ObjectRenderer.RenderingOptions.DRAW_TRANSPARENT);
+
+  @Parameterized.Parameters(name = "OpenGL ES {0}")
+  public static Collection<Object[]> clientVersions() {
+    return Arrays.asList(new Object[][] {{2}, {3}});
+  }
+
+  @Parameterized.Parameter
+  public int clientVersion;
+
+  private EGLDisplay display;
+  private EGLContext eglContext = EGL14.EGL_NO_CONTEXT;
+  private EGLSurface surface = EGL14.EGL_NO_SURFACE;
+
+  private final float[] anchorMatrix = new float[16];
+  private final float[] viewMatrix = new float[16];
+  private final float[] projectionMatrix = new float[16];
+  private final float[] colorCorrectionRgba = {1.0f, 1.0f, 1.0f, 0.5f};
+  private final float[] translateFactor = new float[3];
+  private final List<TestPlane> planes = new ArrayList<>();
+  // Two clouds that alternate, as ARCore hands out a new cloud on every frame.
+  private final FloatBuffer[] pointClouds = {createPoints(0.0f), createPoints(0.5f)};
+
+  /**
+   * A plane that the test moves and reshapes, since ARCore planes only come from a session. It
+   * switches between two preallocated polygons, so that its mesh is rebuilt.
+   */
+  private static class TestPlane {
+    final float[] centerMatrix = new float[16];
+    final FloatBuffer[] polygons;
+    int polygon = 0;
+    boolean tracking = true;
+
+    TestPlane(float height, float size) {
+      Matrix.setIdentityM(centerMatrix, 0);
+      centerMatrix[13] = height;
+      polygons = new FloatBuffer[] {createPolygon(4, size), createPolygon(8, size)};
+    }
+  }
+
+  private static final PlaneRenderer.PlaneAdapter<TestPlane> TEST_PLANES =
+          new PlaneRenderer.PlaneAdapter<TestPlane>() {
+    @Override
+    public boolean isDrawn(TestPlane plane) {
+      return plane.tracking;
+    }
+
+    @Override
+    public boolean isStale(TestPlane plane) {
+      // Paused planes keep their meshes, which is what the test relies on to not allocate.
+      return false;
+    }
+
+    @Override
+    public void getCenterMatrix(TestPlane plane, float[] matrix) {
+      System.arraycopy(plane.centerMatrix, 0, matrix, 0, 16);
+    }
+
+    @Override
+    public float getExtentX(TestPlane plane) {
+      return 2.0f;
+    }
+
+    @Override
+    public float getExtentZ(TestPlane plane) {
+      return 2.0f;
+    }
+
+    @Override
+    public FloatBuffer getPolygon(TestPlane plane) {
+      return plane.polygons[plane.polygon];
+    }
+  };
+
+  @Before
+  public void createGlContext() {
+    display = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+    int[] version = new int[2];
+    assertTrue(EGL14.eglInitialize(display, version, 0, version, 1));
+
+    int[] configAttributes = {
+            EGL14.EGL_RENDERABLE_TYPE,
+            (clientVersion >= 3) ? EGLExt.EGL_OPENGL_ES3_BIT_KHR : EGL14.EGL_OPENGL_ES2_BIT,
+            EGL14.EGL_SURFACE_TYPE, EGL14.EGL_PBUFFER_BIT,
+            EGL14.EGL_RED_SIZE, 8, EGL14.EGL_GREEN_SIZE, 8, EGL14.EGL_BLUE_SIZE, 8,
+            EGL14.EGL_ALPHA_SIZE, 8, EGL14.EGL_DEPTH_SIZE, 16,
+            EGL14.EGL_NONE
+    };
+    EGLConfig[] configs = new EGLConfig[1];
+    int[] numConfigs = new int[1];
+    assertTrue(EGL14.eglChooseConfig(display, configAttributes, 0, configs, 0, 1, numConfigs, 0));
+    assumeTrue("No OpenGL ES " + clientVersion + " config", numConfigs[0] > 0);
+
+    int[] contextAttributes = {EGL14.EGL_CONTEXT_CLIENT_VERSION, clientVersion, EGL14.EGL_NONE};
+    eglContext = EGL14.eglCreateContext(
+            display, configs[0], EGL14.EGL_NO_CONTEXT, contextAttributes, 0);
+    assumeTrue("No OpenGL ES " + clientVersion + " context",
+            eglContext != null && !eglContext.equals(EGL14.EGL_NO_CONTEXT));
+    int[] surfaceAttributes = {EGL14.EGL_WIDTH, 64, EGL14.EGL_HEIGHT, 64, EGL14.EGL_NONE};
+    surface = EGL14.eglCreatePbufferSurface(display, configs[0], surfaceAttributes, 0);
+    assertTrue(EGL14.eglMakeCurrent(display, surface, surface, eglContext));
+  }
+
+  @After
+  public void destroyGlContext() {
+    // The context and the surface are not created when the client version is not supported.
+    EGL14.eglMakeCurrent(
+            display, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+    if (!surface.equals(EGL14.EGL_NO_SURFACE)) {
+      EGL14.eglDestroySurface(display, surface);
+    }
+    if (eglContext != null && !eglContext.equals(EGL14.EGL_NO_CONTEXT)) {
+      EGL14.eglDestroyContext(display, eglContext);
+    }
+    EGL14.eglTerminate(display);
+  }
+
+  @Test
+  public void renderLoopDoesNotAllocate() throws Exception {
+    Context context = InstrumentationRegistry.getTargetContext();
+
+    PointCloudRenderer pointCloudRenderer = new PointCloudRenderer();
+    pointCloudRenderer.createOnGlThread(context);
+    PointCloudRenderer accumulatingRenderer = new PointCloudRenderer();
+    accumulatingRenderer.createOnGlThread(context);
+    accumulatingRenderer.setAccumulating(PointCloudRenderer.DEFAULT_VOXEL_SIZE_M,
+            PointCloudRenderer.DEFAULT_MAX_ACCUMULATED_POINTS);
+    PlaneRenderer planeRenderer = new PlaneRenderer();
+    planeRenderer.createOnGlThread(context, "models/trigrid.png");
+    ObjectRenderer objectRenderer = new ObjectRenderer(context);
+    objectRenderer.setContextClientVersion(clientVersion);
+    objectRenderer.createProgram(context);
+    // Otherwise the 3.0 run would measure the 2.0 backend again.
+    assertEquals((clientVersion >= 3) ? "OpenGL ES 3.0" : "OpenGL ES 2.0",
+            objectRenderer.getSubmitStats().getBackend());
+
+    List<File> objFiles = new ArrayList<>();
+    objFiles.add(writeCube(context));
+    objectRenderer.loadObjFiles(objFiles, null, null, new ObjectRenderer.ObjFilesLoadedDelegate() {
+      @Override
+      public void objFilesLoaded(int numFilesLoaded, int totalNumFiles) {}
+
+      @Override
+      public void objFilesLoadFailed(Throwable error) {}
+    });
+    final long deadlineMs = SystemClock.elapsedRealtime() + LOAD_TIMEOUT_MS;
+    while (!objectRenderer.isInitialized() && SystemClock.elapsedRealtime() < deadlineMs) {
+      objectRenderer.updateBuffers();
+      Thread.sleep(10);
+    }
+    assertTrue("The dataset was not loaded", objectRenderer.isInitialized());
+
+    Matrix.setIdentityM(anchorMatrix, 0);
+    Matrix.setLookAtM(viewMatrix, 0, 0, 1, 2, 0, 0, 0, 0, 1, 0);
+    Matrix.perspectiveM(projectionMatrix, 0, 60, 1, 0.1f, 100);
+    // Below the camera, so that they face it.
+    planes.add(new TestPlane(-1.0f, 1.0f));
+    planes.add(new TestPlane(-1.25f, 0.8f));
+    planes.add(new TestPlane(-1.5f, 0.6f));
+
+    // The warm-up draws every plane with both of its polygons, so that the meshes and the
+    // buffers they are built in have been created.
+    for (int i = 0; i < NUM_WARM_UP_FRAMES; ++i) {
+      drawFrame(pointCloudRenderer, accumulatingRenderer, planeRenderer, objectRenderer, i);
+    }
+    assertEquals(planes.size(), planeRenderer.getNumPlaneMeshes());
+    final int numMeshRebuilds = planeRenderer.getNumMeshRebuilds();
+
+    // Counting must be supported, or the test would pass without checking anything.
+    Debug.resetThreadAllocCount();
+    Debug.startAllocCounting();
+    Object probe = new Object();
+    final int probeCount = Debug.getThreadAllocCount();
+    Debug.stopAllocCounting();
+    assumeTrue("Allocation counting is not supported", probe != null && probeCount > 0);
+
+    Debug.resetThreadAllocCount();
+    Debug.startAllocCounting();
+    for (int i = 0; i < NUM_FRAMES; ++i) {
+      drawFrame(pointCloudRenderer, accumulatingRenderer, planeRenderer, objectRenderer,
+              NUM_WARM_UP_FRAMES + i);
+    }
+    Debug.stopAllocCounting();
+    final int numAllocations = Debug.getThreadAllocCount();
+    final int numAllocatedBytes = Debug.getThreadAllocSize();
+
+    // Otherwise the mesh rebuilds would not have been measured.
+    assertTrue(planeRenderer.getNumMeshRebuilds() > numMeshRebuilds);
+    assertEquals(planes.size(), planeRenderer.getNumPlaneMeshes());
+
+    assertEquals("Allocated " + numAllocatedBytes + " bytes over " + NUM_FRAMES + " frames",
+            0, numAllocations);
+  }
+
+  // The renderer calls of ARActivity.onDrawFrame, with the model moving so that the model matrix
+  // changes on every frame. The first and the last plane swap their draw order every frame, the
+  // middle one loses and regains tracking, and every plane switches polygons every third frame.
+  private void drawFrame(PointCloudRenderer pointCloudRenderer,
+                         PointCloudRenderer accumulatingRenderer, PlaneRenderer planeRenderer,
+                         ObjectRenderer objectRenderer, int frame) {
+    FloatBuffer points = pointClouds[frame % pointClouds.length];
+    points.rewind();
+    pointCloudRenderer.updatePoints(points);
+    pointCloudRenderer.draw(viewMatrix, projectionMatrix);
+    points.rewind();
+    accumulatingRenderer.updatePoints(points);
+    accumulatingRenderer.draw(viewMatrix, projectionMatrix);
+
+    planes.get(0).centerMatrix[13] = (frame % 2 == 0) ? -1.0f : -1.75f;
+    planes.get(1).tracking = (frame % 4 != 3);
+    for (int i = 0; i < planes.size(); ++i) {
+      planes.get(i).polygon = (frame / 3) % 2;
+    }
+    planeRenderer.drawPlanes(planes, TEST_PLANES, Pose.IDENTITY, projectionMatrix);
+
+    objectRenderer.updateBuffers();
+    translateFactor[0] = 0.001f * frame;
+    objectRenderer.updateModelMatrix(anchorMatrix, translateFactor, 1.0f, frame);
+    objectRenderer.draw(viewMatrix, projectionMatrix, colorCorrectionRgba, DRAW_OPAQUE);
+    objectRenderer.draw(viewMatrix, projectionMatrix, colorCorrectionRgba, DRAW_TRANSPARENT);
+  }
+
+  // A grid of points, as X,Y,Z,confidence, offset so that the two clouds differ.
+  private static FloatBuffer createPoints(float offset) {
+    FloatBuffer points = ByteBuffer.allocateDirect(NUM_POINTS * 4 * 4)
+            .order(ByteOrder.nativeOrder())
+            .asFloatBuffer();
+    for (int i = 0; i < NUM_POINTS; ++i) {
+      points.put(0.1f * (i % 8) + offset);
+      points.put(-1.0f);
+      points.put(-0.1f * (i / 8) - offset);
+      points.put(1.0f);
+    }
+    points.rewind();
+    return points;
+  }
+
+  // A regular polygon around the center of the plane, as X,Z pairs.
+  private static FloatBuffer createPolygon(int numVertices, float radius) {
+    FloatBuffer polygon = ByteBuffer.allocateDirect(numVertices * 2 * 4)
+            .order(ByteOrder.nativeOrder())
+            .asFloatBuffer();
+    for (int i = 0; i < numVertices; ++i) {
+      final double angle = -2.0 * Math.PI * i / numVertices;
+      polygon.put(radius * (float) Math.cos(angle));
+      polygon.put(radius * (float) Math.sin(angle));
+    }
+    polygon.rewind();
+    return polygon;
+  }
+
+  private static File writeCube(Context context) throws Exception {
+    File directory = new File(context.getCacheDir(), "render-loop-allocation-test");
+    directory.mkdirs();
+    File file = new File(directory, "cube.obj");
+    try (Writer writer = new OutputStreamWriter(new FileOutputStream(file),
+            StandardCharsets.UTF_8)) {
+      writer.write("v 0 0 0\nv 1 0 0\nv 1 1 0\nv 0 1 0\n"
+              + "v 0 0 1\nv 1 0 1\nv 1 1 1\nv 0 1 1\n"
+              + "f 1 2 3 4\nf 5 8 7 6\nf 1 5 6 2\nf 2 6 7 3\nf 3 7 8 4\nf 5 1 4 8\n");
+    }
+    return file;
+  }
+}
@@ -20,13 +20,21 @@ attribute vec4 a_Position;
 attribute vec3 a_Normal;
 attribute vec2 a_TexCoord;
 
+// The offset of an instance of a deduplicated mesh, either per instance for an instanced draw, or
+// from the array by the index of the instance in a batch. Both are zero for a mesh drawn once.
+uniform vec3 u_InstanceOffsets[32];
+attribute vec3 a_InstanceOffset;
+attribute float a_InstanceIndex;
+
 varying vec3 v_ViewPosition;
 varying vec3 v_ViewNormal;
 varying vec2 v_TexCoord;
 
 void main() {
-    v_ViewPosition = (u_ModelView * a_Position).xyz;
+    vec4 position = a_Position
+            + vec4(a_InstanceOffset + u_InstanceOffsets[int(a_InstanceIndex)], 0.0);
+    v_ViewPosition = (u_ModelView * position).xyz;
     v_ViewNormal = normalize((u_ModelView * vec4(a_Normal, 0.0)).xyz);
     v_TexCoord = a_TexCoord;
-    gl_Position = u_ModelViewProjection * a_Position;
+    gl_Position = u_ModelViewProjection * position;
 }
@@ -0,0 +1,82 @@
+#version 300 es
+/*
+ * The OpenGL ES 3.0 version of object.frag. The per-frame uniforms come from a uniform buffer,
+ * and the material from its range of the material uniform buffer.
+ */
+
+precision mediump float;
+
+layout(std140) uniform FrameUniforms {
+    mat4 u_ModelView;
+    mat4 u_ModelViewProjection;
+    vec4 u_LightingParameters;
+    vec4 u_ColorCorrectionParameters;
+};
+
+layout(std140) uniform MaterialUniforms {
+    vec3 u_MaterialAmbient;
+    float u_MaterialOpacity;
+    vec3 u_MaterialDiffuse;
+    float u_MaterialShininess;
+    vec3 u_MaterialSpecular;
+    vec4 u_ObjectColorCorrection; // used for texture-less objects
+};
+
+uniform sampler2D u_Texture;
+
+in vec3 v_ViewPosition;
+in vec3 v_ViewNormal;
+in vec2 v_TexCoord;
+
+out vec4 fragColor;
+
+void main() {
+    // We support approximate sRGB gamma.
+    const float kGamma = 0.4545454;
+    const float kInverseGamma = 2.2;
+    const float kMiddleGrayGamma = 0.466;
+
+    vec3 viewLightDirection = u_LightingParameters.xyz;
+    vec3 colorShift = u_ColorCorrectionParameters.rgb;
+    float averagePixelIntensity = u_ColorCorrectionParameters.a;
+
+    // Normalize varying parameters, because they are linearly interpolated in the vertex shader.
+    vec3 viewFragmentDirection = normalize(v_ViewPosition);
+    vec3 viewNormal = normalize(v_ViewNormal);
+
+    // Ambient light is unaffected by the light intensity.
+    vec3 ambient = u_MaterialAmbient;
+
+    // Approximate a hemisphere light (not a harsh directional light).
+    vec3 diffuse = u_MaterialDiffuse *
+            0.5 * (dot(viewNormal, viewLightDirection) + 1.0);
+
+    // Compute specular light.
+    vec3 reflectedLightDirection = reflect(viewLightDirection, viewNormal);
+    float specularStrength = max(0.0, dot(viewFragmentDirection, reflectedLightDirection));
+    vec3 specular = u_MaterialSpecular *
+            pow(specularStrength, u_MaterialShininess);
+
+    // Apply inverse SRGB gamma to the texture before making lighting calculations.
+    // Flip the y-texture coordinate to address the texture from top-left.
+    // if no texture, u_ObjectColorCorrection will be pure white(1,1,1), otherwise black(0,0,0)
+    vec4 objectColor = texture(u_Texture, vec2(v_TexCoord.x, 1.0 - v_TexCoord.y)) + u_ObjectColorCorrection;
+    objectColor.a *= u_MaterialOpacity;
+
+    objectColor.rgb = objectColor.rgb * (ambient + diffuse);
+    objectColor.rgb = pow(objectColor.rgb, vec3(kInverseGamma));
+
+    vec3 color = objectColor.rgb + specular;
+    // Apply SRGB gamma before writing the fragment color.
+    color.rgb = pow(color, vec3(kGamma));
+    // Apply average pixel intensity and color shift
+    color *= colorShift * (averagePixelIntensity / kMiddleGrayGamma);
+
+    // If the pixel in the texture is nearly transparent, we can simply discard the pixel
+    if (objectColor.a < 0.1)
+    {
+        discard;
+    }
+
+    fragColor = vec4(color, objectColor.a);
+}
@@ -0,0 +1,30 @@
+#version 300 es
+/*
+ * The OpenGL ES 3.0 version of object.vert. The per-frame uniforms come from a uniform buffer,
+ * and the offset of an instance of a deduplicated mesh from an instanced attribute.
+ */
+
+layout(std140) uniform FrameUniforms {
+    mat4 u_ModelView;
+    mat4 u_ModelViewProjection;
+    vec4 u_LightingParameters;
+    vec4 u_ColorCorrectionParameters;
+};
+
+in vec4 a_Position;
+in vec3 a_Normal;
+in vec2 a_TexCoord;
+// Zero for a mesh drawn once.
+in vec3 a_InstanceOffset;
+
+out vec3 v_ViewPosition;
+out vec3 v_ViewNormal;
+out vec2 v_TexCoord;
+
+void main() {
+    vec4 position = a_Position + vec4(a_InstanceOffset, 0.0);
+    v_ViewPosition = (u_ModelView * position).xyz;
+    v_ViewNormal = normalize((u_ModelView * vec4(a_Normal, 0.0)).xyz);
+    v_TexCoord = a_TexCoord;
+    gl_Position = u_ModelViewProjection * position;
+}
@@ -0,0 +1,521 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import de.javagl.obj.Mtl;
+import de.javagl.obj.MtlReader;
+import de.javagl.obj.Obj;
+import de.javagl.obj.ObjReader;
+
+/**
+ * Reads a .fmear archive straight from its zip stream. The obj and mtl entries are parsed while
+ * they are inflated, so they are never written to flash and read back. Only the other entries, the
+ * texture images that the {@link TextureDecoder} decodes later, are staged to a directory.
+ *
+ * <p>A zip stream only has the local entry headers, and an obj can come before the mtl files and
+ * images it refers to, so the references are resolved once the whole archive is read, against the
+ * {@link DatasetManifest} of all the entries. {@code mtllib} paths are relative to the obj entry
+ * and {@code map_Kd} paths to the mtl entry. The manifest is kept for the later lookups, so the
+ * extracted directory is never walked.
+ *
+ * <p>An archive in a file can be read through a {@link ZipFile} instead. Its central directory
+ * lists all the entries up front, so they are inflated, parsed and staged in parallel on an
+ * executor, and staged files are preallocated to their uncompressed size. {@link #extract} uses the
+ * same parallel path to unzip every entry.
+ *
+ * <p>An obj entry too large to parse in memory, see {@link #setMaxParsedObjBytes}, is staged like
+ * the textures, for the {@link OutOfCoreObjProcessor}.
+ *
+ * <p>An archive with a {@link TileManifest} is staged entirely, since its tiles are loaded from
+ * their files as the camera needs them. A zip stream is only staged from the tileset entry on, so
+ * the tileset is expected to be the first entry. *
+ * <p>Parsing is the expensive part of a dataset load, so callers look the archive up in the {@link
+ * DatasetCache} first (see {@code ObjectRenderer.hasCachedDataset}) and only read it here on a
+ * miss; a cached dataset needs neither the entries nor the parsed objs.
+ */
+public class ArchiveReader {
+  private static final String TAG = ArchiveReader.class.getSimpleName();
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+  // The parallel workers copy larger blocks, since they do not share a buffer.
+  private static final int WORKER_BUFFER_SIZE = 256 * 1024;
+  private static final ThreadLocal<byte[]> workerBuffers = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[WORKER_BUFFER_SIZE];
+    }
+  };
+
+  // Obj entries larger than this are staged rather than parsed. A parsed obj takes several times
+  // its size in heap.
+  private static volatile long maxParsedObjBytes =
+          Runtime.getRuntime().maxMemory() / OutOfCoreObjProcessor.HEAP_BYTES_PER_OBJ_BYTE;
+
+  /**
+   * An obj entry parsed from the archive, with its materials and their staged textures. An obj
+   * entry that was too large to parse has its staged file instead, and the materials of all the
+   * mtl entries, since its material libraries are only known once it is processed.
+   */
+  public static class ParsedObj {
+    public final String entryName;
+    // The parsed obj, or null if the entry was staged.
+    public final Obj obj;
+    // The staged obj file, or null if the entry was parsed.
+    public final File file;
+    public final List<Mtl> mtls = new ArrayList<>();
+    // The staged texture of every material that has one, by material name.
+    public final Map<String, File> textureFiles = new HashMap<>();
+
+    ParsedObj(String entryName, Obj obj) {
+      this.entryName = entryName;
+      this.obj = obj;
+      this.file = null;
+    }
+
+    ParsedObj(String entryName, File file) {
+      this.entryName = entryName;
+      this.obj = null;
+      this.file = file;
+    }
+  }
+
+  /**
+   * Sets the size of the largest obj entry that is parsed in memory. Larger entries are staged.
+   * An archive stream does not always have the size of an entry up front; those are parsed.
+   */
+  public static void setMaxParsedObjBytes(long numBytes) {
+    maxParsedObjBytes = numBytes;
+  }
+
+  private final File stagingDirectory;
+  private final DatasetManifest manifest;
+  private final LoadMetrics metrics;
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+
+  // The parsed and staged entries, by normalized entry name.
+  private final Map<String, ParsedObj> objsByEntryName = new TreeMap<>();
+  private final Map<String, List<Mtl>> mtlsByEntryName = new TreeMap<>();
+  private final Map<String, File> stagedFilesByEntryName = new TreeMap<>();
+
+  private long numInflatedBytes = 0;
+  private long numStagedBytes = 0;
+  // Whether a tileset entry was read, after which all the entries are staged.
+  private boolean hasTileset = false;
+
+  private ArchiveReader(File stagingDirectory, DatasetManifest manifest, LoadMetrics metrics) {
+    this.stagingDirectory = stagingDirectory;
+    this.manifest = manifest;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Reads the archive to its end, parsing the obj and mtl entries and staging the others to the
+   * directory.
+   *
+   * @param manifest Receives every entry, with the staged file if it is staged.
+   * @param metrics Receives the metrics of every entry.
+   * @return the parsed obj files, in entry name order.
+   */
+  public static List<ParsedObj> read(InputStream archive, File stagingDirectory,
+                                     DatasetManifest manifest, LoadMetrics metrics)
+          throws IOException {
+    ArchiveReader reader = new ArchiveReader(stagingDirectory, manifest, metrics);
+    final long startTime = SystemClock.elapsedRealtime();
+    reader.readEntries(archive);
+    List<ParsedObj> objs = reader.resolveReferences();
+
+    reader.logThroughput("Read", objs.size(), SystemClock.elapsedRealtime() - startTime);
+    return objs;
+  }
+
+  /**
+   * Reads all the entries of the archive in parallel on the executor, parsing the obj and mtl
+   * entries and staging the others to the directory.
+   *
+   * @param manifest Receives every entry, with the staged file if it is staged.
+   * @param metrics Receives the metrics of every entry.
+   * @return the parsed obj files, in entry name order.
+   */
+  public static List<ParsedObj> read(ZipFile zipFile, File stagingDirectory,
+                                     ExecutorService executor, DatasetManifest manifest,
+                                     LoadMetrics metrics) throws IOException {
+    ArchiveReader reader = new ArchiveReader(stagingDirectory, manifest, metrics);
+    final long startTime = SystemClock.elapsedRealtime();
+    reader.readEntriesInParallel(zipFile, executor, true);
+    List<ParsedObj> objs = reader.resolveReferences();
+    reader.logThroughput("Read", objs.size(), SystemClock.elapsedRealtime() - startTime);
+    return objs;
+  }
+
+  /**
+   * Unzips all the entries of the archive to the directory, in parallel on the executor, and adds
+   * them to the manifest.
+   */
+  public static void extract(ZipFile zipFile, File destinationDirectory, ExecutorService executor,
+                             DatasetManifest manifest, LoadMetrics metrics) throws IOException {
+    ArchiveReader reader = new ArchiveReader(destinationDirectory, manifest, metrics);
+    final long startTime = SystemClock.elapsedRealtime();
+    reader.readEntriesInParallel(zipFile, executor, false);
+    reader.logThroughput("Unzipped", 0, SystemClock.elapsedRealtime() - startTime);
+  }
+
+  private void logThroughput(String action, int numObjs, long timeMs) {
+    Log.i(TAG, action + " " + (numInflatedBytes / 1024) + " KB from the archive in " + timeMs
+            + " ms (" + (numInflatedBytes / 1024 / Math.max(1, timeMs)) + " MB/s): parsed "
+            + numObjs + " obj and " + mtlsByEntryName.size() + " mtl files, staged "
+            + stagedFilesByEntryName.size() + " files (" + (numStagedBytes / 1024) + " KB)");
+  }
+
+  private void readEntries(InputStream archive) throws IOException {
+    ZipInputStream zipInputStream = new ZipInputStream(archive);
+    // The parsers wrap the stream in readers, which must not close it at the end of the entry.
+    InputStream entryStream = new FilterInputStream(zipInputStream) {
+      @Override
+      public void close() {
+      }
+    };
+
+    ZipEntry zipEntry;
+    while ((zipEntry = zipInputStream.getNextEntry()) != null) {
+      checkInterrupted();
+      final String entryName = normalize("", zipEntry.getName());
+      // Skip the __MACOSX folders in case the archive was created on macOS with the resource fork.
+      if (zipEntry.isDirectory() || entryName.isEmpty() || entryName.startsWith("__MACOSX")) {
+        zipInputStream.closeEntry();
+        continue;
+      }
+
+      final String lowerCaseName = entryName.toLowerCase();
+      if (TileManifest.isTileManifest(fileNameOf(entryName))) {
+        hasTileset = true;
+      }
+      CountingInputStream countingStream = new CountingInputStream(entryStream);
+      // Parsed entries count the text they parsed in, unzipped entries the compressed bytes, which
+      // are only known once the entry is read.
+      if (hasTileset) {
+        LoadMetrics.Section section = metrics.begin(entryName, "unzip");
+        section.bytesOut(stage(entryName, countingStream));
+        section.bytesIn(Math.max(0, zipEntry.getCompressedSize())).end();
+      } else if (lowerCaseName.endsWith(".obj") && zipEntry.getSize() > maxParsedObjBytes) {
+        LoadMetrics.Section section = metrics.begin(entryName, "unzip");
+        final long numBytes = stage(entryName, countingStream);
+        objsByEntryName.put(
+                entryName, new ParsedObj(entryName, stagedFilesByEntryName.get(entryName)));
+        section.bytesOut(numBytes).bytesIn(Math.max(0, zipEntry.getCompressedSize())).end();
+      } else if (lowerCaseName.endsWith(".obj")) {
+        LoadMetrics.Section section = metrics.begin(entryName, "parse");
+        Obj obj = ObjReader.read(countingStream);
+        objsByEntryName.put(entryName, new ParsedObj(entryName, obj));
+        manifest.add(entryName, null, countingStream.count);
+        countElements(section, obj);
+        section.bytesIn(countingStream.count).end();
+      } else if (lowerCaseName.endsWith(".mtl")) {
+        LoadMetrics.Section section = metrics.begin(entryName, "parse-mtl");
+        List<Mtl> mtls = MtlReader.read(countingStream);
+        mtlsByEntryName.put(entryName, mtls);
+        manifest.add(entryName, null, countingStream.count);
+        section.count("materials", mtls.size()).bytesIn(countingStream.count).end();
+      } else {
+        LoadMetrics.Section section = metrics.begin(entryName, "unzip");
+        section.bytesOut(stage(entryName, countingStream));
+        section.bytesIn(Math.max(0, zipEntry.getCompressedSize())).end();
+      }
+      numInflatedBytes += countingStream.count;
+      zipInputStream.closeEntry();
+    }
+
+    // The zip stream stops at the central directory. The rest is read so that a caller hashing
+    // the archive sees all of it.
+    while (archive.read(buffer) >= 0) {
+      checkInterrupted();
+    }
+  }
+
+  private static boolean containsTileset(ZipFile zipFile) {
+    Enumeration<? extends ZipEntry> entries = zipFile.entries();
+    while (entries.hasMoreElements()) {
+      final String entryName = normalize("", entries.nextElement().getName());
+      if (TileManifest.isTileManifest(fileNameOf(entryName))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String fileNameOf(String entryName) {
+    return entryName.substring(entryName.lastIndexOf('/') + 1);
+  }
+
+  // Stops reading the archive once the reading thread is interrupted, for a cancelled load.
+  private static void checkInterrupted() throws InterruptedIOException {
+    if (Thread.currentThread().isInterrupted()) {
+      throw new InterruptedIOException("Interrupted while reading the archive");
+    }
+  }
+
+  private long stage(String entryName, InputStream input) throws IOException {
+    File stagedFile = new File(stagingDirectory, entryName);
+    final long numBytes = copy(input, stagedFile, -1, buffer);
+    numStagedBytes += numBytes;
+    stagedFilesByEntryName.put(entryName, stagedFile);
+    manifest.add(entryName, stagedFile, numBytes);
+    return numBytes;
+  }
+
+  private static void countElements(LoadMetrics.Section section, Obj obj) {
+    section.count("vertices", obj.getNumVertices())
+            .count("texCoords", obj.getNumTexCoords())
+            .count("normals", obj.getNumNormals())
+            .count("faces", obj.getNumFaces());
+  }
+
+  // Inflates the entries of the archive on the executor. The central directory has every entry,
+  // so the tasks are all submitted before the first one is waited for.
+  private void readEntriesInParallel(
+          final ZipFile zipFile, ExecutorService executor, boolean parse) throws IOException {
+    if (parse && containsTileset(zipFile)) {
+      hasTileset = true;
+      parse = false;
+    }
+    Map<String, Future<Obj>> objTasks = new TreeMap<>();
+    Map<String, Future<List<Mtl>>> mtlTasks = new TreeMap<>();
+    Map<String, Future<Long>> stageTasks = new TreeMap<>();
+
+    Enumeration<? extends ZipEntry> entries = zipFile.entries();
+    while (entries.hasMoreElements()) {
+      final ZipEntry zipEntry = entries.nextElement();
+      final String entryName = normalize("", zipEntry.getName());
+      if (zipEntry.isDirectory() || entryName.isEmpty() || entryName.startsWith("__MACOSX")) {
+        continue;
+      }
+      if (zipEntry.getSize() > 0) {
+        numInflatedBytes += zipEntry.getSize();
+      }
+
+      final String lowerCaseName = entryName.toLowerCase();
+      final boolean isObj = lowerCaseName.endsWith(".obj");
+      if (parse && isObj && zipEntry.getSize() <= maxParsedObjBytes) {
+        manifest.add(entryName, null, zipEntry.getSize());
+        objTasks.put(entryName, executor.submit(new Callable<Obj>() {
+          @Override
+          public Obj call() throws IOException {
+            LoadMetrics.Section section = metrics.begin(entryName, "parse");
+            try (InputStream input = zipFile.getInputStream(zipEntry)) {
+              Obj obj = ObjReader.read(input);
+              countElements(section, obj);
+              return obj;
+            } finally {
+              section.bytesIn(zipEntry.getSize()).end();
+            }
+          }
+        }));
+      } else if (parse && lowerCaseName.endsWith(".mtl")) {
+        manifest.add(entryName, null, zipEntry.getSize());
+        mtlTasks.put(entryName, executor.submit(new Callable<List<Mtl>>() {
+          @Override
+          public List<Mtl> call() throws IOException {
+            LoadMetrics.Section section = metrics.begin(entryName, "parse-mtl");
+            try (InputStream input = zipFile.getInputStream(zipEntry)) {
+              List<Mtl> mtls = MtlReader.read(input);
+              section.count("materials", mtls.size());
+              return mtls;
+            } finally {
+              section.bytesIn(zipEntry.getSize()).end();
+            }
+          }
+        }));
+      } else {
+        final File stagedFile = new File(stagingDirectory, entryName);
+        stagedFilesByEntryName.put(entryName, stagedFile);
+        manifest.add(entryName, stagedFile, zipEntry.getSize());
+        if (parse && isObj) {
+          objsByEntryName.put(entryName, new ParsedObj(entryName, stagedFile));
+        }
+        stageTasks.put(entryName, executor.submit(new Callable<Long>() {
+          @Override
+          public Long call() throws IOException {
+            LoadMetrics.Section section = metrics.begin(entryName, "unzip");
+            try (InputStream input = zipFile.getInputStream(zipEntry)) {
+              final long numBytes =
+                      copy(input, stagedFile, zipEntry.getSize(), workerBuffers.get());
+              section.bytesOut(numBytes);
+              return numBytes;
+            } finally {
+              section.bytesIn(zipEntry.getCompressedSize()).end();
+            }
+          }
+        }));
+      }
+    }
+
+    for (Map.Entry<String, Future<Obj>> task : objTasks.entrySet()) {
+      objsByEntryName.put(task.getKey(), new ParsedObj(task.getKey(), await(task.getValue())));
+    }
+    for (Map.Entry<String, Future<List<Mtl>>> task : mtlTasks.entrySet()) {
+      mtlsByEntryName.put(task.getKey(), await(task.getValue()));
+    }
+    for (Future<Long> task : stageTasks.values()) {
+      numStagedBytes += await(task);
+    }
+  }
+
+  private static <T> T await(Future<T> task) throws IOException {
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while reading the archive");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Failed to read the archive", e.getCause());
+    }
+  }
+
+  // Copies the input to the file, and returns the number of bytes. If the size is known, the file
+  // is allocated up front, so that it is not grown block by block.
+  private static long copy(InputStream input, File file, long size, byte[] buffer)
+          throws IOException {
+    File parent = file.getParentFile();
+    if (parent != null) {
+      parent.mkdirs();
+    }
+
+    long numBytesCopied = 0;
+    try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+      if (size > 0) {
+        output.setLength(size);
+      }
+      int numBytes;
+      while ((numBytes = input.read(buffer)) > 0) {
+        checkInterrupted();
+        output.write(buffer, 0, numBytes);
+        numBytesCopied += numBytes;
+      }
+      if (numBytesCopied != size) {
+        output.setLength(numBytesCopied);
+      }
+    }
+    return numBytesCopied;
+  }
+
+  private List<ParsedObj> resolveReferences() {
+    List<ParsedObj> objs = new ArrayList<>(objsByEntryName.size());
+    for (ParsedObj parsedObj : objsByEntryName.values()) {
+      if (parsedObj.obj == null) {
+        for (String mtlEntryName : mtlsByEntryName.keySet()) {
+          addMtls(parsedObj, mtlEntryName);
+        }
+        objs.add(parsedObj);
+        continue;
+      }
+
+      for (String mtlFileName : parsedObj.obj.getMtlFileNames()) {
+        DatasetManifest.Entry mtlEntry = manifest.resolve(parsedObj.entryName, mtlFileName);
+        if (mtlEntry == null || !mtlsByEntryName.containsKey(mtlEntry.name)) {
+          Log.w(TAG, "Material library '" + mtlFileName + "' of '" + parsedObj.entryName
+                  + "' is not in the archive");
+          continue;
+        }
+        addMtls(parsedObj, mtlEntry.name);
+      }
+      objs.add(parsedObj);
+    }
+    return objs;
+  }
+
+  // Adds the materials of the mtl entry to the obj, with their textures.
+  private void addMtls(ParsedObj parsedObj, String mtlEntryName) {
+    for (Mtl mtl : mtlsByEntryName.get(mtlEntryName)) {
+      parsedObj.mtls.add(mtl);
+      if (mtl.getMapKd() == null) {
+        continue;
+      }
+      DatasetManifest.Entry textureEntry = manifest.resolve(mtlEntryName, mtl.getMapKd());
+      if (textureEntry != null && textureEntry.file != null) {
+        parsedObj.textureFiles.put(mtl.getName(), textureEntry.file);
+      }
+    }
+  }
+
+  /**
+   * Joins the path to the directory and removes empty, "." and ".." segments, so that every
+   * reference to an entry ends up with the same name and no entry is staged outside the staging
+   * directory.
+   */
+  public static String normalize(String directory, String path) {
+    String relativePath = path.trim().replace('\\', '/');
+    Deque<String> segments = new ArrayDeque<>();
+    String fullPath = relativePath.startsWith("/") ? relativePath : directory + "/" + relativePath;
+    for (String segment : fullPath.split("/")) {
+      if (segment.isEmpty() || segment.equals(".")) {
+        continue;
+      }
+      if (segment.equals("..")) {
+        segments.pollLast();
+        continue;
+      }
+      segments.addLast(segment);
+    }
+
+    StringBuilder entryName = new StringBuilder();
+    for (String segment : segments) {
+      if (entryName.length() > 0) {
+        entryName.append('/');
+      }
+      entryName.append(segment);
+    }
+    return entryName.toString();
+  }
+
+  // Counts the inflated bytes that the parsers read.
+  private static class CountingInputStream extends FilterInputStream {
+    long count = 0;
+
+    CountingInputStream(InputStream input) {
+      super(input);
+    }
+
+    @Override
+    public int read() throws IOException {
+      final int value = super.read();
+      if (value >= 0) {
+        ++count;
+      }
+      return value;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+      final int numBytes = super.read(bytes, offset, length);
+      if (numBytes > 0) {
+        count += numBytes;
+      }
+      return numBytes;
+    }
+  }
+}
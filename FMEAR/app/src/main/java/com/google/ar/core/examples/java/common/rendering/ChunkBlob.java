@@ -0,0 +1,122 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The GPU-ready geometry of a single material chunk, stored in a file so that it can be memory
+ * mapped and passed straight to glBufferData.
+ *
+ * <p>Layout, in native byte order: a 32 byte header with the magic number, the format version and
+ * the number of position, texture coordinate, normal and index values, followed by the vertex
+ * buffer content (positions, then texture coordinates, then normals, as laid out in the VBO) and
+ * then the 32 bit indices.
+ */
+public class ChunkBlob {
+
+  private static final int MAGIC = 0x464d4342; // "FMCB"
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 32;
+
+  public final int numVertexFloats;
+  public final int numTexCoordFloats;
+  public final int numNormalFloats;
+  public final int numIndices;
+  /** The vertex buffer content: positions, texture coordinates and normals. */
+  public final ByteBuffer vertexData;
+  /** The index buffer content. */
+  public final ByteBuffer indexData;
+
+  private ChunkBlob(int numVertexFloats, int numTexCoordFloats, int numNormalFloats,
+                    int numIndices, ByteBuffer vertexData, ByteBuffer indexData) {
+    this.numVertexFloats = numVertexFloats;
+    this.numTexCoordFloats = numTexCoordFloats;
+    this.numNormalFloats = numNormalFloats;
+    this.numIndices = numIndices;
+    this.vertexData = vertexData;
+    this.indexData = indexData;
+  }
+
+  /** Returns the size of the chunk on the GPU: the vertex buffer plus the index buffer. */
+  public static long gpuBytes(int numVertexFloats, int numTexCoordFloats, int numNormalFloats,
+                              int numIndices) {
+    return 4L * (numVertexFloats + numTexCoordFloats + numNormalFloats + numIndices);
+  }
+
+  /** Writes the chunk to the file, replacing its content. */
+  public static void write(File file, FloatBuffer vertices, FloatBuffer texCoords,
+                           FloatBuffer normals, IntBuffer indices) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.nativeOrder());
+    header.putInt(MAGIC).putInt(VERSION)
+            .putInt(vertices.limit()).putInt(texCoords.limit())
+            .putInt(normals.limit()).putInt(indices.limit());
+    header.rewind();
+
+    try (RandomAccessFile output = new RandomAccessFile(file, "rw");
+         FileChannel channel = output.getChannel()) {
+      output.setLength(HEADER_BYTES + gpuBytes(
+              vertices.limit(), texCoords.limit(), normals.limit(), indices.limit()));
+      writeFully(channel, header);
+      writeFully(channel, toBytes(vertices, 4 * vertices.limit()));
+      writeFully(channel, toBytes(texCoords, 4 * texCoords.limit()));
+      writeFully(channel, toBytes(normals, 4 * normals.limit()));
+      writeFully(channel, toBytes(indices, 4 * indices.limit()));
+    }
+  }
+
+  /** Memory-maps the chunk file. The mapping stays valid after the file is closed. */
+  public static ChunkBlob map(File file) throws IOException {
+    try (RandomAccessFile input = new RandomAccessFile(file, "r");
+         FileChannel channel = input.getChannel()) {
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      mapped.order(ByteOrder.nativeOrder());
+      if (mapped.getInt() != MAGIC || mapped.getInt() != VERSION) {
+        throw new IOException("Not a chunk file: " + file);
+      }
+
+      final int numVertexFloats = mapped.getInt();
+      final int numTexCoordFloats = mapped.getInt();
+      final int numNormalFloats = mapped.getInt();
+      final int numIndices = mapped.getInt();
+      final long vertexBytes = 4L * (numVertexFloats + numTexCoordFloats + numNormalFloats);
+      if (HEADER_BYTES + vertexBytes + 4L * numIndices > mapped.capacity()) {
+        throw new IOException("Truncated chunk file: " + file);
+      }
+
+      mapped.position(HEADER_BYTES);
+      ByteBuffer vertexData = mapped.slice().order(ByteOrder.nativeOrder());
+      vertexData.limit((int) vertexBytes);
+      mapped.position(HEADER_BYTES + (int) vertexBytes);
+      ByteBuffer indexData = mapped.slice().order(ByteOrder.nativeOrder());
+      indexData.limit(4 * numIndices);
+
+      return new ChunkBlob(numVertexFloats, numTexCoordFloats, numNormalFloats, numIndices,
+              vertexData, indexData);
+    }
+  }
+
+  // Copies the float or int content of the buffer into native-order bytes for the file channel.
+  private static ByteBuffer toBytes(Buffer buffer, int numBytes) {
+    ByteBuffer bytes = ByteBuffer.allocateDirect(numBytes).order(ByteOrder.nativeOrder());
+    if (buffer instanceof FloatBuffer) {
+      bytes.asFloatBuffer().put((FloatBuffer) ((FloatBuffer) buffer).duplicate().rewind());
+    } else {
+      bytes.asIntBuffer().put((IntBuffer) ((IntBuffer) buffer).duplicate().rewind());
+    }
+    return bytes;
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer bytes) throws IOException {
+    while (bytes.hasRemaining()) {
+      channel.write(bytes);
+    }
+  }
+}
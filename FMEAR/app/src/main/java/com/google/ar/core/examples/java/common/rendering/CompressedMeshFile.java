@@ -0,0 +1,395 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads and writes .fmesh files: indexed triangle meshes with quantized vertices, compressed with
+ * {@link MeshCodec}, which an .fmear archive can carry instead of obj files. Each .fmesh file has
+ * a sidecar manifest, the same name with .json appended, that lists its meshes with their
+ * materials, counts, quantization ranges and where their vertices and indices are in the file.
+ *
+ * <p>A vertex is quantized to 3 unsigned shorts for the position over the bounds of the mesh, 3
+ * signed bytes for the normal, if the mesh has normals, and 2 unsigned shorts for the texture
+ * coordinates over their range, if it has them; all little-endian. The writer reorders the
+ * vertices in first-use order, which is what the codec compresses best.
+ */
+public class CompressedMeshFile {
+
+  public static final String EXTENSION = ".fmesh";
+  public static final String MANIFEST_EXTENSION = ".fmesh.json";
+
+  private static final int VERSION = 1;
+
+  // The quantization steps of the positions and texture coordinates, and of the normals.
+  private static final int UNSIGNED_SHORT_STEPS = 65535;
+  private static final int NORMAL_STEPS = 127;
+
+  /**
+   * A triangle mesh with a single material. The buffers are read from their position 0 to their
+   * limit: three floats per vertex for the positions and the normals, two for the texture
+   * coordinates, and three indices per triangle. The normals and texture coordinates are empty if
+   * the mesh has none.
+   */
+  public static class Mesh {
+    public String materialName = "";
+    public final float[] ambient = {0.0f, 0.0f, 0.0f};
+    public final float[] diffuse = {1.0f, 1.0f, 1.0f};
+    public final float[] specular = {0.0f, 0.0f, 0.0f};
+    public float shininess = 0.0f;
+    public float opacity = 1.0f;
+    // The texture image, or null.
+    public File texture;
+
+    public FloatBuffer positions;
+    public FloatBuffer normals;
+    public FloatBuffer texCoords;
+    public IntBuffer indices;
+
+    public int getNumVertices() {
+      return positions.limit() / 3;
+    }
+  }
+
+  public static boolean isCompressedMeshFile(File file) {
+    return file.getName().toLowerCase().endsWith(EXTENSION);
+  }
+
+  public static File manifestFileOf(File file) {
+    return new File(file.getPath() + ".json");
+  }
+
+  /**
+   * Reads the meshes of an .fmesh file and its manifest into direct buffers.
+   *
+   * @throws IOException if either file is missing or malformed.
+   */
+  public static List<Mesh> read(File file) throws IOException {
+    final File manifestFile = manifestFileOf(file);
+    JSONArray meshArray;
+    try {
+      JSONObject manifest = new JSONObject(new String(readFully(manifestFile),
+              StandardCharsets.UTF_8));
+      if (manifest.optInt("version", 0) != VERSION) {
+        throw new IOException("Unsupported .fmesh version " + manifest.optInt("version", 0));
+      }
+      meshArray = manifest.getJSONArray("meshes");
+    } catch (JSONException e) {
+      throw new IOException("Malformed manifest '" + manifestFile + "'", e);
+    }
+
+    final byte[] data = readFully(file);
+    List<Mesh> meshes = new ArrayList<>(meshArray.length());
+    try {
+      for (int i = 0; i < meshArray.length(); ++i) {
+        meshes.add(readMesh(meshArray.getJSONObject(i), data, file.getParentFile()));
+      }
+    } catch (JSONException e) {
+      throw new IOException("Malformed manifest '" + manifestFile + "'", e);
+    }
+    return meshes;
+  }
+
+  private static Mesh readMesh(JSONObject json, byte[] data, File directory)
+          throws IOException, JSONException {
+    Mesh mesh = new Mesh();
+    mesh.materialName = json.optString("material", "");
+    readFloats(json.optJSONArray("ambient"), mesh.ambient);
+    readFloats(json.optJSONArray("diffuse"), mesh.diffuse);
+    readFloats(json.optJSONArray("specular"), mesh.specular);
+    mesh.shininess = (float) json.optDouble("shininess", 0.0);
+    mesh.opacity = (float) json.optDouble("opacity", 1.0);
+    if (json.has("texture")) {
+      mesh.texture = new File(directory, json.getString("texture"));
+    }
+
+    final int numVertices = json.getInt("vertexCount");
+    final int numIndices = json.getInt("indexCount");
+    final boolean hasNormals = json.optBoolean("normals", false);
+    final boolean hasTexCoords = json.optBoolean("texCoords", false);
+    final int stride = strideOf(hasNormals, hasTexCoords);
+
+    byte[] vertices = new byte[numVertices * stride];
+    MeshCodec.decodeVertices(data, checkRange(json, "vertex", data), json.getInt("vertexLength"),
+            vertices, numVertices, stride);
+    int[] indices = new int[numIndices];
+    MeshCodec.decodeIndices(data, checkRange(json, "index", data), json.getInt("indexLength"),
+            indices, numIndices, numVertices);
+
+    final float[] positionMin = new float[3];
+    final float[] positionScale = new float[3];
+    readFloats(json.getJSONArray("positionMin"), positionMin);
+    readFloats(json.getJSONArray("positionScale"), positionScale);
+    final float[] texCoordMin = new float[2];
+    final float[] texCoordScale = new float[2];
+    if (hasTexCoords) {
+      readFloats(json.getJSONArray("texCoordMin"), texCoordMin);
+      readFloats(json.getJSONArray("texCoordScale"), texCoordScale);
+    }
+
+    float[] positions = new float[numVertices * 3];
+    float[] normals = new float[hasNormals ? numVertices * 3 : 0];
+    float[] texCoords = new float[hasTexCoords ? numVertices * 2 : 0];
+    ByteBuffer records = ByteBuffer.wrap(vertices).order(ByteOrder.LITTLE_ENDIAN);
+    for (int v = 0; v < numVertices; ++v) {
+      for (int i = 0; i < 3; ++i) {
+        positions[v * 3 + i] = positionMin[i] + (records.getShort() & 0xffff) * positionScale[i];
+      }
+      if (hasNormals) {
+        final float x = records.get();
+        final float y = records.get();
+        final float z = records.get();
+        final float length = (float) Math.sqrt(x * x + y * y + z * z);
+        final float inverseLength = (length > 0.0f) ? 1.0f / length : 0.0f;
+        normals[v * 3] = x * inverseLength;
+        normals[v * 3 + 1] = y * inverseLength;
+        normals[v * 3 + 2] = z * inverseLength;
+      }
+      if (hasTexCoords) {
+        for (int i = 0; i < 2; ++i) {
+          texCoords[v * 2 + i] = texCoordMin[i] + (records.getShort() & 0xffff) * texCoordScale[i];
+        }
+      }
+    }
+
+    mesh.positions = toFloatBuffer(positions);
+    mesh.normals = toFloatBuffer(normals);
+    mesh.texCoords = toFloatBuffer(texCoords);
+    mesh.indices = toIntBuffer(indices);
+    return mesh;
+  }
+
+  /**
+   * Writes the meshes to an .fmesh file and its manifest. Texture paths are written relative to
+   * the directory of the file when they are in it.
+   */
+  public static void write(File file, List<Mesh> meshes) throws IOException {
+    StringBuilder json = new StringBuilder();
+    json.append("{\n  \"version\": ").append(VERSION);
+    json.append(",\n  \"meshes\": [");
+    long offset = 0;
+    try (OutputStream output = new FileOutputStream(file)) {
+      for (int m = 0; m < meshes.size(); ++m) {
+        final Mesh mesh = meshes.get(m);
+        final int numIndices = mesh.indices.limit();
+        int[] indices = new int[numIndices];
+        for (int i = 0; i < numIndices; ++i) {
+          indices[i] = mesh.indices.get(i);
+        }
+        final int[] remap = MeshCodec.reorderForFetch(indices, numIndices, mesh.getNumVertices());
+        int numVertices = 0;
+        for (int newIndex : remap) {
+          numVertices = Math.max(numVertices, newIndex + 1);
+        }
+
+        final boolean hasNormals = mesh.normals != null && mesh.normals.limit() > 0;
+        final boolean hasTexCoords = mesh.texCoords != null && mesh.texCoords.limit() > 0;
+        final int stride = strideOf(hasNormals, hasTexCoords);
+        final float[] positionMin = new float[3];
+        final float[] positionScale = new float[3];
+        rangeOf(mesh.positions, 3, positionMin, positionScale);
+        final float[] texCoordMin = new float[2];
+        final float[] texCoordScale = new float[2];
+        if (hasTexCoords) {
+          rangeOf(mesh.texCoords, 2, texCoordMin, texCoordScale);
+        }
+
+        ByteBuffer records =
+                ByteBuffer.allocate(numVertices * stride).order(ByteOrder.LITTLE_ENDIAN);
+        for (int v = 0; v < remap.length; ++v) {
+          if (remap[v] < 0) {
+            continue;
+          }
+          records.position(remap[v] * stride);
+          for (int i = 0; i < 3; ++i) {
+            records.putShort(quantize(mesh.positions.get(v * 3 + i), positionMin[i],
+                    positionScale[i]));
+          }
+          if (hasNormals) {
+            for (int i = 0; i < 3; ++i) {
+              final float n = Math.max(-1.0f, Math.min(1.0f, mesh.normals.get(v * 3 + i)));
+              records.put((byte) Math.round(n * NORMAL_STEPS));
+            }
+          }
+          if (hasTexCoords) {
+            for (int i = 0; i < 2; ++i) {
+              records.putShort(quantize(mesh.texCoords.get(v * 2 + i), texCoordMin[i],
+                      texCoordScale[i]));
+            }
+          }
+        }
+
+        final byte[] encodedVertices =
+                MeshCodec.encodeVertices(records.array(), numVertices, stride);
+        final byte[] encodedIndices = MeshCodec.encodeIndices(indices, numIndices);
+        output.write(encodedVertices);
+        output.write(encodedIndices);
+
+        json.append(m == 0 ? "\n" : ",\n");
+        json.append("    {\"material\": ");
+        appendString(json, mesh.materialName);
+        json.append(", \"ambient\": ");
+        appendFloats(json, mesh.ambient);
+        json.append(", \"diffuse\": ");
+        appendFloats(json, mesh.diffuse);
+        json.append(", \"specular\": ");
+        appendFloats(json, mesh.specular);
+        json.append(", \"shininess\": ").append(mesh.shininess);
+        json.append(", \"opacity\": ").append(mesh.opacity);
+        if (mesh.texture != null) {
+          json.append(", \"texture\": ");
+          appendString(json, relativePath(file.getParentFile(), mesh.texture));
+        }
+        json.append(",\n     \"vertexCount\": ").append(numVertices);
+        json.append(", \"indexCount\": ").append(numIndices);
+        json.append(", \"normals\": ").append(hasNormals);
+        json.append(", \"texCoords\": ").append(hasTexCoords);
+        json.append(",\n     \"positionMin\": ");
+        appendFloats(json, positionMin);
+        json.append(", \"positionScale\": ");
+        appendFloats(json, positionScale);
+        if (hasTexCoords) {
+          json.append(", \"texCoordMin\": ");
+          appendFloats(json, texCoordMin);
+          json.append(", \"texCoordScale\": ");
+          appendFloats(json, texCoordScale);
+        }
+        json.append(",\n     \"vertexOffset\": ").append(offset);
+        json.append(", \"vertexLength\": ").append(encodedVertices.length);
+        offset += encodedVertices.length;
+        json.append(", \"indexOffset\": ").append(offset);
+        json.append(", \"indexLength\": ").append(encodedIndices.length);
+        offset += encodedIndices.length;
+        json.append("}");
+      }
+    }
+    json.append(meshes.isEmpty() ? "]\n}\n" : "\n  ]\n}\n");
+
+    try (Writer writer = new OutputStreamWriter(new FileOutputStream(manifestFileOf(file)),
+            StandardCharsets.UTF_8)) {
+      writer.write(json.toString());
+    }
+  }
+
+  private static int strideOf(boolean hasNormals, boolean hasTexCoords) {
+    return 6 + (hasNormals ? 3 : 0) + (hasTexCoords ? 4 : 0);
+  }
+
+  // The minimum and the quantization step of each component.
+  private static void rangeOf(FloatBuffer values, int numComponents, float[] min, float[] scale) {
+    final float[] max = new float[numComponents];
+    for (int i = 0; i < numComponents; ++i) {
+      min[i] = Float.POSITIVE_INFINITY;
+      max[i] = Float.NEGATIVE_INFINITY;
+    }
+    for (int v = 0; v < values.limit(); v += numComponents) {
+      for (int i = 0; i < numComponents; ++i) {
+        min[i] = Math.min(min[i], values.get(v + i));
+        max[i] = Math.max(max[i], values.get(v + i));
+      }
+    }
+    for (int i = 0; i < numComponents; ++i) {
+      if (min[i] > max[i]) {
+        min[i] = 0.0f;
+        max[i] = 0.0f;
+      }
+      scale[i] = (max[i] - min[i]) / UNSIGNED_SHORT_STEPS;
+    }
+  }
+
+  private static short quantize(float value, float min, float scale) {
+    if (scale == 0.0f) {
+      return 0;
+    }
+    final int steps = Math.round((value - min) / scale);
+    return (short) Math.max(0, Math.min(UNSIGNED_SHORT_STEPS, steps));
+  }
+
+  // The start of the vertex or index data of a mesh, checked to be inside of the data.
+  private static int checkRange(JSONObject json, String name, byte[] data)
+          throws IOException, JSONException {
+    final long offset = json.getLong(name + "Offset");
+    final long length = json.getLong(name + "Length");
+    if (offset < 0 || length < 0 || offset + length > data.length) {
+      throw new IOException("The " + name + " data " + offset + "+" + length
+              + " is outside of a " + data.length + "-byte file");
+    }
+    return (int) offset;
+  }
+
+  private static String relativePath(File directory, File file) {
+    final String directoryPath = directory.getAbsolutePath() + File.separator;
+    final String path = file.getAbsolutePath();
+    return path.startsWith(directoryPath) ? path.substring(directoryPath.length()) : path;
+  }
+
+  private static void readFloats(JSONArray array, float[] values) throws JSONException {
+    for (int i = 0; array != null && i < Math.min(array.length(), values.length); ++i) {
+      values[i] = (float) array.getDouble(i);
+    }
+  }
+
+  private static byte[] readFully(File file) throws IOException {
+    try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+      if (input.length() > Integer.MAX_VALUE) {
+        throw new IOException("'" + file + "' is too large");
+      }
+      byte[] bytes = new byte[(int) input.length()];
+      input.readFully(bytes);
+      return bytes;
+    }
+  }
+
+  private static void appendFloats(StringBuilder json, float[] values) {
+    json.append('[');
+    for (int i = 0; i < values.length; ++i) {
+      json.append(i == 0 ? "" : ", ").append(values[i]);
+    }
+    json.append(']');
+  }
+
+  private static void appendString(StringBuilder json, String value) {
+    json.append('"');
+    for (int i = 0; i < value.length(); ++i) {
+      final char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        json.append('\\').append(c);
+      } else if (c < 0x20) {
+        json.append(String.format("\\u%04x", (int) c));
+      } else {
+        json.append(c);
+      }
+    }
+    json.append('"');
+  }
+
+  private static FloatBuffer toFloatBuffer(float[] values) {
+    FloatBuffer buffer = ByteBuffer.allocateDirect(values.length * 4)
+            .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    buffer.put(values).flip();
+    return buffer;
+  }
+
+  private static IntBuffer toIntBuffer(int[] values) {
+    IntBuffer buffer = ByteBuffer.allocateDirect(values.length * 4)
+            .order(ByteOrder.nativeOrder()).asIntBuffer();
+    buffer.put(values).flip();
+    return buffer;
+  }
+}
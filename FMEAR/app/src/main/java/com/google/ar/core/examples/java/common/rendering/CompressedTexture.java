@@ -0,0 +1,99 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * An ETC1 or ETC2 RGBA8 texture with its full mipmap chain, ready for glCompressedTexImage2D. The
+ * level buffers are direct, either freshly encoded or memory-mapped from the {@link
+ * CompressedTextureCache}.
+ */
+public class CompressedTexture {
+
+  /** GL_ETC1_RGB8_OES, from the OES_compressed_ETC1_RGB8_texture extension. */
+  public static final int GL_ETC1_RGB8_OES = 0x8D64;
+  /** GL_COMPRESSED_RGBA8_ETC2_EAC, core in OpenGL ES 3.0. */
+  public static final int GL_COMPRESSED_RGBA8_ETC2_EAC = 0x9278;
+
+  public final int glFormat;
+  public final int[] levelWidths;
+  public final int[] levelHeights;
+  public final ByteBuffer[] levels;
+
+  public CompressedTexture(
+          int glFormat, int[] levelWidths, int[] levelHeights, ByteBuffer[] levels) {
+    this.glFormat = glFormat;
+    this.levelWidths = levelWidths;
+    this.levelHeights = levelHeights;
+    this.levels = levels;
+  }
+
+  /**
+   * Encodes the image and all its mipmap levels down to 1x1.
+   *
+   * @param withAlpha Encodes as ETC2 RGBA8 if true, which needs OpenGL ES 3.0, or as ETC1 if false.
+   */
+  public static CompressedTexture encode(int[] argb, int width, int height, boolean withAlpha) {
+    int numLevels = 1;
+    for (int size = Math.max(width, height); size > 1; size /= 2) {
+      ++numLevels;
+    }
+
+    int[] levelWidths = new int[numLevels];
+    int[] levelHeights = new int[numLevels];
+    ByteBuffer[] levels = new ByteBuffer[numLevels];
+
+    int[] levelPixels = argb;
+    int levelWidth = width;
+    int levelHeight = height;
+    for (int level = 0; level < numLevels; ++level) {
+      byte[] encoded = withAlpha
+              ? EtcCodec.encodeEtc2Rgba8(levelPixels, levelWidth, levelHeight)
+              : EtcCodec.encodeEtc1(levelPixels, levelWidth, levelHeight);
+      levels[level] = ByteBuffer.allocateDirect(encoded.length).order(ByteOrder.nativeOrder());
+      levels[level].put(encoded).rewind();
+      levelWidths[level] = levelWidth;
+      levelHeights[level] = levelHeight;
+
+      if (level + 1 < numLevels) {
+        levelPixels = EtcCodec.downsample(levelPixels, levelWidth, levelHeight);
+        levelWidth = Math.max(1, levelWidth / 2);
+        levelHeight = Math.max(1, levelHeight / 2);
+      }
+    }
+
+    return new CompressedTexture(
+            withAlpha ? GL_COMPRESSED_RGBA8_ETC2_EAC : GL_ETC1_RGB8_OES,
+            levelWidths, levelHeights, levels);
+  }
+
+  /**
+   * Returns the chain from the given level down, with the levels copied into memory, so that
+   * uploading it does not fault in memory-mapped pages on the GL thread. The given level becomes
+   * level 0 of the copy.
+   */
+  public CompressedTexture copyLevels(int firstLevel) {
+    final int numLevels = levels.length - firstLevel;
+    int[] copyWidths = new int[numLevels];
+    int[] copyHeights = new int[numLevels];
+    ByteBuffer[] copyLevels = new ByteBuffer[numLevels];
+    for (int level = 0; level < numLevels; ++level) {
+      ByteBuffer source = levels[firstLevel + level].duplicate();
+      copyLevels[level] =
+              ByteBuffer.allocateDirect(source.remaining()).order(ByteOrder.nativeOrder());
+      copyLevels[level].put(source).rewind();
+      copyWidths[level] = levelWidths[firstLevel + level];
+      copyHeights[level] = levelHeights[firstLevel + level];
+    }
+    return new CompressedTexture(glFormat, copyWidths, copyHeights, copyLevels);
+  }
+
+  /** Returns the total size of all the levels. */
+  public long byteCount() {
+    long bytes = 0;
+    for (ByteBuffer level : levels) {
+      bytes += level.remaining();
+    }
+    return bytes;
+  }
+}
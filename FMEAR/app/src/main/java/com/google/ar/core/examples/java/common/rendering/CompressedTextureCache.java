@@ -0,0 +1,190 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A disk cache of compressed texture mipmap chains, keyed by the content hash of the source image,
+ * the size it is encoded at and the formats it may be encoded to. A texture found in the cache
+ * needs neither decoding nor encoding; its levels are memory-mapped and passed straight to
+ * glCompressedTexImage2D. The least recently used entries are deleted when the cache grows over
+ * its size limit.
+ *
+ * <p>Entry layout, big-endian: the magic number, the GL format, the number of levels, then for
+ * every level its width, height and byte length followed by the level data.
+ */
+public class CompressedTextureCache {
+
+  private static final int MAGIC = 0x46455443; // "FETC"
+  private static final String ENTRY_SUFFIX = ".etc";
+
+  private final File directory;
+  private final long maxBytes;
+
+  public CompressedTextureCache(File directory, long maxBytes) {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Returns the cache key for the image file encoded at the given size.
+   *
+   * @param etc2Supported True if textures with alpha are encoded as ETC2, which only an OpenGL ES
+   *     3.0 context can upload, so that its entries are never served to an ES 2.0 context.
+   */
+  public static String keyFor(File imageFile, int width, int height, boolean etc2Supported)
+          throws IOException {
+    return keyFor(sha1Hex(imageFile), width, height, etc2Supported);
+  }
+
+  /** Returns the cache key for the content with the given hash encoded at the given size. */
+  public static String keyFor(String contentHash, int width, int height, boolean etc2Supported) {
+    return contentHash + "-" + width + "x" + height + (etc2Supported ? "-etc2" : "-etc1");
+  }
+
+  /** Returns the SHA-1 of the file content as a hex string. */
+  public static String sha1Hex(File file) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException("SHA-1 is not available", e);
+    }
+
+    try (InputStream inputStream = new FileInputStream(file)) {
+      byte[] buffer = new byte[64 * 1024];
+      int numBytes;
+      while ((numBytes = inputStream.read(buffer)) > 0) {
+        digest.update(buffer, 0, numBytes);
+      }
+    }
+    return toHex(digest.digest());
+  }
+
+  static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+
+  /** Returns the cached texture with its levels memory-mapped, or null on a cache miss. */
+  public synchronized CompressedTexture get(String key) {
+    File entryFile = new File(directory, key + ENTRY_SUFFIX);
+    if (!entryFile.isFile()) {
+      return null;
+    }
+
+    try (RandomAccessFile file = new RandomAccessFile(entryFile, "r");
+         FileChannel channel = file.getChannel()) {
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      mapped.order(ByteOrder.BIG_ENDIAN);
+      if (mapped.getInt() != MAGIC) {
+        throw new IOException("Not a compressed texture cache entry");
+      }
+
+      final int glFormat = mapped.getInt();
+      final int numLevels = mapped.getInt();
+      int[] levelWidths = new int[numLevels];
+      int[] levelHeights = new int[numLevels];
+      ByteBuffer[] levels = new ByteBuffer[numLevels];
+      for (int level = 0; level < numLevels; ++level) {
+        levelWidths[level] = mapped.getInt();
+        levelHeights[level] = mapped.getInt();
+        final int length = mapped.getInt();
+        ByteBuffer levelData = mapped.slice();
+        levelData.limit(length);
+        levels[level] = levelData;
+        mapped.position(mapped.position() + length);
+      }
+
+      // Mark the entry as recently used for the eviction order.
+      entryFile.setLastModified(System.currentTimeMillis());
+      return new CompressedTexture(glFormat, levelWidths, levelHeights, levels);
+    } catch (IOException | RuntimeException e) {
+      // A truncated or corrupt entry is treated as a miss and replaced by the next put.
+      entryFile.delete();
+      return null;
+    }
+  }
+
+  /** Stores the texture, replacing any previous entry with the same key. */
+  public synchronized void put(String key, CompressedTexture texture) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Failed to create the texture cache directory " + directory);
+    }
+
+    File entryFile = new File(directory, key + ENTRY_SUFFIX);
+    File partialFile = new File(directory, key + ENTRY_SUFFIX + ".partial");
+    try (DataOutputStream output =
+                 new DataOutputStream(new BufferedOutputStream(new FileOutputStream(partialFile)))) {
+      output.writeInt(MAGIC);
+      output.writeInt(texture.glFormat);
+      output.writeInt(texture.levels.length);
+      byte[] buffer = new byte[64 * 1024];
+      for (int level = 0; level < texture.levels.length; ++level) {
+        ByteBuffer levelData = texture.levels[level].duplicate();
+        output.writeInt(texture.levelWidths[level]);
+        output.writeInt(texture.levelHeights[level]);
+        output.writeInt(levelData.remaining());
+        while (levelData.hasRemaining()) {
+          final int numBytes = Math.min(buffer.length, levelData.remaining());
+          levelData.get(buffer, 0, numBytes);
+          output.write(buffer, 0, numBytes);
+        }
+      }
+    }
+
+    if (!partialFile.renameTo(entryFile)) {
+      partialFile.delete();
+      throw new IOException("Failed to store texture cache entry " + entryFile);
+    }
+
+    trim();
+  }
+
+  // Deletes the least recently used entries until the cache fits in maxBytes.
+  private void trim() {
+    File[] entries = directory.listFiles();
+    if (entries == null) {
+      return;
+    }
+
+    long totalBytes = 0;
+    for (File entry : entries) {
+      totalBytes += entry.length();
+    }
+    if (totalBytes <= maxBytes) {
+      return;
+    }
+
+    Arrays.sort(entries, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        return Long.compare(a.lastModified(), b.lastModified());
+      }
+    });
+    for (File entry : entries) {
+      if (totalBytes <= maxBytes) {
+        break;
+      }
+      totalBytes -= entry.length();
+      entry.delete();
+    }
+  }
+}
@@ -0,0 +1,378 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A disk cache of processed datasets, keyed by the content hash of the archive they were extracted
+ * from. An entry holds everything the renderer needs to skip parsing: a {@link ChunkBlob} file per
+ * material with its GPU-ready vertex and index data, copies of the texture images, and a manifest
+ * with the material parameters, the bounds, the texture sizes and the atlas layout.
+ *
+ * <p>Entries are directories named after their key. A new entry is written to a staging directory
+ * and renamed once its manifest is complete, so a crash never leaves a partial entry behind. The
+ * least recently used entries are deleted when the cache grows over its size limit.
+ */
+public class DatasetCache {
+
+  private static final int MAGIC = 0x464d4443; // "FMDC"
+  private static final int VERSION = 2;
+  private static final String MANIFEST_NAME = "manifest";
+  private static final String STAGING_SUFFIX = ".partial";
+
+  /** A texture image copied into the entry, with the size it is uploaded at. */
+  public static class TextureSource {
+    public String fileName;
+    public int sourceWidth;
+    public int sourceHeight;
+    public boolean opaque;
+    public int targetWidth;
+    public int targetHeight;
+  }
+
+  /** An atlas page: the textures packed into it and their positions. */
+  public static class AtlasPage {
+    public int width;
+    public int height;
+    public int[] textureIndices;
+    public int[] xs;
+    public int[] ys;
+  }
+
+  /** A material chunk: its parameters, its texture and the name of its chunk file. */
+  public static class Material {
+    public String name;
+    public float[] ambient;
+    public float[] diffuse;
+    public float[] specular;
+    public float shininess;
+    public float opacity;
+    // minX, minY, minZ, maxX, maxY, maxZ, or null if the chunk has no vertices.
+    public float[] bounds;
+    public boolean hasTexture;
+    // An index into the textures or the atlas pages of the dataset, or -1.
+    public int textureIndex = -1;
+    public int pageIndex = -1;
+    public String chunkFileName;
+    // The translations of the copies of a deduplicated chunk, three floats per instance, or null
+    // if the chunk is drawn once.
+    public float[] instanceOffsets;
+  }
+
+  /** The materials of a single obj file. */
+  public static class ObjEntry {
+    public String objFilename;
+    public final List<Material> materials = new ArrayList<>();
+  }
+
+  /** A cached dataset. Files are relative to {@link #directory}. */
+  public static class Dataset {
+    public File directory;
+    public final List<TextureSource> textures = new ArrayList<>();
+    public final List<AtlasPage> pages = new ArrayList<>();
+    public final List<ObjEntry> objs = new ArrayList<>();
+  }
+
+  private final File directory;
+  private final long maxBytes;
+
+  public DatasetCache(File directory, long maxBytes) {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Returns true if an entry with the key is in the cache, without reading it, so that a dataset
+   * can be looked up before it is extracted. The entry may still turn out to be corrupt in {@link
+   * #get}.
+   */
+  public synchronized boolean contains(String key) {
+    return new File(new File(directory, key), MANIFEST_NAME).isFile();
+  }
+
+  /** Returns the cached dataset, or null on a cache miss. */
+  public synchronized Dataset get(String key) {
+    File entryDirectory = new File(directory, key);
+    File manifestFile = new File(entryDirectory, MANIFEST_NAME);
+    if (!manifestFile.isFile()) {
+      return null;
+    }
+
+    try (DataInputStream input = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(manifestFile)))) {
+      Dataset dataset = readManifest(input);
+      dataset.directory = entryDirectory;
+      // Mark the entry as recently used for the eviction order.
+      manifestFile.setLastModified(System.currentTimeMillis());
+      return dataset;
+    } catch (IOException | RuntimeException e) {
+      // A corrupt entry, or one written by another version, is treated as a miss.
+      deleteRecursively(entryDirectory);
+      return null;
+    }
+  }
+
+  /**
+   * Creates an empty staging directory for a new entry. The caller writes the chunk files and the
+   * texture copies into it, then calls {@link #commit} or {@link #abort}.
+   */
+  public synchronized File beginPut(String key) throws IOException {
+    File stagingDirectory = new File(directory, key + STAGING_SUFFIX);
+    deleteRecursively(stagingDirectory);
+    if (!stagingDirectory.mkdirs()) {
+      throw new IOException("Failed to create the dataset cache directory " + stagingDirectory);
+    }
+    return stagingDirectory;
+  }
+
+  /**
+   * Writes the manifest and publishes the staged entry, replacing any previous entry with the same
+   * key.
+   *
+   * @return the directory of the published entry.
+   */
+  public synchronized File commit(String key, Dataset dataset) throws IOException {
+    File stagingDirectory = new File(directory, key + STAGING_SUFFIX);
+    try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(new File(stagingDirectory, MANIFEST_NAME))))) {
+      writeManifest(output, dataset);
+    }
+
+    File entryDirectory = new File(directory, key);
+    deleteRecursively(entryDirectory);
+    if (!stagingDirectory.renameTo(entryDirectory)) {
+      abort(key);
+      throw new IOException("Failed to store dataset cache entry " + entryDirectory);
+    }
+    dataset.directory = entryDirectory;
+
+    trim(entryDirectory);
+    return entryDirectory;
+  }
+
+  /** Deletes the staging directory of an entry that could not be written. */
+  public synchronized void abort(String key) {
+    deleteRecursively(new File(directory, key + STAGING_SUFFIX));
+  }
+
+  /** Copies a file into the staging directory of an entry. */
+  public static void copyFile(File source, File destination) throws IOException {
+    try (InputStream input = new FileInputStream(source);
+         OutputStream output = new FileOutputStream(destination)) {
+      byte[] buffer = new byte[64 * 1024];
+      int numBytes;
+      while ((numBytes = input.read(buffer)) > 0) {
+        output.write(buffer, 0, numBytes);
+      }
+    }
+  }
+
+  // Deletes the least recently used entries until the cache fits in maxBytes. The entry that was
+  // just written is kept even if it is larger than the cache.
+  private void trim(File keptEntry) {
+    File[] entries = directory.listFiles();
+    if (entries == null) {
+      return;
+    }
+
+    long totalBytes = 0;
+    final long[] entryBytes = new long[entries.length];
+    for (int i = 0; i < entries.length; ++i) {
+      entryBytes[i] = sizeOf(entries[i]);
+      totalBytes += entryBytes[i];
+    }
+    if (totalBytes <= maxBytes) {
+      return;
+    }
+
+    Integer[] order = new Integer[entries.length];
+    final long[] lastUsed = new long[entries.length];
+    for (int i = 0; i < entries.length; ++i) {
+      order[i] = i;
+      lastUsed[i] = new File(entries[i], MANIFEST_NAME).lastModified();
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return Long.compare(lastUsed[a], lastUsed[b]);
+      }
+    });
+    for (int i : order) {
+      if (totalBytes <= maxBytes) {
+        break;
+      }
+      if (entries[i].equals(keptEntry) || entries[i].getName().endsWith(STAGING_SUFFIX)) {
+        continue;
+      }
+      totalBytes -= entryBytes[i];
+      deleteRecursively(entries[i]);
+    }
+  }
+
+  private static long sizeOf(File file) {
+    File[] children = file.listFiles();
+    if (children == null) {
+      return file.length();
+    }
+    long bytes = 0;
+    for (File child : children) {
+      bytes += sizeOf(child);
+    }
+    return bytes;
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+
+  private static void writeManifest(DataOutputStream output, Dataset dataset) throws IOException {
+    output.writeInt(MAGIC);
+    output.writeInt(VERSION);
+
+    output.writeInt(dataset.textures.size());
+    for (TextureSource texture : dataset.textures) {
+      output.writeUTF(texture.fileName);
+      output.writeInt(texture.sourceWidth);
+      output.writeInt(texture.sourceHeight);
+      output.writeBoolean(texture.opaque);
+      output.writeInt(texture.targetWidth);
+      output.writeInt(texture.targetHeight);
+    }
+
+    output.writeInt(dataset.pages.size());
+    for (AtlasPage page : dataset.pages) {
+      output.writeInt(page.width);
+      output.writeInt(page.height);
+      output.writeInt(page.textureIndices.length);
+      for (int i = 0; i < page.textureIndices.length; ++i) {
+        output.writeInt(page.textureIndices[i]);
+        output.writeInt(page.xs[i]);
+        output.writeInt(page.ys[i]);
+      }
+    }
+
+    output.writeInt(dataset.objs.size());
+    for (ObjEntry obj : dataset.objs) {
+      output.writeUTF(obj.objFilename);
+      output.writeInt(obj.materials.size());
+      for (Material material : obj.materials) {
+        output.writeUTF(material.name);
+        writeFloats(output, material.ambient);
+        writeFloats(output, material.diffuse);
+        writeFloats(output, material.specular);
+        output.writeFloat(material.shininess);
+        output.writeFloat(material.opacity);
+        output.writeBoolean(material.bounds != null);
+        if (material.bounds != null) {
+          writeFloats(output, material.bounds);
+        }
+        output.writeBoolean(material.hasTexture);
+        output.writeInt(material.textureIndex);
+        output.writeInt(material.pageIndex);
+        output.writeUTF(material.chunkFileName);
+        output.writeBoolean(material.instanceOffsets != null);
+        if (material.instanceOffsets != null) {
+          output.writeInt(material.instanceOffsets.length);
+          writeFloats(output, material.instanceOffsets);
+        }
+      }
+    }
+  }
+
+  private static Dataset readManifest(DataInputStream input) throws IOException {
+    if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+      throw new IOException("Not a dataset cache manifest");
+    }
+
+    Dataset dataset = new Dataset();
+    final int numTextures = input.readInt();
+    for (int i = 0; i < numTextures; ++i) {
+      TextureSource texture = new TextureSource();
+      texture.fileName = input.readUTF();
+      texture.sourceWidth = input.readInt();
+      texture.sourceHeight = input.readInt();
+      texture.opaque = input.readBoolean();
+      texture.targetWidth = input.readInt();
+      texture.targetHeight = input.readInt();
+      dataset.textures.add(texture);
+    }
+
+    final int numPages = input.readInt();
+    for (int i = 0; i < numPages; ++i) {
+      AtlasPage page = new AtlasPage();
+      page.width = input.readInt();
+      page.height = input.readInt();
+      final int numPlacements = input.readInt();
+      page.textureIndices = new int[numPlacements];
+      page.xs = new int[numPlacements];
+      page.ys = new int[numPlacements];
+      for (int j = 0; j < numPlacements; ++j) {
+        page.textureIndices[j] = input.readInt();
+        page.xs[j] = input.readInt();
+        page.ys[j] = input.readInt();
+      }
+      dataset.pages.add(page);
+    }
+
+    final int numObjs = input.readInt();
+    for (int i = 0; i < numObjs; ++i) {
+      ObjEntry obj = new ObjEntry();
+      obj.objFilename = input.readUTF();
+      final int numMaterials = input.readInt();
+      for (int j = 0; j < numMaterials; ++j) {
+        Material material = new Material();
+        material.name = input.readUTF();
+        material.ambient = readFloats(input, 3);
+        material.diffuse = readFloats(input, 3);
+        material.specular = readFloats(input, 3);
+        material.shininess = input.readFloat();
+        material.opacity = input.readFloat();
+        if (input.readBoolean()) {
+          material.bounds = readFloats(input, 6);
+        }
+        material.hasTexture = input.readBoolean();
+        material.textureIndex = input.readInt();
+        material.pageIndex = input.readInt();
+        material.chunkFileName = input.readUTF();
+        if (input.readBoolean()) {
+          material.instanceOffsets = readFloats(input, input.readInt());
+        }
+        obj.materials.add(material);
+      }
+      dataset.objs.add(obj);
+    }
+    return dataset;
+  }
+
+  private static void writeFloats(DataOutputStream output, float[] values) throws IOException {
+    for (float value : values) {
+      output.writeFloat(value);
+    }
+  }
+
+  private static float[] readFloats(DataInputStream input, int count) throws IOException {
+    float[] values = new float[count];
+    for (int i = 0; i < count; ++i) {
+      values[i] = input.readFloat();
+    }
+    return values;
+  }
+}
@@ -0,0 +1,252 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.ar.core.examples.java.common.rendering.ObjectRenderer.Bounds;
+import com.google.ar.core.examples.java.common.rendering.ObjectRenderer.ObjProperty;
+
+import de.javagl.obj.FloatTuple;
+import de.javagl.obj.FloatTuples;
+
+/**
+ * Converts a processed dataset to a {@link DatasetCache} entry and back. Writing stores the
+ * GPU-ready geometry of every material, the textures and the atlas layout; reading maps the
+ * geometry from the chunk files and plans the textures at their cached size, so that the loader
+ * only has to decode them.
+ */
+class DatasetCacheCodec {
+
+  /** A dataset read from the cache, with the textures its materials still need decoded. */
+  static class Entry {
+    final ArrayList<ObjProperty> objProperties;
+    final Map<String, TextureBudget.Plan> plansByKey = new HashMap<>();
+    final List<TextureAtlas.Page> pages;
+    final Map<ObjProperty.MaterialProperty, String> pendingTextures = new HashMap<>();
+
+    private Entry(int numObjs, int numPages) {
+      objProperties = new ArrayList<>(numObjs);
+      pages = new ArrayList<>(numPages);
+    }
+  }
+
+  private DatasetCacheCodec() {
+  }
+
+  /**
+   * Stores the obj properties in the cache under the key. The materials then use the chunk files
+   * of the committed entry, and the chunk files they owned are deleted. On failure the caller
+   * aborts the entry.
+   */
+  static void write(DatasetCache datasetCache, String key, List<ObjProperty> objProperties)
+          throws IOException {
+    DatasetCache.Dataset dataset = new DatasetCache.Dataset();
+    Map<TextureBudget.Plan, Integer> textureIndices = new HashMap<>();
+    Map<TextureAtlas.Page, Integer> pageIndices = new HashMap<>();
+    Map<ObjProperty.MaterialProperty, String> chunkFileNames = new HashMap<>();
+    File directory = datasetCache.beginPut(key);
+    for (ObjProperty objProperty : objProperties) {
+      DatasetCache.ObjEntry objEntry = new DatasetCache.ObjEntry();
+      objEntry.objFilename = objProperty.objFilename;
+      dataset.objs.add(objEntry);
+
+      for (ObjProperty.MaterialProperty materialProperty : objProperty.materialProperties) {
+        DatasetCache.Material material = new DatasetCache.Material();
+        material.name = materialProperty.materialName;
+        material.ambient = toArray(materialProperty.ambient);
+        material.diffuse = toArray(materialProperty.diffuse);
+        material.specular = toArray(materialProperty.specular);
+        material.shininess = materialProperty.shininess;
+        material.opacity = materialProperty.opacity;
+        Bounds bounds = materialProperty.bounds;
+        if (bounds.isValid()) {
+          material.bounds = new float[] {bounds.getMinX(), bounds.getMinY(), bounds.getMinZ(),
+                  bounds.getMaxX(), bounds.getMaxY(), bounds.getMaxZ()};
+        }
+        if (materialProperty.hasTexture && materialProperty.texturePage != null) {
+          material.hasTexture = true;
+          material.pageIndex = indexOfPage(materialProperty.texturePage, dataset, directory,
+                  textureIndices, pageIndices);
+        } else if (materialProperty.hasTexture && materialProperty.texturePlan != null) {
+          material.hasTexture = true;
+          material.textureIndex = indexOfTexture(
+                  materialProperty.texturePlan, dataset, directory, textureIndices);
+        }
+
+        material.chunkFileName = "chunk" + chunkFileNames.size() + ".bin";
+        if (materialProperty.blob != null) {
+          DatasetCache.copyFile(materialProperty.chunkFile,
+                  new File(directory, material.chunkFileName));
+        } else {
+          ChunkBlob.write(new File(directory, material.chunkFileName),
+                  materialProperty.vertices, materialProperty.texCoords,
+                  materialProperty.normals, materialProperty.wideIndices);
+        }
+        material.instanceOffsets = materialProperty.instanceOffsets;
+        chunkFileNames.put(materialProperty, material.chunkFileName);
+        objEntry.materials.add(material);
+      }
+    }
+
+    File entryDirectory = datasetCache.commit(key, dataset);
+    for (Map.Entry<ObjProperty.MaterialProperty, String> entry : chunkFileNames.entrySet()) {
+      if (entry.getKey().ownsChunkFile) {
+        // The mapped blob stays valid after the file is deleted.
+        entry.getKey().chunkFile.delete();
+      }
+      entry.getKey().chunkFile = new File(entryDirectory, entry.getValue());
+      entry.getKey().ownsChunkFile = false;
+    }
+  }
+
+  /**
+   * Rebuilds the obj properties of a cache entry. The geometry is mapped from the chunk files and
+   * uploaded as is; the textures are planned at their cached size and returned as pending.
+   *
+   * @param instancedDraws Whether the deduplicated meshes are drawn with instanced draws.
+   */
+  static Entry read(DatasetCache.Dataset dataset, boolean instancedDraws) throws IOException {
+    Entry entry = new Entry(dataset.objs.size(), dataset.pages.size());
+    List<TextureBudget.Plan> plans = new ArrayList<>(dataset.textures.size());
+    List<String> textureKeys = new ArrayList<>(dataset.textures.size());
+    for (DatasetCache.TextureSource texture : dataset.textures) {
+      File textureFile = new File(dataset.directory, texture.fileName);
+      TextureBudget.Plan plan = new TextureBudget.Plan(
+              textureFile, texture.sourceWidth, texture.sourceHeight, texture.opaque);
+      plan.targetWidth = texture.targetWidth;
+      plan.targetHeight = texture.targetHeight;
+      plans.add(plan);
+      textureKeys.add(TextureCache.keyFor(textureFile));
+    }
+
+    for (DatasetCache.AtlasPage atlasPage : dataset.pages) {
+      TextureAtlas.Page page = new TextureAtlas.Page(atlasPage.width);
+      page.height = atlasPage.height;
+      for (int i = 0; i < atlasPage.textureIndices.length; ++i) {
+        page.placements.add(new TextureAtlas.Placement(
+                textureKeys.get(atlasPage.textureIndices[i]),
+                plans.get(atlasPage.textureIndices[i]), atlasPage.xs[i], atlasPage.ys[i]));
+      }
+      entry.pages.add(page);
+    }
+
+    for (DatasetCache.ObjEntry objEntry : dataset.objs) {
+      ObjProperty objProperty = new ObjProperty();
+      objProperty.objFilename = objEntry.objFilename;
+      objProperty.materialProperties = new ArrayList<>(objEntry.materials.size());
+      entry.objProperties.add(objProperty);
+
+      for (DatasetCache.Material material : objEntry.materials) {
+        ObjProperty.MaterialProperty materialProperty = new ObjProperty.MaterialProperty();
+        objProperty.materialProperties.add(materialProperty);
+        materialProperty.materialName = material.name;
+        materialProperty.objFilename = objEntry.objFilename;
+        materialProperty.ambient = toFloatTuple(material.ambient);
+        materialProperty.diffuse = toFloatTuple(material.diffuse);
+        materialProperty.specular = toFloatTuple(material.specular);
+        materialProperty.shininess = material.shininess;
+        materialProperty.opacity = material.opacity;
+        if (material.bounds != null) {
+          materialProperty.bounds.set(material.bounds[0], material.bounds[1],
+                  material.bounds[2], material.bounds[3], material.bounds[4],
+                  material.bounds[5]);
+        }
+        objProperty.bounds.expandBy(materialProperty.bounds);
+
+        materialProperty.chunkFile = new File(dataset.directory, material.chunkFileName);
+        materialProperty.blob = ChunkBlob.map(materialProperty.chunkFile);
+        materialProperty.updateBufferLayout(materialProperty.blob.numVertexFloats,
+                materialProperty.blob.numTexCoordFloats,
+                materialProperty.blob.numNormalFloats, materialProperty.blob.numIndices);
+        if (material.instanceOffsets != null) {
+          materialProperty.setInstanceOffsets(material.instanceOffsets, instancedDraws);
+        }
+
+        String textureKey = null;
+        if (material.hasTexture && material.pageIndex >= 0) {
+          textureKey = entry.pages.get(material.pageIndex).getTextureKey();
+        } else if (material.hasTexture && material.textureIndex >= 0) {
+          textureKey = textureKeys.get(material.textureIndex);
+          entry.plansByKey.put(textureKey, plans.get(material.textureIndex));
+        }
+        if (textureKey != null) {
+          materialProperty.hasTexture = true;
+          materialProperty.textureKey = textureKey;
+          entry.pendingTextures.put(materialProperty, textureKey);
+        }
+      }
+    }
+    return entry;
+  }
+
+  // Returns the index of the texture in the cached dataset, copying the image into the cache
+  // entry the first time it is used.
+  private static int indexOfTexture(
+          TextureBudget.Plan plan, DatasetCache.Dataset dataset, File directory,
+          Map<TextureBudget.Plan, Integer> textureIndices) throws IOException {
+    Integer index = textureIndices.get(plan);
+    if (index != null) {
+      return index;
+    }
+
+    String name = plan.file.getName();
+    DatasetCache.TextureSource texture = new DatasetCache.TextureSource();
+    texture.fileName = "texture" + dataset.textures.size()
+            + (name.lastIndexOf('.') >= 0 ? name.substring(name.lastIndexOf('.')) : "");
+    texture.sourceWidth = plan.sourceWidth;
+    texture.sourceHeight = plan.sourceHeight;
+    texture.opaque = plan.opaque;
+    texture.targetWidth = plan.targetWidth;
+    texture.targetHeight = plan.targetHeight;
+    DatasetCache.copyFile(plan.file, new File(directory, texture.fileName));
+
+    index = dataset.textures.size();
+    dataset.textures.add(texture);
+    textureIndices.put(plan, index);
+    return index;
+  }
+
+  private static int indexOfPage(
+          TextureAtlas.Page page, DatasetCache.Dataset dataset, File directory,
+          Map<TextureBudget.Plan, Integer> textureIndices,
+          Map<TextureAtlas.Page, Integer> pageIndices) throws IOException {
+    Integer index = pageIndices.get(page);
+    if (index != null) {
+      return index;
+    }
+
+    DatasetCache.AtlasPage atlasPage = new DatasetCache.AtlasPage();
+    atlasPage.width = page.width;
+    atlasPage.height = page.height;
+    atlasPage.textureIndices = new int[page.placements.size()];
+    atlasPage.xs = new int[page.placements.size()];
+    atlasPage.ys = new int[page.placements.size()];
+    for (int i = 0; i < page.placements.size(); ++i) {
+      TextureAtlas.Placement placement = page.placements.get(i);
+      atlasPage.textureIndices[i] =
+              indexOfTexture(placement.plan, dataset, directory, textureIndices);
+      atlasPage.xs[i] = placement.x;
+      atlasPage.ys[i] = placement.y;
+    }
+
+    index = dataset.pages.size();
+    dataset.pages.add(atlasPage);
+    pageIndices.put(page, index);
+    return index;
+  }
+
+  private static float[] toArray(FloatTuple tuple) {
+    if (tuple == null) {
+      return new float[3];
+    }
+    return new float[] {tuple.getX(), tuple.getY(), tuple.getZ()};
+  }
+
+  private static FloatTuple toFloatTuple(float[] vector3) {
+    return FloatTuples.create(vector3[0], vector3[1], vector3[2]);
+  }
+}
@@ -0,0 +1,204 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The entries of an extracted dataset, recorded once while the archive is extracted, so that the
+ * files of the dataset are found without walking the extracted directory again: by name, by
+ * extension, and by the paths that obj and mtl files refer to other files with.
+ *
+ * <p>Entry names are relative to the root directory, with '/' separators, as {@link
+ * ArchiveReader#normalize} makes them. References resolve relative to the referring entry first,
+ * then ignoring case, since datasets written on Windows often spell a texture path differently
+ * from the file, and then to the first entry with the same file name, ignoring case.
+ *
+ * <p>Thread-safe.
+ */
+public class DatasetManifest {
+
+  /** An entry of the dataset. */
+  public static class Entry {
+    public final String name;
+    // The file the entry is extracted to, or null if it was only parsed from the archive.
+    public final File file;
+    // The uncompressed size, or -1 if it is unknown.
+    public final long size;
+
+    Entry(String name, File file, long size) {
+      this.name = name;
+      this.file = file;
+      this.size = size;
+    }
+  }
+
+  private final File rootDirectory;
+  private final String rootPath;
+  // The entries by name, and by name for every extension. Sorted, so that the lookups list the
+  // files in the same order every time.
+  private final Map<String, Entry> entriesByName = new TreeMap<>();
+  private final Map<String, Map<String, Entry>> entriesByExtension = new HashMap<>();
+  // The first entry, in name order, of every lower case name and file name.
+  private final Map<String, String> namesByLowerCaseName = new HashMap<>();
+  private final Map<String, String> namesByLowerCaseFileName = new HashMap<>();
+  private long totalSize = 0;
+
+  public DatasetManifest(File rootDirectory) {
+    this.rootDirectory = rootDirectory;
+    this.rootPath = rootDirectory.getAbsolutePath() + File.separator;
+  }
+
+  /** Builds the manifest of a directory that was extracted without one, in a single walk. */
+  public static DatasetManifest scan(File rootDirectory) {
+    DatasetManifest manifest = new DatasetManifest(rootDirectory);
+    List<File> directories = new ArrayList<>();
+    directories.add(rootDirectory);
+    while (!directories.isEmpty()) {
+      File[] files = directories.remove(directories.size() - 1).listFiles();
+      if (files == null) {
+        continue;
+      }
+      for (File file : files) {
+        if (file.isDirectory()) {
+          directories.add(file);
+        } else {
+          manifest.add(manifest.entryNameOf(file), file, file.length());
+        }
+      }
+    }
+    return manifest;
+  }
+
+  public File getRootDirectory() {
+    return rootDirectory;
+  }
+
+  /**
+   * Adds an entry, or replaces the entry with the same name.
+   *
+   * @param file The extracted file, or null if the entry is not extracted.
+   * @param size The uncompressed size, or -1 if it is unknown.
+   */
+  public synchronized void add(String name, File file, long size) {
+    Entry entry = new Entry(name, file, size);
+    Entry previousEntry = entriesByName.put(name, entry);
+    if (previousEntry != null) {
+      totalSize -= Math.max(0, previousEntry.size);
+    }
+    totalSize += Math.max(0, size);
+
+    final String extension = extensionOf(name);
+    Map<String, Entry> entries = entriesByExtension.get(extension);
+    if (entries == null) {
+      entries = new TreeMap<>();
+      entriesByExtension.put(extension, entries);
+    }
+    entries.put(name, entry);
+    putFirst(namesByLowerCaseName, name.toLowerCase(), name);
+    putFirst(namesByLowerCaseFileName, fileNameOf(name).toLowerCase(), name);
+  }
+
+  public synchronized Entry get(String name) {
+    return entriesByName.get(name);
+  }
+
+  public synchronized int size() {
+    return entriesByName.size();
+  }
+
+  /** The total uncompressed size of the entries of known size. */
+  public synchronized long getTotalSize() {
+    return totalSize;
+  }
+
+  /**
+   * Returns the extracted files with any of the extensions, such as ".obj", ignoring case, in name
+   * order for every extension.
+   */
+  public synchronized List<File> findFiles(String... extensions) {
+    List<File> files = new ArrayList<>();
+    for (String extension : extensions) {
+      Map<String, Entry> entries = entriesByExtension.get(extension.toLowerCase());
+      if (entries == null) {
+        continue;
+      }
+      for (Entry entry : entries.values()) {
+        if (entry.file != null) {
+          files.add(entry.file);
+        }
+      }
+    }
+    return files;
+  }
+
+  /**
+   * Resolves a path that an entry refers to, such as an mtllib of an obj file or a map_Kd of an
+   * mtl file.
+   *
+   * @return the entry, or null if none matches.
+   */
+  public synchronized Entry resolve(String referringEntryName, String path) {
+    final String entryName = ArchiveReader.normalize(parentOf(referringEntryName), path);
+    Entry entry = entriesByName.get(entryName);
+    if (entry != null) {
+      return entry;
+    }
+
+    String name = namesByLowerCaseName.get(entryName.toLowerCase());
+    if (name == null) {
+      name = namesByLowerCaseFileName.get(fileNameOf(entryName).toLowerCase());
+    }
+    return (name == null) ? null : entriesByName.get(name);
+  }
+
+  /**
+   * Resolves a path that an extracted file refers to.
+   *
+   * @return the extracted file, or null if none matches or the referring file is not in the
+   *     dataset.
+   */
+  public File resolveFile(File referringFile, String path) {
+    final String referringEntryName = entryNameOf(referringFile);
+    if (referringEntryName == null) {
+      return null;
+    }
+    Entry entry = resolve(referringEntryName, path);
+    return (entry == null) ? null : entry.file;
+  }
+
+  // The entry name of a file under the root directory, or null.
+  private String entryNameOf(File file) {
+    final String path = file.getAbsolutePath();
+    if (!path.startsWith(rootPath)) {
+      return null;
+    }
+    return path.substring(rootPath.length()).replace(File.separatorChar, '/');
+  }
+
+  private static void putFirst(Map<String, String> names, String key, String name) {
+    final String previousName = names.get(key);
+    if (previousName == null || name.compareTo(previousName) < 0) {
+      names.put(key, name);
+    }
+  }
+
+  private static String parentOf(String entryName) {
+    final int slash = entryName.lastIndexOf('/');
+    return (slash < 0) ? "" : entryName.substring(0, slash);
+  }
+
+  private static String fileNameOf(String entryName) {
+    return entryName.substring(entryName.lastIndexOf('/') + 1);
+  }
+
+  // The lower case extension with its dot, or "" if there is none.
+  private static String extensionOf(String entryName) {
+    final String fileName = fileNameOf(entryName);
+    final int dot = fileName.lastIndexOf('.');
+    return (dot < 0) ? "" : fileName.substring(dot).toLowerCase();
+  }
+}
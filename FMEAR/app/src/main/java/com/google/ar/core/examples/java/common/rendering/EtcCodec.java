@@ -0,0 +1,484 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+/**
+ * A pure Java ETC1 and ETC2 RGBA8 (EAC alpha) texture encoder. It has no Android dependencies, so
+ * that it can run on the loader threads and be tested on the JVM.
+ *
+ * <p>Colors are encoded as ETC1 blocks in the individual or differential mode. The differential
+ * mode is only used when the second base color does not overflow, so every color block is also a
+ * valid ETC2 block. Pixels are packed ARGB ints, as returned by {@code Bitmap.getPixels}.
+ *
+ * <p>The decoders only handle the block modes that the encoder produces. They are used to check
+ * the encoding quality.
+ */
+public final class EtcCodec {
+
+  /** The number of bytes of an ETC1 block. */
+  public static final int ETC1_BLOCK_BYTES = 8;
+  /** The number of bytes of an ETC2 RGBA8 block, an EAC alpha block followed by a color block. */
+  public static final int ETC2_RGBA8_BLOCK_BYTES = 16;
+
+  private static final int[][] ETC1_MODIFIERS = {
+    {2, 8}, {5, 17}, {9, 29}, {13, 42}, {18, 60}, {24, 80}, {33, 106}, {47, 183}
+  };
+
+  private static final int[][] EAC_MODIFIERS = {
+    {-3, -6, -9, -15, 2, 5, 8, 14},
+    {-3, -7, -10, -13, 2, 6, 9, 12},
+    {-2, -5, -8, -13, 1, 4, 7, 12},
+    {-2, -4, -6, -13, 1, 3, 5, 12},
+    {-3, -6, -8, -12, 2, 5, 7, 11},
+    {-3, -7, -9, -11, 2, 6, 8, 10},
+    {-4, -7, -8, -11, 3, 6, 7, 10},
+    {-3, -5, -8, -11, 2, 4, 7, 10},
+    {-2, -6, -8, -10, 1, 5, 7, 9},
+    {-2, -5, -8, -10, 1, 4, 7, 9},
+    {-2, -4, -8, -10, 1, 3, 7, 9},
+    {-2, -5, -7, -10, 1, 4, 6, 9},
+    {-3, -4, -7, -10, 2, 3, 6, 9},
+    {-1, -2, -3, -10, 0, 1, 2, 9},
+    {-4, -6, -8, -9, 3, 5, 7, 8},
+    {-3, -5, -7, -9, 2, 4, 6, 8}
+  };
+
+  private EtcCodec() {}
+
+  /** Returns the size of an ETC1 image, which is made of 4x4 blocks. */
+  public static int etc1Size(int width, int height) {
+    return blocksAcross(width) * blocksAcross(height) * ETC1_BLOCK_BYTES;
+  }
+
+  /** Returns the size of an ETC2 RGBA8 image, which is made of 4x4 blocks. */
+  public static int etc2Rgba8Size(int width, int height) {
+    return blocksAcross(width) * blocksAcross(height) * ETC2_RGBA8_BLOCK_BYTES;
+  }
+
+  /** Returns true if any pixel is not fully opaque. */
+  public static boolean hasTransparency(int[] argb) {
+    for (int pixel : argb) {
+      if ((pixel >>> 24) != 0xff) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Encodes the image as ETC1. The alpha channel is ignored. */
+  public static byte[] encodeEtc1(int[] argb, int width, int height) {
+    byte[] output = new byte[etc1Size(width, height)];
+    int[] block = new int[16];
+    int offset = 0;
+    for (int blockY = 0; blockY < height; blockY += 4) {
+      for (int blockX = 0; blockX < width; blockX += 4) {
+        readBlock(argb, width, height, blockX, blockY, block);
+        writeLong(output, offset, encodeColorBlock(block));
+        offset += ETC1_BLOCK_BYTES;
+      }
+    }
+    return output;
+  }
+
+  /** Encodes the image as ETC2 RGBA8, with the alpha channel in an EAC block. */
+  public static byte[] encodeEtc2Rgba8(int[] argb, int width, int height) {
+    byte[] output = new byte[etc2Rgba8Size(width, height)];
+    int[] block = new int[16];
+    int offset = 0;
+    for (int blockY = 0; blockY < height; blockY += 4) {
+      for (int blockX = 0; blockX < width; blockX += 4) {
+        readBlock(argb, width, height, blockX, blockY, block);
+        writeLong(output, offset, encodeAlphaBlock(block));
+        writeLong(output, offset + 8, encodeColorBlock(block));
+        offset += ETC2_RGBA8_BLOCK_BYTES;
+      }
+    }
+    return output;
+  }
+
+  /** Decodes an ETC1 image into opaque ARGB pixels. */
+  public static int[] decodeEtc1(byte[] data, int width, int height) {
+    int[] argb = new int[width * height];
+    int[] block = new int[16];
+    int offset = 0;
+    for (int blockY = 0; blockY < height; blockY += 4) {
+      for (int blockX = 0; blockX < width; blockX += 4) {
+        decodeColorBlock(readLong(data, offset), block);
+        writeBlock(block, argb, width, height, blockX, blockY);
+        offset += ETC1_BLOCK_BYTES;
+      }
+    }
+    return argb;
+  }
+
+  /** Decodes an ETC2 RGBA8 image that was produced by {@link #encodeEtc2Rgba8}. */
+  public static int[] decodeEtc2Rgba8(byte[] data, int width, int height) {
+    int[] argb = new int[width * height];
+    int[] block = new int[16];
+    int offset = 0;
+    for (int blockY = 0; blockY < height; blockY += 4) {
+      for (int blockX = 0; blockX < width; blockX += 4) {
+        decodeColorBlock(readLong(data, offset + 8), block);
+        decodeAlphaBlock(readLong(data, offset), block);
+        writeBlock(block, argb, width, height, blockX, blockY);
+        offset += ETC2_RGBA8_BLOCK_BYTES;
+      }
+    }
+    return argb;
+  }
+
+  /**
+   * Returns the next mipmap level of the image, averaging 2x2 pixels. Non-premultiplied colors are
+   * weighted by alpha so that transparent pixels do not bleed into their neighbours.
+   */
+  public static int[] downsample(int[] argb, int width, int height) {
+    final int levelWidth = Math.max(1, width / 2);
+    final int levelHeight = Math.max(1, height / 2);
+    int[] level = new int[levelWidth * levelHeight];
+    for (int y = 0; y < levelHeight; ++y) {
+      final int y0 = Math.min(2 * y, height - 1);
+      final int y1 = Math.min(2 * y + 1, height - 1);
+      for (int x = 0; x < levelWidth; ++x) {
+        final int x0 = Math.min(2 * x, width - 1);
+        final int x1 = Math.min(2 * x + 1, width - 1);
+        int a = 0;
+        int r = 0;
+        int g = 0;
+        int b = 0;
+        for (int i = 0; i < 4; ++i) {
+          final int pixel = argb[((i < 2) ? y0 : y1) * width + (((i & 1) == 0) ? x0 : x1)];
+          final int alpha = pixel >>> 24;
+          a += alpha;
+          r += ((pixel >> 16) & 0xff) * alpha;
+          g += ((pixel >> 8) & 0xff) * alpha;
+          b += (pixel & 0xff) * alpha;
+        }
+        if (a == 0) {
+          level[y * levelWidth + x] = 0;
+        } else {
+          level[y * levelWidth + x] = (((a + 2) / 4) << 24)
+                  | (((r + a / 2) / a) << 16) | (((g + a / 2) / a) << 8) | ((b + a / 2) / a);
+        }
+      }
+    }
+    return level;
+  }
+
+  // -----------------------------------------------------------------------------------------------
+  // Color blocks
+
+  // The best modifier table and per-pixel modifiers found for one sub-block, and their error.
+  private static final class SubBlockFit {
+    long error;
+    int table;
+    final int[] indices = new int[8];
+  }
+
+  private static long encodeColorBlock(int[] block) {
+    long bestBits = 0;
+    long bestError = Long.MAX_VALUE;
+
+    final int[][] subBlockPixels = new int[2][8];
+    final SubBlockFit[] fits = {new SubBlockFit(), new SubBlockFit()};
+    final int[][] baseColors = new int[2][3];
+
+    for (int flip = 0; flip < 2; ++flip) {
+      subBlockPixels(flip, subBlockPixels);
+
+      float[][] averages = new float[2][];
+      for (int s = 0; s < 2; ++s) {
+        averages[s] = averageColor(block, subBlockPixels[s]);
+      }
+
+      // Differential mode: 5 bit base colors with a 3 bit signed delta.
+      int[][] quantized5 = new int[2][3];
+      boolean deltaFits = true;
+      for (int c = 0; c < 3; ++c) {
+        quantized5[0][c] = quantize(averages[0][c], 31);
+        quantized5[1][c] = quantize(averages[1][c], 31);
+        int delta = quantized5[1][c] - quantized5[0][c];
+        if (delta < -4 || delta > 3) {
+          deltaFits = false;
+        }
+      }
+      if (deltaFits) {
+        long error = 0;
+        for (int s = 0; s < 2; ++s) {
+          for (int c = 0; c < 3; ++c) {
+            baseColors[s][c] = expand5(quantized5[s][c]);
+          }
+          fitSubBlock(block, subBlockPixels[s], baseColors[s], fits[s]);
+          error += fits[s].error;
+        }
+        if (error < bestError) {
+          bestError = error;
+          long bits = 0;
+          bits |= (long) quantized5[0][0] << 59 | (long) ((quantized5[1][0] - quantized5[0][0]) & 7) << 56;
+          bits |= (long) quantized5[0][1] << 51 | (long) ((quantized5[1][1] - quantized5[0][1]) & 7) << 48;
+          bits |= (long) quantized5[0][2] << 43 | (long) ((quantized5[1][2] - quantized5[0][2]) & 7) << 40;
+          bestBits = packColorBlock(bits, 1, flip, subBlockPixels, fits);
+        }
+      }
+
+      // Individual mode: two independent 4 bit base colors.
+      int[][] quantized4 = new int[2][3];
+      long error = 0;
+      for (int s = 0; s < 2; ++s) {
+        for (int c = 0; c < 3; ++c) {
+          quantized4[s][c] = quantize(averages[s][c], 15);
+          baseColors[s][c] = expand4(quantized4[s][c]);
+        }
+        fitSubBlock(block, subBlockPixels[s], baseColors[s], fits[s]);
+        error += fits[s].error;
+      }
+      if (error < bestError) {
+        bestError = error;
+        long bits = 0;
+        bits |= (long) quantized4[0][0] << 60 | (long) quantized4[1][0] << 56;
+        bits |= (long) quantized4[0][1] << 52 | (long) quantized4[1][1] << 48;
+        bits |= (long) quantized4[0][2] << 44 | (long) quantized4[1][2] << 40;
+        bestBits = packColorBlock(bits, 0, flip, subBlockPixels, fits);
+      }
+    }
+    return bestBits;
+  }
+
+  private static long packColorBlock(
+          long bits, int diff, int flip, int[][] subBlockPixels, SubBlockFit[] fits) {
+    bits |= (long) fits[0].table << 37 | (long) fits[1].table << 34;
+    bits |= (long) diff << 33 | (long) flip << 32;
+    for (int s = 0; s < 2; ++s) {
+      for (int i = 0; i < 8; ++i) {
+        final int pixel = subBlockPixels[s][i];
+        final int index = fits[s].indices[i];
+        bits |= (long) (index >> 1) << (16 + pixel) | (long) (index & 1) << pixel;
+      }
+    }
+    return bits;
+  }
+
+  // Finds the modifier table and per-pixel modifiers that best fit the sub-block around the base
+  // color.
+  private static void fitSubBlock(int[] block, int[] pixels, int[] baseColor, SubBlockFit fit) {
+    fit.error = Long.MAX_VALUE;
+    int[] indices = new int[8];
+    for (int table = 0; table < ETC1_MODIFIERS.length; ++table) {
+      long tableError = 0;
+      for (int i = 0; i < 8 && tableError < fit.error; ++i) {
+        final int pixel = block[pixels[i]];
+        long bestPixelError = Long.MAX_VALUE;
+        for (int index = 0; index < 4; ++index) {
+          final int modifier = etc1Modifier(table, index);
+          long pixelError = 0;
+          for (int c = 0; c < 3; ++c) {
+            int difference = clamp255(baseColor[c] + modifier) - channel(pixel, c);
+            pixelError += difference * difference;
+          }
+          if (pixelError < bestPixelError) {
+            bestPixelError = pixelError;
+            indices[i] = index;
+          }
+        }
+        tableError += bestPixelError;
+      }
+      if (tableError < fit.error) {
+        fit.error = tableError;
+        fit.table = table;
+        System.arraycopy(indices, 0, fit.indices, 0, 8);
+      }
+    }
+  }
+
+  private static void decodeColorBlock(long bits, int[] block) {
+    final int diff = (int) (bits >>> 33) & 1;
+    final int flip = (int) (bits >>> 32) & 1;
+    int[][] baseColors = new int[2][3];
+    for (int c = 0; c < 3; ++c) {
+      if (diff == 1) {
+        int base = (int) (bits >>> (59 - 8 * c)) & 31;
+        int delta = ((int) (bits >>> (56 - 8 * c)) & 7) << 29 >> 29;
+        baseColors[0][c] = expand5(base);
+        baseColors[1][c] = expand5(base + delta);
+      } else {
+        baseColors[0][c] = expand4((int) (bits >>> (60 - 8 * c)) & 15);
+        baseColors[1][c] = expand4((int) (bits >>> (56 - 8 * c)) & 15);
+      }
+    }
+    final int[] tables = {(int) (bits >>> 37) & 7, (int) (bits >>> 34) & 7};
+
+    for (int pixel = 0; pixel < 16; ++pixel) {
+      final int x = pixel / 4;
+      final int y = pixel % 4;
+      final int s = (flip == 0) ? (x < 2 ? 0 : 1) : (y < 2 ? 0 : 1);
+      final int index = ((int) (bits >>> (16 + pixel)) & 1) << 1 | ((int) (bits >>> pixel) & 1);
+      final int modifier = etc1Modifier(tables[s], index);
+      block[pixel] = 0xff000000
+              | clamp255(baseColors[s][0] + modifier) << 16
+              | clamp255(baseColors[s][1] + modifier) << 8
+              | clamp255(baseColors[s][2] + modifier);
+    }
+  }
+
+  // Pixel index value 0 and 1 are the small and large positive modifiers, 2 and 3 the negatives.
+  private static int etc1Modifier(int table, int index) {
+    final int magnitude = ETC1_MODIFIERS[table][index & 1];
+    return (index < 2) ? magnitude : -magnitude;
+  }
+
+  // Pixels are numbered in column order within a block: pixel = x * 4 + y. Without the flip bit the
+  // sub-blocks are the left and right 2x4 halves, with it the top and bottom 4x2 halves.
+  private static void subBlockPixels(int flip, int[][] subBlockPixels) {
+    int[] counts = new int[2];
+    for (int pixel = 0; pixel < 16; ++pixel) {
+      final int x = pixel / 4;
+      final int y = pixel % 4;
+      final int s = (flip == 0) ? (x < 2 ? 0 : 1) : (y < 2 ? 0 : 1);
+      subBlockPixels[s][counts[s]++] = pixel;
+    }
+  }
+
+  private static float[] averageColor(int[] block, int[] pixels) {
+    float[] average = new float[3];
+    for (int pixel : pixels) {
+      for (int c = 0; c < 3; ++c) {
+        average[c] += channel(block[pixel], c);
+      }
+    }
+    for (int c = 0; c < 3; ++c) {
+      average[c] /= pixels.length;
+    }
+    return average;
+  }
+
+  // -----------------------------------------------------------------------------------------------
+  // Alpha blocks
+
+  private static long encodeAlphaBlock(int[] block) {
+    int min = 255;
+    int max = 0;
+    for (int pixel : block) {
+      final int alpha = pixel >>> 24;
+      min = Math.min(min, alpha);
+      max = Math.max(max, alpha);
+    }
+
+    if (min == max) {
+      // Table 13 has a zero modifier at index 4.
+      return packAlphaBlock(min, 1, 13, new int[16], 4);
+    }
+
+    long bestError = Long.MAX_VALUE;
+    long bestBits = 0;
+    int[] indices = new int[16];
+    for (int table = 0; table < EAC_MODIFIERS.length; ++table) {
+      final int[] modifiers = EAC_MODIFIERS[table];
+      final int tableRange = modifiers[7] - modifiers[3];
+      final int idealMultiplier = Math.max(1, Math.round((float) (max - min) / tableRange));
+      for (int multiplier = Math.max(1, idealMultiplier - 1);
+           multiplier <= Math.min(15, idealMultiplier + 1); ++multiplier) {
+        // Centre the table range on the alpha range.
+        final int base = clamp255(Math.round(
+                (min + max) * 0.5f - (modifiers[7] + modifiers[3]) * multiplier * 0.5f));
+        long error = 0;
+        for (int pixel = 0; pixel < 16 && error < bestError; ++pixel) {
+          final int alpha = block[pixel] >>> 24;
+          int bestPixelError = Integer.MAX_VALUE;
+          for (int index = 0; index < 8; ++index) {
+            int difference = clamp255(base + modifiers[index] * multiplier) - alpha;
+            int pixelError = difference * difference;
+            if (pixelError < bestPixelError) {
+              bestPixelError = pixelError;
+              indices[pixel] = index;
+            }
+          }
+          error += bestPixelError;
+        }
+        if (error < bestError) {
+          bestError = error;
+          bestBits = packAlphaBlock(base, multiplier, table, indices, -1);
+        }
+      }
+    }
+    return bestBits;
+  }
+
+  private static long packAlphaBlock(
+          int base, int multiplier, int table, int[] indices, int uniformIndex) {
+    long bits = (long) base << 56 | (long) multiplier << 52 | (long) table << 48;
+    for (int pixel = 0; pixel < 16; ++pixel) {
+      final int index = (uniformIndex >= 0) ? uniformIndex : indices[pixel];
+      bits |= (long) index << (45 - 3 * pixel);
+    }
+    return bits;
+  }
+
+  private static void decodeAlphaBlock(long bits, int[] block) {
+    final int base = (int) (bits >>> 56) & 0xff;
+    final int multiplier = (int) (bits >>> 52) & 15;
+    final int[] modifiers = EAC_MODIFIERS[(int) (bits >>> 48) & 15];
+    for (int pixel = 0; pixel < 16; ++pixel) {
+      final int index = (int) (bits >>> (45 - 3 * pixel)) & 7;
+      final int alpha = clamp255(base + modifiers[index] * multiplier);
+      block[pixel] = (block[pixel] & 0x00ffffff) | alpha << 24;
+    }
+  }
+
+  // -----------------------------------------------------------------------------------------------
+  // Helpers
+
+  private static int blocksAcross(int size) {
+    return (size + 3) / 4;
+  }
+
+  // Reads a 4x4 block in column order, repeating the edge pixels of images that are smaller than
+  // a block.
+  private static void readBlock(int[] argb, int width, int height, int blockX, int blockY, int[] block) {
+    for (int pixel = 0; pixel < 16; ++pixel) {
+      final int x = Math.min(blockX + pixel / 4, width - 1);
+      final int y = Math.min(blockY + pixel % 4, height - 1);
+      block[pixel] = argb[y * width + x];
+    }
+  }
+
+  private static void writeBlock(int[] block, int[] argb, int width, int height, int blockX, int blockY) {
+    for (int pixel = 0; pixel < 16; ++pixel) {
+      final int x = blockX + pixel / 4;
+      final int y = blockY + pixel % 4;
+      if (x < width && y < height) {
+        argb[y * width + x] = block[pixel];
+      }
+    }
+  }
+
+  private static int channel(int pixel, int c) {
+    return (pixel >> (16 - 8 * c)) & 0xff;
+  }
+
+  private static int quantize(float value, int maxValue) {
+    return Math.max(0, Math.min(maxValue, Math.round(value * maxValue / 255.0f)));
+  }
+
+  private static int expand4(int value) {
+    return (value << 4) | value;
+  }
+
+  private static int expand5(int value) {
+    return (value << 3) | (value >> 2);
+  }
+
+  private static int clamp255(int value) {
+    return (value < 0) ? 0 : (value > 255 ? 255 : value);
+  }
+
+  private static void writeLong(byte[] output, int offset, long bits) {
+    for (int i = 0; i < 8; ++i) {
+      output[offset + i] = (byte) (bits >>> (56 - 8 * i));
+    }
+  }
+
+  private static long readLong(byte[] input, int offset) {
+    long bits = 0;
+    for (int i = 0; i < 8; ++i) {
+      bits = (bits << 8) | (input[offset + i] & 0xff);
+    }
+    return bits;
+  }
+}
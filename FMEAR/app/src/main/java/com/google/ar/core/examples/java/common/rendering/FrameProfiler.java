@@ -0,0 +1,280 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.os.Trace;
+import android.util.Log;
+
+/**
+ * Times the phases of every rendered frame. Each phase feeds a log-linear histogram, in the style
+ * of HdrHistogram, with a fixed number of buckets and about 3% precision, from which the p50, p95
+ * and p99 are read. The last frames are kept in a ring buffer, and a frame that goes over the
+ * budget is logged with its phase breakdown. Phases are also emitted as systrace sections.
+ *
+ * <p>All the memory is allocated up front, so timing a frame does not allocate. Frames are timed
+ * on the GL thread; the statistics may be read from any thread.
+ */
+public class FrameProfiler {
+  private static final String TAG = FrameProfiler.class.getSimpleName();
+
+  // Each power of two of microseconds is split into SUB_BUCKET_COUNT / 2 linear sub-buckets.
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+  // Durations are clamped to about 16 seconds.
+  private static final long MAX_MICROS = (1L << 24) - 1;
+  private static final int NUM_BUCKETS = bucketIndexOf(MAX_MICROS) + 1;
+
+  private final String[] phaseNames;
+  private final String[] phaseTraceNames;
+  private final long frameBudgetNanos;
+
+  // Histograms of the phases, then of the whole frame, in microseconds.
+  private final long[][] histograms;
+  private final long[] histogramCounts;
+
+  // The duration of each phase of the frame in progress, or -1 if the phase did not run.
+  private final long[] currentPhaseNanos;
+  private long frameStartNanos = -1;
+  private int currentPhase = -1;
+  private long phaseStartNanos;
+
+  // The durations of the phases and of the whole frame of the last frames, in nanoseconds, with
+  // numPhases + 1 values per frame.
+  private final long[] history;
+  private final int historySize;
+  private long numFrames = 0;
+  private long numJankFrames = 0;
+
+  // Reused for the over-budget log line.
+  private final StringBuilder jankMessage = new StringBuilder(256);
+
+  /**
+   * @param phaseNames The names of the phases, indexed by the phase numbers passed to {@link
+   *     #beginPhase}.
+   * @param historySize The number of frames kept in the ring buffer.
+   * @param frameBudgetNanos Frames longer than this are logged with their phase breakdown.
+   */
+  public FrameProfiler(String[] phaseNames, int historySize, long frameBudgetNanos) {
+    this.phaseNames = phaseNames.clone();
+    this.phaseTraceNames = new String[phaseNames.length];
+    for (int i = 0; i < phaseNames.length; ++i) {
+      phaseTraceNames[i] = "fmear:" + phaseNames[i];
+    }
+    this.frameBudgetNanos = frameBudgetNanos;
+    this.histograms = new long[phaseNames.length + 1][NUM_BUCKETS];
+    this.histogramCounts = new long[phaseNames.length + 1];
+    this.currentPhaseNanos = new long[phaseNames.length];
+    this.historySize = historySize;
+    this.history = new long[historySize * (phaseNames.length + 1)];
+  }
+
+  public int getNumPhases() {
+    return phaseNames.length;
+  }
+
+  public String getPhaseName(int phase) {
+    return phaseNames[phase];
+  }
+
+  /** Starts timing a frame. */
+  public void beginFrame() {
+    Trace.beginSection("fmear:frame");
+    for (int i = 0; i < currentPhaseNanos.length; ++i) {
+      currentPhaseNanos[i] = -1;
+    }
+    currentPhase = -1;
+    frameStartNanos = System.nanoTime();
+  }
+
+  /**
+   * Starts timing a phase of the frame, ending the current phase if any. A phase that runs more
+   * than once in a frame is added up.
+   */
+  public void beginPhase(int phase) {
+    final long nowNanos = System.nanoTime();
+    endPhase(nowNanos);
+    Trace.beginSection(phaseTraceNames[phase]);
+    currentPhase = phase;
+    phaseStartNanos = nowNanos;
+  }
+
+  /** Ends the current phase, if any. */
+  public void endPhase() {
+    endPhase(System.nanoTime());
+  }
+
+  private void endPhase(long nowNanos) {
+    if (currentPhase < 0) {
+      return;
+    }
+    Trace.endSection();
+    final long phaseNanos = nowNanos - phaseStartNanos;
+    currentPhaseNanos[currentPhase] = (currentPhaseNanos[currentPhase] < 0)
+            ? phaseNanos : currentPhaseNanos[currentPhase] + phaseNanos;
+    currentPhase = -1;
+  }
+
+  /**
+   * Ends the frame and the current phase, and records them. Call it in a finally block, so that
+   * the frame is ended even if it returns early.
+   */
+  public void endFrame() {
+    if (frameStartNanos < 0) {
+      return;
+    }
+    final long nowNanos = System.nanoTime();
+    endPhase(nowNanos);
+    Trace.endSection();
+    final long frameNanos = nowNanos - frameStartNanos;
+    frameStartNanos = -1;
+
+    final int numPhases = phaseNames.length;
+    synchronized (this) {
+      final int offset = (int) (numFrames % historySize) * (numPhases + 1);
+      for (int i = 0; i < numPhases; ++i) {
+        history[offset + i] = currentPhaseNanos[i];
+        if (currentPhaseNanos[i] >= 0) {
+          record(i, currentPhaseNanos[i]);
+        }
+      }
+      history[offset + numPhases] = frameNanos;
+      record(numPhases, frameNanos);
+      ++numFrames;
+      if (frameNanos > frameBudgetNanos) {
+        ++numJankFrames;
+        logJankFrame(frameNanos);
+      }
+    }
+  }
+
+  private void record(int histogram, long nanos) {
+    ++histograms[histogram][bucketIndexOf(nanos / 1000)];
+    ++histogramCounts[histogram];
+  }
+
+  // Logs the phases of the frame that went over budget. The log line is the only allocation.
+  private void logJankFrame(long frameNanos) {
+    jankMessage.setLength(0);
+    jankMessage.append("Frame ").append(numFrames - 1).append(" took ");
+    appendMillis(jankMessage, frameNanos);
+    jankMessage.append(" ms (budget ");
+    appendMillis(jankMessage, frameBudgetNanos);
+    jankMessage.append(" ms, p50 ").append(percentileMicros(phaseNames.length, 50) / 1000)
+            .append(" ms):");
+    long phasesNanos = 0;
+    for (int i = 0; i < phaseNames.length; ++i) {
+      if (currentPhaseNanos[i] < 0) {
+        continue;
+      }
+      phasesNanos += currentPhaseNanos[i];
+      jankMessage.append(' ').append(phaseNames[i]).append('=');
+      appendMillis(jankMessage, currentPhaseNanos[i]);
+    }
+    jankMessage.append(" other=");
+    appendMillis(jankMessage, Math.max(0, frameNanos - phasesNanos));
+    Log.w(TAG, jankMessage.toString());
+  }
+
+  private static void appendMillis(StringBuilder builder, long nanos) {
+    final long tenthsOfMillis = nanos / 100000;
+    builder.append(tenthsOfMillis / 10).append('.').append(tenthsOfMillis % 10);
+  }
+
+  /**
+   * Returns the duration at the given percentile, from 0 to 100, of a phase, or of the whole
+   * frame if the phase is {@link #getNumPhases}. Returns 0 if nothing was recorded.
+   */
+  public synchronized long percentileMicros(int phase, double percentile) {
+    final long count = histogramCounts[phase];
+    if (count == 0) {
+      return 0;
+    }
+    final long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+    final long[] histogram = histograms[phase];
+    long seen = 0;
+    for (int i = 0; i < histogram.length; ++i) {
+      seen += histogram[i];
+      if (seen >= rank) {
+        return highestMicrosOf(i);
+      }
+    }
+    return MAX_MICROS;
+  }
+
+  /** Returns the duration of the whole frame at the given percentile, from 0 to 100. */
+  public long framePercentileMicros(double percentile) {
+    return percentileMicros(phaseNames.length, percentile);
+  }
+
+  public synchronized long getNumFrames() {
+    return numFrames;
+  }
+
+  public synchronized long getNumJankFrames() {
+    return numJankFrames;
+  }
+
+  /**
+   * Copies the phase durations of a recent frame into durationsNanos, which must hold {@link
+   * #getNumPhases} + 1 values: the phases, with -1 for those that did not run, then the whole
+   * frame.
+   *
+   * @param framesAgo 0 for the last frame, up to the history size - 1.
+   * @return false if that frame is not in the history.
+   */
+  public synchronized boolean getRecentFrame(int framesAgo, long[] durationsNanos) {
+    if (framesAgo < 0 || framesAgo >= historySize || framesAgo >= numFrames) {
+      return false;
+    }
+    final int stride = phaseNames.length + 1;
+    final int offset = (int) ((numFrames - 1 - framesAgo) % historySize) * stride;
+    System.arraycopy(history, offset, durationsNanos, 0, stride);
+    return true;
+  }
+
+  /** Clears the histograms and the history. */
+  public synchronized void reset() {
+    for (long[] histogram : histograms) {
+      for (int i = 0; i < histogram.length; ++i) {
+        histogram[i] = 0;
+      }
+    }
+    for (int i = 0; i < histogramCounts.length; ++i) {
+      histogramCounts[i] = 0;
+    }
+    numFrames = 0;
+    numJankFrames = 0;
+  }
+
+  /** Returns the p50, p95 and p99 of every phase and of the whole frame. Allocates. */
+  public synchronized String getSummary() {
+    StringBuilder summary = new StringBuilder();
+    summary.append(numFrames).append(" frames, ").append(numJankFrames).append(" over budget");
+    for (int i = 0; i <= phaseNames.length; ++i) {
+      summary.append("\n  ").append((i < phaseNames.length) ? phaseNames[i] : "frame")
+              .append(": p50 ").append(percentileMicros(i, 50))
+              .append(" us, p95 ").append(percentileMicros(i, 95))
+              .append(" us, p99 ").append(percentileMicros(i, 99))
+              .append(" us (").append(histogramCounts[i]).append(" samples)");
+    }
+    return summary.toString();
+  }
+
+  // The index of the bucket holding the value. Values below SUB_BUCKET_COUNT have a bucket each;
+  // above that, every power of two has SUB_BUCKET_HALF_COUNT buckets.
+  private static int bucketIndexOf(long micros) {
+    final long value = Math.max(0, Math.min(micros, MAX_MICROS));
+    final int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1));
+    final int subBucket = (int) (value >>> shift);
+    return (shift + 1) * SUB_BUCKET_HALF_COUNT + subBucket - SUB_BUCKET_HALF_COUNT;
+  }
+
+  // The largest value that falls in the bucket.
+  private static long highestMicrosOf(int bucketIndex) {
+    if (bucketIndex < SUB_BUCKET_COUNT) {
+      return bucketIndex;
+    }
+    final int shift = bucketIndex / SUB_BUCKET_HALF_COUNT - 1;
+    final long subBucket = bucketIndex % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT;
+    return ((subBucket + 1) << shift) - 1;
+  }
+}
@@ -0,0 +1,950 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.net.Uri;
+import android.util.Base64;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reads glTF 2.0 files, binary .glb files or .gltf files with external or embedded buffers, into
+ * indexed triangle meshes. Unlike an obj file, a glTF file has its geometry in binary buffers,
+ * already triangulated and indexed per vertex, so there is no text to parse: the file is
+ * memory-mapped, and every accessor is a slice of its buffer view that is read into float and int
+ * arrays. The node transform is applied to those arrays, which are then copied into the direct
+ * buffers of the primitives. A mesh that several nodes use is decoded once.
+ *
+ * <p>Accessors can be quantized with KHR_mesh_quantization, and are widened to floats, since the
+ * shaders and the chunk files of the dataset cache take floats. Texture transforms
+ * (KHR_texture_transform), which quantized texture coordinates rely on, are applied to the
+ * texture coordinates. Images can be external files or embedded in a buffer view or a data URI;
+ * embedded images are written to a directory next to the file, once, so that they are decoded and
+ * cached like the textures of the obj files.
+ *
+ * <p>The meshes are flattened through the node hierarchy of the scene, and converted from the
+ * y-up frame of glTF to the z-up frame of the obj files that FME writes. Texture coordinates are
+ * flipped to the obj convention as well.
+ */
+public class GltfReader {
+  private static final String TAG = GltfReader.class.getSimpleName();
+
+  private static final int GLB_MAGIC = 0x46546C67; // "glTF"
+  private static final int GLB_CHUNK_JSON = 0x4E4F534A;
+  private static final int GLB_CHUNK_BIN = 0x004E4942;
+
+  // Accessor component types.
+  private static final int BYTE = 5120;
+  private static final int UNSIGNED_BYTE = 5121;
+  private static final int SHORT = 5122;
+  private static final int UNSIGNED_SHORT = 5123;
+  private static final int UNSIGNED_INT = 5125;
+  private static final int FLOAT = 5126;
+
+  // Primitive modes. Points and lines are skipped.
+  private static final int MODE_TRIANGLES = 4;
+  private static final int MODE_TRIANGLE_STRIP = 5;
+  private static final int MODE_TRIANGLE_FAN = 6;
+
+  // The extensions that a file may require.
+  private static final Set<String> SUPPORTED_EXTENSIONS = new HashSet<>(Arrays.asList(
+          "KHR_mesh_quantization", "KHR_texture_transform", "KHR_materials_unlit"));
+
+  /** The material of a primitive, from the metallic-roughness model of glTF. */
+  public static class Material {
+    public String name = "";
+    public final float[] baseColorFactor = {1.0f, 1.0f, 1.0f, 1.0f};
+    // The base color texture, or null.
+    public File baseColorTexture;
+    // Whether the material is alpha blended, rather than opaque or alpha masked.
+    public boolean blend = false;
+    public boolean unlit = false;
+
+    // The base color texture coordinate set and transform, applied to the texture coordinates.
+    int texCoord = 0;
+    final float[] uvOffset = {0.0f, 0.0f};
+    final float[] uvScale = {1.0f, 1.0f};
+    float uvRotation = 0.0f;
+  }
+
+  /** A triangle mesh with a single material, in the z-up frame of the obj files. */
+  public static class Primitive {
+    public final Material material;
+    // Direct buffers: three floats per vertex for the positions and the normals, two for the
+    // texture coordinates, which are empty if the primitive has none, and three indices per
+    // triangle.
+    public final FloatBuffer positions;
+    public final FloatBuffer normals;
+    public final FloatBuffer texCoords;
+    public final IntBuffer indices;
+
+    Primitive(Material material, FloatBuffer positions, FloatBuffer normals,
+              FloatBuffer texCoords, IntBuffer indices) {
+      this.material = material;
+      this.positions = positions;
+      this.normals = normals;
+      this.texCoords = texCoords;
+      this.indices = indices;
+    }
+  }
+
+  /** The primitives of every mesh instance of the scene. */
+  public static class Model {
+    public final List<Primitive> primitives = new ArrayList<>();
+    public int numVertices = 0;
+    public int numTriangles = 0;
+  }
+
+  // An accessor: a typed view over a buffer view.
+  private static class Accessor {
+    int count;
+    int componentType;
+    int numComponents;
+    boolean normalized;
+    // The data of the first element, little-endian, and the distance between elements.
+    ByteBuffer data;
+    int byteStride;
+    JSONObject sparse;
+  }
+
+  // A primitive as it is decoded from its accessors, before the matrix of a node is applied.
+  private static class MeshPrimitive {
+    final Material material;
+    final float[] positions;
+    // Null if the primitive has no normals, which are then computed for every node.
+    final float[] normals;
+    final float[] texCoords;
+    final int[] indices;
+
+    MeshPrimitive(Material material, float[] positions, float[] normals, float[] texCoords,
+                  int[] indices) {
+      this.material = material;
+      this.positions = positions;
+      this.normals = normals;
+      this.texCoords = texCoords;
+      this.indices = indices;
+    }
+  }
+
+  private final File file;
+  private final JSONObject json;
+  private final List<ByteBuffer> buffers = new ArrayList<>();
+  private final Material[] materials;
+  private final File[] imageFiles;
+  // The primitives of the meshes that are used by more than one node, decoded once, and the
+  // number of nodes that are still to be read for every mesh.
+  private final List<List<MeshPrimitive>> decodedMeshes;
+  private final int[] remainingMeshUses;
+  private final Model model = new Model();
+
+  private GltfReader(File file, JSONObject json, ByteBuffer glbBuffer) throws IOException {
+    this.file = file;
+    this.json = json;
+
+    JSONArray bufferArray = json.optJSONArray("buffers");
+    for (int i = 0; bufferArray != null && i < bufferArray.length(); ++i) {
+      JSONObject buffer = bufferArray.optJSONObject(i);
+      String uri = (buffer == null) ? null : buffer.optString("uri", null);
+      if (uri == null) {
+        // Only the first buffer of a .glb file may leave out its uri, for the binary chunk.
+        buffers.add(glbBuffer);
+      } else if (uri.startsWith("data:")) {
+        buffers.add(ByteBuffer.wrap(decodeDataUri(uri)).order(ByteOrder.LITTLE_ENDIAN));
+      } else {
+        buffers.add(map(new File(file.getParentFile(), Uri.decode(uri))));
+      }
+    }
+
+    JSONArray imageArray = json.optJSONArray("images");
+    imageFiles = new File[(imageArray == null) ? 0 : imageArray.length()];
+    JSONArray materialArray = json.optJSONArray("materials");
+    materials = new Material[(materialArray == null) ? 0 : materialArray.length()];
+
+    JSONArray meshArray = json.optJSONArray("meshes");
+    remainingMeshUses = new int[(meshArray == null) ? 0 : meshArray.length()];
+    JSONArray nodeArray = json.optJSONArray("nodes");
+    for (int i = 0; nodeArray != null && i < nodeArray.length(); ++i) {
+      JSONObject node = nodeArray.optJSONObject(i);
+      final int meshIndex = (node == null) ? -1 : node.optInt("mesh", -1);
+      if (meshIndex >= 0 && meshIndex < remainingMeshUses.length) {
+        ++remainingMeshUses[meshIndex];
+      }
+    }
+    decodedMeshes = new ArrayList<>(
+            Collections.<List<MeshPrimitive>>nCopies(remainingMeshUses.length, null));
+  }
+
+  /** Whether the file is a .glb or a .gltf file. */
+  public static boolean isGltfFile(File file) {
+    final String name = file.getName().toLowerCase();
+    return name.endsWith(".glb") || name.endsWith(".gltf");
+  }
+
+  /** Reads the default scene of a .glb or .gltf file. */
+  public static Model read(File file) throws IOException {
+    ByteBuffer content = map(file);
+    JSONObject json;
+    ByteBuffer glbBuffer = null;
+    try {
+      if (content.remaining() >= 12 && content.getInt(0) == GLB_MAGIC) {
+        // A 12-byte header, then the JSON chunk and the optional binary chunk.
+        if (content.getInt(4) != 2) {
+          throw new IOException("Unsupported glTF version " + content.getInt(4));
+        }
+        final int length = Math.min(content.getInt(8), content.limit());
+        int offset = 12;
+        String jsonText = null;
+        while (offset + 8 <= length) {
+          final int chunkLength = content.getInt(offset);
+          final int chunkType = content.getInt(offset + 4);
+          ByteBuffer chunk = slice(content, offset + 8, chunkLength);
+          if (chunkType == GLB_CHUNK_JSON) {
+            byte[] bytes = new byte[chunkLength];
+            chunk.get(bytes);
+            jsonText = new String(bytes, StandardCharsets.UTF_8);
+          } else if (chunkType == GLB_CHUNK_BIN && glbBuffer == null) {
+            glbBuffer = chunk;
+          }
+          offset += 8 + ((chunkLength + 3) & ~3);
+        }
+        if (jsonText == null) {
+          throw new IOException("No JSON chunk in '" + file + "'");
+        }
+        json = new JSONObject(jsonText);
+      } else {
+        byte[] bytes = new byte[content.remaining()];
+        content.get(bytes);
+        json = new JSONObject(new String(bytes, StandardCharsets.UTF_8));
+      }
+
+      checkVersionAndExtensions(json);
+      GltfReader reader = new GltfReader(file, json, glbBuffer);
+      reader.readScene();
+      return reader.model;
+    } catch (JSONException e) {
+      throw new IOException("Invalid glTF file '" + file + "'", e);
+    }
+  }
+
+  private static void checkVersionAndExtensions(JSONObject json) throws IOException {
+    JSONObject asset = json.optJSONObject("asset");
+    String version = (asset == null) ? "" : asset.optString("version", "");
+    if (!version.startsWith("2.")) {
+      throw new IOException("Unsupported glTF version '" + version + "'");
+    }
+    JSONArray required = json.optJSONArray("extensionsRequired");
+    for (int i = 0; required != null && i < required.length(); ++i) {
+      String extension = required.optString(i, "");
+      if (!SUPPORTED_EXTENSIONS.contains(extension)) {
+        throw new IOException("Unsupported glTF extension " + extension);
+      }
+    }
+  }
+
+  // Reads the nodes of the default scene, or every root node if there is no scene.
+  private void readScene() throws IOException, JSONException {
+    JSONArray nodes = json.optJSONArray("nodes");
+    JSONArray scenes = json.optJSONArray("scenes");
+    // The y-up frame of glTF to the z-up frame of the obj files: (x, y, z) to (x, -z, y).
+    float[] rootMatrix = new float[16];
+    rootMatrix[0] = 1.0f;
+    rootMatrix[6] = 1.0f;
+    rootMatrix[9] = -1.0f;
+    rootMatrix[15] = 1.0f;
+
+    if (scenes != null && scenes.length() > 0) {
+      JSONObject scene = scenes.getJSONObject(json.optInt("scene", 0));
+      JSONArray sceneNodes = scene.optJSONArray("nodes");
+      for (int i = 0; sceneNodes != null && i < sceneNodes.length(); ++i) {
+        readNode(nodes, sceneNodes.getInt(i), rootMatrix, 0);
+      }
+    } else if (nodes != null) {
+      // Without a scene, the nodes that are not a child of another node are the roots.
+      boolean[] isChild = new boolean[nodes.length()];
+      for (int i = 0; i < nodes.length(); ++i) {
+        JSONArray children = nodes.getJSONObject(i).optJSONArray("children");
+        for (int j = 0; children != null && j < children.length(); ++j) {
+          isChild[children.getInt(j)] = true;
+        }
+      }
+      for (int i = 0; i < nodes.length(); ++i) {
+        if (!isChild[i]) {
+          readNode(nodes, i, rootMatrix, 0);
+        }
+      }
+    }
+  }
+
+  private void readNode(JSONArray nodes, int nodeIndex, float[] parentMatrix, int depth)
+          throws IOException, JSONException {
+    if (depth > nodes.length()) {
+      throw new IOException("The node hierarchy of '" + file + "' has a cycle");
+    }
+    JSONObject node = nodes.getJSONObject(nodeIndex);
+    float[] matrix = multiply(parentMatrix, localMatrixOf(node));
+
+    if (node.has("mesh")) {
+      for (MeshPrimitive primitive : meshPrimitivesOf(node.getInt("mesh"))) {
+        addPrimitive(primitive, matrix);
+      }
+    }
+
+    JSONArray children = node.optJSONArray("children");
+    for (int i = 0; children != null && i < children.length(); ++i) {
+      readNode(nodes, children.getInt(i), matrix, depth + 1);
+    }
+  }
+
+  // Decodes the primitives of the mesh, or returns the ones that a previous node of the mesh
+  // decoded. They are kept until the last node of the mesh is read.
+  private List<MeshPrimitive> meshPrimitivesOf(int meshIndex) throws IOException, JSONException {
+    if (meshIndex < 0 || meshIndex >= remainingMeshUses.length) {
+      throw new IOException("Mesh " + meshIndex + " is missing from '" + file + "'");
+    }
+    List<MeshPrimitive> meshPrimitives = decodedMeshes.get(meshIndex);
+    if (meshPrimitives == null) {
+      JSONArray primitives =
+              json.getJSONArray("meshes").getJSONObject(meshIndex).getJSONArray("primitives");
+      meshPrimitives = new ArrayList<>(primitives.length());
+      for (int i = 0; i < primitives.length(); ++i) {
+        MeshPrimitive primitive = decodePrimitive(primitives.getJSONObject(i));
+        if (primitive != null) {
+          meshPrimitives.add(primitive);
+        }
+      }
+    }
+    decodedMeshes.set(meshIndex, (--remainingMeshUses[meshIndex] > 0) ? meshPrimitives : null);
+    return meshPrimitives;
+  }
+
+  // The matrix of the node, or the matrix of its translation, rotation and scale.
+  private static float[] localMatrixOf(JSONObject node) throws JSONException {
+    float[] matrix = new float[16];
+    JSONArray matrixArray = node.optJSONArray("matrix");
+    if (matrixArray != null && matrixArray.length() == 16) {
+      for (int i = 0; i < 16; ++i) {
+        matrix[i] = (float) matrixArray.getDouble(i);
+      }
+      return matrix;
+    }
+
+    float[] t = readFloats(node.optJSONArray("translation"), new float[] {0.0f, 0.0f, 0.0f});
+    float[] q = readFloats(node.optJSONArray("rotation"), new float[] {0.0f, 0.0f, 0.0f, 1.0f});
+    float[] s = readFloats(node.optJSONArray("scale"), new float[] {1.0f, 1.0f, 1.0f});
+    final float x = q[0];
+    final float y = q[1];
+    final float z = q[2];
+    final float w = q[3];
+    // T * R * S, column-major.
+    matrix[0] = (1 - 2 * (y * y + z * z)) * s[0];
+    matrix[1] = (2 * (x * y + z * w)) * s[0];
+    matrix[2] = (2 * (x * z - y * w)) * s[0];
+    matrix[4] = (2 * (x * y - z * w)) * s[1];
+    matrix[5] = (1 - 2 * (x * x + z * z)) * s[1];
+    matrix[6] = (2 * (y * z + x * w)) * s[1];
+    matrix[8] = (2 * (x * z + y * w)) * s[2];
+    matrix[9] = (2 * (y * z - x * w)) * s[2];
+    matrix[10] = (1 - 2 * (x * x + y * y)) * s[2];
+    matrix[12] = t[0];
+    matrix[13] = t[1];
+    matrix[14] = t[2];
+    matrix[15] = 1.0f;
+    return matrix;
+  }
+
+  private static float[] readFloats(JSONArray array, float[] defaults) throws JSONException {
+    if (array == null) {
+      return defaults;
+    }
+    for (int i = 0; i < defaults.length && i < array.length(); ++i) {
+      defaults[i] = (float) array.getDouble(i);
+    }
+    return defaults;
+  }
+
+  // Reads the accessors of the primitive, or returns null if it has no triangles.
+  private MeshPrimitive decodePrimitive(JSONObject primitive) throws IOException, JSONException {
+    final int mode = primitive.optInt("mode", MODE_TRIANGLES);
+    if (mode != MODE_TRIANGLES && mode != MODE_TRIANGLE_STRIP && mode != MODE_TRIANGLE_FAN) {
+      Log.w(TAG, "Skipped a primitive of mode " + mode + " in '" + file + "'");
+      return null;
+    }
+    if (primitive.has("targets")) {
+      Log.w(TAG, "Ignored the morph targets of a primitive in '" + file + "'");
+    }
+
+    JSONObject attributes = primitive.getJSONObject("attributes");
+    if (!attributes.has("POSITION")) {
+      return null;
+    }
+    Material material = materialOf(primitive.optInt("material", -1));
+
+    float[] positions = readAccessor(accessorOf(attributes.getInt("POSITION")), 3);
+    final int numVertices = positions.length / 3;
+    int[] indices = primitive.has("indices")
+            ? readIndices(accessorOf(primitive.getInt("indices")))
+            : sequentialIndices(numVertices);
+    indices = toTriangleList(indices, mode);
+    for (int index : indices) {
+      if (index < 0 || index >= numVertices) {
+        throw new IOException("Index " + index + " out of range in '" + file + "'");
+      }
+    }
+
+    float[] normals = attributes.has("NORMAL")
+            ? readAccessor(accessorOf(attributes.getInt("NORMAL")), 3) : null;
+    final String texCoordName = "TEXCOORD_" + material.texCoord;
+    float[] texCoords = attributes.has(texCoordName)
+            ? readAccessor(accessorOf(attributes.getInt(texCoordName)), 2) : null;
+
+    if (normals != null && normals.length != positions.length) {
+      normals = null;
+    }
+    if (texCoords != null && texCoords.length == numVertices * 2) {
+      transformTexCoords(texCoords, material);
+    } else {
+      texCoords = new float[0];
+    }
+    return new MeshPrimitive(material, positions, normals, texCoords, indices);
+  }
+
+  // Adds an instance of the primitive to the model, with the matrix of its node applied. The
+  // arrays of the primitive are left as they are, for the other nodes of its mesh.
+  private void addPrimitive(MeshPrimitive primitive, float[] matrix) {
+    int[] indices = primitive.indices;
+    // A mirroring matrix turns the triangles inside out, so their winding is reversed.
+    if (determinant3(matrix) < 0) {
+      indices = indices.clone();
+      for (int i = 0; i + 2 < indices.length; i += 3) {
+        final int swap = indices[i + 1];
+        indices[i + 1] = indices[i + 2];
+        indices[i + 2] = swap;
+      }
+    }
+
+    float[] positions = primitive.positions.clone();
+    transformPositions(positions, matrix);
+    float[] normals;
+    if (primitive.normals != null) {
+      normals = primitive.normals.clone();
+      transformNormals(normals, matrix);
+    } else {
+      // Smooth normals, like the ones that are generated for obj files without normals.
+      normals = computeNormals(positions, indices);
+    }
+
+    model.primitives.add(new Primitive(primitive.material, toFloatBuffer(positions),
+            toFloatBuffer(normals), toFloatBuffer(primitive.texCoords), toIntBuffer(indices)));
+    model.numVertices += positions.length / 3;
+    model.numTriangles += indices.length / 3;
+  }
+
+  private Accessor accessorOf(int accessorIndex) throws IOException, JSONException {
+    JSONObject accessorJson = json.getJSONArray("accessors").getJSONObject(accessorIndex);
+    Accessor accessor = new Accessor();
+    accessor.count = accessorJson.getInt("count");
+    accessor.componentType = accessorJson.getInt("componentType");
+    accessor.numComponents = numComponentsOf(accessorJson.getString("type"));
+    accessor.normalized = accessorJson.optBoolean("normalized", false);
+    accessor.sparse = accessorJson.optJSONObject("sparse");
+
+    final int elementSize = componentSizeOf(accessor.componentType) * accessor.numComponents;
+    if (accessorJson.has("bufferView")) {
+      JSONObject bufferView =
+              json.getJSONArray("bufferViews").getJSONObject(accessorJson.getInt("bufferView"));
+      accessor.byteStride = bufferView.optInt("byteStride", elementSize);
+      final int offset = bufferView.optInt("byteOffset", 0) + accessorJson.optInt("byteOffset", 0);
+      final int size = (accessor.count == 0)
+              ? 0 : (accessor.count - 1) * accessor.byteStride + elementSize;
+      if (offset + size > bufferView.optInt("byteOffset", 0) + bufferView.getInt("byteLength")) {
+        throw new IOException("Accessor " + accessorIndex + " overruns its buffer view in '"
+                + file + "'");
+      }
+      accessor.data = slice(bufferOf(bufferView.getInt("buffer")), offset, size);
+    }
+    return accessor;
+  }
+
+  private ByteBuffer bufferOf(int bufferIndex) throws IOException {
+    if (bufferIndex >= buffers.size() || buffers.get(bufferIndex) == null) {
+      throw new IOException("Buffer " + bufferIndex + " is missing from '" + file + "'");
+    }
+    return buffers.get(bufferIndex);
+  }
+
+  // Reads the accessor as floats, dequantizing normalized integers, with numComponents values per
+  // element.
+  private float[] readAccessor(Accessor accessor, int numComponents)
+          throws IOException, JSONException {
+    if (accessor.numComponents != numComponents) {
+      throw new IOException("Expected " + numComponents + " components per element, not "
+              + accessor.numComponents + ", in '" + file + "'");
+    }
+    float[] values = new float[accessor.count * numComponents];
+    if (accessor.data != null) {
+      readElements(accessor.data, accessor.byteStride, accessor.componentType,
+              accessor.normalized, numComponents, values, 0, accessor.count);
+    }
+
+    if (accessor.sparse != null) {
+      final int numSparse = accessor.sparse.getInt("count");
+      int[] sparseIndices = readSparseIndices(accessor.sparse.getJSONObject("indices"), numSparse);
+      JSONObject valuesJson = accessor.sparse.getJSONObject("values");
+      JSONObject bufferView = json.getJSONArray("bufferViews")
+              .getJSONObject(valuesJson.getInt("bufferView"));
+      final int elementSize = componentSizeOf(accessor.componentType) * numComponents;
+      ByteBuffer data = slice(bufferOf(bufferView.getInt("buffer")),
+              bufferView.optInt("byteOffset", 0) + valuesJson.optInt("byteOffset", 0),
+              numSparse * elementSize);
+      float[] sparseValues = new float[numSparse * numComponents];
+      readElements(data, elementSize, accessor.componentType, accessor.normalized,
+              numComponents, sparseValues, 0, numSparse);
+      for (int i = 0; i < numSparse; ++i) {
+        if (sparseIndices[i] >= 0 && sparseIndices[i] < accessor.count) {
+          System.arraycopy(sparseValues, i * numComponents, values,
+                  sparseIndices[i] * numComponents, numComponents);
+        }
+      }
+    }
+    return values;
+  }
+
+  // Reads count elements from the typed view. Tightly packed floats are copied in bulk.
+  private static void readElements(ByteBuffer data, int byteStride, int componentType,
+                                   boolean normalized, int numComponents, float[] values,
+                                   int first, int count) throws IOException {
+    final int componentSize = componentSizeOf(componentType);
+    if (componentType == FLOAT && byteStride == numComponents * 4) {
+      data.asFloatBuffer().get(values, first * numComponents, count * numComponents);
+      return;
+    }
+
+    for (int i = 0; i < count; ++i) {
+      final int elementOffset = i * byteStride;
+      final int valueOffset = (first + i) * numComponents;
+      for (int c = 0; c < numComponents; ++c) {
+        final int offset = elementOffset + c * componentSize;
+        float value;
+        switch (componentType) {
+          case FLOAT:
+            value = data.getFloat(offset);
+            break;
+          case BYTE:
+            value = data.get(offset);
+            if (normalized) {
+              value = Math.max(value / 127.0f, -1.0f);
+            }
+            break;
+          case UNSIGNED_BYTE:
+            value = data.get(offset) & 0xff;
+            if (normalized) {
+              value /= 255.0f;
+            }
+            break;
+          case SHORT:
+            value = data.getShort(offset);
+            if (normalized) {
+              value = Math.max(value / 32767.0f, -1.0f);
+            }
+            break;
+          case UNSIGNED_SHORT:
+            value = data.getShort(offset) & 0xffff;
+            if (normalized) {
+              value /= 65535.0f;
+            }
+            break;
+          case UNSIGNED_INT:
+            value = data.getInt(offset) & 0xffffffffL;
+            break;
+          default:
+            throw new IOException("Unsupported component type " + componentType);
+        }
+        values[valueOffset + c] = value;
+      }
+    }
+  }
+
+  private int[] readIndices(Accessor accessor) throws IOException, JSONException {
+    if (accessor.numComponents != 1 || accessor.data == null) {
+      throw new IOException("Invalid index accessor in '" + file + "'");
+    }
+    return readIntegers(accessor.data, accessor.componentType, accessor.byteStride,
+            accessor.count);
+  }
+
+  private int[] readSparseIndices(JSONObject indicesJson, int count)
+          throws IOException, JSONException {
+    JSONObject bufferView =
+            json.getJSONArray("bufferViews").getJSONObject(indicesJson.getInt("bufferView"));
+    final int componentType = indicesJson.getInt("componentType");
+    final int componentSize = componentSizeOf(componentType);
+    ByteBuffer data = slice(bufferOf(bufferView.getInt("buffer")),
+            bufferView.optInt("byteOffset", 0) + indicesJson.optInt("byteOffset", 0),
+            count * componentSize);
+    return readIntegers(data, componentType, componentSize, count);
+  }
+
+  // Reads unsigned integers. Tightly packed 32-bit indices are copied in bulk.
+  private static int[] readIntegers(ByteBuffer data, int componentType, int byteStride, int count)
+          throws IOException {
+    int[] values = new int[count];
+    switch (componentType) {
+      case UNSIGNED_BYTE:
+        for (int i = 0; i < count; ++i) {
+          values[i] = data.get(i * byteStride) & 0xff;
+        }
+        break;
+      case UNSIGNED_SHORT:
+        for (int i = 0; i < count; ++i) {
+          values[i] = data.getShort(i * byteStride) & 0xffff;
+        }
+        break;
+      case UNSIGNED_INT:
+        if (byteStride == 4) {
+          data.asIntBuffer().get(values);
+        } else {
+          for (int i = 0; i < count; ++i) {
+            values[i] = data.getInt(i * byteStride);
+          }
+        }
+        break;
+      default:
+        throw new IOException("Unsupported index component type " + componentType);
+    }
+    return values;
+  }
+
+  private static int[] sequentialIndices(int count) {
+    int[] indices = new int[count];
+    for (int i = 0; i < count; ++i) {
+      indices[i] = i;
+    }
+    return indices;
+  }
+
+  // Converts triangle strips and fans to triangle lists, and drops an incomplete last triangle.
+  private static int[] toTriangleList(int[] indices, int mode) {
+    if (mode == MODE_TRIANGLES) {
+      return (indices.length % 3 == 0) ? indices : Arrays.copyOf(indices, indices.length / 3 * 3);
+    }
+    final int numTriangles = Math.max(0, indices.length - 2);
+    int[] triangles = new int[numTriangles * 3];
+    for (int i = 0; i < numTriangles; ++i) {
+      if (mode == MODE_TRIANGLE_FAN) {
+        triangles[i * 3] = indices[0];
+        triangles[i * 3 + 1] = indices[i + 1];
+        triangles[i * 3 + 2] = indices[i + 2];
+      } else {
+        // Every other triangle of a strip is flipped, to keep the winding.
+        final boolean odd = (i % 2) != 0;
+        triangles[i * 3] = indices[i];
+        triangles[i * 3 + 1] = indices[odd ? i + 2 : i + 1];
+        triangles[i * 3 + 2] = indices[odd ? i + 1 : i + 2];
+      }
+    }
+    return triangles;
+  }
+
+  private static void transformPositions(float[] positions, float[] m) {
+    for (int i = 0; i + 2 < positions.length; i += 3) {
+      final float x = positions[i];
+      final float y = positions[i + 1];
+      final float z = positions[i + 2];
+      positions[i] = m[0] * x + m[4] * y + m[8] * z + m[12];
+      positions[i + 1] = m[1] * x + m[5] * y + m[9] * z + m[13];
+      positions[i + 2] = m[2] * x + m[6] * y + m[10] * z + m[14];
+    }
+  }
+
+  // Normals go through the inverse transpose of the matrix, and are normalized again, which also
+  // undoes the scale of quantized normals. Up to the scale that the normalization removes, the
+  // inverse transpose is the cofactor matrix times the sign of the determinant, and the columns of
+  // the cofactor matrix are the cross products of the columns of the matrix.
+  private static void transformNormals(float[] normals, float[] m) {
+    final float determinant = determinant3(m);
+    float[] n = new float[9];
+    if (determinant == 0.0f) {
+      n[0] = n[4] = n[8] = 1.0f;
+    } else {
+      final float sign = Math.signum(determinant);
+      cross(m, 4, m, 8, sign, n, 0);
+      cross(m, 8, m, 0, sign, n, 3);
+      cross(m, 0, m, 4, sign, n, 6);
+    }
+    for (int i = 0; i + 2 < normals.length; i += 3) {
+      final float x = normals[i];
+      final float y = normals[i + 1];
+      final float z = normals[i + 2];
+      final float nx = n[0] * x + n[3] * y + n[6] * z;
+      final float ny = n[1] * x + n[4] * y + n[7] * z;
+      final float nz = n[2] * x + n[5] * y + n[8] * z;
+      final float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+      final float scale = (length > 0.0f) ? 1.0f / length : 0.0f;
+      normals[i] = nx * scale;
+      normals[i + 1] = ny * scale;
+      normals[i + 2] = nz * scale;
+    }
+  }
+
+  // The area-weighted average of the normals of the triangles around every vertex.
+  private static float[] computeNormals(float[] positions, int[] indices) {
+    float[] normals = new float[positions.length];
+    for (int i = 0; i + 2 < indices.length; i += 3) {
+      final int a = indices[i] * 3;
+      final int b = indices[i + 1] * 3;
+      final int c = indices[i + 2] * 3;
+      final float abX = positions[b] - positions[a];
+      final float abY = positions[b + 1] - positions[a + 1];
+      final float abZ = positions[b + 2] - positions[a + 2];
+      final float acX = positions[c] - positions[a];
+      final float acY = positions[c + 1] - positions[a + 1];
+      final float acZ = positions[c + 2] - positions[a + 2];
+      final float nx = abY * acZ - abZ * acY;
+      final float ny = abZ * acX - abX * acZ;
+      final float nz = abX * acY - abY * acX;
+      addNormal(normals, a, nx, ny, nz);
+      addNormal(normals, b, nx, ny, nz);
+      addNormal(normals, c, nx, ny, nz);
+    }
+    for (int i = 0; i + 2 < normals.length; i += 3) {
+      final float length = (float) Math.sqrt(normals[i] * normals[i]
+              + normals[i + 1] * normals[i + 1] + normals[i + 2] * normals[i + 2]);
+      if (length > 0.0f) {
+        normals[i] /= length;
+        normals[i + 1] /= length;
+        normals[i + 2] /= length;
+      } else {
+        normals[i + 2] = 1.0f;
+      }
+    }
+    return normals;
+  }
+
+  private static void addNormal(float[] normals, int offset, float nx, float ny, float nz) {
+    normals[offset] += nx;
+    normals[offset + 1] += ny;
+    normals[offset + 2] += nz;
+  }
+
+  // Applies the texture transform of the material, scale then rotation then offset, and flips the
+  // texture coordinates from the top-left origin of glTF to the bottom-left origin of obj.
+  private static void transformTexCoords(float[] texCoords, Material material) {
+    final float cos = (float) Math.cos(material.uvRotation);
+    final float sin = (float) Math.sin(material.uvRotation);
+    for (int i = 0; i + 1 < texCoords.length; i += 2) {
+      final float u = texCoords[i] * material.uvScale[0];
+      final float v = texCoords[i + 1] * material.uvScale[1];
+      texCoords[i] = cos * u + sin * v + material.uvOffset[0];
+      texCoords[i + 1] = 1.0f - (-sin * u + cos * v + material.uvOffset[1]);
+    }
+  }
+
+  // The cross product of the vectors at offsets a and b, times the scale, into the result.
+  private static void cross(float[] a, int aOffset, float[] b, int bOffset, float scale,
+                            float[] result, int offset) {
+    result[offset] = (a[aOffset + 1] * b[bOffset + 2] - a[aOffset + 2] * b[bOffset + 1]) * scale;
+    result[offset + 1] = (a[aOffset + 2] * b[bOffset] - a[aOffset] * b[bOffset + 2]) * scale;
+    result[offset + 2] = (a[aOffset] * b[bOffset + 1] - a[aOffset + 1] * b[bOffset]) * scale;
+  }
+
+  // The product of two column-major 4x4 matrices.
+  private static float[] multiply(float[] a, float[] b) {
+    float[] result = new float[16];
+    for (int column = 0; column < 4; ++column) {
+      for (int row = 0; row < 4; ++row) {
+        float sum = 0.0f;
+        for (int k = 0; k < 4; ++k) {
+          sum += a[k * 4 + row] * b[column * 4 + k];
+        }
+        result[column * 4 + row] = sum;
+      }
+    }
+    return result;
+  }
+
+  private static float determinant3(float[] m) {
+    return m[0] * (m[5] * m[10] - m[9] * m[6])
+            - m[4] * (m[1] * m[10] - m[9] * m[2])
+            + m[8] * (m[1] * m[6] - m[5] * m[2]);
+  }
+
+  // Reads the material, once, with a default material for primitives that have none.
+  private Material materialOf(int materialIndex) throws IOException, JSONException {
+    if (materialIndex < 0 || materialIndex >= materials.length) {
+      return new Material();
+    }
+    if (materials[materialIndex] != null) {
+      return materials[materialIndex];
+    }
+
+    JSONObject materialJson = json.getJSONArray("materials").getJSONObject(materialIndex);
+    Material material = new Material();
+    material.name = materialJson.optString("name", "material" + materialIndex);
+    material.blend = "BLEND".equals(materialJson.optString("alphaMode", "OPAQUE"));
+    JSONObject extensions = materialJson.optJSONObject("extensions");
+    material.unlit = extensions != null && extensions.has("KHR_materials_unlit");
+
+    JSONObject pbr = materialJson.optJSONObject("pbrMetallicRoughness");
+    if (pbr != null) {
+      readFloats(pbr.optJSONArray("baseColorFactor"), material.baseColorFactor);
+      JSONObject textureInfo = pbr.optJSONObject("baseColorTexture");
+      if (textureInfo != null) {
+        material.texCoord = textureInfo.optInt("texCoord", 0);
+        JSONObject textureExtensions = textureInfo.optJSONObject("extensions");
+        JSONObject transform = (textureExtensions == null)
+                ? null : textureExtensions.optJSONObject("KHR_texture_transform");
+        if (transform != null) {
+          readFloats(transform.optJSONArray("offset"), material.uvOffset);
+          readFloats(transform.optJSONArray("scale"), material.uvScale);
+          material.uvRotation = (float) transform.optDouble("rotation", 0.0);
+          material.texCoord = transform.optInt("texCoord", material.texCoord);
+        }
+        material.baseColorTexture = textureFileOf(textureInfo.getInt("index"));
+      }
+    }
+    materials[materialIndex] = material;
+    return material;
+  }
+
+  // Returns the image file of the texture, writing an embedded image out first. Returns null if
+  // the texture has no image in a format that can be decoded.
+  private File textureFileOf(int textureIndex) throws IOException, JSONException {
+    JSONObject texture = json.getJSONArray("textures").getJSONObject(textureIndex);
+    if (!texture.has("source")) {
+      return null;
+    }
+    final int imageIndex = texture.getInt("source");
+    if (imageFiles[imageIndex] != null) {
+      return imageFiles[imageIndex];
+    }
+
+    JSONObject image = json.getJSONArray("images").getJSONObject(imageIndex);
+    String uri = image.optString("uri", null);
+    File imageFile;
+    if (uri != null && !uri.startsWith("data:")) {
+      imageFile = new File(file.getParentFile(), Uri.decode(uri));
+    } else {
+      String mimeType = image.optString("mimeType",
+              (uri == null) ? "" : uri.substring(5, Math.max(5, uri.indexOf(';'))));
+      String extension = "image/jpeg".equals(mimeType) ? ".jpg" : ".png";
+      imageFile = new File(new File(file.getParentFile(), file.getName() + ".images"),
+              "image" + imageIndex + extension);
+      if (uri != null) {
+        writeImage(imageFile, ByteBuffer.wrap(decodeDataUri(uri)));
+      } else {
+        JSONObject bufferView =
+                json.getJSONArray("bufferViews").getJSONObject(image.getInt("bufferView"));
+        writeImage(imageFile, slice(bufferOf(bufferView.getInt("buffer")),
+                bufferView.optInt("byteOffset", 0), bufferView.getInt("byteLength")));
+      }
+    }
+    imageFiles[imageIndex] = imageFile;
+    return imageFile;
+  }
+
+  // Writes the embedded image, unless a previous load of the same file already wrote the same
+  // bytes. Rewriting it would change its modification time, and with it its TextureCache key; an
+  // image of the same size with other bytes, from an edited file, is rewritten.
+  private static void writeImage(File imageFile, ByteBuffer data) throws IOException {
+    if (imageFile.length() == data.remaining() && map(imageFile).equals(data)) {
+      return;
+    }
+    imageFile.getParentFile().mkdirs();
+    byte[] bytes = new byte[data.remaining()];
+    data.get(bytes);
+    try (OutputStream output = new FileOutputStream(imageFile)) {
+      output.write(bytes);
+    }
+  }
+
+  private static byte[] decodeDataUri(String uri) throws IOException {
+    final int comma = uri.indexOf(',');
+    if (comma < 0 || !uri.substring(0, comma).endsWith(";base64")) {
+      throw new IOException("Unsupported data URI");
+    }
+    return Base64.decode(uri.substring(comma + 1), Base64.DEFAULT);
+  }
+
+  // Memory-maps the whole file, little-endian.
+  private static ByteBuffer map(File file) throws IOException {
+    try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+      return input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length())
+              .order(ByteOrder.LITTLE_ENDIAN);
+    }
+  }
+
+  private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) throws IOException {
+    if (offset < 0 || length < 0 || offset + length > buffer.limit()) {
+      throw new IOException("Range " + offset + "+" + length + " is outside of a "
+              + buffer.limit() + "-byte buffer");
+    }
+    ByteBuffer duplicate = buffer.duplicate();
+    duplicate.position(offset);
+    duplicate.limit(offset + length);
+    return duplicate.slice().order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static int numComponentsOf(String type) throws IOException {
+    switch (type) {
+      case "SCALAR":
+        return 1;
+      case "VEC2":
+        return 2;
+      case "VEC3":
+        return 3;
+      case "VEC4":
+        return 4;
+      default:
+        throw new IOException("Unsupported accessor type " + type);
+    }
+  }
+
+  private static int componentSizeOf(int componentType) throws IOException {
+    switch (componentType) {
+      case BYTE:
+      case UNSIGNED_BYTE:
+        return 1;
+      case SHORT:
+      case UNSIGNED_SHORT:
+        return 2;
+      case UNSIGNED_INT:
+      case FLOAT:
+        return 4;
+      default:
+        throw new IOException("Unsupported component type " + componentType);
+    }
+  }
+
+  private static FloatBuffer toFloatBuffer(float[] values) {
+    FloatBuffer buffer = ByteBuffer.allocateDirect(values.length * 4)
+            .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    buffer.put(values).flip();
+    return buffer;
+  }
+
+  private static IntBuffer toIntBuffer(int[] values) {
+    IntBuffer buffer = ByteBuffer.allocateDirect(values.length * 4)
+            .order(ByteOrder.nativeOrder()).asIntBuffer();
+    buffer.put(values).flip();
+    return buffer;
+  }
+}
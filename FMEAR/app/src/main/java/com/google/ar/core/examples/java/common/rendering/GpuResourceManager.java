@@ -0,0 +1,247 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Tracks the GPU memory of the buffers and textures created by the renderer and keeps it within a
+ * budget. Resources are kept in least-recently-drawn order; at the start of every frame the
+ * resources that were not drawn recently are evicted until the resident bytes fit the budget. An
+ * evicted resource is reloaded the next time it is drawn, limited to a number of bytes per frame
+ * so that reloads do not stall the frame.
+ *
+ * <p>All the methods must be called on the GL thread, except {@link #getStats}.
+ */
+public class GpuResourceManager {
+  private static final String TAG = GpuResourceManager.class.getSimpleName();
+
+  /** The kind of GPU memory a resource uses, for the statistics. */
+  public enum Kind {
+    BUFFER,
+    TEXTURE
+  }
+
+  /** A buffer or texture whose GPU memory is managed. */
+  public abstract static class Resource {
+    private final Kind kind;
+    private long residentBytes;
+    private long lastDrawnFrame = -1;
+    private boolean evicted;
+
+    protected Resource(Kind kind) {
+      this.kind = kind;
+    }
+
+    /**
+     * Frees some or all of the GPU memory of the resource. A resource that prepares its eviction
+     * in the background returns -1 until it is ready, and is asked again in a later frame.
+     *
+     * @return the bytes that are still resident, or -1 if the resource cannot be evicted now.
+     */
+    protected abstract long evict();
+
+    /**
+     * Restores the resource after an eviction. A resource that is reloaded in the background
+     * returns -1 until it is ready, and is asked again the next time it is drawn.
+     *
+     * @return the resident bytes, or -1 if the resource is not reloaded yet or could not be.
+     */
+    protected abstract long reload();
+
+    /** Deletes the GL objects of the resource. */
+    protected abstract void delete();
+
+    public boolean isEvicted() {
+      return evicted;
+    }
+  }
+
+  /** A snapshot of the resident GPU memory. */
+  public static class Stats {
+    public final long budgetBytes;
+    public final long residentBytes;
+    public final long bufferBytes;
+    public final long textureBytes;
+    public final int numResources;
+    public final int numEvicted;
+    public final long numEvictions;
+    public final long numReloads;
+
+    Stats(long budgetBytes, long residentBytes, long bufferBytes, long textureBytes,
+          int numResources, int numEvicted, long numEvictions, long numReloads) {
+      this.budgetBytes = budgetBytes;
+      this.residentBytes = residentBytes;
+      this.bufferBytes = bufferBytes;
+      this.textureBytes = textureBytes;
+      this.numResources = numResources;
+      this.numEvicted = numEvicted;
+      this.numEvictions = numEvictions;
+      this.numReloads = numReloads;
+    }
+
+    @Override
+    public String toString() {
+      return (residentBytes / 1024) + " KB resident of " + (budgetBytes / 1024) + " KB budget ("
+              + (bufferBytes / 1024) + " KB buffers, " + (textureBytes / 1024) + " KB textures), "
+              + numEvicted + " of " + numResources + " resources evicted, " + numEvictions
+              + " evictions and " + numReloads + " reloads so far";
+    }
+  }
+
+  // Reloading more than this many bytes in a frame would drop frames, so the remaining evicted
+  // resources are reloaded in the following frames.
+  private static final long MAX_RELOAD_BYTES_PER_FRAME = 8L * 1024 * 1024;
+
+  // In access order, so the eldest entry is the least recently drawn resource.
+  private final LinkedHashMap<Resource, Resource> resources = new LinkedHashMap<>(64, 0.75f, true);
+
+  private volatile long budgetBytes;
+  private long frame = 0;
+  private long reloadedBytesThisFrame = 0;
+  private boolean overBudget = false;
+
+  // Updated on the GL thread and read by getStats.
+  private volatile long bufferBytes = 0;
+  private volatile long textureBytes = 0;
+  private volatile int numResources = 0;
+  private volatile int numEvicted = 0;
+  private volatile long numEvictions = 0;
+  private volatile long numReloads = 0;
+
+  public GpuResourceManager(long budgetBytes) {
+    this.budgetBytes = budgetBytes;
+  }
+
+  public void setBudget(long budgetBytes) {
+    this.budgetBytes = budgetBytes;
+  }
+
+  public long getBudget() {
+    return budgetBytes;
+  }
+
+  /** Returns the bytes of all the resident resources. */
+  public long getResidentBytes() {
+    return bufferBytes + textureBytes;
+  }
+
+  /**
+   * Starts tracking a resource.
+   *
+   * @param residentBytes The bytes the resource uses on the GPU, or 0 if it is added evicted and
+   *     will be loaded when it is first drawn.
+   */
+  public void add(Resource resource, long residentBytes) {
+    resource.residentBytes = residentBytes;
+    resource.evicted = (residentBytes == 0);
+    if (resource.evicted) {
+      ++numEvicted;
+    }
+    addBytes(resource.kind, residentBytes);
+    resources.put(resource, resource);
+    numResources = resources.size();
+  }
+
+  /** Stops tracking the resource and deletes its GL objects. */
+  public void remove(Resource resource) {
+    if (resources.remove(resource) == null) {
+      return;
+    }
+    numResources = resources.size();
+    addBytes(resource.kind, -resource.residentBytes);
+    if (resource.evicted) {
+      --numEvicted;
+    }
+    resource.residentBytes = 0;
+    resource.delete();
+  }
+
+  /**
+   * Marks the resource as drawn in this frame, and reloads it if it was evicted and the reload
+   * allowance of the frame is not used up yet.
+   *
+   * @return true if the resource is fully resident.
+   */
+  public boolean use(Resource resource) {
+    if (resources.get(resource) == null) {
+      // Not managed, so always resident.
+      return true;
+    }
+    resource.lastDrawnFrame = frame;
+    if (!resource.evicted) {
+      return true;
+    }
+    if (reloadedBytesThisFrame >= MAX_RELOAD_BYTES_PER_FRAME) {
+      return false;
+    }
+
+    final long reloadedBytes = resource.reload();
+    if (reloadedBytes < 0) {
+      return false;
+    }
+    reloadedBytesThisFrame += reloadedBytes;
+    addBytes(resource.kind, reloadedBytes - resource.residentBytes);
+    resource.residentBytes = reloadedBytes;
+    resource.evicted = false;
+    --numEvicted;
+    ++numReloads;
+    return true;
+  }
+
+  /**
+   * Evicts the least recently drawn resources until the resident bytes fit in the budget, then
+   * starts a new frame. Resources drawn in the frame that just ended are never evicted, so a view
+   * that needs more than the budget is drawn in full rather than thrashing.
+   */
+  public void nextFrame() {
+    if (getResidentBytes() > budgetBytes) {
+      Iterator<Resource> iterator = resources.keySet().iterator();
+      while (iterator.hasNext() && getResidentBytes() > budgetBytes) {
+        Resource resource = iterator.next();
+        if (resource.lastDrawnFrame >= frame) {
+          break;
+        }
+        if (resource.evicted) {
+          continue;
+        }
+
+        final long remainingBytes = resource.evict();
+        if (remainingBytes < 0) {
+          continue;
+        }
+        addBytes(resource.kind, remainingBytes - resource.residentBytes);
+        resource.residentBytes = remainingBytes;
+        resource.evicted = true;
+        ++numEvicted;
+        ++numEvictions;
+      }
+
+      if (getResidentBytes() > budgetBytes && !overBudget) {
+        Log.w(TAG, "The resources drawn in a frame do not fit the GPU memory budget: "
+                + getStats());
+      }
+    }
+    overBudget = getResidentBytes() > budgetBytes;
+
+    ++frame;
+    reloadedBytesThisFrame = 0;
+  }
+
+  /** Returns a snapshot of the resident memory. May be called from any thread. */
+  public Stats getStats() {
+    final long buffers = bufferBytes;
+    final long textures = textureBytes;
+    return new Stats(budgetBytes, buffers + textures, buffers, textures, numResources,
+            numEvicted, numEvictions, numReloads);
+  }
+
+  private void addBytes(Kind kind, long bytes) {
+    if (kind == Kind.BUFFER) {
+      bufferBytes += bytes;
+    } else {
+      textureBytes += bytes;
+    }
+  }
+}
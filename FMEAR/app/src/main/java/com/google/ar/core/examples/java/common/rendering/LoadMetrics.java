@@ -0,0 +1,296 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The metrics of a single dataset load, by file and stage: wall and CPU time, bytes in and out,
+ * element counts, and the Java heap and native memory high-water marks. Stages are timed with a
+ * {@link Section}, which is also emitted as a systrace section, and the metrics of the same file
+ * and stage are added up, so a stage that runs once per material reports once per file.
+ *
+ * <p>At the end of the load the metrics are written as a JSON report and handed to the {@link
+ * Listener}, if any. Thread safe, but a section must end on the thread that began it.
+ */
+public class LoadMetrics {
+  private static final String TAG = LoadMetrics.class.getSimpleName();
+
+  /** Receives the metrics of every load, for collecting them in the field. */
+  public interface Listener {
+    /** Called on a background thread once the load is complete and the report is written. */
+    void loadMetricsReady(LoadMetrics metrics);
+  }
+
+  /** The metrics of one stage of one file. */
+  public static class Record {
+    public final String file;
+    public final String stage;
+    public long wallNanos;
+    // -1 if the stage ran on threads that were not measured, such as the texture decoder pool.
+    public long cpuNanos;
+    public long bytesIn;
+    public long bytesOut;
+    public long heapHighWaterBytes;
+    public long nativeHighWaterBytes;
+    public int numRuns;
+    public final Map<String, Long> counts = new LinkedHashMap<>();
+
+    Record(String file, String stage) {
+      this.file = file;
+      this.stage = stage;
+    }
+  }
+
+  /** A stage of a file in progress. Not thread safe. */
+  public class Section {
+    private final String file;
+    private final String stage;
+    private final long startNanos;
+    private final long startCpuNanos;
+    private final long[] memoryBytes;
+    private long bytesIn;
+    private long bytesOut;
+    private final Map<String, Long> counts = new LinkedHashMap<>();
+
+    private Section(String file, String stage) {
+      this.file = file;
+      this.stage = stage;
+      // Section names are limited to 127 characters, so only the stage is traced.
+      Trace.beginSection("fmear:" + stage);
+      this.memoryBytes = sampleMemory();
+      this.startNanos = System.nanoTime();
+      this.startCpuNanos = Debug.threadCpuTimeNanos();
+    }
+
+    public Section bytesIn(long bytes) {
+      bytesIn += bytes;
+      return this;
+    }
+
+    public Section bytesOut(long bytes) {
+      bytesOut += bytes;
+      return this;
+    }
+
+    public Section count(String name, long count) {
+      Long previous = counts.get(name);
+      counts.put(name, (previous == null) ? count : previous + count);
+      return this;
+    }
+
+    /** Ends the section and adds it to the metrics of its file and stage. */
+    public void end() {
+      final long wallNanos = System.nanoTime() - startNanos;
+      final long cpuNanos = Debug.threadCpuTimeNanos() - startCpuNanos;
+      Trace.endSection();
+      long[] endMemoryBytes = sampleMemory();
+      add(file, stage, wallNanos, cpuNanos, bytesIn, bytesOut, counts,
+              Math.max(memoryBytes[0], endMemoryBytes[0]),
+              Math.max(memoryBytes[1], endMemoryBytes[1]));
+    }
+  }
+
+  private final String datasetName;
+  private final long startTimeMs = SystemClock.elapsedRealtime();
+  private final Map<String, Record> records = new LinkedHashMap<>();
+  private long totalTimeMs = -1;
+  // The memory high-water marks of the whole load, sampled at the start and the end of every
+  // section.
+  private long heapHighWaterBytes = 0;
+  private long nativeHighWaterBytes = 0;
+  private File reportFile;
+
+  public LoadMetrics(String datasetName) {
+    this.datasetName = datasetName;
+  }
+
+  public String getDatasetName() {
+    return datasetName;
+  }
+
+  /** Sets the file the JSON report is written to at the end of the load, or null for none. */
+  public synchronized void setReportFile(File reportFile) {
+    this.reportFile = reportFile;
+  }
+
+  public synchronized File getReportFile() {
+    return reportFile;
+  }
+
+  /** Starts timing a stage of a file on the calling thread. */
+  public Section begin(String file, String stage) {
+    return new Section(file, stage);
+  }
+
+  /** Adds the metrics of a stage that was timed elsewhere, for example on a worker pool. */
+  public void add(String file, String stage, long wallNanos, long cpuNanos, long bytesIn,
+                  long bytesOut, Map<String, Long> counts) {
+    long[] memoryBytes = sampleMemory();
+    add(file, stage, wallNanos, cpuNanos, bytesIn, bytesOut, counts, memoryBytes[0],
+            memoryBytes[1]);
+  }
+
+  private synchronized void add(String file, String stage, long wallNanos, long cpuNanos,
+                                long bytesIn, long bytesOut, Map<String, Long> counts,
+                                long heapBytes, long nativeBytes) {
+    final String key = stage + '\n' + file;
+    Record record = records.get(key);
+    if (record == null) {
+      record = new Record(file, stage);
+      records.put(key, record);
+    }
+    record.wallNanos += wallNanos;
+    record.cpuNanos = (cpuNanos < 0 || record.cpuNanos < 0) ? -1 : record.cpuNanos + cpuNanos;
+    record.bytesIn += bytesIn;
+    record.bytesOut += bytesOut;
+    record.heapHighWaterBytes = Math.max(record.heapHighWaterBytes, heapBytes);
+    record.nativeHighWaterBytes = Math.max(record.nativeHighWaterBytes, nativeBytes);
+    ++record.numRuns;
+    if (counts != null) {
+      for (Map.Entry<String, Long> count : counts.entrySet()) {
+        Long previous = record.counts.get(count.getKey());
+        record.counts.put(count.getKey(),
+                (previous == null) ? count.getValue() : previous + count.getValue());
+      }
+    }
+  }
+
+  /** Returns a copy of the records, in the order they were first added. */
+  public synchronized List<Record> getRecords() {
+    return new ArrayList<>(records.values());
+  }
+
+  public synchronized long getHeapHighWaterBytes() {
+    return heapHighWaterBytes;
+  }
+
+  public synchronized long getNativeHighWaterBytes() {
+    return nativeHighWaterBytes;
+  }
+
+  /** The time from the creation of the metrics to {@link #finish}, or -1 if not finished. */
+  public synchronized long getTotalTimeMs() {
+    return totalTimeMs;
+  }
+
+  /**
+   * Ends the load, writes the report and notifies the listener. The report is written on a
+   * background thread, since the load ends on the GL thread.
+   */
+  public void finish(final Listener listener) {
+    synchronized (this) {
+      totalTimeMs = SystemClock.elapsedRealtime() - startTimeMs;
+    }
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        File file = getReportFile();
+        if (file != null) {
+          try {
+            writeReport(file);
+            Log.i(TAG, "Wrote the load metrics of " + datasetName + " to " + file);
+          } catch (IOException e) {
+            Log.e(TAG, "Failed to write the load metrics to " + file, e);
+          }
+        }
+        if (listener != null) {
+          listener.loadMetricsReady(LoadMetrics.this);
+        }
+      }
+    }, "fmear-metrics").start();
+  }
+
+  /** Writes the metrics as JSON. */
+  public void writeReport(File file) throws IOException {
+    try (Writer writer = new OutputStreamWriter(
+            new FileOutputStream(file), StandardCharsets.UTF_8)) {
+      writer.write(toJson());
+    }
+  }
+
+  /** Returns the metrics as a JSON object. */
+  public synchronized String toJson() {
+    StringBuilder json = new StringBuilder();
+    json.append("{\n  \"dataset\": ");
+    appendString(json, datasetName);
+    json.append(",\n  \"totalTimeMs\": ").append(totalTimeMs);
+    json.append(",\n  \"heapHighWaterBytes\": ").append(heapHighWaterBytes);
+    json.append(",\n  \"nativeHighWaterBytes\": ").append(nativeHighWaterBytes);
+    json.append(",\n  \"records\": [");
+    boolean first = true;
+    for (Record record : records.values()) {
+      json.append(first ? "\n" : ",\n");
+      first = false;
+      json.append("    {\"file\": ");
+      appendString(json, record.file);
+      json.append(", \"stage\": ");
+      appendString(json, record.stage);
+      json.append(", \"runs\": ").append(record.numRuns);
+      json.append(", \"wallMs\": ").append(record.wallNanos / 1000000.0);
+      if (record.cpuNanos >= 0) {
+        json.append(", \"cpuMs\": ").append(record.cpuNanos / 1000000.0);
+      }
+      json.append(", \"bytesIn\": ").append(record.bytesIn);
+      json.append(", \"bytesOut\": ").append(record.bytesOut);
+      json.append(", \"heapHighWaterBytes\": ").append(record.heapHighWaterBytes);
+      json.append(", \"nativeHighWaterBytes\": ").append(record.nativeHighWaterBytes);
+      json.append(", \"counts\": {");
+      boolean firstCount = true;
+      for (Map.Entry<String, Long> count : record.counts.entrySet()) {
+        json.append(firstCount ? "" : ", ");
+        firstCount = false;
+        appendString(json, count.getKey());
+        json.append(": ").append(count.getValue());
+      }
+      json.append("}}");
+    }
+    json.append(first ? "]\n}\n" : "\n  ]\n}\n");
+    return json.toString();
+  }
+
+  // Returns the used Java heap and native heap bytes, and updates the high-water marks of the
+  // load. Direct buffers and bitmaps are allocated outside the Java heap on recent versions, so
+  // the native heap stands in for the direct memory.
+  private long[] sampleMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    final long heapBytes = runtime.totalMemory() - runtime.freeMemory();
+    final long nativeBytes = Debug.getNativeHeapAllocatedSize();
+    synchronized (this) {
+      heapHighWaterBytes = Math.max(heapHighWaterBytes, heapBytes);
+      nativeHighWaterBytes = Math.max(nativeHighWaterBytes, nativeBytes);
+    }
+    return new long[] {heapBytes, nativeBytes};
+  }
+
+  private static void appendString(StringBuilder json, String value) {
+    if (value == null) {
+      json.append("null");
+      return;
+    }
+    json.append('"');
+    for (int i = 0; i < value.length(); ++i) {
+      final char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        json.append('\\').append(c);
+      } else if (c < 0x20) {
+        json.append(String.format("\\u%04x", (int) c));
+      } else {
+        json.append(c);
+      }
+    }
+    json.append('"');
+  }
+}
@@ -0,0 +1,205 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The stages that a dataset load is made of. Every stage has its own worker pool and a bounded
+ * queue; submitting to a full stage blocks, so a fast stage cannot run ahead of a slow one and
+ * pile up intermediate results in memory. A worker of one stage hands its result to the next
+ * stage, so different files are in different stages at the same time.
+ *
+ * <p>Every stage counts its items, the time its workers were busy and the bytes it produced, for
+ * a throughput report at the end of the load. Stages that are not run on a {@link Stage} pool,
+ * such as the texture decoding and the GPU upload on the GL thread, report through a plain {@link
+ * StageStats}.
+ */
+public class LoadPipeline {
+
+  /** The work done by a stage on a single item. */
+  public abstract static class Worker<I, O> {
+    public abstract O process(I item) throws Exception;
+
+    /** The bytes the item was processed into, or read from, for the throughput report. */
+    public long bytesOf(I item, O result) {
+      return 0;
+    }
+  }
+
+  /**
+   * An item that carries its own work, for a stage that is shared by loads that each have their
+   * own state, such as the tiles of a tileset that load at the same time.
+   */
+  public abstract static class Task<O> {
+    public abstract O run() throws Exception;
+
+    /** The bytes the task produced, or read, for the throughput report. */
+    public long bytesOf(O result) {
+      return 0;
+    }
+  }
+
+  /** The worker of a stage of {@link Task}s, which runs every task it is given. */
+  public static class TaskWorker<O> extends Worker<Task<O>, O> {
+    @Override
+    public O process(Task<O> task) throws Exception {
+      return task.run();
+    }
+
+    @Override
+    public long bytesOf(Task<O> task, O result) {
+      return task.bytesOf(result);
+    }
+  }
+
+  /** The throughput counters of a stage. Thread safe. */
+  public static class StageStats {
+    private final String name;
+    private final int numWorkers;
+    private final AtomicLong numItems = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final AtomicLong numBytes = new AtomicLong();
+    private final AtomicLong firstStartMs = new AtomicLong(-1);
+    private final AtomicLong lastEndMs = new AtomicLong(-1);
+
+    public StageStats(String name, int numWorkers) {
+      this.name = name;
+      this.numWorkers = numWorkers;
+    }
+
+    /** Records an item that just finished, after the given busy time, with its bytes. */
+    public void record(long itemBusyNanos, long bytes) {
+      final long endMs = SystemClock.elapsedRealtime();
+      firstStartMs.compareAndSet(-1, endMs - itemBusyNanos / 1000000);
+      lastEndMs.set(endMs);
+      numItems.incrementAndGet();
+      busyNanos.addAndGet(itemBusyNanos);
+      numBytes.addAndGet(bytes);
+    }
+
+    public long getNumItems() {
+      return numItems.get();
+    }
+
+    public long getNumBytes() {
+      return numBytes.get();
+    }
+
+    /** The time from the start of the first item to the end of the last one. */
+    public long getWallTimeMs() {
+      return (firstStartMs.get() < 0) ? 0 : Math.max(1, lastEndMs.get() - firstStartMs.get());
+    }
+
+    public long getBusyTimeMs() {
+      return busyNanos.get() / 1000000;
+    }
+
+    @Override
+    public String toString() {
+      final long wallTimeMs = getWallTimeMs();
+      if (wallTimeMs == 0) {
+        return name + ": idle";
+      }
+      // Utilization is the busy time over the time all the workers were available.
+      return name + ": " + numItems.get() + " items in " + wallTimeMs + " ms ("
+              + (numItems.get() * 1000 / wallTimeMs) + " items/s, "
+              + (numBytes.get() / 1024 / wallTimeMs) + " MB/s), "
+              + (100 * getBusyTimeMs() / (wallTimeMs * numWorkers)) + "% busy on "
+              + numWorkers + " workers";
+    }
+  }
+
+  /** A stage with its own worker threads and a bounded queue. */
+  public static class Stage<I, O> {
+    private final Worker<I, O> worker;
+    private final ThreadPoolExecutor executor;
+    // Bounds the queued and running items, so that submit blocks instead of being rejected.
+    private final Semaphore slots;
+    private final StageStats stats;
+
+    /**
+     * @param name The name of the stage, also used for the worker threads.
+     * @param numWorkers The number of worker threads.
+     * @param queueCapacity The number of items that may wait for a worker.
+     */
+    public Stage(final String name, int numWorkers, int queueCapacity, Worker<I, O> worker) {
+      this.worker = worker;
+      this.slots = new Semaphore(numWorkers + queueCapacity);
+      this.stats = new StageStats(name, numWorkers);
+      this.executor = new ThreadPoolExecutor(numWorkers, numWorkers, 0L, TimeUnit.MILLISECONDS,
+              new ArrayBlockingQueue<Runnable>(numWorkers + queueCapacity), new ThreadFactory() {
+                private final AtomicInteger numThreads = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                  Thread thread = new Thread(runnable, name + "-" + numThreads.incrementAndGet());
+                  thread.setPriority(Thread.NORM_PRIORITY - 1);
+                  return thread;
+                }
+              });
+    }
+
+    /** Queues the item, waiting while the stage is full, and returns a future for its result. */
+    public Future<O> submit(final I item) throws InterruptedException {
+      slots.acquire();
+      return submitAcquired(item);
+    }
+
+    /**
+     * Queues the item if the stage has room, for a caller that must not wait, such as the GL
+     * thread.
+     *
+     * @return a future for its result, or null if the stage is full.
+     */
+    public Future<O> trySubmit(final I item) {
+      if (!slots.tryAcquire()) {
+        return null;
+      }
+      return submitAcquired(item);
+    }
+
+    private Future<O> submitAcquired(final I item) {
+      try {
+        return executor.submit(new Callable<O>() {
+          @Override
+          public O call() throws Exception {
+            try {
+              final long startNanos = System.nanoTime();
+              O result = worker.process(item);
+              stats.record(System.nanoTime() - startNanos, worker.bytesOf(item, result));
+              return result;
+            } finally {
+              slots.release();
+            }
+          }
+        });
+      } catch (RuntimeException e) {
+        slots.release();
+        throw e;
+      }
+    }
+
+    public StageStats getStats() {
+      return stats;
+    }
+
+    /** Lets the queued items finish and stops the worker threads. */
+    public void shutdown() {
+      executor.shutdown();
+    }
+
+    /** Drops the queued items and interrupts the running ones. */
+    public void shutdownNow() {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,352 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A pure Java vertex and index buffer codec in the style of the meshoptimizer codecs. It has no
+ * Android dependencies, so that the dataset pipeline can encode with it and it can be tested on
+ * the JVM.
+ *
+ * <p>Vertices are quantized fixed-size records, and are encoded in blocks of up to 256 vertices,
+ * one byte of the record at a time: the byte is delta coded against the same byte of the previous
+ * vertex, zigzag coded so that small negative deltas are small, and then every group of 16 deltas
+ * is packed with 0, 2, 4 or 8 bits per delta, whichever is smallest. Deltas that do not fit the 2
+ * or 4 bits are escaped and follow the group as whole bytes. Vertices that are close to the
+ * previous one, which is what vertices in first-use order of a mesh are, mostly take 2 or 4 bits
+ * per byte.
+ *
+ * <p>Indices are coded as the distance back from the next new vertex, zigzag coded and written as
+ * variable-length integers. With the vertices in first-use order, a new vertex codes as 0 and a
+ * recently used one as a small number, so most indices take one byte.
+ *
+ * <p>Decoding only makes byte-sized passes over the data, without any per-bit loop.
+ */
+public final class MeshCodec {
+
+  private static final int VERTEX_HEADER = 0xa1;
+  private static final int INDEX_HEADER = 0xb1;
+
+  // Vertices are coded in blocks of at most this many bytes and vertices, and deltas in groups.
+  private static final int BLOCK_MAX_BYTES = 8192;
+  private static final int BLOCK_MAX_VERTICES = 256;
+  private static final int GROUP_SIZE = 16;
+
+  // The group modes: all zero, 2 bits, 4 bits, or whole bytes.
+  private static final int MODE_ZERO = 0;
+  private static final int MODE_2_BITS = 1;
+  private static final int MODE_4_BITS = 2;
+  private static final int MODE_BYTES = 3;
+
+  private MeshCodec() {}
+
+  /** The number of vertices of a block, a multiple of the group size. */
+  static int blockVertices(int stride) {
+    final int vertices = Math.min(BLOCK_MAX_BYTES / stride, BLOCK_MAX_VERTICES);
+    return Math.max(GROUP_SIZE, vertices & ~(GROUP_SIZE - 1));
+  }
+
+  /** An upper bound of the encoded size of the vertices. */
+  public static int maxEncodedVerticesSize(int count, int stride) {
+    final int numGroups = (blockVertices(stride) + GROUP_SIZE - 1) / GROUP_SIZE;
+    final int numBlocks = (count + blockVertices(stride) - 1) / blockVertices(stride);
+    // Every group takes at most a header and 16 bytes.
+    return 1 + numBlocks * stride * ((numGroups + 3) / 4 + numGroups * GROUP_SIZE);
+  }
+
+  /**
+   * Encodes count vertex records of stride bytes.
+   *
+   * @return the encoded vertices, exactly sized.
+   */
+  public static byte[] encodeVertices(byte[] vertices, int count, int stride) {
+    if (stride <= 0 || stride > 256 || vertices.length < count * stride) {
+      throw new IllegalArgumentException("Invalid vertex buffer: " + count + " x " + stride);
+    }
+    byte[] output = new byte[maxEncodedVerticesSize(count, stride)];
+    int position = 0;
+    output[position++] = (byte) VERTEX_HEADER;
+
+    final int blockVertices = blockVertices(stride);
+    byte[] previous = new byte[stride];
+    int[] deltas = new int[blockVertices];
+    for (int start = 0; start < count; start += blockVertices) {
+      final int numVertices = Math.min(blockVertices, count - start);
+      final int numGroups = (numVertices + GROUP_SIZE - 1) / GROUP_SIZE;
+      for (int k = 0; k < stride; ++k) {
+        int last = previous[k];
+        for (int i = 0; i < numVertices; ++i) {
+          final int value = vertices[(start + i) * stride + k];
+          deltas[i] = zigzag8(value - last);
+          last = value;
+        }
+        Arrays.fill(deltas, numVertices, numGroups * GROUP_SIZE, 0);
+        position = encodeBytePlane(deltas, numGroups, output, position);
+      }
+      System.arraycopy(vertices, (start + numVertices - 1) * stride, previous, 0, stride);
+    }
+    return Arrays.copyOf(output, position);
+  }
+
+  // Writes the group modes of the deltas of one byte of the block, then the groups.
+  private static int encodeBytePlane(int[] deltas, int numGroups, byte[] output, int position) {
+    final int headerPosition = position;
+    position += (numGroups + 3) / 4;
+    Arrays.fill(output, headerPosition, position, (byte) 0);
+
+    for (int group = 0; group < numGroups; ++group) {
+      final int offset = group * GROUP_SIZE;
+      int maxDelta = 0;
+      int numOver2Bits = 0;
+      int numOver4Bits = 0;
+      for (int i = offset; i < offset + GROUP_SIZE; ++i) {
+        maxDelta = Math.max(maxDelta, deltas[i]);
+        numOver2Bits += (deltas[i] >= 3) ? 1 : 0;
+        numOver4Bits += (deltas[i] >= 15) ? 1 : 0;
+      }
+
+      int mode;
+      if (maxDelta == 0) {
+        mode = MODE_ZERO;
+      } else if (4 + numOver2Bits <= 8 + numOver4Bits && 4 + numOver2Bits < GROUP_SIZE) {
+        mode = MODE_2_BITS;
+      } else if (8 + numOver4Bits < GROUP_SIZE) {
+        mode = MODE_4_BITS;
+      } else {
+        mode = MODE_BYTES;
+      }
+      output[headerPosition + group / 4] |= (byte) (mode << ((group % 4) * 2));
+
+      switch (mode) {
+        case MODE_2_BITS:
+          position = encodeGroup(deltas, offset, 2, output, position);
+          break;
+        case MODE_4_BITS:
+          position = encodeGroup(deltas, offset, 4, output, position);
+          break;
+        case MODE_BYTES:
+          for (int i = offset; i < offset + GROUP_SIZE; ++i) {
+            output[position++] = (byte) deltas[i];
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    return position;
+  }
+
+  // Packs the group with the given number of bits per delta, most significant bits first. Deltas
+  // that do not fit are written as the escape value, all ones, and follow in whole bytes.
+  private static int encodeGroup(int[] deltas, int offset, int bits, byte[] output, int position) {
+    final int escape = (1 << bits) - 1;
+    final int perByte = 8 / bits;
+    for (int i = 0; i < GROUP_SIZE; i += perByte) {
+      int packed = 0;
+      for (int j = 0; j < perByte; ++j) {
+        packed = (packed << bits) | Math.min(deltas[offset + i + j], escape);
+      }
+      output[position++] = (byte) packed;
+    }
+    for (int i = offset; i < offset + GROUP_SIZE; ++i) {
+      if (deltas[i] >= escape) {
+        output[position++] = (byte) deltas[i];
+      }
+    }
+    return position;
+  }
+
+  /**
+   * Decodes count vertex records of stride bytes into vertices.
+   *
+   * @throws IOException if the data is not encoded vertices or is truncated.
+   */
+  public static void decodeVertices(byte[] input, int offset, int length, byte[] vertices,
+                                    int count, int stride) throws IOException {
+    if (stride <= 0 || stride > 256 || vertices.length < count * stride) {
+      throw new IllegalArgumentException("Invalid vertex buffer: " + count + " x " + stride);
+    }
+    final int end = offset + length;
+    if (length < 1 || (input[offset] & 0xff) != VERTEX_HEADER) {
+      throw new IOException("Not an encoded vertex buffer");
+    }
+    int position = offset + 1;
+
+    final int blockVertices = blockVertices(stride);
+    byte[] deltas = new byte[blockVertices];
+    try {
+      for (int start = 0; start < count; start += blockVertices) {
+        final int numVertices = Math.min(blockVertices, count - start);
+        final int numGroups = (numVertices + GROUP_SIZE - 1) / GROUP_SIZE;
+        for (int k = 0; k < stride; ++k) {
+          position = decodeBytePlane(input, position, end, numGroups, deltas);
+
+          // The deltas are added up along the block, starting from the previous vertex.
+          int value = (start == 0) ? 0 : vertices[(start - 1) * stride + k];
+          int vertexOffset = start * stride + k;
+          for (int i = 0; i < numVertices; ++i) {
+            final int zigzag = deltas[i] & 0xff;
+            value += (zigzag >>> 1) ^ -(zigzag & 1);
+            vertices[vertexOffset] = (byte) value;
+            vertexOffset += stride;
+          }
+        }
+      }
+    } catch (ArrayIndexOutOfBoundsException e) {
+      throw new IOException("Truncated vertex buffer");
+    }
+    if (position > end) {
+      throw new IOException("Truncated vertex buffer");
+    }
+  }
+
+  private static int decodeBytePlane(byte[] input, int position, int end, int numGroups,
+                                     byte[] deltas) throws IOException {
+    final int headerPosition = position;
+    position += (numGroups + 3) / 4;
+    for (int group = 0; group < numGroups; ++group) {
+      if (position > end) {
+        throw new IOException("Truncated vertex buffer");
+      }
+      final int mode = (input[headerPosition + group / 4] >>> ((group % 4) * 2)) & 3;
+      final int offset = group * GROUP_SIZE;
+      switch (mode) {
+        case MODE_ZERO:
+          Arrays.fill(deltas, offset, offset + GROUP_SIZE, (byte) 0);
+          break;
+        case MODE_2_BITS:
+          position = decodeGroup2(input, position, deltas, offset);
+          break;
+        case MODE_4_BITS:
+          position = decodeGroup4(input, position, deltas, offset);
+          break;
+        default:
+          System.arraycopy(input, position, deltas, offset, GROUP_SIZE);
+          position += GROUP_SIZE;
+          break;
+      }
+    }
+    return position;
+  }
+
+  private static int decodeGroup2(byte[] input, int position, byte[] deltas, int offset) {
+    for (int i = 0; i < GROUP_SIZE; i += 4) {
+      final int packed = input[position++];
+      deltas[offset + i] = (byte) ((packed >>> 6) & 3);
+      deltas[offset + i + 1] = (byte) ((packed >>> 4) & 3);
+      deltas[offset + i + 2] = (byte) ((packed >>> 2) & 3);
+      deltas[offset + i + 3] = (byte) (packed & 3);
+    }
+    for (int i = offset; i < offset + GROUP_SIZE; ++i) {
+      if (deltas[i] == 3) {
+        deltas[i] = input[position++];
+      }
+    }
+    return position;
+  }
+
+  private static int decodeGroup4(byte[] input, int position, byte[] deltas, int offset) {
+    for (int i = 0; i < GROUP_SIZE; i += 2) {
+      final int packed = input[position++];
+      deltas[offset + i] = (byte) ((packed >>> 4) & 15);
+      deltas[offset + i + 1] = (byte) (packed & 15);
+    }
+    for (int i = offset; i < offset + GROUP_SIZE; ++i) {
+      if (deltas[i] == 15) {
+        deltas[i] = input[position++];
+      }
+    }
+    return position;
+  }
+
+  /**
+   * Encodes indices, which are best in first-use order of their vertices.
+   *
+   * @return the encoded indices, exactly sized.
+   */
+  public static byte[] encodeIndices(int[] indices, int count) {
+    // A variable-length integer takes at most 5 bytes.
+    byte[] output = new byte[1 + count * 5];
+    int position = 0;
+    output[position++] = (byte) INDEX_HEADER;
+    int next = 0;
+    for (int i = 0; i < count; ++i) {
+      final int index = indices[i];
+      final int distance = next - index;
+      int zigzag = (distance << 1) ^ (distance >> 31);
+      while ((zigzag & ~0x7f) != 0) {
+        output[position++] = (byte) ((zigzag & 0x7f) | 0x80);
+        zigzag >>>= 7;
+      }
+      output[position++] = (byte) zigzag;
+      if (index >= next) {
+        next = index + 1;
+      }
+    }
+    return Arrays.copyOf(output, position);
+  }
+
+  /**
+   * Decodes count indices.
+   *
+   * @throws IOException if the data is not encoded indices, is truncated or has an index outside
+   *     of [0, numVertices).
+   */
+  public static void decodeIndices(byte[] input, int offset, int length, int[] indices, int count,
+                                   int numVertices) throws IOException {
+    final int end = offset + length;
+    if (length < 1 || (input[offset] & 0xff) != INDEX_HEADER) {
+      throw new IOException("Not an encoded index buffer");
+    }
+    int position = offset + 1;
+    int next = 0;
+    for (int i = 0; i < count; ++i) {
+      int zigzag = 0;
+      int shift = 0;
+      int b;
+      do {
+        if (position >= end || shift > 28) {
+          throw new IOException("Truncated index buffer");
+        }
+        b = input[position++];
+        zigzag |= (b & 0x7f) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+
+      final int index = next - ((zigzag >>> 1) ^ -(zigzag & 1));
+      if (index < 0 || index >= numVertices) {
+        throw new IOException("Index " + index + " is out of range");
+      }
+      indices[i] = index;
+      if (index >= next) {
+        next = index + 1;
+      }
+    }
+  }
+
+  /**
+   * Reorders the vertices in first-use order of the indices, and drops unused vertices, which is
+   * what the codecs compress best. The indices are remapped in place.
+   *
+   * @return the new index of every old vertex, or -1 for unused vertices; the number of vertices
+   *     that are left is one more than the largest value.
+   */
+  public static int[] reorderForFetch(int[] indices, int count, int numVertices) {
+    int[] remap = new int[numVertices];
+    Arrays.fill(remap, -1);
+    int next = 0;
+    for (int i = 0; i < count; ++i) {
+      final int index = indices[i];
+      if (remap[index] < 0) {
+        remap[index] = next++;
+      }
+      indices[i] = remap[index];
+    }
+    return remap;
+  }
+
+  private static int zigzag8(int delta) {
+    final int signed = (byte) delta;
+    return ((signed << 1) ^ (signed >> 7)) & 0xff;
+  }
+}
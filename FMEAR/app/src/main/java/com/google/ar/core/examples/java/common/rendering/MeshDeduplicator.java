@@ -0,0 +1,265 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds meshes with the same geometry at different positions, such as the street furniture, trees
+ * and light poles that FME exports as hundreds of copies, so that the geometry is stored once and
+ * the copies are drawn as instances of it.
+ *
+ * <p>A mesh is hashed over its positions relative to the minimum corner of its bounds, quantized
+ * to the position tolerance, together with its normals, texture coordinates, indices and a key,
+ * such as its material. Meshes with the same hash are compared in full, so different meshes are
+ * never taken for copies; copies whose positions round to different sides of a step stay apart.
+ *
+ * <p>Also lays out a batch of instances for devices without instanced draws: the mesh repeated
+ * once per instance, with the index of the instance in the batch as an extra attribute that picks
+ * its offset from a uniform array.
+ *
+ * <p>Not thread-safe. Pure Java, so that it can be tested on the JVM.
+ */
+public class MeshDeduplicator {
+
+  /** The most instances in a batch, the size of the offset array of the vertex shader. */
+  public static final int MAX_BATCH_INSTANCES = 32;
+
+  // Normals and texture coordinates are not translated, but may be rounded differently when
+  // they were computed from the positions.
+  private static final float NORMAL_STEP = 1.0f / 1024;
+  private static final float TEX_COORD_STEP = 1.0f / 65536;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private static class Mesh {
+    final String key;
+    final FloatBuffer vertices;
+    final FloatBuffer texCoords;
+    final FloatBuffer normals;
+    final IntBuffer indices;
+    final float[] origin = new float[3];
+
+    Mesh(String key, FloatBuffer vertices, FloatBuffer texCoords, FloatBuffer normals,
+         IntBuffer indices) {
+      this.key = key;
+      this.vertices = vertices;
+      this.texCoords = texCoords;
+      this.normals = normals;
+      this.indices = indices;
+    }
+  }
+
+  private final float positionStep;
+  private final List<Mesh> meshes = new ArrayList<>();
+  // The ids of the first mesh of every distinct geometry, by hash.
+  private final Map<Long, List<Integer>> firstIdsByHash = new HashMap<>();
+  private int numUnique = 0;
+
+  /**
+   * @param positionTolerance The distance below which positions are the same, see {@link
+   *     #positionToleranceFor}.
+   */
+  public MeshDeduplicator(float positionTolerance) {
+    this.positionStep = positionTolerance;
+  }
+
+  /**
+   * The position tolerance for a dataset: a millionth of its size, but no less than the rounding
+   * of its coordinates, since copies far from the origin differ by that much.
+   *
+   * @param bounds The bounds of the dataset: minimum x, y, z, then maximum x, y, z.
+   */
+  public static float positionToleranceFor(float[] bounds) {
+    float maxExtent = 0.0f;
+    float maxCoordinate = 0.0f;
+    for (int axis = 0; axis < 3; ++axis) {
+      maxExtent = Math.max(maxExtent, bounds[3 + axis] - bounds[axis]);
+      maxCoordinate = Math.max(maxCoordinate,
+              Math.max(Math.abs(bounds[axis]), Math.abs(bounds[3 + axis])));
+    }
+    return Math.max(Math.max(1e-6f * maxExtent, 4.0f * Math.ulp(maxCoordinate)), Float.MIN_NORMAL);
+  }
+
+  /**
+   * Adds a mesh. The buffers are read from 0 to their limits, and must not change while the
+   * deduplicator is in use.
+   *
+   * @param key Meshes with different keys are never copies of each other.
+   * @return the id of the first added mesh with the same key and geometry, or the id of this mesh
+   *     if there is none. Ids count the added meshes from 0.
+   */
+  public int add(String key, FloatBuffer vertices, FloatBuffer texCoords, FloatBuffer normals,
+                 IntBuffer indices) {
+    final int id = meshes.size();
+    Mesh mesh = new Mesh(key, vertices, texCoords, normals, indices);
+    computeOrigin(mesh);
+    meshes.add(mesh);
+
+    final long hash = hash(mesh);
+    List<Integer> firstIds = firstIdsByHash.get(hash);
+    if (firstIds == null) {
+      firstIds = new ArrayList<>(1);
+      firstIdsByHash.put(hash, firstIds);
+    }
+    for (int i = 0; i < firstIds.size(); ++i) {
+      if (isCopy(meshes.get(firstIds.get(i)), mesh)) {
+        return firstIds.get(i);
+      }
+    }
+    firstIds.add(id);
+    ++numUnique;
+    return id;
+  }
+
+  /** Returns the translation from the first mesh to the second, in offset[0] to offset[2]. */
+  public void getOffset(int fromId, int toId, float[] offset) {
+    final float[] from = meshes.get(fromId).origin;
+    final float[] to = meshes.get(toId).origin;
+    for (int axis = 0; axis < 3; ++axis) {
+      offset[axis] = to[axis] - from[axis];
+    }
+  }
+
+  public int getNumMeshes() {
+    return meshes.size();
+  }
+
+  /** The number of distinct geometries among the added meshes. */
+  public int getNumUnique() {
+    return numUnique;
+  }
+
+  // The minimum corner of the bounds of the positions.
+  private static void computeOrigin(Mesh mesh) {
+    final float[] origin = mesh.origin;
+    origin[0] = origin[1] = origin[2] = Float.POSITIVE_INFINITY;
+    final int numFloats = mesh.vertices.limit() / 3 * 3;
+    for (int i = 0; i < numFloats; ++i) {
+      origin[i % 3] = Math.min(origin[i % 3], mesh.vertices.get(i));
+    }
+    if (numFloats == 0) {
+      origin[0] = origin[1] = origin[2] = 0.0f;
+    }
+  }
+
+  private long quantizePosition(Mesh mesh, int i) {
+    return Math.round((double) (mesh.vertices.get(i) - mesh.origin[i % 3]) / positionStep);
+  }
+
+  private static long quantize(FloatBuffer values, int i, float step) {
+    return Math.round((double) values.get(i) / step);
+  }
+
+  private long hash(Mesh mesh) {
+    long hash = mesh.key.hashCode();
+    hash = (hash ^ mesh.vertices.limit()) * FNV_PRIME;
+    hash = (hash ^ mesh.texCoords.limit()) * FNV_PRIME;
+    hash = (hash ^ mesh.normals.limit()) * FNV_PRIME;
+    hash = (hash ^ mesh.indices.limit()) * FNV_PRIME;
+    for (int i = 0; i < mesh.vertices.limit(); ++i) {
+      hash = (hash ^ quantizePosition(mesh, i)) * FNV_PRIME;
+    }
+    for (int i = 0; i < mesh.texCoords.limit(); ++i) {
+      hash = (hash ^ quantize(mesh.texCoords, i, TEX_COORD_STEP)) * FNV_PRIME;
+    }
+    for (int i = 0; i < mesh.normals.limit(); ++i) {
+      hash = (hash ^ quantize(mesh.normals, i, NORMAL_STEP)) * FNV_PRIME;
+    }
+    for (int i = 0; i < mesh.indices.limit(); ++i) {
+      hash = (hash ^ mesh.indices.get(i)) * FNV_PRIME;
+    }
+    return hash;
+  }
+
+  private boolean isCopy(Mesh first, Mesh mesh) {
+    if (!first.key.equals(mesh.key) || first.vertices.limit() != mesh.vertices.limit()
+            || first.texCoords.limit() != mesh.texCoords.limit()
+            || first.normals.limit() != mesh.normals.limit()
+            || first.indices.limit() != mesh.indices.limit()) {
+      return false;
+    }
+    for (int i = 0; i < mesh.indices.limit(); ++i) {
+      if (first.indices.get(i) != mesh.indices.get(i)) {
+        return false;
+      }
+    }
+    for (int i = 0; i < mesh.vertices.limit(); ++i) {
+      if (quantizePosition(first, i) != quantizePosition(mesh, i)) {
+        return false;
+      }
+    }
+    for (int i = 0; i < mesh.texCoords.limit(); ++i) {
+      if (quantize(first.texCoords, i, TEX_COORD_STEP)
+              != quantize(mesh.texCoords, i, TEX_COORD_STEP)) {
+        return false;
+      }
+    }
+    for (int i = 0; i < mesh.normals.limit(); ++i) {
+      if (quantize(first.normals, i, NORMAL_STEP) != quantize(mesh.normals, i, NORMAL_STEP)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** The number of instances in a batch of a mesh with this many instances. */
+  public static int batchSize(int numInstances) {
+    return Math.min(numInstances, MAX_BATCH_INSTANCES);
+  }
+
+  /**
+   * Lays out the vertices of a batch of instances, from vertex data in the {@link ChunkBlob}
+   * layout: the positions, texture coordinates and normals of every instance in turn, then the
+   * index of the instance for every vertex, as a float.
+   *
+   * @return direct native-order bytes, with the positions, texture coordinates, normals and
+   *     instance indices at the offsets of {@code numVertexFloats}, {@code numTexCoordFloats} and
+   *     {@code numNormalFloats} times the batch size.
+   */
+  public static ByteBuffer batchVertices(ByteBuffer vertexData, int numVertexFloats,
+                                         int numTexCoordFloats, int numNormalFloats,
+                                         int batchSize) {
+    final int numVertices = numVertexFloats / 3;
+    final int numFloats = numVertexFloats + numTexCoordFloats + numNormalFloats + numVertices;
+    ByteBuffer batch = ByteBuffer.allocateDirect(4 * numFloats * batchSize)
+            .order(ByteOrder.nativeOrder());
+    int offset = 0;
+    for (int numAttributeFloats : new int[] {numVertexFloats, numTexCoordFloats, numNormalFloats}) {
+      for (int instance = 0; instance < batchSize; ++instance) {
+        for (int i = 0; i < numAttributeFloats; ++i) {
+          batch.putFloat(vertexData.getFloat(4 * (offset + i)));
+        }
+      }
+      offset += numAttributeFloats;
+    }
+    for (int instance = 0; instance < batchSize; ++instance) {
+      for (int i = 0; i < numVertices; ++i) {
+        batch.putFloat(instance);
+      }
+    }
+    batch.flip();
+    return batch;
+  }
+
+  /**
+   * Lays out the indices of a batch of instances, from native-order int indices: the indices of
+   * every instance in turn, offset to the vertices of the instance.
+   */
+  public static ByteBuffer batchIndices(ByteBuffer indexData, int numIndices, int numVertices,
+                                        int batchSize) {
+    ByteBuffer batch = ByteBuffer.allocateDirect(4 * numIndices * batchSize)
+            .order(ByteOrder.nativeOrder());
+    for (int instance = 0; instance < batchSize; ++instance) {
+      for (int i = 0; i < numIndices; ++i) {
+        batch.putInt(indexData.getInt(4 * i) + instance * numVertices);
+      }
+    }
+    batch.flip();
+    return batch;
+  }
+}
@@ -0,0 +1,148 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.opengl.Matrix;
+
+/**
+ * The model matrix of the dataset: the anchor pose, times the orientation made of the user's
+ * translation, rotation and scale and of the re-centring on the dataset bounds. Every input has a
+ * dirty flag, and {@link #update} only recomputes what changed: the orientation when the user
+ * moved the model or the bounds changed, and the product when either side changed. Nothing is
+ * computed on frames where the anchor and the gestures are unchanged.
+ */
+public class ModelTransform {
+
+  private static final int DIRTY_ANCHOR = 1;
+  private static final int DIRTY_TRANSLATION = 1 << 1;
+  private static final int DIRTY_SCALE = 1 << 2;
+  private static final int DIRTY_ROTATION = 1 << 3;
+  private static final int DIRTY_BOUNDS = 1 << 4;
+  private static final int DIRTY_ORIENTATION =
+          DIRTY_TRANSLATION | DIRTY_SCALE | DIRTY_ROTATION | DIRTY_BOUNDS;
+
+  // The model is scaled so that its largest side is this long, in meters, at a scale of 1.
+  private static final float BASE_SIZE = 0.25f;
+
+  private final float[] anchorMatrix = new float[16];
+  private final float[] translation = new float[3];
+  private float scale = 1.0f;
+  private float rotation = 0.0f;
+  private float centerX;
+  private float centerY;
+  private float minZ;
+  private float maxSize = 1.0f;
+
+  private final float[] orientationMatrix = new float[16];
+  private final float[] modelMatrix = new float[16];
+  private int dirtyFlags = DIRTY_ANCHOR | DIRTY_ORIENTATION;
+  private int version = 0;
+
+  public ModelTransform() {
+    Matrix.setIdentityM(anchorMatrix, 0);
+    Matrix.setIdentityM(orientationMatrix, 0);
+    Matrix.setIdentityM(modelMatrix, 0);
+  }
+
+  /** Sets the model-to-world matrix of the anchor, in column-major order. */
+  public void setAnchorMatrix(float[] anchorMatrix) {
+    for (int i = 0; i < 16; ++i) {
+      if (this.anchorMatrix[i] != anchorMatrix[i]) {
+        System.arraycopy(anchorMatrix, 0, this.anchorMatrix, 0, 16);
+        dirtyFlags |= DIRTY_ANCHOR;
+        return;
+      }
+    }
+  }
+
+  /** Sets the offset of the model from the anchor. */
+  public void setTranslation(float x, float y, float z) {
+    if (translation[0] != x || translation[1] != y || translation[2] != z) {
+      translation[0] = x;
+      translation[1] = y;
+      translation[2] = z;
+      dirtyFlags |= DIRTY_TRANSLATION;
+    }
+  }
+
+  /** Sets the scale, relative to the initial 25cm size of the model. */
+  public void setScale(float scale) {
+    if (this.scale != scale) {
+      this.scale = scale;
+      dirtyFlags |= DIRTY_SCALE;
+    }
+  }
+
+  /** Sets the rotation around the up axis of the model, in degrees. */
+  public void setRotation(float rotation) {
+    if (this.rotation != rotation) {
+      this.rotation = rotation;
+      dirtyFlags |= DIRTY_ROTATION;
+    }
+  }
+
+  /**
+   * Sets the bounds the model is centred on: it sits on the anchor at the centre of its xy extent
+   * and at its lowest z.
+   */
+  public void setBounds(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+    final float newCenterX = (minX + maxX) * 0.5f;
+    final float newCenterY = (minY + maxY) * 0.5f;
+    final float newMaxSize = Math.max(maxX - minX, Math.max(maxY - minY, maxZ - minZ));
+    if (centerX != newCenterX || centerY != newCenterY || this.minZ != minZ
+            || maxSize != newMaxSize) {
+      centerX = newCenterX;
+      centerY = newCenterY;
+      this.minZ = minZ;
+      maxSize = newMaxSize;
+      dirtyFlags |= DIRTY_BOUNDS;
+    }
+  }
+
+  /**
+   * Recomputes the parts of the model matrix whose inputs changed.
+   *
+   * @return true if the model matrix changed.
+   */
+  public boolean update() {
+    if (dirtyFlags == 0) {
+      return false;
+    }
+
+    if ((dirtyFlags & DIRTY_ORIENTATION) != 0) {
+      Matrix.setIdentityM(orientationMatrix, 0);
+
+      // Rotate the model -90 degrees around the original x-axis
+      Matrix.rotateM(orientationMatrix, 0, -90, 1, 0, 0);
+
+      // Translate the model by the offset amount from the anchor
+      Matrix.translateM(orientationMatrix, 0, translation[0], translation[1], translation[2]);
+
+      // Rotate the model based on the rotation around the original z-axis
+      Matrix.rotateM(orientationMatrix, 0, -rotation, 0, 0, 1);
+
+      // Scale the model based on the scale, but also include an initial 25cm bound on each side
+      // of the 3 axes.
+      final float scaleToSize = BASE_SIZE * scale / maxSize;
+      Matrix.scaleM(orientationMatrix, 0, scaleToSize, scaleToSize, scaleToSize);
+
+      // Translate the model so that the model is centered on the xy plane and on the anchor point
+      Matrix.translateM(orientationMatrix, 0, -centerX, -centerY, -minZ);
+    }
+
+    // Calculate the final model matrix by multiplying the anchor matrix A with the orientation
+    // matrix B to get AB.
+    Matrix.multiplyMM(modelMatrix, 0, anchorMatrix, 0, orientationMatrix, 0);
+    dirtyFlags = 0;
+    ++version;
+    return true;
+  }
+
+  /** The model matrix as of the last {@link #update}, in column-major order. Do not modify. */
+  public float[] getModelMatrix() {
+    return modelMatrix;
+  }
+
+  /** Incremented every time the model matrix changes, for caching what is derived from it. */
+  public int getVersion() {
+    return version;
+  }
+}
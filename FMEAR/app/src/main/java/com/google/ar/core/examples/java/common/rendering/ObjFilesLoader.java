@@ -0,0 +1,1509 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import com.google.ar.core.examples.java.common.rendering.ObjectRenderer.Bounds;
+import com.google.ar.core.examples.java.common.rendering.ObjectRenderer.ObjFilesLoadedDelegate;
+import com.google.ar.core.examples.java.common.rendering.ObjectRenderer.ObjProperty;
+
+import de.javagl.obj.FloatTuple;
+import de.javagl.obj.FloatTuples;
+import de.javagl.obj.Mtl;
+import de.javagl.obj.MtlReader;
+import de.javagl.obj.Obj;
+import de.javagl.obj.ObjData;
+import de.javagl.obj.ObjFace;
+import de.javagl.obj.ObjFaces;
+import de.javagl.obj.ObjReader;
+import de.javagl.obj.ObjSplitting;
+import de.javagl.obj.ObjUtils;
+import de.javagl.obj.Objs;
+
+/**
+ * Loads a dataset for an {@link ObjectRenderer} through a {@link LoadPipeline}: the obj files are
+ * parsed on one pool and split into GPU-ready buffers on another, so that different files are in
+ * different stages at the same time. The textures found while processing are decoded once all the
+ * files are processed, since the texture budget needs the total size, and the GL thread uploads
+ * the result over the following frames in updateBuffers.
+ */
+class ObjFilesLoader implements Runnable {
+
+  private static final String TAG = ObjFilesLoader.class.getSimpleName();
+
+  // Small textures are packed into atlas pages of up to this size, so that their materials can be
+  // merged into fewer draws.
+  private static final int ATLAS_PAGE_SIZE = 2048;
+
+  // The load pipeline. Parsing is mostly reading and tokenizing, so a couple of workers keep the
+  // process workers, one per core, busy. Each stage queues only a few files, so that parsed objs
+  // do not pile up in memory when processing is the bottleneck.
+  private static final int NUM_PARSE_WORKERS = 2;
+  private static final int NUM_PROCESS_WORKERS =
+          Math.max(1, Runtime.getRuntime().availableProcessors());
+  private static final int PIPELINE_QUEUE_CAPACITY = 2;
+
+  // Merged materials are capped at the bytes the GL thread uploads per frame, so that a merged
+  // chunk is still uploaded within a frame, and evicted and reloaded on its own like the chunks it
+  // was merged from.
+  private static final long MAX_MERGED_CHUNK_BYTES = ObjectRenderer.UPLOAD_BYTES_PER_FRAME;
+
+  // The share of the base color of a glTF material that is ambient rather than diffuse.
+  private static final float GLTF_AMBIENT_SHARE = 0.5f;
+
+  private final ObjectRenderer renderer;
+  private Context context;
+  private ObjFilesLoadedDelegate delegate;
+  // The DatasetCache key of the dataset, or null if it is not cached.
+  private String datasetCacheKey;
+  private List<File> files;
+  // The manifest that the mtl files and textures of the files are looked up in. A load without
+  // one scans the directory of the first obj file that needs it.
+  private DatasetManifest manifest;
+  // Obj files that were already parsed from the archive, loaded after the files.
+  private List<ArchiveReader.ParsedObj> parsedObjs;
+  private final int generation;
+  private final LoadMetrics metrics;
+  // The obj properties loaded so far, dropped if the load is cancelled.
+  private ArrayList<ObjProperty> result = new ArrayList<>();
+  // The already uploaded textures that queueTexture added a reference to. If the load is
+  // cancelled, they are released and no more references are added.
+  private final List<String> retainedTextureKeys = new ArrayList<>();
+  private boolean retainedTexturesReleased = false;
+  // The stages of the tileset load that this tile load belongs to, or null for stages of its
+  // own.
+  private LoadStages sharedStages;
+
+  ObjFilesLoader(
+          ObjectRenderer renderer, Context context, ObjFilesLoadedDelegate delegate,
+          String datasetCacheKey, List<File> files, DatasetManifest manifest,
+          List<ArchiveReader.ParsedObj> parsedObjs, LoadMetrics metrics, int generation) {
+    this.renderer = renderer;
+    this.context = context;
+    this.delegate = delegate;
+    this.datasetCacheKey = datasetCacheKey;
+    this.files = files;
+    this.manifest = manifest;
+    this.parsedObjs = parsedObjs;
+    this.metrics = metrics;
+    this.generation = generation;
+  }
+
+  // Runs the load on the stages of a tileset load, which outlive it.
+  void setSharedStages(LoadStages sharedStages) {
+    this.sharedStages = sharedStages;
+  }
+
+  @Override
+  public void run() {
+    boolean loaded = false;
+    try {
+      load();
+      loaded = true;
+    } catch (CancellationException e) {
+      Log.i(TAG, "Cancelled the load of " + (files.size() + parsedObjs.size()) + " obj files");
+    } catch (Throwable e) {
+      // Also catches running out of memory on a dataset too large for the heap, which would
+      // otherwise end the thread with the UI still waiting for the load.
+      Log.e(TAG, "Failed to load " + (files.size() + parsedObjs.size()) + " obj files", e);
+      discard();
+      if (renderer.endFailedLoad(generation)) {
+        delegate.objFilesLoadFailed(e);
+      }
+      return;
+    }
+
+    // The GL thread picks up the dataset in the next updateBuffers.
+    if (loaded && renderer.publishLoadedObjProperties(result, metrics, generation)) {
+      return;
+    }
+    discard();
+  }
+
+  List<ObjProperty> getResult() {
+    return result;
+  }
+
+  private boolean isCancelled() {
+    return generation != renderer.loadGeneration.get();
+  }
+
+  // Called between the steps of the load, and by the stage workers before every file.
+  private void checkCancelled() {
+    if (isCancelled()) {
+      throw new CancellationException();
+    }
+  }
+
+  // Frees what a cancelled or failed load holds right away: the decoded textures, the chunk files and the
+  // texture references. The buffers are left to the garbage collector.
+  void discard() {
+    for (ObjProperty objProperty : result) {
+      for (ObjProperty.MaterialProperty materialProperty : objProperty.materialProperties) {
+        if (materialProperty.decodedTexture != null) {
+          materialProperty.decodedTexture.recycle();
+        }
+        if (materialProperty.chunkFile != null && materialProperty.ownsChunkFile) {
+          materialProperty.chunkFile.delete();
+        }
+        materialProperty.clearTemporaryFileHandlesAndBuffers();
+      }
+    }
+    result.clear();
+
+    synchronized (retainedTextureKeys) {
+      retainedTexturesReleased = true;
+      renderer.cancelledTextureKeys.addAll(retainedTextureKeys);
+      retainedTextureKeys.clear();
+    }
+  }
+
+  private boolean retainTexture(String key) {
+    synchronized (retainedTextureKeys) {
+      if (retainedTexturesReleased || !renderer.textureCache.retainIfPresent(key)) {
+        return false;
+      }
+      retainedTextureKeys.add(key);
+      return true;
+    }
+  }
+
+  void load() {
+
+    if (datasetCacheKey != null) {
+      LoadMetrics.Section section = metrics.begin(metrics.getDatasetName(), "cache-read");
+      DatasetCache.Dataset dataset = renderer.getDatasetCache().get(datasetCacheKey);
+      ArrayList<ObjProperty> cached = (dataset == null) ? null : loadFromDatasetCache(dataset);
+      section.count("hits", (cached != null) ? 1 : 0).end();
+      if (cached != null) {
+        result = cached;
+        checkCancelled();
+        delegate.objFilesLoaded(cached.size(), cached.size());
+        return;
+      }
+    }
+    if (files.isEmpty() && parsedObjs.isEmpty()) {
+      // A load from the cache whose entry was evicted or corrupt since it was looked up.
+      Log.e(TAG, "The dataset " + datasetCacheKey + " is no longer in the dataset cache");
+      return;
+    }
+
+    final long startTime = SystemClock.elapsedRealtime();
+
+    // The distinct textures of the dataset are collected while the obj files are being
+    // processed. Once the total size is known, they are decoded on a separate pool so that the
+    // GL thread only needs to upload the decoded pixels.
+    final Map<String, TextureBudget.Plan> plansByKey = new HashMap<>();
+    final Map<ObjProperty.MaterialProperty, String> pendingTextures = new HashMap<>();
+
+    // A tile load runs on the stages that the tiles of its tileset share, and a dataset load
+    // on stages of its own.
+    final LoadStages stages = (sharedStages != null) ? sharedStages : new LoadStages(renderer);
+    final LoadPipeline.Stage<LoadPipeline.Task<ObjProperty>, ObjProperty> processStage =
+            stages.processStage;
+    final LoadPipeline.Stage<LoadPipeline.Task<Future<ObjProperty>>, Future<ObjProperty>>
+            parseStage = stages.parseStage;
+
+    // Read each obj file. The futures are collected in order, so the dataset is in the same
+    // order however the files finish.
+    final int totalNumFiles = files.size() + parsedObjs.size();
+    List<Future<Future<ObjProperty>>> parsedFiles = new ArrayList<>(files.size());
+    List<Future<ObjProperty>> processedObjs = new ArrayList<>(parsedObjs.size());
+    int numFilesLoaded = 0;
+    try {
+      for (File objFile : files) {
+        parsedFiles.add(parseStage.submit(
+                parseTask(objFile, processStage, plansByKey, pendingTextures)));
+      }
+      // The obj files parsed while the archive was read skip the parse stage.
+      for (ArchiveReader.ParsedObj parsedObj : parsedObjs) {
+        processedObjs.add(
+                processStage.submit(processTask(parsedObj, plansByKey, pendingTextures)));
+      }
+
+      for (int i = 0; i < parsedFiles.size(); ++i) {
+        checkCancelled();
+        try {
+          Future<ObjProperty> processedObj = parsedFiles.get(i).get();
+          if (processedObj != null) {
+            result.add(processedObj.get());
+          }
+        } catch (ExecutionException e) {
+          Log.e(TAG, "Exception caught while loading '" + files.get(i) + "'", e.getCause());
+        }
+        ++numFilesLoaded;
+        delegate.objFilesLoaded(numFilesLoaded, totalNumFiles);
+      }
+      for (int i = 0; i < processedObjs.size(); ++i) {
+        checkCancelled();
+        try {
+          result.add(processedObjs.get(i).get());
+        } catch (ExecutionException e) {
+          Log.e(TAG, "Exception caught while loading '" + parsedObjs.get(i).entryName + "'",
+                  e.getCause());
+        }
+        ++numFilesLoaded;
+        delegate.objFilesLoaded(numFilesLoaded, totalNumFiles);
+      }
+    } catch (InterruptedException | CancellationException e) {
+      // Only a cancelled load is interrupted. The workers are interrupted too, which stops the
+      // obj reader, and whatever they still produce is dropped. Shared stages are stopped by
+      // the tileset load they belong to.
+      if (stages != sharedStages) {
+        stages.shutdownNow();
+      }
+      throw new CancellationException();
+    } finally {
+      if (stages != sharedStages) {
+        stages.shutdown();
+      }
+    }
+
+    checkCancelled();
+    LoadPipeline.StageStats decodeStats =
+            new LoadPipeline.StageStats("decode", Runtime.getRuntime().availableProcessors());
+    final long textureBytes = decodeTextures(plansByKey, pendingTextures, decodeStats);
+    checkCancelled();
+    LoadMetrics.Section section = metrics.begin(metrics.getDatasetName(), "dedup");
+    deduplicateMeshes(result, section);
+    section.end();
+    section = metrics.begin(metrics.getDatasetName(), "merge");
+    mergeMaterials(result);
+    section.end();
+    if (datasetCacheKey != null) {
+      section = metrics.begin(metrics.getDatasetName(), "cache-write");
+      writeToDatasetCache(result);
+      section.end();
+    }
+    checkCancelled();
+    section = metrics.begin(metrics.getDatasetName(), "spill");
+    spillChunksIfOverBudget(result, textureBytes);
+    section.end();
+
+    Log.i(TAG, "Loaded " + result.size() + " of " + totalNumFiles + " obj files in "
+            + (SystemClock.elapsedRealtime() - startTime) + " ms; " + parseStage.getStats()
+            + "; " + processStage.getStats() + "; " + decodeStats);
+  }
+
+  // Processes a parsed obj into GPU-ready buffers.
+  private LoadPipeline.Task<ObjProperty> processTask(
+          final ArchiveReader.ParsedObj parsedObj,
+          final Map<String, TextureBudget.Plan> plansByKey,
+          final Map<ObjProperty.MaterialProperty, String> pendingTextures) {
+    return new LoadPipeline.Task<ObjProperty>() {
+      @Override
+      public ObjProperty run() throws IOException {
+        checkCancelled();
+        if (parsedObj.obj == null) {
+          // Staged by the archive reader, since it is too large to parse.
+          return processOutOfCore(parsedObj.file, parsedObj.entryName,
+                  materialsByNameOf(parsedObj), plansByKey, pendingTextures);
+        }
+        return processObj(parsedObj, plansByKey, pendingTextures);
+      }
+
+      @Override
+      public long bytesOf(ObjProperty result) {
+        long bytes = 0;
+        for (ObjProperty.MaterialProperty materialProperty : result.materialProperties) {
+          bytes += materialProperty.gpuBytes();
+        }
+        return bytes;
+      }
+    };
+  }
+
+  // Parses an obj file. The parse worker hands the parsed obj straight to the process stage,
+  // waiting while the process stage is full, so parsed objs never pile up in memory.
+  private LoadPipeline.Task<Future<ObjProperty>> parseTask(
+          final File objFile,
+          final LoadPipeline.Stage<LoadPipeline.Task<ObjProperty>, ObjProperty> processStage,
+          final Map<String, TextureBudget.Plan> plansByKey,
+          final Map<ObjProperty.MaterialProperty, String> pendingTextures) {
+    return new LoadPipeline.Task<Future<ObjProperty>>() {
+      @Override
+      public Future<ObjProperty> run() throws Exception {
+        checkCancelled();
+        if (GltfReader.isGltfFile(objFile)) {
+          // A glTF file is read straight into buffers, so it has nothing to process and is
+          // done in the parse stage.
+          FutureTask<ObjProperty> processedGltf = new FutureTask<>(new Callable<ObjProperty>() {
+            @Override
+            public ObjProperty call() throws IOException {
+              return processGltf(objFile, plansByKey, pendingTextures);
+            }
+          });
+          processedGltf.run();
+          return processedGltf;
+        }
+        if (CompressedMeshFile.isCompressedMeshFile(objFile)) {
+          // Likewise for a compressed mesh file, which decodes straight into buffers.
+          FutureTask<ObjProperty> processedMesh = new FutureTask<>(new Callable<ObjProperty>() {
+            @Override
+            public ObjProperty call() throws IOException {
+              return processCompressedMesh(objFile, plansByKey, pendingTextures);
+            }
+          });
+          processedMesh.run();
+          return processedMesh;
+        }
+        if (OutOfCoreObjProcessor.needsOutOfCore(objFile.length(), renderer.outOfCoreHeapCeiling)) {
+          // An obj file too large to parse is processed from the file, in place of both
+          // stages.
+          FutureTask<ObjProperty> processedObj = new FutureTask<>(new Callable<ObjProperty>() {
+            @Override
+            public ObjProperty call() throws IOException {
+              return processOutOfCore(objFile, objFile.toString(), null, plansByKey,
+                      pendingTextures);
+            }
+          });
+          processedObj.run();
+          return processedObj;
+        }
+        ArchiveReader.ParsedObj parsedObj = parseObj(objFile);
+        return (parsedObj == null)
+                ? null : processStage.submit(processTask(parsedObj, plansByKey, pendingTextures));
+      }
+
+      @Override
+      public long bytesOf(Future<ObjProperty> result) {
+        return objFile.length();
+      }
+    };
+  }
+
+  // Reads an obj file and the mtl files it references. Returns null if there is nothing to load.
+  private ArchiveReader.ParsedObj parseObj(File objFile) throws IOException {
+    LoadMetrics.Section section =
+            metrics.begin(objFile.toString(), "parse").bytesIn(objFile.length());
+    try (InputStream objInputStream =
+                 context.getContentResolver().openInputStream(Uri.fromFile(objFile))) {
+      if (objInputStream == null) {
+        // nothing to load, move on
+        return null;
+      }
+
+      Obj objObject = ObjReader.read(objInputStream);
+      section.count("vertices", objObject.getNumVertices())
+              .count("texCoords", objObject.getNumTexCoords())
+              .count("normals", objObject.getNumNormals())
+              .count("faces", objObject.getNumFaces());
+      Map<String, MtlAndTexture> materialsByName = fetchMaterials(
+              objObject.getMtlFileNames(), context, objFile, manifestFor(objFile));
+      ArchiveReader.ParsedObj parsedObj = new ArchiveReader.ParsedObj(objFile.toString(), objObject);
+      for (MtlAndTexture mtlAndTexture : materialsByName.values()) {
+        parsedObj.mtls.add(mtlAndTexture.getMtl());
+        if (mtlAndTexture.getTextureFile() != null) {
+          parsedObj.textureFiles.put(
+                  mtlAndTexture.getMtl().getName(), mtlAndTexture.getTextureFile());
+        }
+      }
+      section.count("materials", parsedObj.mtls.size());
+      return parsedObj;
+    } finally {
+      section.end();
+    }
+  }
+
+  // Splits the parsed obj by material into GPU-ready buffers and queues the textures of the
+  // materials. Called on the process stage workers.
+  private ObjProperty processObj(
+          ArchiveReader.ParsedObj parsedObj, Map<String, TextureBudget.Plan> plansByKey,
+          Map<ObjProperty.MaterialProperty, String> pendingTextures) {
+    Map<String, MtlAndTexture> materialsByName = materialsByNameOf(parsedObj);
+
+    // Prepare the Obj so that its structure is suitable for
+    // rendering with OpenGL:
+    // 1. Triangulate it
+    // 2. Make sure that texture coordinates are not ambiguous
+    // 3. Make sure that normals are not ambiguous
+    // 4. Convert it to single-indexed data
+    final String objFilename = parsedObj.entryName;
+    LoadMetrics.Section section = metrics.begin(objFilename, "triangulate");
+    Obj obj = ObjUtils.triangulate(parsedObj.obj);
+    section.count("faces", obj.getNumFaces()).end();
+    if (obj.getNumNormals() <= 0) {
+      section = metrics.begin(objFilename, "normals");
+      obj = createNewObjWithNormals(obj);
+      section.count("normals", obj.getNumNormals()).end();
+    }
+    section = metrics.begin(objFilename, "weld");
+    obj = ObjUtils.makeTexCoordsUnique(obj);
+    obj = ObjUtils.makeNormalsUnique(obj);
+    Obj objObject = ObjUtils.makeVertexIndexed(obj, Objs.create());
+    section.count("vertices", objObject.getNumVertices()).end();
+
+    // For every obj file, store the properties for later use
+    ObjProperty objProperty = new ObjProperty();
+    objProperty.objFilename = objFilename;
+
+    section = metrics.begin(objFilename, "split");
+    Map<String, Obj> materialToObjMap = ObjSplitting.splitByMaterialGroups(objObject);
+    section.count("materials", materialToObjMap.size()).end();
+    if (materialToObjMap.isEmpty()) {
+      // If there is no material, we just simply add the original obj with an empty material
+      // name
+      materialToObjMap.put("", objObject);
+    }
+
+    int numMaterialGroups = materialToObjMap.size();
+    objProperty.materialProperties = new ArrayList<>(numMaterialGroups);
+
+    for (Map.Entry<String, Obj> entry : materialToObjMap.entrySet()) {
+
+      // Get the material name from the key and the obj object from the value
+      String materialName = entry.getKey();
+      Obj currObj = entry.getValue();
+
+      // Create a material property record in the obj property
+      ObjProperty.MaterialProperty materialProperty = new ObjProperty.MaterialProperty();
+      objProperty.materialProperties.add(materialProperty);
+      materialProperty.materialName = materialName;
+      materialProperty.objFilename = objFilename;
+
+      // If we can read a material and or a texture, we store it in the property.
+      applyMtl(materialProperty, materialsByName.get(materialName), true, plansByKey,
+              pendingTextures);
+
+      // OpenGL does not use Java arrays. ByteBuffers are used instead to provide data in a format
+      // that OpenGL understands.
+
+      // Obtain the data from the OBJ, as direct buffers:
+      section = metrics.begin(objFilename, "buffers");
+      materialProperty.wideIndices = ObjData.getFaceVertexIndices(currObj, 3);
+      materialProperty.vertices = ObjData.getVertices(currObj);
+      materialProperty.texCoords = ObjData.getTexCoords(currObj, 2);
+      materialProperty.normals = ObjData.getNormals(currObj);
+
+      // Calculate the material property bounds. Also expand the obj property bounds.
+      materialProperty.bounds = renderer.calculateBounds(materialProperty.vertices);
+      objProperty.bounds.expandBy(materialProperty.bounds);
+
+      // Load vertex buffer
+      materialProperty.updateBufferLayout();
+      section.count("indices", materialProperty.indexCount)
+              .bytesOut(materialProperty.gpuBytes()).end();
+    }
+    return objProperty;
+  }
+
+  private Map<String, MtlAndTexture> materialsByNameOf(ArchiveReader.ParsedObj parsedObj) {
+    Map<String, MtlAndTexture> materialsByName = new HashMap<>();
+    for (Mtl mtl : parsedObj.mtls) {
+      materialsByName.put(
+              mtl.getName(), new MtlAndTexture(mtl, parsedObj.textureFiles.get(mtl.getName())));
+    }
+    return materialsByName;
+  }
+
+  // Sets the colors of the material property from the mtl, if there is one, and queues its
+  // texture if the geometry has texture coordinates.
+  private void applyMtl(
+          ObjProperty.MaterialProperty materialProperty, MtlAndTexture mtlAndTexture,
+          boolean hasTexCoords, Map<String, TextureBudget.Plan> plansByKey,
+          Map<ObjProperty.MaterialProperty, String> pendingTextures) {
+    if (mtlAndTexture == null) {
+      return;
+    }
+    Mtl material = mtlAndTexture.getMtl();
+    File textureFile = mtlAndTexture.getTextureFile();
+    if (hasTexCoords && textureFile != null && textureFile.exists()) {
+      materialProperty.textureFile = textureFile;
+      materialProperty.hasTexture = true;
+      queueTexture(materialProperty, plansByKey, pendingTextures);
+    }
+    if (material != null) {
+      FloatTuple ka = material.getKa();
+      FloatTuple kd = material.getKd();
+
+      if (!containsColor(ka) && !containsColor(kd)) { // pitch black, probably simply undefined
+        if (materialProperty.hasTexture) {
+          materialProperty.ambient = FloatTuples.create(1.0f, 1.0f, 1.0f);
+          materialProperty.diffuse = kd;
+        } else {
+          materialProperty.ambient = ObjectRenderer.createDefaultAmbient();
+          materialProperty.diffuse = ObjectRenderer.createDefaultDiffuse();
+        }
+      } else {
+        materialProperty.ambient = ka;
+        materialProperty.diffuse = kd;
+      }
+
+      materialProperty.specular = material.getKs();
+      materialProperty.shininess = material.getNs();
+      materialProperty.opacity = material.getD();
+    }
+  }
+
+  // Processes an obj file too large to parse in memory into chunk files with an
+  // OutOfCoreObjProcessor, one material property per chunk. The chunks are uploaded from the
+  // memory-mapped files like a cached dataset, and can be evicted and reloaded. Files are
+  // processed one at a time, since each may take the whole heap ceiling. Without the materials
+  // of the obj, the mtl files it refers to are read.
+  private ObjProperty processOutOfCore(
+          File objFile, String objFilename, Map<String, MtlAndTexture> materialsByName,
+          Map<String, TextureBudget.Plan> plansByKey,
+          Map<ObjProperty.MaterialProperty, String> pendingTextures) throws IOException {
+    File chunkDirectory = renderer.getChunkDirectory();
+    if (chunkDirectory == null) {
+      throw new IOException("No chunk directory to process '" + objFilename + "' into");
+    }
+    OutOfCoreObjProcessor processor = new OutOfCoreObjProcessor(
+            new File(context.getCacheDir(), "fmear-scratch"), chunkDirectory,
+            renderer.outOfCoreHeapCeiling);
+
+    LoadMetrics.Section section =
+            metrics.begin(objFilename, "out-of-core").bytesIn(objFile.length());
+    OutOfCoreObjProcessor.Result processed;
+    try {
+      synchronized (renderer.outOfCoreLock) {
+        processed = processor.process(objFile);
+      }
+      section.count("vertices", processed.numVertices)
+              .count("faces", processed.numFaces)
+              .count("chunks", processed.chunks.size())
+              .count("scratchBytes", processed.scratchBytes)
+              .count("heapBytes", processed.peakHeapBytes);
+    } finally {
+      section.end();
+    }
+
+    ObjProperty objProperty = new ObjProperty();
+    objProperty.objFilename = objFilename;
+    objProperty.materialProperties = new ArrayList<>(processed.chunks.size());
+    try {
+      if (materialsByName == null) {
+        materialsByName = fetchMaterials(
+                processed.mtlFileNames, context, objFile, manifestFor(objFile));
+      }
+      for (OutOfCoreObjProcessor.Chunk chunk : processed.chunks) {
+        ObjProperty.MaterialProperty materialProperty = new ObjProperty.MaterialProperty();
+        materialProperty.materialName = chunk.materialName;
+        materialProperty.objFilename = objFilename;
+        applyMtl(materialProperty, materialsByName.get(chunk.materialName), chunk.hasTexCoords,
+                plansByKey, pendingTextures);
+
+        materialProperty.chunkFile = chunk.file;
+        materialProperty.ownsChunkFile = true;
+        materialProperty.blob = ChunkBlob.map(chunk.file);
+        materialProperty.updateBufferLayout(materialProperty.blob.numVertexFloats,
+                materialProperty.blob.numTexCoordFloats,
+                materialProperty.blob.numNormalFloats, materialProperty.blob.numIndices);
+        materialProperty.bounds.set(chunk.bounds[0], chunk.bounds[1], chunk.bounds[2],
+                chunk.bounds[3], chunk.bounds[4], chunk.bounds[5]);
+        objProperty.bounds.expandBy(materialProperty.bounds);
+        objProperty.materialProperties.add(materialProperty);
+      }
+    } catch (IOException e) {
+      // The textures already queued are decoded for nothing, but the chunk files go right away.
+      for (OutOfCoreObjProcessor.Chunk chunk : processed.chunks) {
+        chunk.file.delete();
+      }
+      throw e;
+    }
+
+    Log.i(TAG, "Processed '" + objFilename + "' out of core into " + processed.chunks.size()
+            + " chunks of " + processed.numVertices + " vertices, with "
+            + (processed.peakHeapBytes / 1024) + " KB of heap and "
+            + (processed.scratchBytes / 1024) + " KB of scratch files");
+    return objProperty;
+  }
+
+  // Reads a glTF file into GPU-ready buffers and queues the textures of its materials. Its
+  // accessors are already triangulated and indexed per vertex, so there is nothing to
+  // triangulate, weld or split, and every primitive becomes a material property. Called on the
+  // parse stage workers.
+  private ObjProperty processGltf(
+          File gltfFile, Map<String, TextureBudget.Plan> plansByKey,
+          Map<ObjProperty.MaterialProperty, String> pendingTextures) throws IOException {
+    final String gltfFilename = gltfFile.toString();
+    LoadMetrics.Section section =
+            metrics.begin(gltfFilename, "parse-gltf").bytesIn(gltfFile.length());
+    GltfReader.Model model;
+    try {
+      model = GltfReader.read(gltfFile);
+      section.count("vertices", model.numVertices)
+              .count("faces", model.numTriangles)
+              .count("materials", model.primitives.size());
+    } finally {
+      section.end();
+    }
+
+    ObjProperty objProperty = new ObjProperty();
+    objProperty.objFilename = gltfFilename;
+    objProperty.materialProperties = new ArrayList<>(model.primitives.size());
+    for (GltfReader.Primitive primitive : model.primitives) {
+      ObjProperty.MaterialProperty materialProperty = new ObjProperty.MaterialProperty();
+      objProperty.materialProperties.add(materialProperty);
+      GltfReader.Material material = primitive.material;
+      materialProperty.materialName = material.name;
+      materialProperty.objFilename = gltfFilename;
+
+      File textureFile = material.baseColorTexture;
+      if (textureFile != null && textureFile.exists() && primitive.texCoords.limit() > 0) {
+        materialProperty.textureFile = textureFile;
+        materialProperty.hasTexture = true;
+        queueTexture(materialProperty, plansByKey, pendingTextures);
+      }
+
+      // The base color is split between the ambient and the hemisphere light, so that a lit
+      // surface ranges from half to full base color. Unlit materials are all ambient.
+      final float[] color = material.baseColorFactor;
+      final float ambientShare = material.unlit ? 1.0f : GLTF_AMBIENT_SHARE;
+      materialProperty.ambient = FloatTuples.create(
+              color[0] * ambientShare, color[1] * ambientShare, color[2] * ambientShare);
+      materialProperty.diffuse = FloatTuples.create(color[0] * (1.0f - ambientShare),
+              color[1] * (1.0f - ambientShare), color[2] * (1.0f - ambientShare));
+      materialProperty.specular = FloatTuples.create(0f, 0f, 0f);
+      materialProperty.opacity = material.blend ? color[3] : 1.0f;
+
+      materialProperty.wideIndices = primitive.indices;
+      materialProperty.vertices = primitive.positions;
+      materialProperty.texCoords = primitive.texCoords;
+      materialProperty.normals = primitive.normals;
+
+      materialProperty.bounds = renderer.calculateBounds(materialProperty.vertices);
+      objProperty.bounds.expandBy(materialProperty.bounds);
+      materialProperty.updateBufferLayout();
+    }
+    return objProperty;
+  }
+
+  private synchronized DatasetManifest manifestFor(File objFile) {
+    if (manifest == null) {
+      manifest = DatasetManifest.scan(objFile.getParentFile());
+    }
+    return manifest;
+  }
+
+  // Decodes an .fmesh file, one material per mesh.
+  private ObjProperty processCompressedMesh(
+          File meshFile, Map<String, TextureBudget.Plan> plansByKey,
+          Map<ObjProperty.MaterialProperty, String> pendingTextures) throws IOException {
+    final String meshFilename = meshFile.toString();
+    LoadMetrics.Section section =
+            metrics.begin(meshFilename, "decode-fmesh").bytesIn(meshFile.length());
+    List<CompressedMeshFile.Mesh> meshes;
+    try {
+      meshes = CompressedMeshFile.read(meshFile);
+      int numVertices = 0;
+      int numTriangles = 0;
+      for (CompressedMeshFile.Mesh mesh : meshes) {
+        numVertices += mesh.getNumVertices();
+        numTriangles += mesh.indices.limit() / 3;
+      }
+      section.count("vertices", numVertices)
+              .count("faces", numTriangles)
+              .count("materials", meshes.size());
+    } finally {
+      section.end();
+    }
+
+    ObjProperty objProperty = new ObjProperty();
+    objProperty.objFilename = meshFilename;
+    objProperty.materialProperties = new ArrayList<>(meshes.size());
+    for (CompressedMeshFile.Mesh mesh : meshes) {
+      ObjProperty.MaterialProperty materialProperty = new ObjProperty.MaterialProperty();
+      objProperty.materialProperties.add(materialProperty);
+      materialProperty.materialName = mesh.materialName;
+      materialProperty.objFilename = meshFilename;
+
+      if (mesh.texture != null && mesh.texture.exists() && mesh.texCoords.limit() > 0) {
+        materialProperty.textureFile = mesh.texture;
+        materialProperty.hasTexture = true;
+        queueTexture(materialProperty, plansByKey, pendingTextures);
+      }
+
+      materialProperty.ambient =
+              FloatTuples.create(mesh.ambient[0], mesh.ambient[1], mesh.ambient[2]);
+      materialProperty.diffuse =
+              FloatTuples.create(mesh.diffuse[0], mesh.diffuse[1], mesh.diffuse[2]);
+      materialProperty.specular =
+              FloatTuples.create(mesh.specular[0], mesh.specular[1], mesh.specular[2]);
+      materialProperty.shininess = mesh.shininess;
+      materialProperty.opacity = mesh.opacity;
+
+      materialProperty.wideIndices = mesh.indices;
+      materialProperty.vertices = mesh.positions;
+      materialProperty.texCoords = mesh.texCoords;
+      materialProperty.normals = mesh.normals;
+
+      materialProperty.bounds = renderer.calculateBounds(materialProperty.vertices);
+      objProperty.bounds.expandBy(materialProperty.bounds);
+      materialProperty.updateBufferLayout();
+    }
+    return objProperty;
+  }
+
+  // Queues the material texture for decoding, unless the same image is already queued for
+  // another material or is already uploaded from a previous load. A dataset that is written to
+  // the DatasetCache needs the plans of all its textures, so it decodes them all.
+  private void queueTexture(
+          ObjProperty.MaterialProperty materialProperty,
+          Map<String, TextureBudget.Plan> plansByKey,
+          Map<ObjProperty.MaterialProperty, String> pendingTextures) {
+    String key;
+    try {
+      key = TextureCache.keyFor(materialProperty.textureFile);
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to resolve texture '" + materialProperty.textureFile + "'", e);
+      materialProperty.hasTexture = false;
+      return;
+    }
+
+    // The process workers share the maps. Reading a plan only decodes the image bounds, so
+    // holding the lock for it is cheap.
+    synchronized (plansByKey) {
+      if (!plansByKey.containsKey(key)) {
+        if (datasetCacheKey == null && retainTexture(key)) {
+          materialProperty.textureKey = key;
+          materialProperty.textureRetained = true;
+          return;
+        }
+
+        TextureBudget.Plan plan = TextureDecoder.readPlan(materialProperty.textureFile);
+        if (plan == null) {
+          materialProperty.hasTexture = false;
+          return;
+        }
+        plansByKey.put(key, plan);
+      }
+      materialProperty.textureKey = key;
+      pendingTextures.put(materialProperty, key);
+    }
+  }
+
+  // Fits the queued textures into the texture memory budget, packs the small ones into atlas
+  // pages and decodes them. Returns the GPU memory of the textures.
+  private long decodeTextures(
+          Map<String, TextureBudget.Plan> plansByKey,
+          Map<ObjProperty.MaterialProperty, String> pendingTextures,
+          LoadPipeline.StageStats decodeStats) {
+    if (plansByKey.isEmpty()) {
+      return 0;
+    }
+
+    TextureDecoder textureDecoder = (sharedStages != null)
+            ? sharedStages.getTextureDecoder() : renderer.createTextureDecoder();
+    for (TextureBudget.Plan plan : plansByKey.values()) {
+      plan.bitsPerPixel = textureDecoder.bitsPerPixel(plan);
+    }
+
+    TextureBudget.Report report = TextureBudget.apply(
+            plansByKey.values(), renderer.maxTextureSize, renderer.textureMemoryBudget);
+    Log.i(TAG, "Texture memory: " + report);
+
+    List<TextureAtlas.Page> pages = renderer.textureAtlasEnabled
+            ? packAtlasPages(plansByKey, pendingTextures)
+            : new ArrayList<TextureAtlas.Page>();
+    Map<String, TextureAtlas.Page> pagesByTileKey = new HashMap<>();
+    Map<String, TextureAtlas.Placement> placementsByTileKey = new HashMap<>();
+    for (TextureAtlas.Page page : pages) {
+      for (TextureAtlas.Placement placement : page.placements) {
+        pagesByTileKey.put(placement.textureKey, page);
+        placementsByTileKey.put(placement.textureKey, placement);
+      }
+    }
+
+    // The materials of the tiles move to their page. If the page fails to decode, they are
+    // drawn without a texture like any other material, so the texture coordinates can be
+    // remapped right away.
+    for (Map.Entry<ObjProperty.MaterialProperty, String> entry : pendingTextures.entrySet()) {
+      ObjProperty.MaterialProperty materialProperty = entry.getKey();
+      TextureAtlas.Page page = pagesByTileKey.get(entry.getValue());
+      if (page != null) {
+        TextureAtlas.remapTexCoords(
+                materialProperty.texCoords, page, placementsByTileKey.get(entry.getValue()));
+        materialProperty.textureKey = page.getTextureKey();
+        materialProperty.texturePage = page;
+        entry.setValue(page.getTextureKey());
+      } else {
+        materialProperty.texturePlan = plansByKey.get(entry.getValue());
+      }
+    }
+
+    Map<String, TextureBudget.Plan> standalonePlans = new HashMap<>();
+    for (Map.Entry<String, TextureBudget.Plan> entry : plansByKey.entrySet()) {
+      if (!pagesByTileKey.containsKey(entry.getKey())) {
+        standalonePlans.put(entry.getKey(), entry.getValue());
+      }
+    }
+    submitTextures(textureDecoder, standalonePlans, pages, pendingTextures, decodeStats);
+    return report.targetBytes;
+  }
+
+  // Decodes the standalone textures and composes the atlas pages at their planned size, and
+  // attaches the results to the materials, which are keyed to their texture or page. A material
+  // whose texture cannot be decoded is drawn without a texture.
+  private void submitTextures(
+          TextureDecoder textureDecoder,
+          Map<String, TextureBudget.Plan> plansByKey,
+          List<TextureAtlas.Page> pages,
+          Map<ObjProperty.MaterialProperty, String> pendingTextures,
+          LoadPipeline.StageStats decodeStats) {
+    // Atlas tiles are decoded before any page is composed, see TextureDecoder.submitAtlas.
+    Map<String, Future<TextureDecoder.DecodedTexture>> decodesByKey = new HashMap<>();
+    Map<String, TextureDecoder.DecodedTexture> decodedByKey = new HashMap<>();
+    Map<TextureAtlas.Page, List<Future<Bitmap>>> tilesByPage = new HashMap<>();
+    int numTiles = 0;
+    for (TextureAtlas.Page page : pages) {
+      numTiles += page.placements.size();
+      TextureDecoder.DecodedTexture cachedPage = textureDecoder.findCachedAtlas(page);
+      if (cachedPage != null) {
+        decodedByKey.put(page.getTextureKey(), cachedPage);
+        continue;
+      }
+      List<Future<Bitmap>> tiles = new ArrayList<>(page.placements.size());
+      for (TextureAtlas.Placement placement : page.placements) {
+        tiles.add(textureDecoder.submitTile(placement.plan));
+      }
+      tilesByPage.put(page, tiles);
+    }
+    for (Map.Entry<String, TextureBudget.Plan> entry : plansByKey.entrySet()) {
+      decodesByKey.put(entry.getKey(), textureDecoder.submit(entry.getValue()));
+    }
+    for (Map.Entry<TextureAtlas.Page, List<Future<Bitmap>>> entry : tilesByPage.entrySet()) {
+      decodesByKey.put(entry.getKey().getTextureKey(),
+              textureDecoder.submitAtlas(entry.getKey(), entry.getValue()));
+    }
+    // A shared decoder is shut down with the tileset load it belongs to.
+    if (sharedStages == null) {
+      textureDecoder.shutdown();
+    }
+
+    int numCompressed = 0;
+    long totalDecodeTimeMs = 0;
+    for (Map.Entry<String, Future<TextureDecoder.DecodedTexture>> entry : decodesByKey.entrySet()) {
+      try {
+        TextureDecoder.DecodedTexture decodedTexture = entry.getValue().get();
+        totalDecodeTimeMs += decodedTexture.decodeTimeMs;
+        long decodedBytes = 0;
+        if (decodedTexture.compressed != null) {
+          ++numCompressed;
+          decodedBytes = decodedTexture.compressed.byteCount();
+        } else if (decodedTexture.bitmap != null) {
+          decodedBytes = decodedTexture.bitmap.getByteCount();
+        }
+        decodeStats.record(decodedTexture.decodeTimeMs * 1000000, decodedBytes);
+        // Decoded on the decoder pool, so only the wall time is known.
+        metrics.add(entry.getKey(), "decode", decodedTexture.decodeTimeMs * 1000000, -1,
+                (decodedTexture.file != null) ? decodedTexture.file.length() : 0, decodedBytes,
+                null);
+        decodedByKey.put(entry.getKey(), decodedTexture);
+      } catch (InterruptedException e) {
+        // The load was cancelled; the textures decoded so far are attached and then dropped
+        // with it.
+        Thread.currentThread().interrupt();
+        break;
+      } catch (ExecutionException e) {
+        Log.e(TAG, "Exception caught during texture decoding", e);
+      }
+    }
+
+    for (Map.Entry<ObjProperty.MaterialProperty, String> entry : pendingTextures.entrySet()) {
+      ObjProperty.MaterialProperty materialProperty = entry.getKey();
+      TextureDecoder.DecodedTexture decodedTexture = decodedByKey.get(entry.getValue());
+      if (decodedTexture != null && decodedTexture.isValid()) {
+        materialProperty.decodedTexture = decodedTexture;
+      } else {
+        materialProperty.hasTexture = false;
+        materialProperty.textureKey = null;
+      }
+    }
+
+    Log.i(TAG, "Decoded " + (plansByKey.size() + numTiles) + " distinct textures ("
+            + numCompressed + " compressed, " + numTiles + " packed into " + pages.size()
+            + " atlas pages) for " + pendingTextures.size() + " materials, " + totalDecodeTimeMs
+            + " ms total decode time");
+  }
+
+
+  // Writes the geometry of every material to a chunk file if the dataset may not fit the GPU
+  // memory budget, so that the chunks can be evicted and reloaded while the dataset is drawn.
+  private void spillChunksIfOverBudget(List<ObjProperty> objProperties, long textureBytes) {
+    long geometryBytes = 0;
+    for (ObjProperty objProperty : objProperties) {
+      for (ObjProperty.MaterialProperty materialProperty : objProperty.materialProperties) {
+        geometryBytes += materialProperty.gpuBytes();
+      }
+    }
+    if (geometryBytes + textureBytes <= renderer.gpuResourceManager.getBudget()) {
+      return;
+    }
+
+    final long startTime = SystemClock.elapsedRealtime();
+    File chunkDirectory = renderer.getChunkDirectory();
+    if (chunkDirectory == null) {
+      return;
+    }
+
+    int numChunks = 0;
+    for (ObjProperty objProperty : objProperties) {
+      for (ObjProperty.MaterialProperty materialProperty : objProperty.materialProperties) {
+        if (materialProperty.chunkFile != null) {
+          // Already written to the DatasetCache, or processed out of core.
+          continue;
+        }
+        try {
+          File chunkFile = File.createTempFile("chunk", ".bin", chunkDirectory);
+          ChunkBlob.write(chunkFile, materialProperty.vertices, materialProperty.texCoords,
+                  materialProperty.normals, materialProperty.wideIndices);
+          materialProperty.chunkFile = chunkFile;
+          materialProperty.ownsChunkFile = true;
+          ++numChunks;
+        } catch (IOException e) {
+          // The chunk stays resident for as long as the dataset is loaded.
+          Log.e(TAG, "Failed to write a chunk file", e);
+        }
+      }
+    }
+    Log.i(TAG, "The dataset needs " + ((geometryBytes + textureBytes) / 1024) + " KB of GPU "
+            + "memory, spilled " + numChunks + " chunks (" + (geometryBytes / 1024) + " KB) in "
+            + (SystemClock.elapsedRealtime() - startTime) + " ms");
+  }
+
+  // Stores the processed dataset in the DatasetCache. The materials then use the cached chunk
+  // files, so the dataset does not have to be spilled again.
+  private void writeToDatasetCache(List<ObjProperty> objProperties) {
+    final long startTime = SystemClock.elapsedRealtime();
+    DatasetCache datasetCache = renderer.getDatasetCache();
+    try {
+      DatasetCacheCodec.write(datasetCache, datasetCacheKey, objProperties);
+      Log.i(TAG, "Stored the dataset in the cache as " + datasetCacheKey + " in "
+              + (SystemClock.elapsedRealtime() - startTime) + " ms");
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to store the dataset in the cache", e);
+      datasetCache.abort(datasetCacheKey);
+    }
+  }
+
+  // Rebuilds the dataset from a DatasetCache entry and decodes its textures at their cached size,
+  // so parsing, the texture budget, atlas packing and merging are all skipped. Returns null if the
+  // entry is unusable.
+  private ArrayList<ObjProperty> loadFromDatasetCache(DatasetCache.Dataset dataset) {
+    final long startTime = SystemClock.elapsedRealtime();
+    LoadPipeline.StageStats decodeStats =
+            new LoadPipeline.StageStats("decode", Runtime.getRuntime().availableProcessors());
+    DatasetCacheCodec.Entry entry;
+    try {
+      entry = DatasetCacheCodec.read(dataset, renderer.instancedDrawsSupported);
+      if (!entry.pendingTextures.isEmpty()) {
+        submitTextures(renderer.createTextureDecoder(), entry.plansByKey, entry.pages,
+                entry.pendingTextures, decodeStats);
+      }
+    } catch (IOException | RuntimeException e) {
+      Log.e(TAG, "Failed to load the dataset from the cache, loading the obj files instead", e);
+      return null;
+    }
+
+    Log.i(TAG, "Loaded the dataset from the cache in "
+            + (SystemClock.elapsedRealtime() - startTime) + " ms; " + decodeStats);
+    return entry.objProperties;
+  }
+
+  // Packs the textures that are only used with texture coordinates within [0, 1] into atlas
+  // pages. Textures that repeat over any of their materials keep their own GL texture.
+  private List<TextureAtlas.Page> packAtlasPages(
+          Map<String, TextureBudget.Plan> plansByKey,
+          Map<ObjProperty.MaterialProperty, String> pendingTextures) {
+    Set<String> wrappingKeys = new HashSet<>();
+    for (Map.Entry<ObjProperty.MaterialProperty, String> entry : pendingTextures.entrySet()) {
+      // The texture coordinates of a chunk file cannot be remapped.
+      if (entry.getKey().texCoords == null
+              || !TextureAtlas.isWithinUnitSquare(entry.getKey().texCoords)) {
+        wrappingKeys.add(entry.getValue());
+      }
+    }
+
+    Map<String, TextureBudget.Plan> candidates = new HashMap<>();
+    for (Map.Entry<String, TextureBudget.Plan> entry : plansByKey.entrySet()) {
+      if (!wrappingKeys.contains(entry.getKey())) {
+        candidates.put(entry.getKey(), entry.getValue());
+      }
+    }
+
+    final int pageSize =
+            Math.min(ATLAS_PAGE_SIZE, TextureBudget.floorPowerOfTwo(renderer.maxTextureSize));
+    List<TextureAtlas.Page> pages = TextureAtlas.pack(candidates, pageSize);
+    Log.i(TAG, wrappingKeys.size() + " textures have wrapping texture coordinates and are not "
+            + "packed into atlases");
+    return pages;
+  }
+
+  // Merges the materials of the dataset that use the same texture and have the same parameters,
+  // so that they are drawn with a single draw call. Materials that hold a reference to an
+  // already uploaded texture are left alone, since every one of them has to release it, and so
+  // are the chunks processed out of core, whose geometry is only in their chunk files, and the
+  // deduplicated meshes, which are drawn at every offset. A merged material is kept under
+  // MAX_MERGED_CHUNK_BYTES; once it is full, the next material with its signature starts
+  // another one.
+  private void mergeMaterials(List<ObjProperty> objProperties) {
+    Map<String, ObjProperty.MaterialProperty> firstBySignature = new HashMap<>();
+    Map<ObjProperty.MaterialProperty, List<ObjProperty.MaterialProperty>> mergeGroups =
+            new HashMap<>();
+    Map<ObjProperty.MaterialProperty, Long> mergedBytes = new HashMap<>();
+    int numMaterials = 0;
+    for (ObjProperty objProperty : objProperties) {
+      Iterator<ObjProperty.MaterialProperty> iterator = objProperty.materialProperties.iterator();
+      while (iterator.hasNext()) {
+        ObjProperty.MaterialProperty materialProperty = iterator.next();
+        ++numMaterials;
+        if (materialProperty.textureRetained || materialProperty.blob != null
+                || materialProperty.instanceOffsets != null) {
+          continue;
+        }
+
+        String signature = materialSignature(materialProperty);
+        final long bytes = materialProperty.gpuBytes();
+        ObjProperty.MaterialProperty first = firstBySignature.get(signature);
+        if (first == null || mergedBytes.get(first) + bytes > MAX_MERGED_CHUNK_BYTES) {
+          firstBySignature.put(signature, materialProperty);
+          mergedBytes.put(materialProperty, bytes);
+          continue;
+        }
+        mergedBytes.put(first, mergedBytes.get(first) + bytes);
+
+        List<ObjProperty.MaterialProperty> group = mergeGroups.get(first);
+        if (group == null) {
+          group = new ArrayList<>();
+          group.add(first);
+          mergeGroups.put(first, group);
+        }
+        group.add(materialProperty);
+        iterator.remove();
+      }
+    }
+
+    for (List<ObjProperty.MaterialProperty> group : mergeGroups.values()) {
+      mergeInto(group.get(0), group);
+    }
+    for (ObjProperty objProperty : objProperties) {
+      for (ObjProperty.MaterialProperty materialProperty : objProperty.materialProperties) {
+        objProperty.bounds.expandBy(materialProperty.bounds);
+      }
+    }
+
+    int numMerged = 0;
+    for (List<ObjProperty.MaterialProperty> group : mergeGroups.values()) {
+      numMerged += group.size();
+    }
+    Log.i(TAG, "Merged " + numMerged + " of " + numMaterials + " materials into "
+            + mergeGroups.size() + " draws");
+  }
+
+  // Draws the copies of a mesh at other positions as instances of the first one, see
+  // MeshDeduplicator, so that its geometry is stored and uploaded once. The copies are removed
+  // from their obj properties, whose bounds still cover them, and the bounds of the first
+  // material grow to cover all of them. The materials left alone are those left alone by
+  // mergeMaterials, and those processed out of core. The geometry and the draws before and after
+  // are counted in the section.
+  private void deduplicateMeshes(List<ObjProperty> objProperties, LoadMetrics.Section section) {
+    Bounds bounds = new Bounds();
+    for (ObjProperty objProperty : objProperties) {
+      bounds.expandBy(objProperty.bounds);
+    }
+    if (!bounds.isValid()) {
+      return;
+    }
+    MeshDeduplicator deduplicator = new MeshDeduplicator(MeshDeduplicator.positionToleranceFor(
+            new float[] {bounds.getMinX(), bounds.getMinY(), bounds.getMinZ(),
+                    bounds.getMaxX(), bounds.getMaxY(), bounds.getMaxZ()}));
+
+    // The first material of every mesh by id, and the offsets of its copies.
+    Map<Integer, ObjProperty.MaterialProperty> firstsById = new HashMap<>();
+    Map<ObjProperty.MaterialProperty, List<float[]>> copyOffsets = new HashMap<>();
+    final boolean instancedDraws = renderer.instancedDrawsSupported;
+    long bytesBefore = 0;
+    long bytesAfter = 0;
+    int numDrawsBefore = 0;
+    for (ObjProperty objProperty : objProperties) {
+      Iterator<ObjProperty.MaterialProperty> iterator = objProperty.materialProperties.iterator();
+      while (iterator.hasNext()) {
+        ObjProperty.MaterialProperty materialProperty = iterator.next();
+        ++numDrawsBefore;
+        bytesBefore += materialProperty.gpuBytes();
+        if (materialProperty.textureRetained || materialProperty.blob != null
+                || materialProperty.vertices == null) {
+          bytesAfter += materialProperty.gpuBytes();
+          continue;
+        }
+
+        final int meshId = deduplicator.getNumMeshes();
+        final int firstId = deduplicator.add(materialSignature(materialProperty),
+                materialProperty.vertices, materialProperty.texCoords, materialProperty.normals,
+                materialProperty.wideIndices);
+        if (firstId == meshId) {
+          firstsById.put(meshId, materialProperty);
+          continue;
+        }
+        ObjProperty.MaterialProperty first = firstsById.get(firstId);
+        List<float[]> offsets = copyOffsets.get(first);
+        if (offsets == null) {
+          offsets = new ArrayList<>();
+          copyOffsets.put(first, offsets);
+        }
+        float[] offset = new float[3];
+        deduplicator.getOffset(firstId, meshId, offset);
+        offsets.add(offset);
+        first.bounds.expandBy(materialProperty.bounds);
+        iterator.remove();
+      }
+    }
+
+    int numDrawsAfter = numDrawsBefore;
+    for (Map.Entry<ObjProperty.MaterialProperty, List<float[]>> entry : copyOffsets.entrySet()) {
+      List<float[]> offsets = entry.getValue();
+      float[] instanceOffsets = new float[3 * (offsets.size() + 1)];
+      for (int i = 0; i < offsets.size(); ++i) {
+        System.arraycopy(offsets.get(i), 0, instanceOffsets, 3 * (i + 1), 3);
+      }
+      ObjProperty.MaterialProperty first = entry.getKey();
+      first.setInstanceOffsets(instanceOffsets, instancedDraws);
+      final int numInstances = offsets.size() + 1;
+      final int numBatches = (numInstances + first.batchSize - 1) / first.batchSize;
+      numDrawsAfter -= numInstances - (instancedDraws ? 1 : numBatches);
+    }
+    for (ObjProperty.MaterialProperty first : firstsById.values()) {
+      bytesAfter += first.gpuBytes();
+    }
+
+    section.count("meshes", deduplicator.getNumMeshes())
+            .count("uniqueMeshes", deduplicator.getNumUnique())
+            .count("drawsBefore", numDrawsBefore)
+            .count("drawsAfter", numDrawsAfter)
+            .bytesIn(bytesBefore)
+            .bytesOut(bytesAfter);
+    Log.i(TAG, "Deduplicated " + deduplicator.getNumMeshes() + " meshes into "
+            + deduplicator.getNumUnique() + " with " + copyOffsets.size() + " instanced: "
+            + (bytesBefore / 1024) + " KB of geometry in " + numDrawsBefore + " draws before, "
+            + (bytesAfter / 1024) + " KB in " + numDrawsAfter + " draws after, "
+            + (instancedDraws ? "instanced" : "batched"));
+  }
+
+  private String materialSignature(ObjProperty.MaterialProperty materialProperty) {
+    StringBuilder signature = new StringBuilder();
+    signature.append(materialProperty.hasTexture).append('|')
+            .append(materialProperty.textureKey).append('|')
+            .append(materialProperty.texCoords.limit() > 0).append('|');
+    appendTuple(signature, materialProperty.ambient);
+    appendTuple(signature, materialProperty.diffuse);
+    appendTuple(signature, materialProperty.specular);
+    signature.append(materialProperty.shininess).append('|').append(materialProperty.opacity);
+    return signature.toString();
+  }
+
+  private void appendTuple(StringBuilder signature, FloatTuple tuple) {
+    if (tuple != null) {
+      signature.append(tuple.getX()).append(',').append(tuple.getY()).append(',')
+              .append(tuple.getZ());
+    }
+    signature.append('|');
+  }
+
+  // Concatenates the buffers of the group into the target, which is the first material of the
+  // group.
+  private void mergeInto(
+          ObjProperty.MaterialProperty target, List<ObjProperty.MaterialProperty> group) {
+    int numVertexFloats = 0;
+    int numTexCoordFloats = 0;
+    int numNormalFloats = 0;
+    int numIndices = 0;
+    for (ObjProperty.MaterialProperty materialProperty : group) {
+      numVertexFloats += materialProperty.vertices.limit();
+      numTexCoordFloats += materialProperty.texCoords.limit();
+      numNormalFloats += materialProperty.normals.limit();
+      numIndices += materialProperty.wideIndices.limit();
+    }
+
+    FloatBuffer vertices = ObjectRenderer.createDirectFloatBuffer(numVertexFloats);
+    FloatBuffer texCoords = ObjectRenderer.createDirectFloatBuffer(numTexCoordFloats);
+    FloatBuffer normals = ObjectRenderer.createDirectFloatBuffer(numNormalFloats);
+    IntBuffer indices = ObjectRenderer.createDirectIntBuffer(numIndices);
+    for (ObjProperty.MaterialProperty materialProperty : group) {
+      final int indexOffset = vertices.position() / 3;
+      vertices.put((FloatBuffer) materialProperty.vertices.duplicate().rewind());
+      texCoords.put((FloatBuffer) materialProperty.texCoords.duplicate().rewind());
+      normals.put((FloatBuffer) materialProperty.normals.duplicate().rewind());
+      final int limit = materialProperty.wideIndices.limit();
+      for (int i = 0; i < limit; ++i) {
+        indices.put(materialProperty.wideIndices.get(i) + indexOffset);
+      }
+      if (materialProperty != target) {
+        target.bounds.expandBy(materialProperty.bounds);
+      }
+    }
+
+    target.vertices = (FloatBuffer) vertices.rewind();
+    target.texCoords = (FloatBuffer) texCoords.rewind();
+    target.normals = (FloatBuffer) normals.rewind();
+    target.wideIndices = (IntBuffer) indices.rewind();
+    target.updateBufferLayout();
+  }
+
+  // Reads the mtl files of the obj file, looking them and their textures up in the manifest.
+  private Map<String, MtlAndTexture> fetchMaterials(List<String> mtlFileNames, Context context,
+                                                    File objFile, DatasetManifest manifest)
+          throws IOException {
+    Map<String, MtlAndTexture> materialByNameMap = new HashMap<>();
+
+    List<MtlAndTexture> mtlAndTextures = new ArrayList<>();
+
+    for (String mtlFileName : mtlFileNames) {
+      File mtlFile = manifest.resolveFile(objFile, mtlFileName);
+      if (mtlFile == null) {
+        Log.w(TAG, "Material library '" + mtlFileName + "' of '" + objFile + "' is not found");
+        continue;
+      }
+      File mtlDir = mtlFile.getParentFile();
+
+      try (InputStream materialInputStream = context.getContentResolver().openInputStream(Uri.fromFile(mtlFile))) {
+        if (materialInputStream != null) {
+          List<Mtl> mtls = MtlReader.read(materialInputStream);
+          for (Mtl mtl : mtls) {
+            File textureFile = null;
+            // TODO: can we get multiple texture files for a single material group?
+            if(mtl.getMapKd() != null) {
+              textureFile = manifest.resolveFile(mtlFile, mtl.getMapKd());
+              if (textureFile == null) {
+                String textureFileLocation = mtl.getMapKd().replaceAll("\\\\", "/");
+                textureFile = new File(mtlDir, textureFileLocation);
+              }
+            }
+            mtlAndTextures.add(new MtlAndTexture(mtl, textureFile));
+          }
+        }
+      }
+    }
+
+    // TODO: consider different materials sharing same name (doomed anyways?)
+    for (MtlAndTexture mtlAndTexture : mtlAndTextures) {
+      String name = mtlAndTexture.getMtl().getName();
+      materialByNameMap.put(name, mtlAndTexture);
+    }
+    return materialByNameMap;
+  }
+
+  private class MtlAndTexture {
+    private final Mtl mtl;
+
+    private final File textureFile;
+
+    private Mtl getMtl() {
+      return mtl;
+    }
+
+    private File getTextureFile() {
+      return textureFile;
+    }
+
+    private MtlAndTexture(Mtl mtl, File textureFile) {
+      this.mtl = mtl;
+      this.textureFile = textureFile;
+    }
+  }
+
+  // The worker pools of a load: the stage the obj files are parsed on, the stage they are split
+  // into buffers on, and the decoder the textures are decoded on. The tiles of a tileset share one
+  // set, so that a tile does not start threads of its own. A dataset load has its own stages, and
+  // creates its decoder once the files are processed.
+  static class LoadStages {
+    final LoadPipeline.Stage<LoadPipeline.Task<Future<ObjProperty>>, Future<ObjProperty>>
+            parseStage = new LoadPipeline.Stage<>("fmear-parse", NUM_PARSE_WORKERS,
+                    PIPELINE_QUEUE_CAPACITY, new LoadPipeline.TaskWorker<Future<ObjProperty>>());
+    final LoadPipeline.Stage<LoadPipeline.Task<ObjProperty>, ObjProperty> processStage =
+            new LoadPipeline.Stage<>("fmear-process", NUM_PROCESS_WORKERS,
+                    PIPELINE_QUEUE_CAPACITY, new LoadPipeline.TaskWorker<ObjProperty>());
+    private final ObjectRenderer renderer;
+    private TextureDecoder textureDecoder;
+
+    LoadStages(ObjectRenderer renderer) {
+      this.renderer = renderer;
+    }
+
+    // The decoder is created on first use, since a tile without textures does not need one.
+    synchronized TextureDecoder getTextureDecoder() {
+      if (textureDecoder == null) {
+        textureDecoder = renderer.createTextureDecoder();
+      }
+      return textureDecoder;
+    }
+
+    /** Lets the queued items finish and stops the worker threads. */
+    synchronized void shutdown() {
+      parseStage.shutdown();
+      processStage.shutdown();
+      if (textureDecoder != null) {
+        textureDecoder.shutdown();
+      }
+    }
+
+    /** Drops the queued items and interrupts the running ones. */
+    synchronized void shutdownNow() {
+      parseStage.shutdownNow();
+      processStage.shutdownNow();
+      if (textureDecoder != null) {
+        textureDecoder.shutdownNow();
+      }
+    }
+  }
+
+  private boolean containsColor(FloatTuple rgb) {
+    return (rgb.getX() != 0f || rgb.getY() != 0f || rgb.getZ() != 0f);
+  }
+
+  // Adds smooth normals to a triangulated obj: every vertex position gets the sum of the normals of
+  // the faces that use it, normalized. The face normal is computed into a scratch array, so only a
+  // new vertex position allocates its normal.
+  private Obj createNewObjWithNormals(Obj obj) {
+    ArrayList<float[]> normalArrayList = new ArrayList<>(obj.getNumVertices());
+    Map<FloatTuple, Integer> vertexToNormalIndexMap = new HashMap<>(obj.getNumVertices());
+    int[][] faceNormalIndices = new int[obj.getNumFaces()][];
+    final FloatTuple[] faceVertices = new FloatTuple[3];
+    final float[] faceNormal = new float[3];
+
+    for (int i = 0; i < obj.getNumFaces(); i++) {
+      ObjFace face = obj.getFace(i);
+      for (int j = 0; j < 3; j++) {
+        faceVertices[j] = obj.getVertex(face.getVertexIndex(j));
+      }
+      calculateFaceNormal(faceVertices, faceNormal);
+
+      int[] normalIndices = new int[3];
+      for (int j = 0; j < 3; j++) {
+        Integer index = vertexToNormalIndexMap.get(faceVertices[j]);
+        if (index == null) {
+          index = normalArrayList.size();
+          normalArrayList.add(new float[3]);
+          vertexToNormalIndexMap.put(faceVertices[j], index);
+        }
+        float[] vertexNormal = normalArrayList.get(index);
+        vertexNormal[0] += faceNormal[0];
+        vertexNormal[1] += faceNormal[1];
+        vertexNormal[2] += faceNormal[2];
+        normalIndices[j] = index;
+      }
+      faceNormalIndices[i] = normalIndices;
+    }
+
+    // Normalize vertex normals after all faces have been evaluated
+    for (float[] vertexNormal : normalArrayList) {
+      normalize(vertexNormal);
+    }
+
+    // Clone to output obj
+    Obj output = Objs.create();
+    output.setMtlFileNames(obj.getMtlFileNames());
+    // copy vertices
+    for (int i = 0; i < obj.getNumVertices(); i++) {
+      output.addVertex(obj.getVertex(i));
+    }
+    // copy texture coordinates
+    for (int i = 0; i < obj.getNumTexCoords(); i++) {
+      output.addTexCoord(obj.getTexCoord(i));
+    }
+    // inject our normals
+    for (float[] normal : normalArrayList) {
+      output.addNormal(toFloatTuple(normal));
+    }
+    // copy and inject normals to face
+    for (int h = 0; h < obj.getNumFaces(); h++) {
+      ObjFace face = obj.getFace(h);
+      activateGroups(obj, face, output);
+      int numVertices = face.getNumVertices();
+      // get vertices
+      int[] v = new int[numVertices]; // triangles only!
+      for (int i = 0; i < numVertices; i++) {
+        v[i] = face.getVertexIndex(i);
+      }
+
+      // get texture coords
+      int[] vt = null;
+      if (face.containsTexCoordIndices()) {
+        vt = new int[numVertices];
+        for (int i = 0; i < numVertices; i++) {
+          vt[i] = face.getTexCoordIndex(i);
+        }
+      }
+
+      // The face holds on to the normal indices, which are not used again.
+      output.addFace(ObjFaces.create(v, vt, faceNormalIndices[h]));
+    }
+    return output;
+  }
+
+  private void activateGroups(Obj input, ObjFace face, Obj output) {
+    Set<String> activatedGroupNames =
+            input.getActivatedGroupNames(face);
+    if (activatedGroupNames != null) {
+      output.setActiveGroupNames(
+              activatedGroupNames);
+    }
+    String activatedMaterialGroupName =
+            input.getActivatedMaterialGroupName(face);
+    if (activatedMaterialGroupName != null) {
+      output.setActiveMaterialGroupName(
+              activatedMaterialGroupName);
+    }
+  }
+
+  private static FloatTuple toFloatTuple(float[] vector3) {
+    return FloatTuples.create(vector3[0], vector3[1], vector3[2]);
+  }
+
+  private static void normalize(float[] array) {
+    float magnitude = (float) Math.sqrt(array[0] * array[0] + array[1] * array[1] + array[2] * array[2]);
+    array[0] = array[0] / magnitude;
+    array[1] = array[1] / magnitude;
+    array[2] = array[2] / magnitude;
+  }
+
+  // Writes the cross product of the edges of the triangle from its first vertex into normal. Its
+  // length is twice the area of the triangle, so larger faces weigh more in the vertex normals.
+  private static void calculateFaceNormal(FloatTuple[] faceVertices, float[] normal) {
+    final FloatTuple origin = faceVertices[0];
+    final float x1 = faceVertices[1].getX() - origin.getX();
+    final float y1 = faceVertices[1].getY() - origin.getY();
+    final float z1 = faceVertices[1].getZ() - origin.getZ();
+    final float x2 = faceVertices[2].getX() - origin.getX();
+    final float y2 = faceVertices[2].getY() - origin.getY();
+    final float z2 = faceVertices[2].getZ() - origin.getZ();
+    normal[0] = y1 * z2 - y2 * z1;
+    normal[1] = z1 * x2 - z2 * x1;
+    normal[2] = x1 * y2 - x2 * y1;
+  }
+}
@@ -15,50 +15,49 @@
 package com.google.ar.core.examples.java.common.rendering;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.net.Uri;
 import android.opengl.GLES20;
-import android.opengl.GLUtils;
+import android.opengl.GLES30;
 import android.opengl.Matrix;
-import android.os.AsyncTask;
 import android.util.Log;
 
-import com.safe.fmear.FileFinder;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.nio.ShortBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.EnumSet;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import de.javagl.obj.FloatTuple;
 import de.javagl.obj.FloatTuples;
-import de.javagl.obj.Mtl;
-import de.javagl.obj.MtlReader;
 import de.javagl.obj.Obj;
-import de.javagl.obj.ObjData;
-import de.javagl.obj.ObjFace;
-import de.javagl.obj.ObjFaces;
-import de.javagl.obj.ObjReader;
-import de.javagl.obj.ObjSplitting;
-import de.javagl.obj.ObjUtils;
-import de.javagl.obj.Objs;
-
-/** Renders an object loaded from an OBJ file in OpenGL. */
+
+/**
+ * Renders an object loaded from OBJ, glTF or compressed mesh files in OpenGL.
+ *
+ * <p>The draws and the tile selection run every frame and do not allocate: lists are walked with
+ * indexed loops rather than iterators, and the scratch arrays are fields.
+ */
 public class ObjectRenderer {
 
   public interface ObjFilesLoadedDelegate {
     public void objFilesLoaded(int numFilesLoaded, int totalNumFiles);
+
+    // Called on the loader thread when a load fails, or when a tile of a tileset does. Nothing of
+    // the failed load is drawn; a cancelled load is not reported.
+    public void objFilesLoadFailed(Throwable error);
   }
 
   public enum RenderingOptions {
@@ -66,17 +65,68 @@ public class ObjectRenderer {
     DRAW_TRANSPARENT
   }
 
-  private static FloatTuple createDefaultDiffuse() {
+  /**
+   * The CPU time spent submitting the draws of the object passes, from the first material to the
+   * last draw call, so that the backends can be compared per draw. A batch of instances counts as
+   * a draw per batch.
+   */
+  public static class SubmitStats {
+    private String backend = "";
+    private long numPasses = 0;
+    private long numDraws = 0;
+    private long submitNanos = 0;
+
+    void setBackend(String backend) {
+      this.backend = backend;
+    }
+
+    void record(int passDraws, long passNanos) {
+      ++numPasses;
+      numDraws += passDraws;
+      submitNanos += passNanos;
+    }
+
+    /** The backend the passes were drawn with, "OpenGL ES 2.0" or "OpenGL ES 3.0". */
+    public String getBackend() {
+      return backend;
+    }
+
+    public long getNumDraws() {
+      return numDraws;
+    }
+
+    public long getSubmitNanos() {
+      return submitNanos;
+    }
+
+    public void reset() {
+      numPasses = 0;
+      numDraws = 0;
+      submitNanos = 0;
+    }
+
+    @Override
+    public String toString() {
+      if (numPasses == 0) {
+        return backend + ": no passes";
+      }
+      return backend + ": " + (numDraws / numPasses) + " draws/pass, "
+              + (submitNanos / numPasses / 1000) + " us/pass, "
+              + ((numDraws > 0) ? submitNanos / numDraws : 0) + " ns/draw";
+    }
+  }
+
+  static FloatTuple createDefaultDiffuse() {
     return FloatTuples.create(0.5f, 0.5f, 0.5f);
   }
 
-  private static FloatTuple createDefaultAmbient() {
+  static FloatTuple createDefaultAmbient() {
     return FloatTuples.create(0.2f, 0.2f, 0.2f);
   }
 
   private static final String TAG = ObjectRenderer.class.getSimpleName();
 
-  private static class Bounds {
+  static class Bounds {
 
     public boolean isValid() {
       return initialized;
@@ -127,20 +177,18 @@ public class ObjectRenderer {
     public float getMaxY() { return maxY; };
     public float getMaxZ() { return maxZ; };
 
-    public float[] getCenter() {
-      return new float[] {
-              (getMinX() + getMaxX()) * 0.5f,
-              (getMinY() + getMaxY()) * 0.5f,
-              (getMinZ() + getMaxZ()) * 0.5f
-      };
+    // Writes the center into center[0..2], so that it can be called every frame without
+    // allocating.
+    public void getCenter(float[] center) {
+      center[0] = (getMinX() + getMaxX()) * 0.5f;
+      center[1] = (getMinY() + getMaxY()) * 0.5f;
+      center[2] = (getMinZ() + getMaxZ()) * 0.5f;
     }
 
-    public float[] getSize() {
-      return new float[] {
-              (getMaxX() - getMinX()),
-              (getMaxY() - getMinY()),
-              (getMaxZ() - getMinZ())
-      };
+    public void getSize(float[] size) {
+      size[0] = (getMaxX() - getMinX());
+      size[1] = (getMaxY() - getMinY());
+      size[2] = (getMaxZ() - getMinZ());
     }
 
     boolean initialized = false;
@@ -152,12 +200,66 @@ public class ObjectRenderer {
     public float maxZ = 0.0f;
   };
 
-  private static class ObjProperty {
+  static class ObjProperty {
 
-    private static class MaterialProperty
+    static class MaterialProperty
     {
+      // Sets the element counts and the offsets of the attributes in the vertex buffer from the
+      // temporary buffers.
+      void updateBufferLayout() {
+        updateBufferLayout(vertices.limit(), texCoords.limit(), normals.limit(),
+                wideIndices.limit());
+      }
+
+      // Sets the element counts and the offsets from the number of values of each attribute, for
+      // geometry that is uploaded from a ChunkBlob.
+      void updateBufferLayout(
+              int numVertexFloats, int numTexCoordFloats, int numNormalFloats, int numIndices) {
+        numVertices = numVertexFloats / 3;
+        indexCount = numIndices;
+        numTexCoords = numTexCoordFloats / 3;
+        numNormals = numNormalFloats / 3;
+
+        verticesBaseAddress = 0;
+        texCoordsBaseAddress = verticesBaseAddress + 4 * numVertexFloats;
+        normalsBaseAddress = texCoordsBaseAddress + 4 * numTexCoordFloats;
+      }
+
+      // The size of the vertex and index buffers on the GPU, with the instance offsets or the
+      // batch of instances of a deduplicated mesh.
+      long gpuBytes() {
+        if (batchSize > 1) {
+          return (vertexBytes() + 4L * numVertices + 4L * indexCount) * batchSize;
+        }
+        final long instanceBytes = (instanceOffsets != null) ? 4L * instanceOffsets.length : 0;
+        return vertexBytes() + 4L * indexCount + instanceBytes;
+      }
+
+      // The size of the attributes of a single instance in the vertex buffer.
+      long vertexBytes() {
+        return normalsBaseAddress + 12L * numNormals;
+      }
+
+      // Makes the material draw its mesh at every offset, with instanced draws on the OpenGL ES 3.0
+      // backend and in batches of copies of the mesh otherwise.
+      void setInstanceOffsets(float[] offsets, boolean instancedDraws) {
+        instanceOffsets = offsets;
+        batchSize = instancedDraws ? 1 : MeshDeduplicator.batchSize(offsets.length / 3);
+      }
+
+      int numInstances() {
+        return (instanceOffsets != null) ? instanceOffsets.length / 3 : 1;
+      }
+
       void clearTemporaryFileHandlesAndBuffers() {
         textureFile = null;
+        objFilename = null;
+        // The decoded texture may be shared with other materials, so it is recycled by
+        // updateBuffers once all the materials are uploaded.
+        decodedTexture = null;
+        texturePlan = null;
+        texturePage = null;
+        blob = null;
         wideIndices = null;
         vertices = null;
         texCoords = null;
@@ -170,9 +272,31 @@ public class ObjectRenderer {
 
       public boolean hasTexture = false;
       public int textureId = 0;
+      // The TextureCache key of the texture. Every material with a texture holds one reference to
+      // the cached texture once its buffers are updated.
+      public String textureKey;
 
       public int vertexBufferId = 0;
       public int indexBufferId = 0;
+      // The translations of the copies of a deduplicated mesh, three floats per instance starting
+      // with 0, 0, 0 for the mesh itself, or null if the mesh is drawn once. Instanced draws take
+      // the offsets from their own buffer; batched draws hold the mesh once per instance of a
+      // batch, with the attribute blocks and the instance indices batchSize times as long.
+      float[] instanceOffsets;
+      public int instanceBufferId = 0;
+      public int batchSize = 1;
+      // The vertex array object and the material uniform slot of the OpenGL ES 3.0 backend. The
+      // vertex array is created on the first draw of the chunk, and again after it is reloaded.
+      public int vertexArrayId = 0;
+      int uniformSlot = -1;
+      // The buffers as a GpuResourceManager resource, and the file the loader spilled them to if
+      // the dataset may not fit the GPU memory budget. Chunk files in the DatasetCache are not
+      // owned by the material and outlive it.
+      GeometryChunk chunk;
+      File chunkFile;
+      boolean ownsChunkFile = false;
+      // The texture as a GpuResourceManager resource.
+      GpuResourceManager.Resource textureResource;
 
       public int verticesBaseAddress = 0;
       public int texCoordsBaseAddress = 0;
@@ -183,20 +307,32 @@ public class ObjectRenderer {
       public int numTexCoords = 0;
       public int indexCount = 0;
 
-      private FloatTuple ambient = createDefaultAmbient();
-      private FloatTuple diffuse = createDefaultDiffuse();
-      private FloatTuple specular = FloatTuples.create(0f, 0f, 0f);
+      FloatTuple ambient = createDefaultAmbient();
+      FloatTuple diffuse = createDefaultDiffuse();
+      FloatTuple specular = FloatTuples.create(0f, 0f, 0f);
       // matches default values in DefaultMtl.java
-      private float shininess = 100f;
-      private float opacity = 1.0f;
+      float shininess = 100f;
+      float opacity = 1.0f;
 
-      // Temporary members that are set in ObjFilesAsyncLoader and are only used in updateBuffers.
+      // Temporary members that are set in ObjFilesLoader and are only used in updateBuffers.
       // To minimize memory usage, these members will be cleared in updateBuffers after use.
       public File textureFile;
-      private IntBuffer wideIndices;
-      private FloatBuffer vertices;
-      private FloatBuffer texCoords;
-      private FloatBuffer normals;
+      // The obj file the material was loaded from, for the load metrics.
+      String objFilename;
+      TextureDecoder.DecodedTexture decodedTexture;
+      // True if the loader found the texture already uploaded and added a reference to it, so
+      // there is nothing to decode.
+      boolean textureRetained = false;
+      // The texture the material was planned with, either on its own or as a tile of an atlas
+      // page, for the DatasetCache.
+      TextureBudget.Plan texturePlan;
+      TextureAtlas.Page texturePage;
+      // The geometry of a material loaded from the DatasetCache, in place of the buffers below.
+      ChunkBlob blob;
+      IntBuffer wideIndices;
+      FloatBuffer vertices;
+      FloatBuffer texCoords;
+      FloatBuffer normals;
     }
 
     public String objFilename;
@@ -204,9 +340,62 @@ public class ObjectRenderer {
     public ArrayList<MaterialProperty> materialProperties;
   };
 
+  // The vertex and index buffer of a material, as a resource of the GpuResourceManager. Only
+  // chunks whose geometry was spilled to a chunk file by the loader can be evicted; they are
+  // reloaded from the memory-mapped file when they are drawn again.
+  static class GeometryChunk extends GpuResourceManager.Resource {
+    final ObjProperty.MaterialProperty materialProperty;
+    final File chunkFile;
+    final long bytes;
+
+    GeometryChunk(ObjProperty.MaterialProperty materialProperty) {
+      super(GpuResourceManager.Kind.BUFFER);
+      this.materialProperty = materialProperty;
+      this.chunkFile = materialProperty.chunkFile;
+      this.bytes = materialProperty.gpuBytes();
+    }
+
+    @Override
+    protected long evict() {
+      if (chunkFile == null) {
+        return -1;
+      }
+      deleteGeometry(materialProperty);
+      return 0;
+    }
+
+    @Override
+    protected long reload() {
+      try {
+        uploadGeometry(materialProperty, ChunkBlob.map(chunkFile));
+        return bytes;
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to reload chunk '" + chunkFile + "'", e);
+        return -1;
+      }
+    }
+
+    @Override
+    protected void delete() {
+      deleteGeometry(materialProperty);
+      if (chunkFile != null && materialProperty.ownsChunkFile) {
+        chunkFile.delete();
+      }
+    }
+  }
+
   // Shader names.
   private static final String VERTEX_SHADER_NAME = "shaders/object.vert";
   private static final String FRAGMENT_SHADER_NAME = "shaders/object.frag";
+  private static final String VERTEX_SHADER_ES3_NAME = "shaders/object_es3.vert";
+  private static final String FRAGMENT_SHADER_ES3_NAME = "shaders/object_es3.frag";
+
+  // The uniform buffer bindings of the OpenGL ES 3.0 backend, and the sizes of the std140 uniform
+  // blocks of object_es3.vert and object_es3.frag.
+  private static final int FRAME_UNIFORMS_BINDING = 0;
+  private static final int MATERIAL_UNIFORMS_BINDING = 1;
+  private static final int FRAME_UNIFORM_BYTES = 160;
+  private static final int MATERIAL_UNIFORM_BYTES = 64;
 
   private static final int COORDS_PER_VERTEX = 3;
 
@@ -216,9 +405,130 @@ public class ObjectRenderer {
 
   private int program;
 
-  private List<ObjProperty> objProperties;
+  // Set by the loader thread, and picked up by the GL thread in updateBuffers. Never drawn; the
+  // GL thread draws residentObjProperties once they are uploaded.
+  private volatile List<ObjProperty> objProperties;
+  // Every load gets the next generation. A loader whose generation is no longer the current one
+  // was cancelled: it stops at its next check and never publishes its result. The loader
+  // publishes while holding the lock, so a load cannot be cancelled halfway through publishing.
+  private final Object loadLock = new Object();
+  final AtomicInteger loadGeneration = new AtomicInteger();
+  private int objPropertiesGeneration;
+  private LoadMetrics objPropertiesMetrics;
+  private Thread loaderThread;
+  // Texture references held by cancelled loads, released on the GL thread in updateBuffers.
+  final ConcurrentLinkedQueue<String> cancelledTextureKeys = new ConcurrentLinkedQueue<>();
   private Bounds datasetBounds = new Bounds();
 
+  // Every buffer and texture is tracked against the GPU memory budget. Least recently drawn
+  // chunks and compressed textures are evicted when the resident bytes go over it. Uncompressed
+  // textures count against the budget but cannot be evicted, see setGpuMemoryBudget.
+  private static final long DEFAULT_GPU_MEMORY_BUDGET = 256L * 1024 * 1024;
+  final GpuResourceManager gpuResourceManager =
+          new GpuResourceManager(DEFAULT_GPU_MEMORY_BUDGET);
+  // Set by reset, so that the GL thread deletes the buffers and textures in the next updateBuffers.
+  private volatile boolean releaseRequested = false;
+  private boolean chunkDirectoryCleaned = false;
+
+  // Obj files that would not fit this much heap once parsed are processed out of core, into chunk
+  // files, one at a time. By default only the files that could not be parsed in the whole heap
+  // are, since the out of core path skips the mesh deduplication, the material merging and the
+  // texture atlas. Files just under the ceiling are still parsed, and may run out of memory if
+  // several of them are parsed at the same time; a lower ceiling trades those passes for
+  // safety.
+  volatile long outOfCoreHeapCeiling = Runtime.getRuntime().maxMemory();
+  final Object outOfCoreLock = new Object();
+
+  // Textures are shared between all the materials, obj files and datasets that use the same image.
+  final TextureCache textureCache = new TextureCache(gpuResourceManager);
+
+  // The textures of a dataset are scaled down to fit in this many bytes of GPU memory, and to
+  // GL_MAX_TEXTURE_SIZE, which is queried in createProgram.
+  private static final long DEFAULT_TEXTURE_MEMORY_BUDGET = 128L * 1024 * 1024;
+  volatile long textureMemoryBudget = DEFAULT_TEXTURE_MEMORY_BUDGET;
+  volatile int maxTextureSize = 2048;
+  // Textures are compressed to ETC1, or to ETC2 if they have alpha and OpenGL ES 3.0 is available.
+  // The compressed textures are kept in a disk cache under the app cache directory. Support is
+  // queried in createProgram.
+  private static final long COMPRESSED_TEXTURE_CACHE_BYTES = 256L * 1024 * 1024;
+  private volatile boolean textureCompressionEnabled = true;
+  private volatile boolean etc1Supported = false;
+  private volatile boolean etc2Supported = false;
+  private CompressedTextureCache compressedTextureCache;
+  // Copies of the same mesh are drawn as instances of it with glDrawElementsInstanced by the
+  // OpenGL ES 3.0 backend, and in batches from a uniform array of offsets otherwise. Set in
+  // createProgram.
+  volatile boolean instancedDrawsSupported = false;
+
+  // The OpenGL ES 3.0 backend, chosen in createProgram if the context was requested as 3.0 and is
+  // one. The per-frame uniforms are in a uniform buffer, every material has a range of the
+  // material uniform buffer, and the attributes of every chunk are recorded once in a vertex
+  // array object, so that a draw binds the material range and the vertex array instead of setting
+  // every uniform and attribute. Otherwise the OpenGL ES 2.0 backend sets them for every draw.
+  private int contextClientVersion = 2;
+  private boolean gles3 = false;
+  private int frameUniformBufferId = 0;
+  private final ByteBuffer frameUniformData =
+          ByteBuffer.allocateDirect(FRAME_UNIFORM_BYTES).order(ByteOrder.nativeOrder());
+  // The material uniforms of the uploaded materials, a slot of materialUniformStride bytes each,
+  // kept here so that the buffer can be grown and rewritten whole when materials are added. The
+  // slots of released materials are reused.
+  private int materialUniformBufferId = 0;
+  private int materialUniformBufferBytes = 0;
+  private int materialUniformStride = MATERIAL_UNIFORM_BYTES;
+  private ByteBuffer materialUniformData =
+          ByteBuffer.allocateDirect(0).order(ByteOrder.nativeOrder());
+  private int numMaterialSlots = 0;
+  private final ArrayDeque<Integer> freeMaterialSlots = new ArrayDeque<>();
+  private boolean materialUniformsDirty = false;
+  private final int[] vertexArrayIds = new int[1];
+  // The CPU time spent submitting the draws of the object passes.
+  private final SubmitStats submitStats = new SubmitStats();
+
+  // Processed datasets, so that opening the same archive again skips parsing and processing.
+  private static final long DATASET_CACHE_BYTES = 512L * 1024 * 1024;
+  private DatasetCache datasetCache;
+  volatile boolean textureAtlasEnabled = true;
+  // The obj properties whose buffers and textures are currently on the GPU, and the loaded obj
+  // properties that were replaced before they were ever uploaded. The textures held by both are
+  // released in updateBuffers.
+  private List<ObjProperty> residentObjProperties;
+  private final List<ObjProperty> staleObjProperties = new ArrayList<>();
+
+  // The last stage of the pipeline runs on the GL thread: a loaded dataset is uploaded a few
+  // materials per frame, up to this many bytes, so that a large dataset does not stall a frame.
+  static final long UPLOAD_BYTES_PER_FRAME = 16L * 1024 * 1024;
+  private List<ObjProperty> uploadingObjProperties;
+  private final ArrayDeque<ObjProperty.MaterialProperty> uploadQueue = new ArrayDeque<>();
+  // Decoded textures can be shared by several materials, so they are recycled after all the
+  // materials are uploaded.
+  private final Set<TextureDecoder.DecodedTexture> uploadedTextures = new HashSet<>();
+  private LoadPipeline.StageStats uploadStats;
+  // The metrics of the dataset being uploaded. They are complete once the upload is.
+  private LoadMetrics uploadMetrics;
+  private volatile LoadMetrics.Listener loadMetricsListener;
+  private static final String LOAD_METRICS_FILE_NAME = "load-metrics.json";
+
+  // A tiled dataset, see loadTileset. The GL thread selects the tiles in updateTiles and requests
+  // a few at a time from the tile loader thread, which hands the loaded tiles back through the
+  // queue to be uploaded in updateBuffers. The obj properties of every loaded tile are kept by
+  // tile index, and those of the selected tiles are drawn.
+  private static final int MAX_TILE_LOADS = 3;
+  private static final long DEFAULT_TILE_MEMORY_BUDGET = 192L * 1024 * 1024;
+  private volatile long tileMemoryBudget = DEFAULT_TILE_MEMORY_BUDGET;
+  private volatile float maximumScreenSpaceError =
+          TileSelector.DEFAULT_MAXIMUM_SCREEN_SPACE_ERROR;
+  private TileSelector tileSelector;
+  private BlockingQueue<TileManifest.Tile> tileRequests;
+  private int numTileLoads = 0;
+  private LoadMetrics tileMetrics;
+  private final List<List<ObjProperty>> tileObjProperties = new ArrayList<>();
+  private final ArrayList<ObjProperty> drawnTileObjProperties = new ArrayList<>();
+  private final ConcurrentLinkedQueue<LoadedTile> loadedTiles = new ConcurrentLinkedQueue<>();
+  private int viewportHeight = 0;
+  private final float[] tileModelViewMatrix = new float[16];
+  private final float[] tileCameraMatrix = new float[16];
+
   // Shader location: model view projection matrix.
   private int modelViewUniform;
   private int modelViewProjectionUniform;
@@ -228,6 +538,11 @@ public class ObjectRenderer {
   private int normalAttribute;
   private int texCoordAttribute;
 
+  // Shader location: the offsets of the instances of a deduplicated mesh.
+  private int instanceOffsetAttribute;
+  private int instanceIndexAttribute;
+  private int instanceOffsetsUniform;
+
   // Shader location: texture sampler.
   private int textureUniform;
   private int objectColorCorrectionUniform;
@@ -245,19 +560,31 @@ public class ObjectRenderer {
   // Shader location: color correction property
   private int colorCorrectionParameterUniform;
 
+  // The model matrix, recomputed only when the anchor, the gestures or the bounds change.
+  private final ModelTransform modelTransform = new ModelTransform();
+
   // Temporary matrices allocated here to reduce number of allocations for each frame.
-  private final float[] modelMatrix = new float[16];
   private final float[] modelViewMatrix = new float[16];
   private final float[] modelViewProjectionMatrix = new float[16];
 
+  // The inputs of the per-frame uniforms as of their last upload. The uniforms keep their values
+  // in the program, so they are uploaded once when an input changes rather than for every
+  // material, and the transparent pass reuses what the opaque pass uploaded.
+  private final float[] uploadedCameraView = new float[16];
+  private final float[] uploadedCameraPerspective = new float[16];
+  private final float[] uploadedColorCorrectionRgba = new float[4];
+  private int uploadedModelVersion = -1;
+  private boolean perFrameUniformsDirty = true;
+
+  // The disk caches and the chunk directory are created on first use, since the context has no
+  // cache directory before onCreate.
   private Context context;
   private boolean initialized = false;
-  private boolean buffersNeedUpdate = false;
+  private volatile boolean buffersNeedUpdate = false;
 
   public ObjectRenderer(Context context) {
 
     this.context = context;
-    Matrix.setIdentityM(modelMatrix, 0);
   }
 
   // The original createOnGlThread create the shaders, the program, and the geometries. This
@@ -267,10 +594,11 @@ public class ObjectRenderer {
   public void createProgram(Context context)
           throws IOException {
 
-    final int vertexShader =
-            ShaderUtil.loadGLShader(TAG, context, GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_NAME);
-    final int fragmentShader =
-            ShaderUtil.loadGLShader(TAG, context, GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_NAME);
+    gles3 = contextClientVersion >= 3 && ShaderUtil.isGles3Context();
+    final int vertexShader = ShaderUtil.loadGLShader(TAG, context, GLES20.GL_VERTEX_SHADER,
+            gles3 ? VERTEX_SHADER_ES3_NAME : VERTEX_SHADER_NAME);
+    final int fragmentShader = ShaderUtil.loadGLShader(TAG, context, GLES20.GL_FRAGMENT_SHADER,
+            gles3 ? FRAGMENT_SHADER_ES3_NAME : FRAGMENT_SHADER_NAME);
 
     program = GLES20.glCreateProgram();
     GLES20.glAttachShader(program, vertexShader);
@@ -287,6 +615,16 @@ public class ObjectRenderer {
     normalAttribute = GLES20.glGetAttribLocation(program, "a_Normal");
     texCoordAttribute = GLES20.glGetAttribLocation(program, "a_TexCoord");
 
+    // A mesh that is drawn once uses the constant values of the instance attributes, which point
+    // at the zero offset. The OpenGL ES 3.0 shader has no instance index.
+    instanceOffsetAttribute = GLES20.glGetAttribLocation(program, "a_InstanceOffset");
+    instanceIndexAttribute = GLES20.glGetAttribLocation(program, "a_InstanceIndex");
+    instanceOffsetsUniform = GLES20.glGetUniformLocation(program, "u_InstanceOffsets");
+    GLES20.glVertexAttrib3f(instanceOffsetAttribute, 0.0f, 0.0f, 0.0f);
+    if (instanceIndexAttribute >= 0) {
+      GLES20.glVertexAttrib1f(instanceIndexAttribute, 0.0f);
+    }
+
     textureUniform = GLES20.glGetUniformLocation(program, "u_Texture");
     objectColorCorrectionUniform = GLES20.glGetUniformLocation(program, "u_ObjectColorCorrection");
 
@@ -300,10 +638,76 @@ public class ObjectRenderer {
     colorCorrectionParameterUniform =
             GLES20.glGetUniformLocation(program, "u_ColorCorrectionParameters");
 
+    if (gles3) {
+      createUniformBuffers();
+    }
+
     ShaderUtil.checkGLError(TAG, "Program parameters");
 
-    Matrix.setIdentityM(modelMatrix, 0);
+    final int[] maxTextureSizeParam = new int[1];
+    GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, maxTextureSizeParam, 0);
+    if (maxTextureSizeParam[0] > 0) {
+      maxTextureSize = maxTextureSizeParam[0];
+    }
+
+    final String glVersion = GLES20.glGetString(GLES20.GL_VERSION);
+    final String glExtensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+    // ETC2 is core in OpenGL ES 3.0 but not usable in an ES 2.0 context, which GL_VERSION still
+    // reports as ES 3 on devices that support it, so it follows the context like the backend.
+    etc2Supported = gles3;
+    instancedDrawsSupported = gles3;
+    etc1Supported = etc2Supported
+            || (glExtensions != null && glExtensions.contains("GL_OES_compressed_ETC1_RGB8_texture"));
+    submitStats.setBackend(gles3 ? "OpenGL ES 3.0" : "OpenGL ES 2.0");
+    Log.i(TAG, "Using the " + submitStats.backend + " backend on " + glVersion + ", ETC1 textures "
+            + (etc1Supported ? "are" : "are not") + " supported, ETC2 textures "
+            + (etc2Supported ? "are" : "are not") + " supported");
+
+    // A new program has none of the uniforms set.
+    perFrameUniformsDirty = true;
+
+  }
+
+  /**
+   * Sets the OpenGL ES version the context is requested with, before {@link #createProgram}. The
+   * OpenGL ES 3.0 backend is used if it is 3 and the context is 3.0 or later; the default is 2.
+   */
+  public void setContextClientVersion(int contextClientVersion) {
+    this.contextClientVersion = contextClientVersion;
+  }
+
+  /** The CPU time spent submitting draws. Read it while the GL thread is paused. */
+  public SubmitStats getSubmitStats() {
+    return submitStats;
+  }
 
+  // Binds the uniform blocks of the OpenGL ES 3.0 program and creates their buffers. The material
+  // ranges are aligned to the uniform buffer offset alignment of the device.
+  private void createUniformBuffers() {
+    GLES30.glUniformBlockBinding(program,
+            GLES30.glGetUniformBlockIndex(program, "FrameUniforms"), FRAME_UNIFORMS_BINDING);
+    GLES30.glUniformBlockBinding(program,
+            GLES30.glGetUniformBlockIndex(program, "MaterialUniforms"), MATERIAL_UNIFORMS_BINDING);
+    // Every texture is bound to unit 0.
+    GLES20.glUniform1i(textureUniform, 0);
+
+    final int[] alignment = new int[1];
+    GLES20.glGetIntegerv(GLES30.GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT, alignment, 0);
+    alignment[0] = Math.max(1, alignment[0]);
+    materialUniformStride =
+            (MATERIAL_UNIFORM_BYTES + alignment[0] - 1) / alignment[0] * alignment[0];
+
+    final int[] buffers = new int[2];
+    GLES20.glGenBuffers(2, buffers, 0);
+    frameUniformBufferId = buffers[0];
+    materialUniformBufferId = buffers[1];
+    materialUniformBufferBytes = 0;
+    materialUniformsDirty = true;
+    GLES20.glBindBuffer(GLES30.GL_UNIFORM_BUFFER, frameUniformBufferId);
+    GLES20.glBufferData(
+            GLES30.GL_UNIFORM_BUFFER, FRAME_UNIFORM_BYTES, null, GLES20.GL_DYNAMIC_DRAW);
+    GLES20.glBindBuffer(GLES30.GL_UNIFORM_BUFFER, 0);
+    GLES30.glBindBufferBase(GLES30.GL_UNIFORM_BUFFER, FRAME_UNIFORMS_BINDING, frameUniformBufferId);
   }
 
   public Bounds calculateBounds(FloatBuffer vertices) {
@@ -332,448 +736,1054 @@ public class ObjectRenderer {
     return bounds;
   }
 
+  /**
+   * Stops drawing the current dataset and cancels the load in progress, if any. The buffers and
+   * textures are deleted in the next call to {@link #updateBuffers}, on the GL thread.
+   */
   public void reset() {
+    cancelLoad();
     initialized = false;
+    releaseRequested = true;
+  }
+
+  // Moves on to the next load generation, so that the loader in progress stops and drops what it
+  // loaded so far. A loaded dataset that was not picked up by updateBuffers yet is dropped too.
+  private void cancelLoad() {
+    synchronized (loadLock) {
+      loadGeneration.incrementAndGet();
+      if (loaderThread != null) {
+        // Wakes up the loader if it waits for a stage, and stops the obj reader.
+        loaderThread.interrupt();
+        loaderThread = null;
+      }
+    }
   }
 
   public boolean isInitialized() { return initialized; }
 
-  private class ObjFilesAsyncLoader extends AsyncTask<File, Integer, ArrayList<ObjProperty>> {
+  /**
+   * Sets the total GPU memory that the textures of the next loaded dataset may use. Textures are
+   * downsampled until the dataset fits.
+   */
+  public void setTextureMemoryBudget(long budgetBytes) {
+    textureMemoryBudget = budgetBytes;
+  }
 
-    private Context context;
-    private ObjFilesLoadedDelegate delegate;
+  /**
+   * Sets the total GPU memory that the buffers and textures may use. When the resident bytes go
+   * over the budget, the least recently drawn chunks are unloaded and textures drop to a lower
+   * level of detail; they are reloaded when they are drawn again.
+   *
+   * <p>Only compressed textures can drop to a lower level of detail, since they are restored from
+   * the compressed texture cache. Uncompressed textures, with texture compression disabled or
+   * with alpha on an OpenGL ES 2.0 context, stay resident at full size until their dataset is
+   * released, so the budget may be exceeded by them.
+   */
+  public void setGpuMemoryBudget(long budgetBytes) {
+    gpuResourceManager.setBudget(budgetBytes);
+  }
 
-    public ObjFilesAsyncLoader(Context context, ObjFilesLoadedDelegate delegate) {
-      this.context = context;
-      this.delegate = delegate;
-    }
+  /** Returns the GPU memory currently used by the buffers and textures. */
+  public GpuResourceManager.Stats getGpuMemoryStats() {
+    return gpuResourceManager.getStats();
+  }
 
-    @Override
-    protected ArrayList<ObjProperty> doInBackground(File... files) {
-
-      ArrayList<ObjProperty> result = new ArrayList<>(files.length);
-
-      // Read each obj file
-      int numFilesLoaded = 0;
-      for (File objFile : files)
-      {
-        // Read the obj file.
-        try (InputStream objInputStream = context.getContentResolver().openInputStream(Uri.fromFile(objFile))) {
-          if (objInputStream == null) {
-            // nothing to load, move on
-            return null;
-          }
+  /**
+   * Enables or disables ETC1/ETC2 compression of the textures of the next loaded dataset.
+   * Compression is enabled by default and only used if the device supports the format.
+   */
+  public void setTextureCompressionEnabled(boolean enabled) {
+    textureCompressionEnabled = enabled;
+  }
 
-          Obj objObject = ObjReader.read(objInputStream);
-          Map<String, MtlAndTexture> materialsByName = fetchMaterials(objObject, context, objFile.getParentFile());
-
-          // Prepare the Obj so that its structure is suitable for
-          // rendering with OpenGL:
-          // 1. Triangulate it
-          // 2. Make sure that texture coordinates are not ambiguous
-          // 3. Make sure that normals are not ambiguous
-          // 4. Convert it to single-indexed data
-          Obj obj = ObjUtils.triangulate(objObject);
-          if (obj.getNumNormals() <= 0) {
-            obj = createNewObjWithNormals(obj);
-          }
-          obj = ObjUtils.makeTexCoordsUnique(obj);
-          obj = ObjUtils.makeNormalsUnique(obj);
-          objObject = ObjUtils.makeVertexIndexed(obj, Objs.create());
-
-          // For every obj file, store the properties for later use
-          ObjProperty objProperty = new ObjProperty();
-          objProperty.objFilename = objFile.toString();
-          result.add(objProperty);
-
-          Map<String, Obj> materialToObjMap = ObjSplitting.splitByMaterialGroups(objObject);
-          if (materialToObjMap.isEmpty()) {
-            // If there is no material, we just simply add the original obj with an empty material
-            // name
-            materialToObjMap.put("", objObject);
-          }
+  /**
+   * Enables or disables packing the small textures of the next loaded dataset into atlases.
+   * Atlases are enabled by default.
+   */
+  public void setTextureAtlasEnabled(boolean enabled) {
+    textureAtlasEnabled = enabled;
+  }
 
-          int numMaterialGroups = materialToObjMap.size();
-          objProperty.materialProperties = new ArrayList<>(numMaterialGroups);
-
-          for (Map.Entry<String, Obj> entry : materialToObjMap.entrySet()) {
-
-            // Get the material name from the key and the obj object from the value
-            String materialName = entry.getKey();
-            Obj currObj = entry.getValue();
-
-            // Create a material property record in the obj property
-            ObjProperty.MaterialProperty materialProperty = new ObjProperty.MaterialProperty();
-            objProperty.materialProperties.add(materialProperty);
-            materialProperty.materialName = materialName;
-
-            // If we can read a material and or a texture, we store it in the property.
-            MtlAndTexture mtlAndTexture = materialsByName.get(materialName);
-            if (mtlAndTexture != null) {
-              Mtl material = mtlAndTexture.getMtl();
-              File textureFile = mtlAndTexture.getTextureFile();
-              if (textureFile != null && textureFile.exists()) {
-                materialProperty.textureFile = textureFile;
-                materialProperty.hasTexture = true;
-              }
-              if (material != null) {
-                FloatTuple ka = material.getKa();
-                FloatTuple kd = material.getKd();
-
-                if (!containsColor(ka) && !containsColor(kd)) { // pitch black, probably simply undefined
-                  if (materialProperty.hasTexture) {
-                    materialProperty.ambient = FloatTuples.create(1.0f, 1.0f, 1.0f);
-                    materialProperty.diffuse = kd;
-                  } else {
-                    materialProperty.ambient = createDefaultAmbient();
-                    materialProperty.diffuse = createDefaultDiffuse();
-                  }
-                } else {
-                  materialProperty.ambient = ka;
-                  materialProperty.diffuse = kd;
-                }
+  /**
+   * Sets the heap that loading an obj file may use. Larger obj files are processed out of core
+   * within this much heap, and the archive reader stages them rather than parsing them.
+   */
+  public void setOutOfCoreHeapCeiling(long ceilingBytes) {
+    outOfCoreHeapCeiling = ceilingBytes;
+    ArchiveReader.setMaxParsedObjBytes(
+            ceilingBytes / OutOfCoreObjProcessor.HEAP_BYTES_PER_OBJ_BYTE);
+  }
 
-                materialProperty.specular = material.getKs();
-                materialProperty.shininess = material.getNs();
-                materialProperty.opacity = material.getD();
-              }
-            }
-
-            // OpenGL does not use Java arrays. ByteBuffers are used instead to provide data in a format
-            // that OpenGL understands.
-
-            // Obtain the data from the OBJ, as direct buffers:
-            materialProperty.wideIndices = ObjData.getFaceVertexIndices(currObj, 3);
-            materialProperty.vertices = ObjData.getVertices(currObj);
-            materialProperty.texCoords = ObjData.getTexCoords(currObj, 2);
-            materialProperty.normals = ObjData.getNormals(currObj);
-
-            // Calculate the material property bounds. Also expand the obj property bounds.
-            materialProperty.bounds = calculateBounds(materialProperty.vertices);
-            objProperty.bounds.expandBy(materialProperty.bounds);
-
-            // Load vertex buffer
-            materialProperty.numVertices = materialProperty.vertices.limit() / 3;
-            materialProperty.numTexCoords = materialProperty.texCoords.limit() / 3;
-            materialProperty.numNormals = materialProperty.normals.limit() / 3;
-
-            materialProperty.verticesBaseAddress = 0;
-            materialProperty.texCoordsBaseAddress = materialProperty.verticesBaseAddress + 4 * materialProperty.vertices.limit();
-            materialProperty.normalsBaseAddress = materialProperty.texCoordsBaseAddress + 4 * materialProperty.texCoords.limit();
-          }
-        }
-        catch (IOException e)
-        {
-          Log.e("ObjectRenderer", "Exception caught: ", e);
-        }
+  /**
+   * Sets the GPU memory that the loaded tiles of the next tileset may use. Tiles that are not
+   * drawn are unloaded, least recently drawn first, once the loaded tiles go over the budget.
+   */
+  public void setTileMemoryBudget(long budgetBytes) {
+    tileMemoryBudget = budgetBytes;
+  }
 
-        ++numFilesLoaded;
-        delegate.objFilesLoaded(numFilesLoaded, files.length);
-      }
+  /**
+   * Sets the screen space error, in pixels, above which a tile of the next tileset is refined into
+   * its children. Lower errors draw more detail with more tiles.
+   */
+  public void setMaximumScreenSpaceError(float maximumScreenSpaceError) {
+    this.maximumScreenSpaceError = maximumScreenSpaceError;
+  }
 
+  /** Sets the size of the viewport, which the screen space error of the tiles is relative to. */
+  public void setViewportSize(int width, int height) {
+    viewportHeight = height;
+  }
 
-      return result;
+  // Hands a loaded dataset to the GL thread, which picks it up in the next updateBuffers. Returns
+  // false if the load was cancelled, in which case the loader discards what it loaded.
+  boolean publishLoadedObjProperties(
+          List<ObjProperty> loaded, LoadMetrics metrics, int generation) {
+    synchronized (loadLock) {
+      if (generation != loadGeneration.get()) {
+        return false;
+      }
+      objProperties = loaded;
+      objPropertiesMetrics = metrics;
+      objPropertiesGeneration = generation;
+      buffersNeedUpdate = true;
+      loaderThread = null;
+      return true;
     }
+  }
 
-    @Override
-    protected void onPostExecute(ArrayList<ObjProperty> result) {
-
-      objProperties = result;
-      buffersNeedUpdate = true;
+  // Ends a load that failed, so that nothing waits on its loader thread. Returns false if the load
+  // was cancelled, in which case the failure is not reported.
+  boolean endFailedLoad(int generation) {
+    synchronized (loadLock) {
+      if (generation != loadGeneration.get()) {
+        return false;
+      }
+      loaderThread = null;
+      return true;
     }
   }
 
-  public void updateBuffers() {
-    if (!buffersNeedUpdate) {
-      return;
+  // The directory of the chunk files that the loader writes. Chunk files left behind by a previous
+  // run of the app are never reloaded, so they are deleted the first time. Returns null if the
+  // directory cannot be created.
+  synchronized File getChunkDirectory() {
+    File chunkDirectory = new File(context.getCacheDir(), "fmear-chunks");
+    if (!chunkDirectoryCleaned) {
+      File[] leftovers = chunkDirectory.listFiles();
+      if (leftovers != null) {
+        for (File leftover : leftovers) {
+          leftover.delete();
+        }
+      }
+      chunkDirectoryCleaned = true;
+    }
+    if (!chunkDirectory.isDirectory() && !chunkDirectory.mkdirs()) {
+      Log.e(TAG, "Failed to create the chunk directory " + chunkDirectory);
+      return null;
     }
+    return chunkDirectory;
+  }
 
-    // reset flag
-    buffersNeedUpdate = false;
+  /**
+   * Returns the file that the JSON report of the load metrics is written to, in a directory of its
+   * own under the app cache directory. The dataset directories are deleted when the next dataset
+   * is opened, so the report is not kept next to the dataset. Every load replaces the report of
+   * the previous one. Returns null if the directory cannot be created.
+   */
+  public File getLoadMetricsReportFile() {
+    File reportDirectory = new File(context.getCacheDir(), "fmear-reports");
+    if (!reportDirectory.isDirectory() && !reportDirectory.mkdirs()) {
+      Log.e(TAG, "Failed to create the report directory " + reportDirectory);
+      return null;
+    }
+    return new File(reportDirectory, LOAD_METRICS_FILE_NAME);
+  }
 
-    // reset bounds since we are going to recalculate it
-    datasetBounds.reset();
+  synchronized DatasetCache getDatasetCache() {
+    if (datasetCache == null) {
+      datasetCache = new DatasetCache(
+              new File(context.getCacheDir(), "fmear-datasets"), DATASET_CACHE_BYTES);
+    }
+    return datasetCache;
+  }
 
-    for (ObjProperty objProperty : objProperties) {
+  private synchronized CompressedTextureCache getCompressedTextureCache() {
+    if (compressedTextureCache == null) {
+      compressedTextureCache = new CompressedTextureCache(
+              new File(context.getCacheDir(), "fmear-textures"), COMPRESSED_TEXTURE_CACHE_BYTES);
+      textureCache.setCompressedTextureCache(compressedTextureCache);
+    }
+    return compressedTextureCache;
+  }
 
-      datasetBounds.expandBy(objProperty.bounds);
+  TextureDecoder createTextureDecoder() {
+    return (textureCompressionEnabled && etc1Supported)
+            ? new TextureDecoder(getCompressedTextureCache(), etc2Supported)
+            : new TextureDecoder();
+  }
 
-      for (ObjProperty.MaterialProperty materialProperty : objProperty.materialProperties) {
+  // A tile that the tile loader loaded. A tile whose files all failed to load has no obj
+  // properties.
+  private static class LoadedTile {
+    final TileManifest.Tile tile;
+    final int generation;
+    final List<ObjProperty> objProperties;
+
+    LoadedTile(TileManifest.Tile tile, int generation, List<ObjProperty> objProperties) {
+      this.tile = tile;
+      this.generation = generation;
+      this.objProperties = objProperties;
+    }
+  }
 
-        if (materialProperty.textureFile != null && materialProperty.textureFile.exists()) {
-          try {
-            materialProperty.textureId = loadTexture(context, materialProperty.textureFile);
-          }
-          catch (IOException e) {
-            Log.e("ObjFileAsyncLoader", "Exception caught during texture loading", e);
-          }
-        }
+  // Loads the requested tiles of a tileset, up to MAX_TILE_LOADS at a time, until the load is
+  // cancelled. Every tile is loaded by an ObjFilesLoader on the tile stage, and all of them run on
+  // the same parse and process stages and texture decoder. The delegate hears once, when the first
+  // tile is loaded.
+  private class TileLoader implements Runnable {
+
+    private final BlockingQueue<TileManifest.Tile> requests;
+    private final DatasetManifest manifest;
+    private final LoadMetrics metrics;
+    private final ObjFilesLoadedDelegate delegate;
+    private final int generation;
+    private final AtomicInteger numTilesLoaded = new AtomicInteger();
+    // The progress of a tile is not the progress of the dataset, so it is not reported.
+    private final ObjFilesLoadedDelegate tileDelegate = new ObjFilesLoadedDelegate() {
+      @Override
+      public void objFilesLoaded(int numFilesLoaded, int totalNumFiles) {
+      }
 
-        int[] buffers = new int[2];
-        GLES20.glGenBuffers(2, buffers, 0);
-        materialProperty.vertexBufferId = buffers[0];
-        materialProperty.indexBufferId = buffers[1];
+      @Override
+      public void objFilesLoadFailed(Throwable error) {
+      }
+    };
 
-        final int totalBytes = materialProperty.normalsBaseAddress + 4 * materialProperty.normals.limit();
+    TileLoader(BlockingQueue<TileManifest.Tile> requests, DatasetManifest manifest,
+               LoadMetrics metrics, ObjFilesLoadedDelegate delegate, int generation) {
+      this.requests = requests;
+      this.manifest = manifest;
+      this.metrics = metrics;
+      this.delegate = delegate;
+      this.generation = generation;
+    }
 
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, materialProperty.vertexBufferId);
-        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, totalBytes, null, GLES20.GL_STATIC_DRAW);
-        if (materialProperty.vertices.limit() > 0) {
-          GLES20.glBufferSubData(
-                  GLES20.GL_ARRAY_BUFFER, materialProperty.verticesBaseAddress, 4 * materialProperty.vertices.limit(), materialProperty.vertices);
+    @Override
+    public void run() {
+      final ObjFilesLoader.LoadStages stages =
+              new ObjFilesLoader.LoadStages(ObjectRenderer.this);
+      final LoadPipeline.Stage<TileManifest.Tile, Void> tileStage = new LoadPipeline.Stage<>(
+              "fmear-tile", MAX_TILE_LOADS, 0, new LoadPipeline.Worker<TileManifest.Tile, Void>() {
+                @Override
+                public Void process(TileManifest.Tile tile) {
+                  loadTile(tile, stages);
+                  return null;
+                }
+              });
+      try {
+        while (generation == loadGeneration.get()) {
+          tileStage.submit(requests.take());
         }
-        if (materialProperty.texCoords.limit() > 0) {
-          GLES20.glBufferSubData(
-                  GLES20.GL_ARRAY_BUFFER, materialProperty.texCoordsBaseAddress, 4 * materialProperty.texCoords.limit(), materialProperty.texCoords);
+      } catch (InterruptedException e) {
+        // Only a cancelled load is interrupted.
+      } catch (Throwable e) {
+        Log.e(TAG, "Exception caught while requesting tiles", e);
+        if (endFailedLoad(generation)) {
+          delegate.objFilesLoadFailed(e);
         }
-        if (materialProperty.normals.limit() > 0) {
-          GLES20.glBufferSubData(
-                  GLES20.GL_ARRAY_BUFFER, materialProperty.normalsBaseAddress, 4 * materialProperty.normals.limit(), materialProperty.normals);
+      } finally {
+        tileStage.shutdownNow();
+        stages.shutdownNow();
+      }
+      Log.i(TAG, "Stopped loading tiles after " + numTilesLoaded.get() + " tiles; "
+              + tileStage.getStats());
+    }
+
+    private void loadTile(TileManifest.Tile tile, ObjFilesLoader.LoadStages stages) {
+      ObjFilesLoader loader = new ObjFilesLoader(ObjectRenderer.this, context, tileDelegate, null,
+              tile.contents, manifest, new ArrayList<ArchiveReader.ParsedObj>(), metrics,
+              generation);
+      loader.setSharedStages(stages);
+      List<ObjProperty> objProperties;
+      try {
+        loader.load();
+        objProperties = loader.getResult();
+      } catch (CancellationException e) {
+        loader.discard();
+        return;
+      } catch (Throwable e) {
+        // The tile is handed back empty, so that the selector stops waiting for it.
+        Log.e(TAG, "Exception caught while loading tile " + tile.getIndex(), e);
+        loader.discard();
+        objProperties = new ArrayList<>();
+        if (generation == loadGeneration.get()) {
+          delegate.objFilesLoadFailed(e);
         }
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+      }
+      loadedTiles.add(new LoadedTile(tile, generation, objProperties));
+      if (numTilesLoaded.incrementAndGet() == 1) {
+        delegate.objFilesLoaded(1, 1);
+      }
+    }
+  }
 
-        // Load index buffer
-        materialProperty.indexCount = materialProperty.wideIndices.limit();
-        if (materialProperty.indexCount > 0) {
-          GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, materialProperty.indexBufferId);
-          GLES20.glBufferData(
-                  GLES20.GL_ELEMENT_ARRAY_BUFFER, 4 * materialProperty.indexCount, materialProperty.wideIndices, GLES20.GL_STATIC_DRAW);
-          GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+  public void updateBuffers() {
+    // Evicts the resources that were not drawn recently, before anything new is uploaded.
+    gpuResourceManager.nextFrame();
+
+    String cancelledTextureKey;
+    while ((cancelledTextureKey = cancelledTextureKeys.poll()) != null) {
+      textureCache.release(cancelledTextureKey);
+    }
+
+    List<ObjProperty> loadedObjProperties = takeLoadedObjProperties();
+
+    if (releaseRequested && loadedObjProperties == null) {
+      abandonUpload();
+      releaseTileset();
+      releaseGeometry(residentObjProperties);
+      releaseTextures(residentObjProperties);
+      residentObjProperties = null;
+      releaseRequested = false;
+      Log.i(TAG, "Released the dataset: " + gpuResourceManager.getStats());
+    }
+
+    if (loadedObjProperties != null) {
+      releaseRequested = false;
+      abandonUpload();
+      startUpload(loadedObjProperties);
+    }
+
+    if (uploadingObjProperties != null) {
+      uploadQueuedMaterials();
+    }
+    if (!loadedTiles.isEmpty()) {
+      uploadLoadedTiles();
+    }
+  }
+
+  // Uploads the tiles that the tile loader loaded, until the frame allowance is used up, and
+  // reports them to the selector. The first uploaded tile starts the drawing and ends the metrics.
+  // Tiles of a cancelled tileset are released instead.
+  private void uploadLoadedTiles() {
+    long uploadedBytes = 0;
+    LoadedTile loadedTile;
+    while (uploadedBytes < UPLOAD_BYTES_PER_FRAME && (loadedTile = loadedTiles.poll()) != null) {
+      if (tileSelector == null || loadedTile.generation != loadGeneration.get()) {
+        releaseGeometry(loadedTile.objProperties);
+        releaseTextures(loadedTile.objProperties);
+        continue;
+      }
+      --numTileLoads;
+      if (loadedTile.objProperties.isEmpty()) {
+        tileSelector.onFailed(loadedTile.tile);
+        continue;
+      }
+
+      for (ObjProperty objProperty : loadedTile.objProperties) {
+        for (ObjProperty.MaterialProperty materialProperty : objProperty.materialProperties) {
+          LoadMetrics.Section section = tileMetrics.begin(materialProperty.objFilename, "upload");
+          final long bytes = uploadMaterial(materialProperty);
+          section.count("materials", 1).bytesOut(bytes).end();
+          uploadedBytes += bytes;
         }
+      }
+      for (TextureDecoder.DecodedTexture decodedTexture : uploadedTextures) {
+        decodedTexture.recycle();
+      }
+      uploadedTextures.clear();
 
-        materialProperty.clearTemporaryFileHandlesAndBuffers();
+      tileObjProperties.set(loadedTile.tile.getIndex(), loadedTile.objProperties);
+      tileSelector.onLoaded(loadedTile.tile, tileFootprint(loadedTile.objProperties));
+      if (!initialized) {
+        Log.i(TAG, "Uploaded the first tile: " + gpuResourceManager.getStats());
+        tileMetrics.finish(loadMetricsListener);
+        initialized = true;
       }
     }
-
-    initialized = true;
   }
 
-  public void loadObjFiles(List<File> files, ObjFilesLoadedDelegate delegate)
-          throws IOException {
+  // The GPU memory of a tile when all of it is resident: the geometry of its materials, including
+  // the chunks that were spilled and are only uploaded when drawn, and the full size of every
+  // texture it references, including the ones it shares with tiles that uploaded them first.
+  private long tileFootprint(List<ObjProperty> objProperties) {
+    long bytes = 0;
+    Set<String> textureKeys = new HashSet<>();
+    for (ObjProperty objProperty : objProperties) {
+      for (ObjProperty.MaterialProperty materialProperty : objProperty.materialProperties) {
+        bytes += materialProperty.gpuBytes();
+        if (materialProperty.textureKey != null && textureKeys.add(materialProperty.textureKey)) {
+          bytes += textureCache.getTextureBytes(materialProperty.textureKey);
+        }
+      }
+    }
+    return bytes;
+  }
 
-    if (files.isEmpty()) {
+  // Releases the loaded tiles of the tileset and stops drawing it.
+  private void releaseTileset() {
+    if (tileSelector == null) {
       return;
     }
+    for (int i = 0; i < tileObjProperties.size(); ++i) {
+      releaseGeometry(tileObjProperties.get(i));
+      releaseTextures(tileObjProperties.get(i));
+    }
+    tileObjProperties.clear();
+    drawnTileObjProperties.clear();
+    tileSelector = null;
+    tileRequests = null;
+    numTileLoads = 0;
+    tileMetrics = null;
+  }
 
-    // Clear previous obj models
-    initialized = false;
+  // Returns the dataset that the loader published since the last call, or null. A dataset whose
+  // load was cancelled after it was published, by reset, is released instead.
+  private List<ObjProperty> takeLoadedObjProperties() {
+    List<ObjProperty> loadedObjProperties;
+    LoadMetrics loadedMetrics;
+    boolean cancelled;
+    synchronized (loadLock) {
+      if (!buffersNeedUpdate) {
+        return null;
+      }
+      // reset flag
+      buffersNeedUpdate = false;
+      loadedObjProperties = objProperties;
+      loadedMetrics = objPropertiesMetrics;
+      objPropertiesMetrics = null;
+      cancelled = objPropertiesGeneration != loadGeneration.get();
+    }
+
+    if (cancelled) {
+      releaseGeometry(loadedObjProperties);
+      releaseTextures(loadedObjProperties);
+      return null;
+    }
+    uploadMetrics = loadedMetrics;
+    return loadedObjProperties;
+  }
+
+  // Queues the materials of a loaded dataset for upload.
+  private void startUpload(List<ObjProperty> loadedObjProperties) {
+    // reset bounds since we are going to recalculate it
     datasetBounds.reset();
-    objProperties = null;
-    buffersNeedUpdate = false;
 
-    // Run the obj file asyn loader
-    new ObjFilesAsyncLoader(context, delegate).execute(files.toArray(new File[files.size()]));
+    // The previous geometry is deleted first, so that the new dataset gets the whole budget.
+    releaseGeometry(residentObjProperties);
+    releaseGeometry(staleObjProperties);
+
+    for (ObjProperty objProperty : loadedObjProperties) {
+      datasetBounds.expandBy(objProperty.bounds);
+      uploadQueue.addAll(objProperty.materialProperties);
+    }
+    uploadingObjProperties = loadedObjProperties;
+    uploadStats = new LoadPipeline.StageStats("upload", 1);
   }
 
-  private boolean containsColor(FloatTuple rgb) {
-    return (rgb.getX() != 0f || rgb.getY() != 0f || rgb.getZ() != 0f);
+  // Uploads queued materials until the frame allowance is used up, and finishes the upload once
+  // the queue is empty.
+  private void uploadQueuedMaterials() {
+    long uploadedBytes = 0;
+    while (!uploadQueue.isEmpty() && uploadedBytes < UPLOAD_BYTES_PER_FRAME) {
+      ObjProperty.MaterialProperty materialProperty = uploadQueue.poll();
+      LoadMetrics.Section section = uploadMetrics.begin(materialProperty.objFilename, "upload");
+      final long startNanos = System.nanoTime();
+      final long bytes = uploadMaterial(materialProperty);
+      uploadStats.record(System.nanoTime() - startNanos, bytes);
+      section.count("materials", 1).bytesOut(bytes).end();
+      uploadedBytes += bytes;
+    }
+
+    if (uploadQueue.isEmpty()) {
+      finishUpload();
+    }
   }
 
-  public Bounds getDatasetBounds() { return datasetBounds; };
+  // Uploads the texture and the buffers of a material. Returns the bytes that were uploaded.
+  private long uploadMaterial(ObjProperty.MaterialProperty materialProperty) {
+    long uploadedBytes = 0;
+    if (materialProperty.textureRetained) {
+      materialProperty.textureId = textureCache.getTextureId(materialProperty.textureKey);
+    } else if (materialProperty.decodedTexture != null) {
+      materialProperty.textureId =
+              textureCache.acquire(materialProperty.textureKey, materialProperty.decodedTexture);
+      if (uploadedTextures.add(materialProperty.decodedTexture)) {
+        uploadedBytes += (materialProperty.decodedTexture.compressed != null)
+                ? materialProperty.decodedTexture.compressed.byteCount()
+                : materialProperty.decodedTexture.bitmap.getByteCount();
+      }
+    }
+    if (materialProperty.textureKey != null) {
+      materialProperty.textureResource = textureCache.getResource(materialProperty.textureKey);
+    }
+    if (gles3) {
+      writeMaterialUniforms(materialProperty);
+    }
+
+    // Spilled chunks that no longer fit the budget are loaded from their chunk file when they
+    // are first drawn.
+    GeometryChunk chunk = new GeometryChunk(materialProperty);
+    materialProperty.chunk = chunk;
+    final long residentBytesAfterUpload = gpuResourceManager.getResidentBytes() + chunk.bytes;
+    if (materialProperty.chunkFile != null
+            && residentBytesAfterUpload > gpuResourceManager.getBudget()) {
+      gpuResourceManager.add(chunk, 0);
+    } else {
+      if (materialProperty.blob != null) {
+        uploadGeometry(materialProperty, materialProperty.blob);
+      } else {
+        uploadGeometry(materialProperty);
+      }
+      gpuResourceManager.add(chunk, chunk.bytes);
+      uploadedBytes += chunk.bytes;
+    }
 
+    materialProperty.clearTemporaryFileHandlesAndBuffers();
+    return uploadedBytes;
+  }
 
-  private int loadTexture(Context context, File textureFile) throws IOException {
-    final int[] textureHandle = new int[]{0};
-    GLES20.glGenTextures(textureHandle.length, textureHandle, 0);
-    if (textureHandle[0] == 0) {
-      throw new RuntimeException("Error generating texture handle.");
+  // Makes the uploaded dataset the resident one and starts drawing it.
+  private void finishUpload() {
+    for (TextureDecoder.DecodedTexture decodedTexture : uploadedTextures) {
+      decodedTexture.recycle();
     }
+    uploadedTextures.clear();
 
-    try (InputStream textureInputStream = context.getContentResolver().openInputStream(Uri.fromFile(textureFile))) {
-      BitmapFactory.Options options = new BitmapFactory.Options();
-      options.inScaled = false;
-      Bitmap textureBitmap =
-              BitmapFactory.decodeStream(textureInputStream, null, options);
-      GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-      GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureHandle[0]);
-      GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
-      GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
-      GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, textureBitmap, 0);
-      GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-      textureBitmap.recycle();
+    // The new textures are acquired before the previous ones are released, so that textures that
+    // are used by both datasets stay on the GPU.
+    releaseTextures(residentObjProperties);
+    residentObjProperties = uploadingObjProperties;
+    uploadingObjProperties = null;
+    releaseTextures(staleObjProperties);
+    staleObjProperties.clear();
 
-      ShaderUtil.checkGLError(TAG, "Texture loading");
+    Log.i(TAG, textureCache.size() + " distinct textures are uploaded, "
+            + gpuResourceManager.getStats() + "; " + uploadStats);
+    uploadMetrics.finish(loadMetricsListener);
+    uploadMetrics = null;
+
+    initialized = true;
+  }
+
+  // Drops a dataset whose upload has not finished, with the buffers and textures uploaded so far.
+  private void abandonUpload() {
+    if (uploadingObjProperties == null) {
+      return;
+    }
+    uploadQueue.clear();
+    releaseGeometry(uploadingObjProperties);
+    releaseTextures(uploadingObjProperties);
+    for (TextureDecoder.DecodedTexture decodedTexture : uploadedTextures) {
+      decodedTexture.recycle();
     }
-    return textureHandle[0];
+    uploadedTextures.clear();
+    uploadingObjProperties = null;
+    uploadMetrics = null;
   }
 
+  // Uploads the vertex and index buffers of the material from its temporary buffers.
+  private static void uploadGeometry(ObjProperty.MaterialProperty materialProperty) {
+    if (materialProperty.batchSize > 1) {
+      uploadBatch(materialProperty, toBytes(materialProperty.vertices, materialProperty.texCoords,
+              materialProperty.normals), toBytes(materialProperty.wideIndices));
+      return;
+    }
+    uploadInstanceOffsets(materialProperty);
 
-  // FIXME: there are LOTS of unnecessary float array inits. optimize!
-  private Obj createNewObjWithNormals(Obj obj) {
-    // Make sure we deal with triangles only
-    //obj = ObjUtils.triangulate(obj);
+    int[] buffers = new int[2];
+    GLES20.glGenBuffers(2, buffers, 0);
+    materialProperty.vertexBufferId = buffers[0];
+    materialProperty.indexBufferId = buffers[1];
 
-    ArrayList<float[]> normalArrayList = new ArrayList<>(obj.getNumVertices());
-    Map<FloatTuple, Integer> vertexToNormalIndexMap = new HashMap<>(obj.getNumVertices());
-    Map<ObjFace, ArrayList<Integer>> faceToNormalIndexMap = new HashMap<>(obj.getNumFaces());
+    final int totalBytes = materialProperty.normalsBaseAddress + 4 * materialProperty.normals.limit();
 
-    for (int i = 0; i < obj.getNumFaces(); i++) {
-      ObjFace face = obj.getFace(i);
-      // Need at least 3 vertices to calculate face normal
-      FloatTuple[] faceVertices = new FloatTuple[3];
-      for (int j = 0; j < face.getNumVertices() && j < 3; j++) {
-        FloatTuple vertex = obj.getVertex(face.getVertexIndex(j));
-        faceVertices[j] = vertex;
-      }
-      float[] vertexNormal = calculateVertexNormal(faceVertices);
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, materialProperty.vertexBufferId);
+    GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, totalBytes, null, GLES20.GL_STATIC_DRAW);
+    if (materialProperty.vertices.limit() > 0) {
+      GLES20.glBufferSubData(
+              GLES20.GL_ARRAY_BUFFER, materialProperty.verticesBaseAddress, 4 * materialProperty.vertices.limit(), materialProperty.vertices);
+    }
+    if (materialProperty.texCoords.limit() > 0) {
+      GLES20.glBufferSubData(
+              GLES20.GL_ARRAY_BUFFER, materialProperty.texCoordsBaseAddress, 4 * materialProperty.texCoords.limit(), materialProperty.texCoords);
+    }
+    if (materialProperty.normals.limit() > 0) {
+      GLES20.glBufferSubData(
+              GLES20.GL_ARRAY_BUFFER, materialProperty.normalsBaseAddress, 4 * materialProperty.normals.limit(), materialProperty.normals);
+    }
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+
+    // Load index buffer
+    if (materialProperty.indexCount > 0) {
+      GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, materialProperty.indexBufferId);
+      GLES20.glBufferData(
+              GLES20.GL_ELEMENT_ARRAY_BUFFER, 4 * materialProperty.indexCount, materialProperty.wideIndices, GLES20.GL_STATIC_DRAW);
+      GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+    }
+  }
 
-      faceToNormalIndexMap.put(face, new ArrayList<Integer>(3));
-      for (FloatTuple faceVertex : faceVertices) {
-        if (vertexToNormalIndexMap.containsKey(faceVertex)) {
-          Integer index = vertexToNormalIndexMap.get(faceVertex);
-          addFloatArray(normalArrayList.get(index), vertexNormal);
-        } else {
-          normalArrayList.add(vertexNormal);
-          vertexToNormalIndexMap.put(faceVertex, normalArrayList.size() - 1);
-        }
-        Integer normalIndex = vertexToNormalIndexMap.get(faceVertex);
-        faceToNormalIndexMap.get(face).add(normalIndex);
+  // Uploads the vertex and index buffers of the material from a mapped chunk file.
+  private static void uploadGeometry(
+          ObjProperty.MaterialProperty materialProperty, ChunkBlob blob) {
+    if (materialProperty.batchSize > 1) {
+      uploadBatch(materialProperty, blob.vertexData, blob.indexData);
+      return;
+    }
+    uploadInstanceOffsets(materialProperty);
+
+    int[] buffers = new int[2];
+    GLES20.glGenBuffers(2, buffers, 0);
+    materialProperty.vertexBufferId = buffers[0];
+    materialProperty.indexBufferId = buffers[1];
+
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, materialProperty.vertexBufferId);
+    GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, blob.vertexData.remaining(), blob.vertexData,
+            GLES20.GL_STATIC_DRAW);
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+
+    if (blob.numIndices > 0) {
+      GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, materialProperty.indexBufferId);
+      GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, blob.indexData.remaining(),
+              blob.indexData, GLES20.GL_STATIC_DRAW);
+      GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+    }
+  }
+
+  // Uploads a batch of the instances of a deduplicated mesh, from its vertex and index data in
+  // the ChunkBlob layout.
+  private static void uploadBatch(ObjProperty.MaterialProperty materialProperty,
+                                  ByteBuffer vertexData, ByteBuffer indexData) {
+    final int numVertexFloats = 3 * materialProperty.numVertices;
+    final int numTexCoordFloats =
+            (materialProperty.normalsBaseAddress - materialProperty.texCoordsBaseAddress) / 4;
+    final int numNormalFloats = 3 * materialProperty.numNormals;
+    ByteBuffer batchVertices = MeshDeduplicator.batchVertices(vertexData, numVertexFloats,
+            numTexCoordFloats, numNormalFloats, materialProperty.batchSize);
+    ByteBuffer batchIndices = MeshDeduplicator.batchIndices(indexData,
+            materialProperty.indexCount, materialProperty.numVertices, materialProperty.batchSize);
+
+    int[] buffers = new int[2];
+    GLES20.glGenBuffers(2, buffers, 0);
+    materialProperty.vertexBufferId = buffers[0];
+    materialProperty.indexBufferId = buffers[1];
+
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, materialProperty.vertexBufferId);
+    GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, batchVertices.remaining(), batchVertices,
+            GLES20.GL_STATIC_DRAW);
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+
+    if (materialProperty.indexCount > 0) {
+      GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, materialProperty.indexBufferId);
+      GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, batchIndices.remaining(),
+              batchIndices, GLES20.GL_STATIC_DRAW);
+      GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+    }
+  }
+
+  // Uploads the offsets of the instances of a deduplicated mesh for instanced draws.
+  private static void uploadInstanceOffsets(ObjProperty.MaterialProperty materialProperty) {
+    final float[] offsets = materialProperty.instanceOffsets;
+    if (offsets == null) {
+      return;
+    }
+    int[] buffers = new int[1];
+    GLES20.glGenBuffers(1, buffers, 0);
+    materialProperty.instanceBufferId = buffers[0];
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, materialProperty.instanceBufferId);
+    GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, 4 * offsets.length,
+            createDirectFloatBuffer(offsets.length).put(offsets).rewind(), GLES20.GL_STATIC_DRAW);
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+  }
+
+  // Copies the buffers, one after the other, into native-order bytes.
+  private static ByteBuffer toBytes(FloatBuffer... buffers) {
+    int numFloats = 0;
+    for (FloatBuffer buffer : buffers) {
+      numFloats += buffer.limit();
+    }
+    ByteBuffer bytes = ByteBuffer.allocateDirect(4 * numFloats).order(ByteOrder.nativeOrder());
+    for (FloatBuffer buffer : buffers) {
+      for (int i = 0; i < buffer.limit(); ++i) {
+        bytes.putFloat(buffer.get(i));
       }
     }
+    bytes.rewind();
+    return bytes;
+  }
 
-    // Normalize vertex normals after all faces have been evaluated
-    for (float[] vertexNormal : normalArrayList) {
-      normalize(vertexNormal);
+  private static ByteBuffer toBytes(IntBuffer buffer) {
+    ByteBuffer bytes = ByteBuffer.allocateDirect(4 * buffer.limit())
+            .order(ByteOrder.nativeOrder());
+    for (int i = 0; i < buffer.limit(); ++i) {
+      bytes.putInt(buffer.get(i));
     }
+    bytes.rewind();
+    return bytes;
+  }
 
-    // Clone to output obj
-    Obj output = Objs.create();
-    output.setMtlFileNames(obj.getMtlFileNames());
-    // copy vertices
-    for (int i = 0; i < obj.getNumVertices(); i++) {
-      output.addVertex(obj.getVertex(i));
+  private static void deleteGeometry(ObjProperty.MaterialProperty materialProperty) {
+    if (materialProperty.vertexBufferId != 0 || materialProperty.indexBufferId != 0) {
+      GLES20.glDeleteBuffers(2, new int[] {
+              materialProperty.vertexBufferId, materialProperty.indexBufferId}, 0);
     }
-    // copy texture coordinates
-    for (int i = 0; i < obj.getNumTexCoords(); i++) {
-      output.addTexCoord(obj.getTexCoord(i));
+    if (materialProperty.instanceBufferId != 0) {
+      GLES20.glDeleteBuffers(1, new int[] {materialProperty.instanceBufferId}, 0);
     }
-    // inject our normals
-    for (float[] normal : normalArrayList) {
-      output.addNormal(toFloatTuple(normal));
+    // Only the OpenGL ES 3.0 backend creates vertex arrays.
+    if (materialProperty.vertexArrayId != 0) {
+      GLES30.glDeleteVertexArrays(1, new int[] {materialProperty.vertexArrayId}, 0);
+    }
+    materialProperty.vertexArrayId = 0;
+    materialProperty.vertexBufferId = 0;
+    materialProperty.indexBufferId = 0;
+    materialProperty.instanceBufferId = 0;
+  }
+
+  // Deletes the vertex and index buffers of the materials, and their chunk files.
+  private void releaseGeometry(List<ObjProperty> releasedObjProperties) {
+    if (releasedObjProperties == null) {
+      return;
     }
-    // copy and inject normals to face
-    for (int h = 0; h < obj.getNumFaces(); h++) {
-      ObjFace face = obj.getFace(h);
-      activateGroups(obj, face, output);
-      int numVertices = face.getNumVertices();
-      // get vertices
-      int[] v = new int[numVertices]; // triangles only!
-      for (int i = 0; i < numVertices; i++) {
-        v[i] = face.getVertexIndex(i);
-      }
 
-      // get texture coords
-      int[] vt = null;
-      if (face.containsTexCoordIndices()) {
-        vt = new int[numVertices];
-        for (int i = 0; i < numVertices; i++) {
-          vt[i] = face.getTexCoordIndex(i);
+    for (ObjProperty objProperty : releasedObjProperties) {
+      for (ObjProperty.MaterialProperty materialProperty : objProperty.materialProperties) {
+        if (materialProperty.chunk != null) {
+          gpuResourceManager.remove(materialProperty.chunk);
+          materialProperty.chunk = null;
+        } else if (materialProperty.chunkFile != null && materialProperty.ownsChunkFile) {
+          materialProperty.chunkFile.delete();
+        }
+        materialProperty.chunkFile = null;
+        if (materialProperty.uniformSlot >= 0) {
+          freeMaterialSlots.add(materialProperty.uniformSlot);
+          materialProperty.uniformSlot = -1;
         }
       }
+    }
+  }
 
-      // get normal coords
-      int[] vn = new int[numVertices];
-      ArrayList<Integer> normalIndeces = faceToNormalIndexMap.get(face);
-      for (int i = 0; i < normalIndeces.size(); i++) {
-        vn[i] = normalIndeces.get(i);
-      }
-      output.addFace(ObjFaces.create(v, vt, vn));
+  // Gives the material a slot of the material uniforms and writes its parameters there, in the
+  // layout of the MaterialUniforms block. The uniform buffer is rewritten before the next draw.
+  private void writeMaterialUniforms(ObjProperty.MaterialProperty materialProperty) {
+    if (materialProperty.uniformSlot < 0) {
+      materialProperty.uniformSlot =
+              freeMaterialSlots.isEmpty() ? numMaterialSlots++ : freeMaterialSlots.poll();
+    }
+    final int requiredBytes = numMaterialSlots * materialUniformStride;
+    if (materialUniformData.capacity() < requiredBytes) {
+      ByteBuffer grown = ByteBuffer.allocateDirect(
+              Math.max(requiredBytes, 2 * materialUniformData.capacity()))
+              .order(ByteOrder.nativeOrder());
+      materialUniformData.clear();
+      grown.put(materialUniformData);
+      materialUniformData = grown;
     }
-    return output;
+
+    final int offset = materialProperty.uniformSlot * materialUniformStride;
+    putTuple(materialUniformData, offset, materialProperty.ambient);
+    materialUniformData.putFloat(offset + 12, materialProperty.opacity);
+    putTuple(materialUniformData, offset + 16, materialProperty.diffuse);
+    materialUniformData.putFloat(offset + 28, materialProperty.shininess);
+    putTuple(materialUniformData, offset + 32, materialProperty.specular);
+    // The color of a material without a texture is white, since the texture is black.
+    final float colorCorrection = materialProperty.hasTexture ? 0.0f : 1.0f;
+    for (int i = 0; i < 4; ++i) {
+      materialUniformData.putFloat(offset + 48 + 4 * i, colorCorrection);
+    }
+    materialUniformsDirty = true;
+  }
+
+  private static void putTuple(ByteBuffer data, int offset, FloatTuple tuple) {
+    data.putFloat(offset, tuple.getX());
+    data.putFloat(offset + 4, tuple.getY());
+    data.putFloat(offset + 8, tuple.getZ());
   }
 
-  private void activateGroups(Obj input, ObjFace face, Obj output) {
-    Set<String> activatedGroupNames =
-            input.getActivatedGroupNames(face);
-    if (activatedGroupNames != null) {
-      output.setActiveGroupNames(
-              activatedGroupNames);
+  // Drops the texture references held by the materials. Materials that were never uploaded only
+  // hold a reference if the loader retained an already uploaded texture for them.
+  private void releaseTextures(List<ObjProperty> releasedObjProperties) {
+    if (releasedObjProperties == null) {
+      return;
     }
-    String activatedMaterialGroupName =
-            input.getActivatedMaterialGroupName(face);
-    if (activatedMaterialGroupName != null) {
-      output.setActiveMaterialGroupName(
-              activatedMaterialGroupName);
+
+    for (ObjProperty objProperty : releasedObjProperties) {
+      for (ObjProperty.MaterialProperty materialProperty : objProperty.materialProperties) {
+        materialProperty.textureResource = null;
+        if (materialProperty.textureKey == null) {
+          continue;
+        }
+
+        if (materialProperty.textureId != 0 || materialProperty.textureRetained) {
+          textureCache.release(materialProperty.textureKey);
+        } else if (materialProperty.decodedTexture != null) {
+          materialProperty.decodedTexture.recycle();
+        }
+        materialProperty.textureKey = null;
+        materialProperty.textureId = 0;
+        materialProperty.textureRetained = false;
+      }
     }
   }
 
-  private static FloatTuple toFloatTuple(float[] vector3) {
-    return FloatTuples.create(vector3[0], vector3[1], vector3[2]);
+  public void loadObjFiles(List<File> files, ObjFilesLoadedDelegate delegate)
+          throws IOException {
+    loadObjFiles(files, null, delegate);
+  }
+
+  /**
+   * Loads the obj files, and the glTF and .fmesh files among them, see {@link GltfReader} and
+   * {@link CompressedMeshFile}. If the dataset key is not null, the processed dataset is stored in
+   * the {@link DatasetCache} under that key and the settings it was processed with, and the next
+   * load of the same dataset uploads it from the cache without parsing the obj files.
+   *
+   * @param datasetKey A content hash of the dataset, such as a hash of the archive it was
+   *     extracted from, or null.
+   */
+  public void loadObjFiles(List<File> files, String datasetKey, ObjFilesLoadedDelegate delegate)
+          throws IOException {
+    loadObjFiles(files, datasetKey, null, delegate);
   }
 
-  private static void normalize(float[] array) {
-    float magnitude = (float) Math.sqrt(array[0] * array[0] + array[1] * array[1] + array[2] * array[2]);
-    array[0] = array[0] / magnitude;
-    array[1] = array[1] / magnitude;
-    array[2] = array[2] / magnitude;
+  /**
+   * Loads the obj files, recording the metrics of the load.
+   *
+   * @param metrics The metrics to add the load to, such as the metrics that the archive was
+   *     extracted with, or null to record the load on its own with the report next to the obj
+   *     files.
+   * @see #loadObjFiles(List, String, ObjFilesLoadedDelegate)
+   */
+  public void loadObjFiles(List<File> files, String datasetKey, LoadMetrics metrics,
+                           ObjFilesLoadedDelegate delegate) throws IOException {
+    loadObjFiles(files, null, datasetKey, metrics, delegate);
   }
 
-  private void addFloatArray(float[] originalArray, float[] arrayToAdd) {
-    // TODO: null check?
-    if (originalArray.length != arrayToAdd.length) {
-      throw new IllegalArgumentException("arrays need to be of same length");
+  /**
+   * Loads the obj files of an extracted dataset, looking up their mtl files and textures in its
+   * manifest rather than in the directory.
+   *
+   * @param manifest The manifest the dataset was extracted with, or null to scan the directory of
+   *     the obj files once.
+   * @see #loadObjFiles(List, String, LoadMetrics, ObjFilesLoadedDelegate)
+   */
+  public void loadObjFiles(List<File> files, DatasetManifest manifest, String datasetKey,
+                           LoadMetrics metrics, ObjFilesLoadedDelegate delegate)
+          throws IOException {
+
+    if (files.isEmpty()) {
+      return;
     }
-    for (int i = 0; i < originalArray.length; i++) {
-      originalArray[i] = originalArray[i] + arrayToAdd[i];
+    if (metrics == null) {
+      metrics = new LoadMetrics(files.get(0).getParent());
+      metrics.setReportFile(getLoadMetricsReportFile());
     }
+    startLoader(files, manifest, new ArrayList<ArchiveReader.ParsedObj>(), datasetKey, metrics,
+            delegate);
   }
 
-  private static float[] calculateVertexNormal(FloatTuple[] faceVertices) {
-    if (faceVertices.length != 3) {
-      throw new IllegalArgumentException("Need 3 face vertices to calculate normals");
+  /**
+   * Loads obj files that were parsed straight from the archive by an {@link ArchiveReader}.
+   *
+   * @param datasetKey A content hash of the archive, or null. See {@link #loadObjFiles(List,
+   *     String, ObjFilesLoadedDelegate)}.
+   * @param metrics The metrics that the archive was read with, which the load is added to.
+   */
+  public void loadParsedObjs(List<ArchiveReader.ParsedObj> parsedObjs, String datasetKey,
+                             LoadMetrics metrics, ObjFilesLoadedDelegate delegate) {
+    loadParsedObjs(parsedObjs, new ArrayList<File>(), datasetKey, metrics, delegate);
+  }
+
+  /**
+   * Loads obj files that were parsed straight from the archive, along with files that were
+   * staged from it, such as glTF files.
+   *
+   * @see #loadParsedObjs(List, String, LoadMetrics, ObjFilesLoadedDelegate)
+   */
+  public void loadParsedObjs(List<ArchiveReader.ParsedObj> parsedObjs, List<File> files,
+                             String datasetKey, LoadMetrics metrics,
+                             ObjFilesLoadedDelegate delegate) {
+
+    if (parsedObjs.isEmpty() && files.isEmpty()) {
+      return;
     }
-    float[] vector1 = createVector(faceVertices[1], faceVertices[0]);
-    float[] vector2 = createVector(faceVertices[2], faceVertices[0]);
-    return cross(vector1, vector2);
+    startLoader(files, null, parsedObjs, datasetKey, metrics, delegate);
   }
 
-  private static float[] cross(float[] p1, float[] p2) {
-    float x = p1[1] * p2[2] - p2[1] * p1[2];
-    float y = p1[2] * p2[0] - p2[2] * p1[0];
-    float z = p1[0] * p2[1] - p2[0] * p1[1];
-    return new float[]{x, y, z};
+  /**
+   * Returns true if the dataset is in the {@link DatasetCache} for the current processing
+   * settings, so that it can be loaded with {@link #loadCachedDataset} without extracting it. May
+   * be called from any thread once the surface is created.
+   *
+   * @param datasetKey The content hash the dataset was loaded with, see {@link
+   *     #loadObjFiles(List, String, ObjFilesLoadedDelegate)}.
+   */
+  public boolean hasCachedDataset(String datasetKey) {
+    return getDatasetCache().contains(datasetCacheKeyFor(datasetKey));
+  }
+
+  /**
+   * Loads a dataset from the {@link DatasetCache}, without any of its files: the chunks are
+   * uploaded from their chunk files and the textures are decoded from their copies in the cache.
+   *
+   * @param metrics The metrics to add the load to.
+   * @see #hasCachedDataset
+   */
+  public void loadCachedDataset(String datasetKey, LoadMetrics metrics,
+                                ObjFilesLoadedDelegate delegate) {
+    startLoader(new ArrayList<File>(), null, new ArrayList<ArchiveReader.ParsedObj>(), datasetKey,
+            metrics, delegate);
   }
 
-  private static float[] createVector(FloatTuple head, FloatTuple tail) {
-    return new float[]{head.getX() - tail.getX(), head.getY() - tail.getY(), head.getZ() - tail.getZ()};
+  /**
+   * Sets the listener that receives the metrics of every load once the dataset is uploaded. The
+   * metrics are also written as a JSON report, see {@link LoadMetrics#setReportFile}.
+   */
+  public void setLoadMetricsListener(LoadMetrics.Listener listener) {
+    loadMetricsListener = listener;
   }
 
-  private Map<String, MtlAndTexture> fetchMaterials(Obj currObj, Context context, File objDir) throws IOException {
-    Map<String, MtlAndTexture> materialByNameMap = new HashMap<>();
+  // The processing settings are part of the key, since they change the cached data.
+  private String datasetCacheKeyFor(String datasetKey) {
+    return datasetKey + "-" + maxTextureSize + "-" + (textureMemoryBudget / 1024)
+            + (textureAtlasEnabled ? "-atlas" : "")
+            + ((textureCompressionEnabled && etc1Supported) ? "-etc" : "");
+  }
 
-    List<MtlAndTexture> mtlAndTextures = new ArrayList<>();
-    List<String> mtlFileNames = currObj.getMtlFileNames();
+  private void startLoader(List<File> files, DatasetManifest manifest,
+                           List<ArchiveReader.ParsedObj> parsedObjs, String datasetKey,
+                           LoadMetrics metrics, ObjFilesLoadedDelegate delegate) {
 
-    for (String mtlFileName : mtlFileNames) {
-      // TODO: tidy up this fileFinder
-      List<File> files = new FileFinder(mtlFileName).find(objDir);
-      File mtlFile = files.get(0);
-      File mtlDir = mtlFile.getParentFile();
+    cancelPreviousLoad();
+    String datasetCacheKey = (datasetKey == null) ? null : datasetCacheKeyFor(datasetKey);
 
-      try (InputStream materialInputStream = context.getContentResolver().openInputStream(Uri.fromFile(mtlFile))) {
-        if (materialInputStream != null) {
-          List<Mtl> mtls = MtlReader.read(materialInputStream);
-          for (Mtl mtl : mtls) {
-            File textureFile = null;
-            // TODO: can we get multiple texture files for a single material group?
-            if(mtl.getMapKd() != null) {
-              String textureFileLocation = mtl.getMapKd().replaceAll("\\\\", "/");
-              textureFile = new File(mtlDir, textureFileLocation);
-            }
-            mtlAndTextures.add(new MtlAndTexture(mtl, textureFile));
-          }
-        }
+    synchronized (loadLock) {
+      loaderThread = new Thread(new ObjFilesLoader(this, context, delegate, datasetCacheKey,
+              files, manifest, parsedObjs, metrics, loadGeneration.get()), "fmear-loader");
+      loaderThread.setPriority(Thread.NORM_PRIORITY - 1);
+      loaderThread.start();
+    }
+  }
+
+  // Clear previous obj models. A loaded dataset that never made it to the GPU still holds its
+  // textures until the next updateBuffers.
+  private void cancelPreviousLoad() {
+    synchronized (loadLock) {
+      cancelLoad();
+      if (buffersNeedUpdate && objProperties != null) {
+        staleObjProperties.addAll(objProperties);
       }
+      objProperties = null;
+      buffersNeedUpdate = false;
+    }
+    abandonUpload();
+    releaseTileset();
+    initialized = false;
+    datasetBounds.reset();
+  }
+
+  /**
+   * Streams a tiled dataset. The tiles that the camera needs, see {@link TileSelector}, are loaded
+   * a few at a time as it moves, like obj files, and the tiles that are no longer drawn are unloaded
+   * once the loaded tiles go over the tile memory budget. {@link #updateTiles} selects the tiles
+   * every frame. The metrics cover the load up to the first uploaded tile.
+   *
+   * @param tilesetFile The tileset.json file, see {@link TileManifest}.
+   * @param manifest The manifest the dataset was extracted with, or null.
+   * @param metrics The metrics to add the load to, or null to record the load on its own.
+   * @throws IOException if the tileset cannot be read.
+   */
+  public void loadTileset(File tilesetFile, DatasetManifest manifest, LoadMetrics metrics,
+                          ObjFilesLoadedDelegate delegate) throws IOException {
+    TileManifest tileManifest = TileManifest.read(tilesetFile, manifest);
+    if (metrics == null) {
+      metrics = new LoadMetrics(tilesetFile.getParent());
+      metrics.setReportFile(getLoadMetricsReportFile());
+    }
+
+    // The tiles are drawn as they are uploaded, so the previous dataset goes right away.
+    cancelPreviousLoad();
+    releaseGeometry(residentObjProperties);
+    releaseTextures(residentObjProperties);
+    residentObjProperties = null;
+    releaseTextures(staleObjProperties);
+    staleObjProperties.clear();
+    releaseRequested = false;
+
+    tileSelector = new TileSelector(tileManifest);
+    tileSelector.setMemoryBudget(tileMemoryBudget);
+    tileSelector.setMaximumScreenSpaceError(maximumScreenSpaceError);
+    for (int i = 0; i < tileManifest.getTiles().size(); ++i) {
+      tileObjProperties.add(null);
+    }
+    final float[] bounds = tileManifest.getRoot().bounds;
+    datasetBounds.set(bounds[0], bounds[1], bounds[2], bounds[3], bounds[4], bounds[5]);
+    tileMetrics = metrics;
+    tileRequests = new LinkedBlockingQueue<>();
+    Log.i(TAG, "Streaming " + tileManifest.getTiles().size() + " tiles from " + tilesetFile);
+
+    synchronized (loadLock) {
+      loaderThread = new Thread(new TileLoader(tileRequests, manifest, metrics, delegate,
+              loadGeneration.get()), "fmear-tiles");
+      loaderThread.setPriority(Thread.NORM_PRIORITY - 1);
+      loaderThread.start();
+    }
+  }
+
+  /**
+   * Selects the tiles of the tileset to draw from the camera, requests the next tiles to load and
+   * unloads the tiles over the budget. Does nothing if no tileset is loaded. Call every frame on
+   * the GL thread, after {@link #updateModelMatrix} and before {@link #draw}.
+   *
+   * @param cameraView A 4x4 view matrix, in column-major order.
+   * @param cameraPerspective A 4x4 projection matrix, in column-major order.
+   */
+  public void updateTiles(float[] cameraView, float[] cameraPerspective) {
+    if (tileSelector == null) {
+      return;
+    }
+
+    if (initialized) {
+      // The camera position in the coordinates of the dataset is the translation of the inverse
+      // model view matrix.
+      Matrix.multiplyMM(tileModelViewMatrix, 0, cameraView, 0, modelTransform.getModelMatrix(), 0);
+      Matrix.invertM(tileCameraMatrix, 0, tileModelViewMatrix, 0);
+      tileSelector.update(tileCameraMatrix[12], tileCameraMatrix[13], tileCameraMatrix[14],
+              0.5f * viewportHeight * cameraPerspective[5]);
+    } else {
+      // Until a tile is drawn there is no model matrix. Without an error, the coarsest tiles are
+      // requested first.
+      tileSelector.update(0.0f, 0.0f, 0.0f, 0.0f);
+    }
+
+    final List<TileManifest.Tile> unloads = tileSelector.getUnloads();
+    for (int i = 0; i < unloads.size(); ++i) {
+      final List<ObjProperty> unloaded = tileObjProperties.set(unloads.get(i).getIndex(), null);
+      releaseGeometry(unloaded);
+      releaseTextures(unloaded);
+    }
+
+    // The requests are sorted, so the tiles with the largest error are loaded first.
+    final List<TileManifest.Tile> requests = tileSelector.getRequests();
+    for (int i = 0; i < requests.size() && numTileLoads < MAX_TILE_LOADS; ++i) {
+      tileSelector.onRequested(requests.get(i));
+      tileRequests.add(requests.get(i));
+      ++numTileLoads;
     }
 
-    // TODO: consider different materials sharing same name (doomed anyways?)
-    for (MtlAndTexture mtlAndTexture : mtlAndTextures) {
-      String name = mtlAndTexture.getMtl().getName();
-      materialByNameMap.put(name, mtlAndTexture);
+    drawnTileObjProperties.clear();
+    final List<TileManifest.Tile> selected = tileSelector.getSelected();
+    for (int i = 0; i < selected.size(); ++i) {
+      final List<ObjProperty> selectedObjProperties =
+              tileObjProperties.get(selected.get(i).getIndex());
+      for (int j = 0; j < selectedObjProperties.size(); ++j) {
+        drawnTileObjProperties.add(selectedObjProperties.get(j));
+      }
     }
-    return materialByNameMap;
   }
 
+  public Bounds getDatasetBounds() { return datasetBounds; };
+
   /**
    * Updates the object model matrix and applies scaling.
    *
@@ -787,36 +1797,16 @@ public class ObjectRenderer {
       return;
     }
 
-    // Use a matrix to calculate the orientation of th model
-    float[] orientationMatrix = new float[16];
-    Matrix.setIdentityM(orientationMatrix, 0);
-
     Bounds bounds = getDatasetBounds();
     if (bounds.isValid()) {
-      float[] datasetCenter = datasetBounds.getCenter();
-
-      // Rotate the model -90 degrees around the original x-axis
-      Matrix.rotateM(orientationMatrix, 0, -90, 1, 0, 0);
-
-      // Translate the model by the offset amount from the anchor
-      Matrix.translateM(orientationMatrix, 0, translateFactor[0], translateFactor[1], translateFactor[2]);
-
-      // Rotate the model based on the rotateFactor around the original z-axis
-      Matrix.rotateM(orientationMatrix, 0, -rotateFactor, 0, 0, 1);
-
-      // Scale the model based on the scaleFactor, but also include an initial 25cm bound on each
-      // side of the 3 axes.
-      final float maxLength = 0.25f * scaleFactor;
-      float[] boundSize = bounds.getSize();
-      float maxSize = Math.max(boundSize[0], Math.max(boundSize[1], boundSize[2]));
-      Matrix.scaleM(orientationMatrix, 0,maxLength / maxSize, maxLength / maxSize, maxLength / maxSize);
-
-      // Translate the model so that the model is centered on the xy plane and on the anchor point
-      Matrix.translateM(orientationMatrix, 0, -datasetCenter[0], -datasetCenter[1], -bounds.getMinZ());
-
-      // Calculate the final model matrix by multiplying the anchor matrix A with the orientation
-      // matrix B to get AB.
-      Matrix.multiplyMM(this.modelMatrix, 0, modelMatrix, 0, orientationMatrix, 0);
+      // Only the inputs that changed are marked dirty, and only those parts are recomputed.
+      modelTransform.setAnchorMatrix(modelMatrix);
+      modelTransform.setTranslation(translateFactor[0], translateFactor[1], translateFactor[2]);
+      modelTransform.setRotation(rotateFactor);
+      modelTransform.setScale(scaleFactor);
+      modelTransform.setBounds(bounds.getMinX(), bounds.getMinY(), bounds.getMinZ(),
+              bounds.getMaxX(), bounds.getMaxY(), bounds.getMaxZ());
+      modelTransform.update();
     }
   }
 
@@ -835,32 +1825,81 @@ public class ObjectRenderer {
       return;
     }
 
+    GLES20.glUseProgram(program);
+
     // Build the ModelView and ModelViewProjection matrices
     // for calculating object position and light.
-    Matrix.multiplyMM(modelViewMatrix, 0, cameraView, 0, modelMatrix, 0);
-    Matrix.multiplyMM(modelViewProjectionMatrix, 0, cameraPerspective, 0, modelViewMatrix, 0);
+    final boolean cameraChanged = copyIfChanged(cameraView, uploadedCameraView)
+            | copyIfChanged(cameraPerspective, uploadedCameraPerspective);
+    boolean frameUniformsChanged = perFrameUniformsDirty;
+    if (cameraChanged || uploadedModelVersion != modelTransform.getVersion()
+            || perFrameUniformsDirty) {
+      uploadedModelVersion = modelTransform.getVersion();
+      Matrix.multiplyMM(modelViewMatrix, 0, cameraView, 0, modelTransform.getModelMatrix(), 0);
+      Matrix.multiplyMM(modelViewProjectionMatrix, 0, cameraPerspective, 0, modelViewMatrix, 0);
+      Matrix.multiplyMV(viewLightDirection, 0, modelViewMatrix, 0, LIGHT_DIRECTION, 0);
+      normalizeVec3(viewLightDirection);
+      frameUniformsChanged = true;
+
+      if (!gles3) {
+        // Set the ModelViewProjection matrix in the shader.
+        GLES20.glUniformMatrix4fv(modelViewUniform, 1, false, modelViewMatrix, 0);
+        GLES20.glUniformMatrix4fv(modelViewProjectionUniform, 1, false, modelViewProjectionMatrix, 0);
 
-    GLES20.glUseProgram(program);
+        // Set the lighting environment properties.
+        GLES20.glUniform4f(
+            lightingParametersUniform,
+            viewLightDirection[0],
+            viewLightDirection[1],
+            viewLightDirection[2],
+            1.f);
+      }
+    }
 
-    // Set the lighting environment properties.
-    Matrix.multiplyMV(viewLightDirection, 0, modelViewMatrix, 0, LIGHT_DIRECTION, 0);
-    normalizeVec3(viewLightDirection);
-    GLES20.glUniform4f(
-        lightingParametersUniform,
-        viewLightDirection[0],
-        viewLightDirection[1],
-        viewLightDirection[2],
-        1.f);
-
-    GLES20.glUniform4f(
-        colorCorrectionParameterUniform,
-        colorCorrectionRgba[0],
-        colorCorrectionRgba[1],
-        colorCorrectionRgba[2],
-        colorCorrectionRgba[3]);
+    if (copyIfChanged(colorCorrectionRgba, uploadedColorCorrectionRgba) || perFrameUniformsDirty) {
+      frameUniformsChanged = true;
+      if (!gles3) {
+        GLES20.glUniform4f(
+            colorCorrectionParameterUniform,
+            colorCorrectionRgba[0],
+            colorCorrectionRgba[1],
+            colorCorrectionRgba[2],
+            colorCorrectionRgba[3]);
+      }
+    }
+    perFrameUniformsDirty = false;
+    if (gles3 && frameUniformsChanged) {
+      writeFrameUniforms(colorCorrectionRgba);
+    }
 
-    for (ObjProperty objProperty : objProperties) {
-      for (ObjProperty.MaterialProperty materialProperty : objProperty.materialProperties) {
+    // A dataset is only drawn once finishUpload has made it the resident one, never from the
+    // loader's hand-off, which can change in the middle of a frame.
+    final List<ObjProperty> drawnObjProperties =
+            (tileSelector != null) ? drawnTileObjProperties : residentObjProperties;
+    if (drawnObjProperties == null) {
+      return;
+    }
+    final long submitStartNanos = System.nanoTime();
+    final int numDraws = gles3
+            ? drawMaterialsGles3(drawnObjProperties, options)
+            : drawMaterialsGles2(drawnObjProperties, options);
+    submitStats.record(numDraws, System.nanoTime() - submitStartNanos);
+
+    ShaderUtil.checkGLError(TAG, "After draw");
+  }
+
+  // Draws the materials of the pass, setting their uniforms and attributes for every draw, and
+  // returns the number of draw calls.
+  private int drawMaterialsGles2(
+          List<ObjProperty> drawnObjProperties, EnumSet<RenderingOptions> options) {
+    int numDraws = 0;
+    final int numObjProperties = drawnObjProperties.size();
+    for (int i = 0; i < numObjProperties; ++i) {
+      final List<ObjProperty.MaterialProperty> materialProperties =
+              drawnObjProperties.get(i).materialProperties;
+      final int numMaterialProperties = materialProperties.size();
+      for (int j = 0; j < numMaterialProperties; ++j) {
+        ObjProperty.MaterialProperty materialProperty = materialProperties.get(j);
 
         if (!(options.contains(RenderingOptions.DRAW_OPAQUE) && materialProperty.opacity == 1.0) &&
             !(options.contains(RenderingOptions.DRAW_TRANSPARENT) && materialProperty.opacity < 1.0))
@@ -869,7 +1908,15 @@ public class ObjectRenderer {
           continue;
         }
 
+        // Evicted chunks are reloaded over the next frames; until then they are not drawn. The
+        // resident dataset has no chunks while the next one uploads, see startUpload.
+        if (materialProperty.chunk == null || !gpuResourceManager.use(materialProperty.chunk)) {
+          continue;
+        }
+
         if (materialProperty.hasTexture) {
+          gpuResourceManager.use(materialProperty.textureResource);
+
           // Attach the object texture.
           GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
           GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, materialProperty.textureId);
@@ -889,25 +1936,22 @@ public class ObjectRenderer {
         GLES20.glUniform1f(materialShininessUniform, materialProperty.shininess);
         GLES20.glUniform1f(materialOpacityUniform, materialProperty.opacity);
 
-        // Set the vertex attributes.
+        // Set the vertex attributes. The attribute blocks of a batch hold every instance of it.
+        final int batchSize = materialProperty.batchSize;
         GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, materialProperty.vertexBufferId);
         if (materialProperty.numVertices > 0) {
           GLES20.glVertexAttribPointer(
-                  positionAttribute, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, materialProperty.verticesBaseAddress);
+                  positionAttribute, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, materialProperty.verticesBaseAddress * batchSize);
         }
         if (materialProperty.numNormals > 0) {
-          GLES20.glVertexAttribPointer(normalAttribute, 3, GLES20.GL_FLOAT, false, 0, materialProperty.normalsBaseAddress);
+          GLES20.glVertexAttribPointer(normalAttribute, 3, GLES20.GL_FLOAT, false, 0, materialProperty.normalsBaseAddress * batchSize);
         }
         if (materialProperty.numTexCoords > 0) {
           GLES20.glVertexAttribPointer(
-                  texCoordAttribute, 2, GLES20.GL_FLOAT, false, 0, materialProperty.texCoordsBaseAddress);
+                  texCoordAttribute, 2, GLES20.GL_FLOAT, false, 0, materialProperty.texCoordsBaseAddress * batchSize);
         }
         GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
 
-        // Set the ModelViewProjection matrix in the shader.
-        GLES20.glUniformMatrix4fv(modelViewUniform, 1, false, modelViewMatrix, 0);
-        GLES20.glUniformMatrix4fv(modelViewProjectionUniform, 1, false, modelViewProjectionMatrix, 0);
-
         // Enable vertex arrays
         if (materialProperty.numVertices > 0) {
           GLES20.glEnableVertexAttribArray(positionAttribute);
@@ -926,7 +1970,12 @@ public class ObjectRenderer {
 
         if (materialProperty.indexCount > 0) {
           GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, materialProperty.indexBufferId);
-          GLES20.glDrawElements(GLES20.GL_TRIANGLES, materialProperty.indexCount, GLES20.GL_UNSIGNED_INT, 0);
+          if (batchSize > 1) {
+            numDraws += drawBatches(materialProperty);
+          } else {
+            GLES20.glDrawElements(GLES20.GL_TRIANGLES, materialProperty.indexCount, GLES20.GL_UNSIGNED_INT, 0);
+            ++numDraws;
+          }
           GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
         }
 
@@ -945,34 +1994,231 @@ public class ObjectRenderer {
         }
       }
     }
+    return numDraws;
+  }
 
-    ShaderUtil.checkGLError(TAG, "After draw");
+  // Draws the materials of the pass, binding the uniform range and the vertex array of every
+  // material, and the texture when it changes, and returns the number of draw calls. Copies of a
+  // mesh are drawn instanced.
+  private int drawMaterialsGles3(
+          List<ObjProperty> drawnObjProperties, EnumSet<RenderingOptions> options) {
+    if (materialUniformsDirty) {
+      writeMaterialUniformBuffer();
+      materialUniformsDirty = false;
+    }
+    final boolean drawOpaque = options.contains(RenderingOptions.DRAW_OPAQUE);
+    final boolean drawTransparent = options.contains(RenderingOptions.DRAW_TRANSPARENT);
+    if (drawTransparent) {
+      GLES20.glEnable(GLES20.GL_BLEND);
+      GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+    }
+    GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+    int boundTextureId = 0;
+
+    int numDraws = 0;
+    final int numObjProperties = drawnObjProperties.size();
+    for (int i = 0; i < numObjProperties; ++i) {
+      final List<ObjProperty.MaterialProperty> materialProperties =
+              drawnObjProperties.get(i).materialProperties;
+      final int numMaterialProperties = materialProperties.size();
+      for (int j = 0; j < numMaterialProperties; ++j) {
+        ObjProperty.MaterialProperty materialProperty = materialProperties.get(j);
+        if (!(drawOpaque && materialProperty.opacity == 1.0)
+                && !(drawTransparent && materialProperty.opacity < 1.0)) {
+          continue;
+        }
+        if (materialProperty.indexCount == 0 || materialProperty.uniformSlot < 0) {
+          continue;
+        }
+        // Evicted chunks are reloaded over the next frames; until then they are not drawn. The
+        // resident dataset has no chunks while the next one uploads, see startUpload.
+        if (materialProperty.chunk == null || !gpuResourceManager.use(materialProperty.chunk)) {
+          continue;
+        }
+
+        // A material without a texture samples the black of texture 0.
+        final int textureId = materialProperty.hasTexture ? materialProperty.textureId : 0;
+        if (materialProperty.hasTexture) {
+          gpuResourceManager.use(materialProperty.textureResource);
+        }
+        if (textureId != boundTextureId) {
+          GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+          boundTextureId = textureId;
+        }
+
+        GLES30.glBindBufferRange(GLES30.GL_UNIFORM_BUFFER, MATERIAL_UNIFORMS_BINDING,
+                materialUniformBufferId, materialProperty.uniformSlot * materialUniformStride,
+                MATERIAL_UNIFORM_BYTES);
+        if (materialProperty.vertexArrayId == 0) {
+          createVertexArray(materialProperty);
+        }
+        GLES30.glBindVertexArray(materialProperty.vertexArrayId);
+        if (materialProperty.instanceBufferId != 0) {
+          GLES30.glDrawElementsInstanced(GLES20.GL_TRIANGLES, materialProperty.indexCount,
+                  GLES20.GL_UNSIGNED_INT, 0, materialProperty.numInstances());
+        } else {
+          GLES20.glDrawElements(GLES20.GL_TRIANGLES, materialProperty.indexCount,
+                  GLES20.GL_UNSIGNED_INT, 0);
+        }
+        ++numDraws;
+      }
+    }
+
+    // The other renderers draw from the default vertex array.
+    GLES30.glBindVertexArray(0);
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+    if (drawTransparent) {
+      GLES20.glDisable(GLES20.GL_BLEND);
+    }
+    return numDraws;
   }
 
+  // Records the attribute pointers and the index buffer of the material in a new vertex array
+  // object. The instance offsets, if any, advance once per instance.
+  private void createVertexArray(ObjProperty.MaterialProperty materialProperty) {
+    GLES30.glGenVertexArrays(1, vertexArrayIds, 0);
+    materialProperty.vertexArrayId = vertexArrayIds[0];
+    GLES30.glBindVertexArray(materialProperty.vertexArrayId);
+
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, materialProperty.vertexBufferId);
+    if (materialProperty.numVertices > 0) {
+      GLES20.glVertexAttribPointer(positionAttribute, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false,
+              0, materialProperty.verticesBaseAddress);
+      GLES20.glEnableVertexAttribArray(positionAttribute);
+    }
+    if (materialProperty.numNormals > 0) {
+      GLES20.glVertexAttribPointer(normalAttribute, 3, GLES20.GL_FLOAT, false, 0,
+              materialProperty.normalsBaseAddress);
+      GLES20.glEnableVertexAttribArray(normalAttribute);
+    }
+    if (materialProperty.numTexCoords > 0) {
+      GLES20.glVertexAttribPointer(texCoordAttribute, 2, GLES20.GL_FLOAT, false, 0,
+              materialProperty.texCoordsBaseAddress);
+      GLES20.glEnableVertexAttribArray(texCoordAttribute);
+    }
+    if (materialProperty.instanceBufferId != 0) {
+      GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, materialProperty.instanceBufferId);
+      GLES20.glVertexAttribPointer(instanceOffsetAttribute, 3, GLES20.GL_FLOAT, false, 0, 0);
+      GLES20.glEnableVertexAttribArray(instanceOffsetAttribute);
+      GLES30.glVertexAttribDivisor(instanceOffsetAttribute, 1);
+    }
+    // The element array binding is part of the vertex array, so it is not unbound before it.
+    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, materialProperty.indexBufferId);
 
-  private static void normalizeVec3(float[] v) {
-    float reciprocalLength = 1.0f / (float) Math.sqrt(v[0] * v[0] + v[1] * v[1] + v[2] * v[2]);
-    v[0] *= reciprocalLength;
-    v[1] *= reciprocalLength;
-    v[2] *= reciprocalLength;
+    GLES30.glBindVertexArray(0);
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
   }
 
-  private class MtlAndTexture {
-    private final Mtl mtl;
+  // Writes the per-frame uniforms, in the layout of the FrameUniforms block, into their buffer.
+  private void writeFrameUniforms(float[] colorCorrectionRgba) {
+    for (int i = 0; i < 16; ++i) {
+      frameUniformData.putFloat(4 * i, modelViewMatrix[i]);
+      frameUniformData.putFloat(64 + 4 * i, modelViewProjectionMatrix[i]);
+    }
+    for (int i = 0; i < 3; ++i) {
+      frameUniformData.putFloat(128 + 4 * i, viewLightDirection[i]);
+    }
+    frameUniformData.putFloat(140, 1.0f);
+    for (int i = 0; i < 4; ++i) {
+      frameUniformData.putFloat(144 + 4 * i, colorCorrectionRgba[i]);
+    }
+    // The block is small and may change every frame, so it is written with glBufferSubData from
+    // the preallocated data. Mapping it would allocate a new ByteBuffer on every frame.
+    GLES20.glBindBuffer(GLES30.GL_UNIFORM_BUFFER, frameUniformBufferId);
+    GLES20.glBufferSubData(GLES30.GL_UNIFORM_BUFFER, 0, FRAME_UNIFORM_BYTES, frameUniformData);
+    GLES20.glBindBuffer(GLES30.GL_UNIFORM_BUFFER, 0);
+  }
 
-    private final File textureFile;
+  // Writes the uniforms of every material slot into the material uniform buffer, growing it if
+  // materials were added. This only happens after materials are uploaded or released, not on
+  // every frame.
+  private void writeMaterialUniformBuffer() {
+    final int bytes = numMaterialSlots * materialUniformStride;
+    if (bytes == 0) {
+      return;
+    }
+    if (materialUniformBufferBytes < bytes) {
+      materialUniformBufferBytes = Math.max(bytes, 2 * materialUniformBufferBytes);
+      GLES20.glBindBuffer(GLES30.GL_UNIFORM_BUFFER, materialUniformBufferId);
+      GLES20.glBufferData(GLES30.GL_UNIFORM_BUFFER, materialUniformBufferBytes, null,
+              GLES20.GL_DYNAMIC_DRAW);
+    }
+    writeUniformBuffer(materialUniformBufferId, materialUniformData, bytes);
+  }
 
-    private Mtl getMtl() {
-      return mtl;
+  // Replaces the first bytes of a uniform buffer with those of the data, through glMapBufferRange
+  // with the buffer invalidated, so that the driver does not wait for the draws that read the old
+  // content. Falls back to glBufferSubData if the buffer cannot be mapped or loses the mapped
+  // content. The mapping allocates a ByteBuffer, so this is only for rewrites of the whole
+  // material buffer, never for per-frame data.
+  private static void writeUniformBuffer(int bufferId, ByteBuffer data, int bytes) {
+    GLES20.glBindBuffer(GLES30.GL_UNIFORM_BUFFER, bufferId);
+    data.limit(bytes);
+    data.position(0);
+    final ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_UNIFORM_BUFFER, 0,
+            bytes, GLES30.GL_MAP_WRITE_BIT | GLES30.GL_MAP_INVALIDATE_BUFFER_BIT);
+    if (mapped != null) {
+      mapped.put(data);
+      data.position(0);
+    }
+    if (mapped == null || !GLES30.glUnmapBuffer(GLES30.GL_UNIFORM_BUFFER)) {
+      GLES20.glBufferSubData(GLES30.GL_UNIFORM_BUFFER, 0, bytes, data);
     }
+    data.clear();
+    GLES20.glBindBuffer(GLES30.GL_UNIFORM_BUFFER, 0);
+  }
 
-    private File getTextureFile() {
-      return textureFile;
+  // Draws the copies of a deduplicated mesh a batch at a time, with the offsets of the batch in
+  // the uniform array that the instance index of every vertex picks from. The last batch draws
+  // only the indices of the instances it has. Returns the number of draw calls.
+  private int drawBatches(ObjProperty.MaterialProperty materialProperty) {
+    final int batchSize = materialProperty.batchSize;
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, materialProperty.vertexBufferId);
+    GLES20.glVertexAttribPointer(instanceIndexAttribute, 1, GLES20.GL_FLOAT, false, 0,
+            (int) materialProperty.vertexBytes() * batchSize);
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    GLES20.glEnableVertexAttribArray(instanceIndexAttribute);
+
+    final float[] offsets = materialProperty.instanceOffsets;
+    final int numInstances = materialProperty.numInstances();
+    for (int first = 0; first < numInstances; first += batchSize) {
+      final int count = Math.min(batchSize, numInstances - first);
+      GLES20.glUniform3fv(instanceOffsetsUniform, count, offsets, 3 * first);
+      GLES20.glDrawElements(GLES20.GL_TRIANGLES, materialProperty.indexCount * count,
+              GLES20.GL_UNSIGNED_INT, 0);
     }
 
-    private MtlAndTexture(Mtl mtl, File textureFile) {
-      this.mtl = mtl;
-      this.textureFile = textureFile;
+    // The meshes drawn once take the first offset, with the instance index left at 0.
+    GLES20.glDisableVertexAttribArray(instanceIndexAttribute);
+    GLES20.glUniform3f(instanceOffsetsUniform, 0.0f, 0.0f, 0.0f);
+    return (numInstances + batchSize - 1) / batchSize;
+  }
+
+
+  // Copies source into copy if they differ, and returns whether they did.
+  private static boolean copyIfChanged(float[] source, float[] copy) {
+    for (int i = 0; i < copy.length; ++i) {
+      if (source[i] != copy[i]) {
+        System.arraycopy(source, 0, copy, 0, copy.length);
+        return true;
+      }
     }
+    return false;
+  }
+
+  private static void normalizeVec3(float[] v) {
+    float reciprocalLength = 1.0f / (float) Math.sqrt(v[0] * v[0] + v[1] * v[1] + v[2] * v[2]);
+    v[0] *= reciprocalLength;
+    v[1] *= reciprocalLength;
+    v[2] *= reciprocalLength;
+  }
+
+  static FloatBuffer createDirectFloatBuffer(int size) {
+    return ByteBuffer.allocateDirect(size * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+  }
+
+  static IntBuffer createDirectIntBuffer(int size) {
+    return ByteBuffer.allocateDirect(size * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
   }
 }
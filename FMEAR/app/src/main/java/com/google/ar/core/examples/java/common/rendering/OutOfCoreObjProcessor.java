@@ -0,0 +1,816 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Processes an obj file that does not fit the Java heap into GPU-ready {@link ChunkBlob} files,
+ * in passes over memory-mapped scratch files, so that the heap it needs does not depend on the
+ * size of the file. It has no Android dependencies, so that it can be tested on the JVM.
+ *
+ * <ol>
+ *   <li>Parse: the obj text is streamed, and the positions, texture coordinates, normals and faces
+ *       are appended to scratch files, counting the triangles of every material.
+ *   <li>Triangulate and partition: the faces are fanned into triangles, which are written to the
+ *       range of their material in a triangle file, like a counting sort.
+ *   <li>Normals: if the file has none, the face normals are added up per position in a scratch
+ *       file, the same smooth normals that the in-memory path computes.
+ *   <li>Weld: the triangles of every material are read in order, and their corners welded into
+ *       single-indexed vertices through a hash table, into chunks of a bounded number of vertices
+ *       that are written out as chunk files.
+ * </ol>
+ *
+ * <p>Everything that is allocated on the heap is reserved against the heap ceiling first; the
+ * ceiling sets the size of the chunks, and processing fails if it is too small for the smallest
+ * chunk. The scratch files are mapped in windows, outside of the heap, and deleted at the end.
+ */
+public class OutOfCoreObjProcessor {
+
+  /** The heap that ObjReader and ObjUtils need per byte of obj text, roughly. */
+  public static final int HEAP_BYTES_PER_OBJ_BYTE = 4;
+
+  // The scratch files are mapped a few windows at a time.
+  private static final int WINDOW_BYTES = 4 * 1024 * 1024;
+  private static final int NUM_WINDOWS = 4;
+  private static final int IO_BUFFER_BYTES = 64 * 1024;
+  private static final int MAX_LINE_BYTES = 64 * 1024;
+  private static final int MAX_FACE_CORNERS = 4096;
+
+  // The chunk size is bounded by the heap ceiling, and by a vertex count that keeps the chunks
+  // small enough to upload within a frame.
+  private static final int MIN_CHUNK_VERTICES = 1024;
+  private static final int MAX_CHUNK_VERTICES = 65536;
+  // The heap of a chunk vertex: two weld table slots of four ints, eight floats of attributes and
+  // up to six indices.
+  private static final int HEAP_BYTES_PER_CHUNK_VERTEX = 2 * 16 + 8 * 4 + 6 * 4;
+  // The heap of everything but the chunk: the read and line buffers, the face corners and the
+  // append buffers of the scratch files.
+  private static final int FIXED_HEAP_BYTES =
+          IO_BUFFER_BYTES + MAX_LINE_BYTES + 3 * 4 * MAX_FACE_CORNERS + 4 * IO_BUFFER_BYTES;
+  // The heap of a material: its name and its triangle count and cursor.
+  private static final int HEAP_BYTES_PER_MATERIAL = 256;
+
+  // The ints of a triangle in the triangle file: three corners of position, texture coordinate and
+  // normal index.
+  private static final int TRIANGLE_INTS = 9;
+
+  /** A chunk of the triangles of one material. */
+  public static class Chunk {
+    public final String materialName;
+    public final File file;
+    public final int numVertices;
+    public final int numIndices;
+    public final boolean hasTexCoords;
+    // The bounds of the positions: minimum x, y, z, then maximum x, y, z.
+    public final float[] bounds;
+
+    Chunk(String materialName, File file, int numVertices, int numIndices, boolean hasTexCoords,
+          float[] bounds) {
+      this.materialName = materialName;
+      this.file = file;
+      this.numVertices = numVertices;
+      this.numIndices = numIndices;
+      this.hasTexCoords = hasTexCoords;
+      this.bounds = bounds;
+    }
+  }
+
+  /** The chunks of an obj file, with the counts of the passes. */
+  public static class Result {
+    public final List<String> mtlFileNames = new ArrayList<>();
+    public final List<Chunk> chunks = new ArrayList<>();
+    public long numPositions = 0;
+    public long numFaces = 0;
+    public long numTriangles = 0;
+    public long numVertices = 0;
+    // The largest total size of the scratch files, and of the heap reserved at any time.
+    public long scratchBytes = 0;
+    public long peakHeapBytes = 0;
+  }
+
+  private final File scratchDirectory;
+  private final File chunkDirectory;
+  private final long heapCeilingBytes;
+  private long heapBytes = 0;
+  private long peakHeapBytes = 0;
+
+  /**
+   * @param scratchDirectory Where the scratch files are created, such as a directory in the cache
+   *     directory.
+   * @param chunkDirectory Where the chunk files are written. They are owned by the caller.
+   * @param heapCeilingBytes The heap that processing may use.
+   */
+  public OutOfCoreObjProcessor(File scratchDirectory, File chunkDirectory, long heapCeilingBytes) {
+    this.scratchDirectory = scratchDirectory;
+    this.chunkDirectory = chunkDirectory;
+    this.heapCeilingBytes = heapCeilingBytes;
+  }
+
+  /**
+   * Returns whether an obj file of this size would not fit the heap ceiling once parsed. Only
+   * those files should be processed out of core, since the chunks are not deduplicated, merged or
+   * atlased like the materials of a parsed obj.
+   */
+  public static boolean needsOutOfCore(long objBytes, long heapCeilingBytes) {
+    return objBytes * HEAP_BYTES_PER_OBJ_BYTE > heapCeilingBytes;
+  }
+
+  /** Processes the obj file. The chunk files are deleted if processing fails. */
+  public Result process(File objFile) throws IOException {
+    Result result = new Result();
+    if (!scratchDirectory.isDirectory() && !scratchDirectory.mkdirs()) {
+      throw new IOException("Failed to create the scratch directory " + scratchDirectory);
+    }
+    reserve(FIXED_HEAP_BYTES);
+
+    boolean processed = false;
+    try (ScratchFile positions = new ScratchFile("positions");
+         ScratchFile texCoords = new ScratchFile("texcoords");
+         ScratchFile normals = new ScratchFile("normals");
+         ScratchFile faces = new ScratchFile("faces");
+         ScratchFile triangles = new ScratchFile("triangles")) {
+      Parser parser = new Parser(positions, texCoords, normals, faces, result);
+      try (InputStream input = new FileInputStream(objFile)) {
+        parser.parse(input);
+      }
+      positions.finishAppending();
+      texCoords.finishAppending();
+      normals.finishAppending();
+      faces.finishAppending();
+
+      long[] materialOffsets = partition(parser, faces, triangles, result);
+      result.scratchBytes = positions.length() + texCoords.length() + normals.length()
+              + faces.length() + triangles.length();
+
+      final boolean generateNormals = parser.numNormals == 0;
+      if (generateNormals) {
+        normals.setLength(12L * result.numPositions);
+        computeNormals(positions, triangles, normals, result.numTriangles, result.numPositions);
+      }
+
+      // The chunks take what is left of the ceiling, in a power of two that sizes the weld table.
+      final long chunkVertices = Math.min(MAX_CHUNK_VERTICES,
+              (heapCeilingBytes - heapBytes) / HEAP_BYTES_PER_CHUNK_VERTEX);
+      if (chunkVertices < MIN_CHUNK_VERTICES) {
+        throw new IOException("The heap ceiling of " + heapCeilingBytes + " bytes is too small");
+      }
+      final boolean hasTexCoords = parser.numTexCoords > 0;
+      Welder welder = new Welder((int) Long.highestOneBit(chunkVertices), positions, texCoords,
+              normals, hasTexCoords, generateNormals, result);
+      for (int m = 0; m < parser.materialNames.size(); ++m) {
+        welder.weld(parser.materialNames.get(m), triangles, materialOffsets[m],
+                materialOffsets[m + 1]);
+      }
+      processed = true;
+    } finally {
+      result.peakHeapBytes = peakHeapBytes;
+      heapBytes = 0;
+      if (!processed) {
+        for (Chunk chunk : result.chunks) {
+          chunk.file.delete();
+        }
+      }
+    }
+    return result;
+  }
+
+  // Reserves heap against the ceiling before it is allocated.
+  private void reserve(long bytes) throws IOException {
+    if (heapBytes + bytes > heapCeilingBytes) {
+      throw new IOException("Processing needs more than the heap ceiling of " + heapCeilingBytes
+              + " bytes");
+    }
+    heapBytes += bytes;
+    peakHeapBytes = Math.max(peakHeapBytes, heapBytes);
+  }
+
+  private static void checkInterrupted() throws InterruptedIOException {
+    if (Thread.currentThread().isInterrupted()) {
+      throw new InterruptedIOException("Interrupted while processing");
+    }
+  }
+
+  // Fans the faces into triangles, and writes them to the range of their material in the triangle
+  // file. Returns the start of the range of every material, in bytes, and the end of the last.
+  private long[] partition(Parser parser, ScratchFile faces, ScratchFile triangles, Result result)
+          throws IOException {
+    final int numMaterials = parser.materialNames.size();
+    long[] offsets = new long[numMaterials + 1];
+    for (int m = 0; m < numMaterials; ++m) {
+      offsets[m + 1] = offsets[m] + 4L * TRIANGLE_INTS * parser.materialTriangles[m];
+    }
+    triangles.setLength(offsets[numMaterials]);
+    long[] cursors = Arrays.copyOf(offsets, numMaterials);
+
+    final long facesLength = faces.length();
+    long offset = 0;
+    while (offset < facesLength) {
+      final int material = faces.getInt(offset);
+      final int numCorners = faces.getInt(offset + 4);
+      final long corners = offset + 8;
+      for (int k = 1; k + 1 < numCorners; ++k) {
+        long cursor = cursors[material];
+        cursor = copyCorner(faces, corners, triangles, cursor);
+        cursor = copyCorner(faces, corners + 12L * k, triangles, cursor);
+        cursor = copyCorner(faces, corners + 12L * (k + 1), triangles, cursor);
+        cursors[material] = cursor;
+      }
+      offset = corners + 12L * numCorners;
+      if ((++result.numFaces & 0xffff) == 0) {
+        checkInterrupted();
+      }
+    }
+    result.numTriangles = offsets[numMaterials] / (4 * TRIANGLE_INTS);
+    return offsets;
+  }
+
+  private static long copyCorner(ScratchFile faces, long corner, ScratchFile triangles,
+                                 long cursor) throws IOException {
+    triangles.putInt(cursor, faces.getInt(corner));
+    triangles.putInt(cursor + 4, faces.getInt(corner + 4));
+    triangles.putInt(cursor + 8, faces.getInt(corner + 8));
+    return cursor + 12;
+  }
+
+  // Adds up the area-weighted face normals of every position, then normalizes them.
+  private static void computeNormals(ScratchFile positions, ScratchFile triangles,
+                                     ScratchFile normals, long numTriangles, long numPositions)
+          throws IOException {
+    for (long t = 0; t < numTriangles; ++t) {
+      final long triangle = t * 4 * TRIANGLE_INTS;
+      final long p0 = 12L * triangles.getInt(triangle);
+      final long p1 = 12L * triangles.getInt(triangle + 12);
+      final long p2 = 12L * triangles.getInt(triangle + 24);
+      final float x0 = positions.getFloat(p0);
+      final float y0 = positions.getFloat(p0 + 4);
+      final float z0 = positions.getFloat(p0 + 8);
+      final float ax = positions.getFloat(p1) - x0;
+      final float ay = positions.getFloat(p1 + 4) - y0;
+      final float az = positions.getFloat(p1 + 8) - z0;
+      final float bx = positions.getFloat(p2) - x0;
+      final float by = positions.getFloat(p2 + 4) - y0;
+      final float bz = positions.getFloat(p2 + 8) - z0;
+      final float nx = ay * bz - az * by;
+      final float ny = az * bx - ax * bz;
+      final float nz = ax * by - ay * bx;
+      addNormal(normals, p0, nx, ny, nz);
+      addNormal(normals, p1, nx, ny, nz);
+      addNormal(normals, p2, nx, ny, nz);
+      if ((t & 0xffff) == 0) {
+        checkInterrupted();
+      }
+    }
+
+    for (long p = 0; p < 12L * numPositions; p += 12) {
+      final float x = normals.getFloat(p);
+      final float y = normals.getFloat(p + 4);
+      final float z = normals.getFloat(p + 8);
+      final float length = (float) Math.sqrt(x * x + y * y + z * z);
+      if (length > 0.0f) {
+        normals.putFloat(p, x / length);
+        normals.putFloat(p + 4, y / length);
+        normals.putFloat(p + 8, z / length);
+      }
+    }
+  }
+
+  private static void addNormal(ScratchFile normals, long offset, float x, float y, float z)
+          throws IOException {
+    normals.putFloat(offset, normals.getFloat(offset) + x);
+    normals.putFloat(offset + 4, normals.getFloat(offset + 4) + y);
+    normals.putFloat(offset + 8, normals.getFloat(offset + 8) + z);
+  }
+
+  // Streams the obj text into the scratch files.
+  private class Parser {
+    private final ScratchFile positions;
+    private final ScratchFile texCoords;
+    private final ScratchFile normals;
+    private final ScratchFile faces;
+    private final Result result;
+
+    private final byte[] buffer;
+    private int bufferPosition = 0;
+    private int bufferLimit = 0;
+    private final byte[] line;
+    private int lineLength = 0;
+    private int linePosition = 0;
+    private final int[] corners;
+
+    final List<String> materialNames = new ArrayList<>();
+    private final Map<String, Integer> materialIndices = new HashMap<>();
+    long[] materialTriangles = new long[8];
+    private int material = -1;
+    long numTexCoords = 0;
+    long numNormals = 0;
+
+    Parser(ScratchFile positions, ScratchFile texCoords, ScratchFile normals, ScratchFile faces,
+           Result result) {
+      this.positions = positions;
+      this.texCoords = texCoords;
+      this.normals = normals;
+      this.faces = faces;
+      this.result = result;
+      this.buffer = new byte[IO_BUFFER_BYTES];
+      this.line = new byte[MAX_LINE_BYTES];
+      this.corners = new int[3 * MAX_FACE_CORNERS];
+    }
+
+    void parse(InputStream input) throws IOException {
+      long lineNumber = 0;
+      while (readLine(input)) {
+        if ((++lineNumber & 0xffff) == 0) {
+          checkInterrupted();
+        }
+        skipSpaces();
+        if (linePosition >= lineLength || line[linePosition] == '#') {
+          continue;
+        }
+        final int keywordStart = linePosition;
+        while (linePosition < lineLength && !isSpace(line[linePosition])) {
+          ++linePosition;
+        }
+        final int keywordLength = linePosition - keywordStart;
+        final byte first = line[keywordStart];
+        final byte second = (keywordLength > 1) ? line[keywordStart + 1] : 0;
+        if (keywordLength == 1 && first == 'v') {
+          positions.appendFloat(parseFloat(0.0f));
+          positions.appendFloat(parseFloat(0.0f));
+          positions.appendFloat(parseFloat(0.0f));
+          ++result.numPositions;
+        } else if (keywordLength == 2 && first == 'v' && second == 't') {
+          texCoords.appendFloat(parseFloat(0.0f));
+          texCoords.appendFloat(parseFloat(0.0f));
+          ++numTexCoords;
+        } else if (keywordLength == 2 && first == 'v' && second == 'n') {
+          normals.appendFloat(parseFloat(0.0f));
+          normals.appendFloat(parseFloat(0.0f));
+          normals.appendFloat(parseFloat(0.0f));
+          ++numNormals;
+        } else if (keywordLength == 1 && first == 'f') {
+          parseFace();
+        } else if (isKeyword(keywordStart, keywordLength, "usemtl")) {
+          material = materialIndexOf(restOfLine());
+        } else if (isKeyword(keywordStart, keywordLength, "mtllib")) {
+          for (String mtlFileName : restOfLine().split("\\s+")) {
+            if (!mtlFileName.isEmpty()) {
+              result.mtlFileNames.add(mtlFileName);
+            }
+          }
+        }
+      }
+    }
+
+    private void parseFace() throws IOException {
+      int numCorners = 0;
+      skipSpaces();
+      while (linePosition < lineLength) {
+        if (numCorners == MAX_FACE_CORNERS) {
+          throw new IOException("A face has more than " + MAX_FACE_CORNERS + " vertices");
+        }
+        corners[3 * numCorners] = parseIndex(result.numPositions);
+        corners[3 * numCorners + 1] = -1;
+        corners[3 * numCorners + 2] = -1;
+        if (linePosition < lineLength && line[linePosition] == '/') {
+          ++linePosition;
+          if (linePosition < lineLength && line[linePosition] != '/') {
+            corners[3 * numCorners + 1] = parseIndex(numTexCoords);
+          }
+          if (linePosition < lineLength && line[linePosition] == '/') {
+            ++linePosition;
+            corners[3 * numCorners + 2] = parseIndex(numNormals);
+          }
+        }
+        ++numCorners;
+        skipSpaces();
+      }
+      if (numCorners < 3) {
+        return;
+      }
+
+      if (material < 0) {
+        material = materialIndexOf("");
+      }
+      faces.appendInt(material);
+      faces.appendInt(numCorners);
+      for (int i = 0; i < 3 * numCorners; ++i) {
+        faces.appendInt(corners[i]);
+      }
+      materialTriangles[material] += numCorners - 2;
+    }
+
+    // Parses a 1-based or negative relative index into a 0-based one.
+    private int parseIndex(long count) throws IOException {
+      boolean negative = false;
+      if (linePosition < lineLength && line[linePosition] == '-') {
+        negative = true;
+        ++linePosition;
+      }
+      long value = 0;
+      final int start = linePosition;
+      while (linePosition < lineLength && line[linePosition] >= '0'
+              && line[linePosition] <= '9') {
+        value = value * 10 + (line[linePosition++] - '0');
+      }
+      if (linePosition == start) {
+        throw new IOException("Malformed face index");
+      }
+      final long index = negative ? count - value : value - 1;
+      if (index < 0 || index >= count) {
+        throw new IOException("Face index " + (negative ? -value : value) + " is out of range");
+      }
+      return (int) index;
+    }
+
+    // Parses a decimal float, with an optional exponent, or returns the default at the end of
+    // the line.
+    private float parseFloat(float defaultValue) throws IOException {
+      skipSpaces();
+      if (linePosition >= lineLength) {
+        return defaultValue;
+      }
+      boolean negative = false;
+      if (line[linePosition] == '-' || line[linePosition] == '+') {
+        negative = line[linePosition] == '-';
+        ++linePosition;
+      }
+      double value = 0.0;
+      int numDigits = 0;
+      while (linePosition < lineLength && line[linePosition] >= '0'
+              && line[linePosition] <= '9') {
+        value = value * 10.0 + (line[linePosition++] - '0');
+        ++numDigits;
+      }
+      if (linePosition < lineLength && line[linePosition] == '.') {
+        ++linePosition;
+        double scale = 0.1;
+        while (linePosition < lineLength && line[linePosition] >= '0'
+                && line[linePosition] <= '9') {
+          value += (line[linePosition++] - '0') * scale;
+          scale *= 0.1;
+          ++numDigits;
+        }
+      }
+      if (numDigits == 0) {
+        throw new IOException("Malformed number");
+      }
+      if (linePosition < lineLength && (line[linePosition] == 'e' || line[linePosition] == 'E')) {
+        ++linePosition;
+        boolean negativeExponent = false;
+        if (linePosition < lineLength && (line[linePosition] == '-'
+                || line[linePosition] == '+')) {
+          negativeExponent = line[linePosition] == '-';
+          ++linePosition;
+        }
+        int exponent = 0;
+        while (linePosition < lineLength && line[linePosition] >= '0'
+                && line[linePosition] <= '9') {
+          exponent = Math.min(exponent * 10 + (line[linePosition++] - '0'), 400);
+        }
+        value *= Math.pow(10.0, negativeExponent ? -exponent : exponent);
+      }
+      return (float) (negative ? -value : value);
+    }
+
+    private int materialIndexOf(String name) throws IOException {
+      Integer index = materialIndices.get(name);
+      if (index == null) {
+        reserve(HEAP_BYTES_PER_MATERIAL + 2L * name.length());
+        index = materialNames.size();
+        materialNames.add(name);
+        materialIndices.put(name, index);
+        if (index == materialTriangles.length) {
+          materialTriangles = Arrays.copyOf(materialTriangles, 2 * index);
+        }
+      }
+      return index;
+    }
+
+    private String restOfLine() {
+      skipSpaces();
+      int end = lineLength;
+      while (end > linePosition && isSpace(line[end - 1])) {
+        --end;
+      }
+      return new String(line, linePosition, end - linePosition, StandardCharsets.UTF_8);
+    }
+
+    private boolean isKeyword(int start, int length, String keyword) {
+      if (length != keyword.length()) {
+        return false;
+      }
+      for (int i = 0; i < length; ++i) {
+        if (line[start + i] != keyword.charAt(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private void skipSpaces() {
+      while (linePosition < lineLength && isSpace(line[linePosition])) {
+        ++linePosition;
+      }
+    }
+
+    private boolean isSpace(byte c) {
+      return c == ' ' || c == '\t' || c == '\r';
+    }
+
+    // Reads the next line into the line buffer. Returns false at the end of the input.
+    private boolean readLine(InputStream input) throws IOException {
+      lineLength = 0;
+      linePosition = 0;
+      while (true) {
+        if (bufferPosition == bufferLimit) {
+          bufferLimit = input.read(buffer);
+          bufferPosition = 0;
+          if (bufferLimit <= 0) {
+            bufferLimit = 0;
+            return lineLength > 0;
+          }
+        }
+        final byte c = buffer[bufferPosition++];
+        if (c == '\n') {
+          return true;
+        }
+        if (lineLength == MAX_LINE_BYTES) {
+          throw new IOException("A line is longer than " + MAX_LINE_BYTES + " bytes");
+        }
+        line[lineLength++] = c;
+      }
+    }
+  }
+
+  // Welds the corners of the triangles of a material into chunks of single-indexed vertices.
+  private class Welder {
+    private final int maxVertices;
+    private final int maxIndices;
+    private final ScratchFile positions;
+    private final ScratchFile texCoords;
+    private final ScratchFile normals;
+    private final boolean hasTexCoords;
+    private final boolean generatedNormals;
+    private final Result result;
+
+    // An open addressing hash table from the position, texture coordinate and normal indices of a
+    // corner to its vertex, plus one; zero is empty.
+    private final int tableMask;
+    private final int[] tableKeys;
+    private final int[] tableVertices;
+
+    private final float[] chunkPositions;
+    private final float[] chunkTexCoords;
+    private final float[] chunkNormals;
+    private final int[] chunkIndices;
+    private final float[] bounds = new float[6];
+    private int numVertices = 0;
+    private int numIndices = 0;
+
+    Welder(int maxVertices, ScratchFile positions, ScratchFile texCoords, ScratchFile normals,
+           boolean hasTexCoords, boolean generatedNormals, Result result) throws IOException {
+      this.maxVertices = maxVertices;
+      this.maxIndices = 6 * maxVertices;
+      this.positions = positions;
+      this.texCoords = texCoords;
+      this.normals = normals;
+      this.hasTexCoords = hasTexCoords;
+      this.generatedNormals = generatedNormals;
+      this.result = result;
+
+      final int tableSize = 2 * maxVertices;
+      reserve((long) HEAP_BYTES_PER_CHUNK_VERTEX * maxVertices);
+      tableMask = tableSize - 1;
+      tableKeys = new int[3 * tableSize];
+      tableVertices = new int[tableSize];
+      chunkPositions = new float[3 * maxVertices];
+      chunkTexCoords = new float[hasTexCoords ? 2 * maxVertices : 0];
+      chunkNormals = new float[3 * maxVertices];
+      chunkIndices = new int[maxIndices];
+    }
+
+    void weld(String materialName, ScratchFile triangles, long start, long end)
+            throws IOException {
+      startChunk();
+      for (long triangle = start; triangle < end; triangle += 4 * TRIANGLE_INTS) {
+        if (numVertices + 3 > maxVertices || numIndices + 3 > maxIndices) {
+          writeChunk(materialName);
+          startChunk();
+          checkInterrupted();
+        }
+        for (int corner = 0; corner < 3; ++corner) {
+          final long offset = triangle + 12 * corner;
+          chunkIndices[numIndices++] = vertexOf(triangles.getInt(offset),
+                  triangles.getInt(offset + 4), triangles.getInt(offset + 8));
+        }
+      }
+      writeChunk(materialName);
+    }
+
+    private void startChunk() {
+      Arrays.fill(tableVertices, 0);
+      numVertices = 0;
+      numIndices = 0;
+      bounds[0] = bounds[1] = bounds[2] = Float.POSITIVE_INFINITY;
+      bounds[3] = bounds[4] = bounds[5] = Float.NEGATIVE_INFINITY;
+    }
+
+    private int vertexOf(int position, int texCoord, int normal) throws IOException {
+      if (generatedNormals) {
+        normal = position;
+      }
+      int hash = position * 0x9e3779b1 ^ texCoord * 0x85ebca6b ^ normal * 0xc2b2ae35;
+      hash ^= hash >>> 16;
+      int slot = hash & tableMask;
+      while (tableVertices[slot] != 0) {
+        if (tableKeys[3 * slot] == position && tableKeys[3 * slot + 1] == texCoord
+                && tableKeys[3 * slot + 2] == normal) {
+          return tableVertices[slot] - 1;
+        }
+        slot = (slot + 1) & tableMask;
+      }
+
+      final int vertex = numVertices++;
+      tableKeys[3 * slot] = position;
+      tableKeys[3 * slot + 1] = texCoord;
+      tableKeys[3 * slot + 2] = normal;
+      tableVertices[slot] = vertex + 1;
+
+      for (int i = 0; i < 3; ++i) {
+        final float value = positions.getFloat(12L * position + 4 * i);
+        chunkPositions[3 * vertex + i] = value;
+        bounds[i] = Math.min(bounds[i], value);
+        bounds[3 + i] = Math.max(bounds[3 + i], value);
+      }
+      if (hasTexCoords) {
+        chunkTexCoords[2 * vertex] = (texCoord < 0) ? 0.0f : texCoords.getFloat(8L * texCoord);
+        chunkTexCoords[2 * vertex + 1] =
+                (texCoord < 0) ? 0.0f : texCoords.getFloat(8L * texCoord + 4);
+      }
+      if (normal < 0) {
+        chunkNormals[3 * vertex] = 0.0f;
+        chunkNormals[3 * vertex + 1] = 0.0f;
+        chunkNormals[3 * vertex + 2] = 1.0f;
+      } else {
+        for (int i = 0; i < 3; ++i) {
+          chunkNormals[3 * vertex + i] = normals.getFloat(12L * normal + 4 * i);
+        }
+      }
+      return vertex;
+    }
+
+    private void writeChunk(String materialName) throws IOException {
+      if (numIndices == 0) {
+        return;
+      }
+      File file = File.createTempFile("chunk", ".bin", chunkDirectory);
+      result.chunks.add(new Chunk(materialName, file, numVertices, numIndices, hasTexCoords,
+              bounds.clone()));
+      ChunkBlob.write(file, FloatBuffer.wrap(chunkPositions, 0, 3 * numVertices),
+              FloatBuffer.wrap(chunkTexCoords, 0, hasTexCoords ? 2 * numVertices : 0),
+              FloatBuffer.wrap(chunkNormals, 0, 3 * numVertices),
+              IntBuffer.wrap(chunkIndices, 0, numIndices));
+      result.numVertices += numVertices;
+    }
+  }
+
+  // A scratch file of ints and floats, appended through a buffer and then read and written at
+  // random through memory-mapped windows. Deleted when closed.
+  private class ScratchFile implements Closeable {
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private ByteBuffer appendBuffer;
+    private long length = 0;
+
+    private final ByteBuffer[] windows = new ByteBuffer[NUM_WINDOWS];
+    private final long[] windowStarts = new long[NUM_WINDOWS];
+    private final long[] windowUses = new long[NUM_WINDOWS];
+    private long numUses = 0;
+    private boolean closed = false;
+
+    ScratchFile(String name) throws IOException {
+      file = File.createTempFile(name, ".scratch", scratchDirectory);
+      randomAccessFile = new RandomAccessFile(file, "rw");
+      channel = randomAccessFile.getChannel();
+      appendBuffer = ByteBuffer.allocate(IO_BUFFER_BYTES).order(ByteOrder.nativeOrder());
+      Arrays.fill(windowStarts, -1);
+    }
+
+    void appendInt(int value) throws IOException {
+      if (!appendBuffer.hasRemaining()) {
+        flush();
+      }
+      appendBuffer.putInt(value);
+    }
+
+    void appendFloat(float value) throws IOException {
+      if (!appendBuffer.hasRemaining()) {
+        flush();
+      }
+      appendBuffer.putFloat(value);
+    }
+
+    private void flush() throws IOException {
+      appendBuffer.flip();
+      while (appendBuffer.hasRemaining()) {
+        length += channel.write(appendBuffer, length);
+      }
+      appendBuffer.clear();
+    }
+
+    // Ends appending. The file is only accessed through the windows from here on.
+    void finishAppending() throws IOException {
+      flush();
+      appendBuffer = null;
+    }
+
+    void setLength(long newLength) throws IOException {
+      randomAccessFile.setLength(newLength);
+      length = newLength;
+      appendBuffer = null;
+      Arrays.fill(windows, null);
+      Arrays.fill(windowStarts, -1);
+    }
+
+    long length() {
+      return length;
+    }
+
+    int getInt(long offset) throws IOException {
+      ByteBuffer window = windowOf(offset);
+      return window.getInt((int) (offset % WINDOW_BYTES));
+    }
+
+    float getFloat(long offset) throws IOException {
+      ByteBuffer window = windowOf(offset);
+      return window.getFloat((int) (offset % WINDOW_BYTES));
+    }
+
+    void putInt(long offset, int value) throws IOException {
+      ByteBuffer window = windowOf(offset);
+      window.putInt((int) (offset % WINDOW_BYTES), value);
+    }
+
+    void putFloat(long offset, float value) throws IOException {
+      ByteBuffer window = windowOf(offset);
+      window.putFloat((int) (offset % WINDOW_BYTES), value);
+    }
+
+    // Returns the window that contains the offset, mapping it in place of the least recently used
+    // one if none does.
+    private ByteBuffer windowOf(long offset) throws IOException {
+      final long start = offset - offset % WINDOW_BYTES;
+      ++numUses;
+      int leastRecentlyUsed = 0;
+      for (int i = 0; i < NUM_WINDOWS; ++i) {
+        if (windowStarts[i] == start) {
+          windowUses[i] = numUses;
+          return windows[i];
+        }
+        if (windowUses[i] < windowUses[leastRecentlyUsed]) {
+          leastRecentlyUsed = i;
+        }
+      }
+      if (offset >= length) {
+        throw new IOException("Offset " + offset + " is past the end of " + file);
+      }
+      windows[leastRecentlyUsed] = channel.map(FileChannel.MapMode.READ_WRITE, start,
+              Math.min(WINDOW_BYTES, length - start)).order(ByteOrder.nativeOrder());
+      windowStarts[leastRecentlyUsed] = start;
+      windowUses[leastRecentlyUsed] = numUses;
+      return windows[leastRecentlyUsed];
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      Arrays.fill(windows, null);
+      try {
+        channel.close();
+        randomAccessFile.close();
+      } finally {
+        file.delete();
+      }
+    }
+  }
+}
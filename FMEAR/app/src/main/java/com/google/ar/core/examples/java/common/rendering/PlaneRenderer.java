@@ -32,11 +32,11 @@ import java.nio.FloatBuffer;
 import java.nio.ShortBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
 
 /** Renders the detected AR planes. */
 public class PlaneRenderer {
@@ -97,14 +97,109 @@ public class PlaneRenderer {
           .asShortBuffer();
 
   // Temporary lists/matrices allocated here to reduce number of allocations for each frame.
-  private final float[] modelMatrix = new float[16];
   private final float[] modelViewMatrix = new float[16];
   private final float[] modelViewProjectionMatrix = new float[16];
-  private final float[] planeColor = new float[4];
-  private final float[] planeAngleUvMatrix =
-      new float[4]; // 2x2 rotation matrix applied to uv coords.
 
-  private final Map<Plane, Integer> planeIndexMap = new HashMap<>();
+  private final float[] cameraMatrix = new float[16];
+  private final float[] cameraView = new float[16];
+
+  /**
+   * The GPU mesh of a plane, with the uniforms that only depend on its index. The mesh is rebuilt
+   * only when the polygon or the extents of the plane change, which ARCore does a few times a
+   * second at most, instead of being streamed from client memory on every frame.
+   */
+  private static class PlaneMesh {
+    Object plane;
+    final StreamingVertexBuffer vertexBuffer;
+    final StreamingVertexBuffer indexBuffer;
+    int numIndices;
+    // What the mesh was built from, to tell whether the plane changed.
+    int polygonSize = -1;
+    int polygonHash;
+    float extentX;
+    float extentZ;
+    final float[] color = new float[4];
+    final float[] uvMatrix = new float[4]; // 2x2 rotation matrix applied to uv coords.
+    long lastDrawnFrame;
+
+    PlaneMesh(Object plane, StreamingVertexBuffer.Stats stats) {
+      this.plane = plane;
+      // A rebuild replaces the whole mesh, so a single orphaned buffer is enough: the draw that
+      // may still read the old mesh keeps its storage.
+      this.vertexBuffer =
+          new StreamingVertexBuffer(GLES20.GL_ARRAY_BUFFER, 1, true, stats);
+      this.indexBuffer =
+          new StreamingVertexBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 1, true, stats);
+    }
+  }
+
+  /**
+   * What the renderer reads from a plane. ARCore planes only come from a session, so the render
+   * loop test draws planes of its own through another adapter.
+   */
+  interface PlaneAdapter<P> {
+    /** Whether the plane is tracked and not merged into another plane. */
+    boolean isDrawn(P plane);
+
+    /** Whether the plane was stopped or merged into another plane, and will not be drawn again. */
+    boolean isStale(P plane);
+
+    void getCenterMatrix(P plane, float[] matrix);
+
+    float getExtentX(P plane);
+
+    float getExtentZ(P plane);
+
+    FloatBuffer getPolygon(P plane);
+  }
+
+  private static final PlaneAdapter<Plane> ARCORE_PLANES = new PlaneAdapter<Plane>() {
+    @Override
+    public boolean isDrawn(Plane plane) {
+      return plane.getTrackingState() == TrackingState.TRACKING && plane.getSubsumedBy() == null;
+    }
+
+    @Override
+    public boolean isStale(Plane plane) {
+      return plane.getTrackingState() == TrackingState.STOPPED || plane.getSubsumedBy() != null;
+    }
+
+    @Override
+    public void getCenterMatrix(Plane plane, float[] matrix) {
+      plane.getCenterPose().toMatrix(matrix, 0);
+    }
+
+    @Override
+    public float getExtentX(Plane plane) {
+      return plane.getExtentX();
+    }
+
+    @Override
+    public float getExtentZ(Plane plane) {
+      return plane.getExtentZ();
+    }
+
+    @Override
+    public FloatBuffer getPolygon(Plane plane) {
+      return plane.getPolygon();
+    }
+  };
+
+  // The meshes by plane, and in a list so that they can be swept without an iterator.
+  private final Map<Object, PlaneMesh> planeMeshes = new HashMap<>();
+  private final ArrayList<PlaneMesh> planeMeshList = new ArrayList<>();
+  private final StreamingVertexBuffer.Stats uploadStats =
+      new StreamingVertexBuffer.Stats("planes");
+  // Planes get an index, and their color and grid angle from it, in the order they are first seen.
+  private int nextPlaneIndex = 0;
+  private long frame = 0;
+  private int numMeshRebuilds = 0;
+
+  // The planes of the current frame, sorted by distance. The SortablePlanes are pooled and reused
+  // from frame to frame, so that sorting the planes does not allocate.
+  private final ArrayList<SortablePlane> sortablePlanePool = new ArrayList<>();
+  private SortablePlane[] sortedPlanes = new SortablePlane[16];
+  private int numSortedPlanes = 0;
 
   public PlaneRenderer() {}
 
@@ -158,12 +253,14 @@ public class PlaneRenderer {
     planeUvMatrixUniform = GLES20.glGetUniformLocation(planeProgram, "u_PlaneUvMatrix");
 
     ShaderUtil.checkGLError(TAG, "Program parameters");
+
+    // The buffers of the meshes belonged to the previous context, if any.
+    planeMeshes.clear();
+    planeMeshList.clear();
   }
 
-  /** Updates the plane model transform matrix and extents. */
-  private void updatePlaneParameters(
-      float[] planeMatrix, float extentX, float extentZ, FloatBuffer boundary) {
-    System.arraycopy(planeMatrix, 0, modelMatrix, 0, 16);
+  /** Fills the vertex and index buffers with the mesh of a plane with the given extents. */
+  private void buildPlaneMesh(float extentX, float extentZ, FloatBuffer boundary) {
     if (boundary == null) {
       vertexBuffer.limit(0);
       indexBuffer.limit(0);
@@ -246,41 +343,169 @@ public class PlaneRenderer {
     }
   }
 
-  private void draw(float[] cameraView, float[] cameraPerspective) {
+  // Returns the mesh of the plane, creating it and rebuilding it as needed.
+  private <P> PlaneMesh getPlaneMesh(P plane, PlaneAdapter<P> adapter) {
+    PlaneMesh mesh = planeMeshes.get(plane);
+    if (mesh == null) {
+      mesh = new PlaneMesh(plane, uploadStats);
+      mesh.vertexBuffer.create();
+      mesh.indexBuffer.create();
+      planeMeshes.put(plane, mesh);
+      planeMeshList.add(mesh);
+
+      // Set plane color. Computed deterministically from the Plane index.
+      final int planeIndex = nextPlaneIndex++;
+      int colorIndex = planeIndex % PLANE_COLORS_RGBA.length;
+      colorRgbaToFloat(mesh.color, PLANE_COLORS_RGBA[colorIndex]);
+
+      // Each plane will have its own angle offset from others, to make them easier to
+      // distinguish. Compute a 2x2 rotation matrix from the angle.
+      float angleRadians = planeIndex * 0.144f;
+      float uScale = DOTS_PER_METER;
+      float vScale = DOTS_PER_METER * EQUILATERAL_TRIANGLE_SCALE;
+      mesh.uvMatrix[0] = +(float) Math.cos(angleRadians) * uScale;
+      mesh.uvMatrix[1] = -(float) Math.sin(angleRadians) * vScale;
+      mesh.uvMatrix[2] = +(float) Math.sin(angleRadians) * uScale;
+      mesh.uvMatrix[3] = +(float) Math.cos(angleRadians) * vScale;
+    }
+
+    // The polygon is compared by size and hash rather than kept, which would take a copy of
+    // every polygon.
+    final float extentX = adapter.getExtentX(plane);
+    final float extentZ = adapter.getExtentZ(plane);
+    FloatBuffer polygon = adapter.getPolygon(plane);
+    final int polygonSize = (polygon == null) ? 0 : polygon.limit();
+    final int polygonHash = hashPolygon(polygon);
+    if (polygonSize == mesh.polygonSize && polygonHash == mesh.polygonHash
+        && extentX == mesh.extentX && extentZ == mesh.extentZ) {
+      return mesh;
+    }
+
+    buildPlaneMesh(extentX, extentZ, polygon);
+    vertexBuffer.rewind();
+    final int vertexBytes = vertexBuffer.limit() * BYTES_PER_FLOAT;
+    mesh.vertexBuffer.next(vertexBytes);
+    mesh.vertexBuffer.replace(vertexBytes, vertexBuffer);
+    indexBuffer.rewind();
+    final int indexBytes = indexBuffer.limit() * BYTES_PER_SHORT;
+    mesh.indexBuffer.next(indexBytes);
+    mesh.indexBuffer.replace(indexBytes, indexBuffer);
+    mesh.numIndices = indexBuffer.limit();
+    mesh.polygonSize = polygonSize;
+    mesh.polygonHash = polygonHash;
+    mesh.extentX = extentX;
+    mesh.extentZ = extentZ;
+    ++numMeshRebuilds;
+    return mesh;
+  }
+
+  private static int hashPolygon(FloatBuffer polygon) {
+    if (polygon == null) {
+      return 0;
+    }
+    int hash = 1;
+    final int limit = polygon.limit();
+    for (int i = 0; i < limit; ++i) {
+      hash = 31 * hash + Float.floatToIntBits(polygon.get(i));
+    }
+    return hash;
+  }
+
+  // Deletes the meshes of the planes that ARCore stopped tracking or merged into other planes.
+  // Planes that are only paused keep their meshes, since they may be tracked again.
+  @SuppressWarnings("unchecked")
+  private <P> void deleteStalePlaneMeshes(PlaneAdapter<P> adapter) {
+    for (int i = planeMeshList.size() - 1; i >= 0; --i) {
+      PlaneMesh mesh = planeMeshList.get(i);
+      if (mesh.lastDrawnFrame == frame) {
+        continue;
+      }
+      if (!adapter.isStale((P) mesh.plane)) {
+        continue;
+      }
+      mesh.vertexBuffer.release();
+      mesh.indexBuffer.release();
+      planeMeshes.remove(mesh.plane);
+      // Order does not matter, so the last mesh takes the place of the deleted one.
+      planeMeshList.set(i, planeMeshList.get(planeMeshList.size() - 1));
+      planeMeshList.remove(planeMeshList.size() - 1);
+      mesh.plane = null;
+    }
+  }
+
+  /** The number of plane meshes on the GPU. */
+  public int getNumPlaneMeshes() {
+    return planeMeshList.size();
+  }
+
+  /** The number of times a plane mesh was built and uploaded, for checking the cache. */
+  public int getNumMeshRebuilds() {
+    return numMeshRebuilds;
+  }
+
+  /** The bytes uploaded by the mesh rebuilds and the time spent uploading them, per frame. */
+  public StreamingVertexBuffer.Stats getUploadStats() {
+    return uploadStats;
+  }
+
+  private void draw(
+      PlaneMesh mesh, float[] planeMatrix, float[] cameraView, float[] cameraPerspective) {
     // Build the ModelView and ModelViewProjection matrices
     // for calculating cube position and light.
-    Matrix.multiplyMM(modelViewMatrix, 0, cameraView, 0, modelMatrix, 0);
+    Matrix.multiplyMM(modelViewMatrix, 0, cameraView, 0, planeMatrix, 0);
     Matrix.multiplyMM(modelViewProjectionMatrix, 0, cameraPerspective, 0, modelViewMatrix, 0);
 
     // Set the position of the plane
-    vertexBuffer.rewind();
+    mesh.vertexBuffer.bind();
     GLES20.glVertexAttribPointer(
         planeXZPositionAlphaAttribute,
         COORDS_PER_VERTEX,
         GLES20.GL_FLOAT,
         false,
         BYTES_PER_FLOAT * COORDS_PER_VERTEX,
-        vertexBuffer);
+        0);
 
     // Set the Model and ModelViewProjection matrices in the shader.
-    GLES20.glUniformMatrix4fv(planeModelUniform, 1, false, modelMatrix, 0);
+    GLES20.glUniformMatrix4fv(planeModelUniform, 1, false, planeMatrix, 0);
     GLES20.glUniformMatrix4fv(
         planeModelViewProjectionUniform, 1, false, modelViewProjectionMatrix, 0);
 
-    indexBuffer.rewind();
+    mesh.indexBuffer.bind();
     GLES20.glDrawElements(
-        GLES20.GL_TRIANGLE_STRIP, indexBuffer.limit(), GLES20.GL_UNSIGNED_SHORT, indexBuffer);
+        GLES20.GL_TRIANGLE_STRIP, mesh.numIndices, GLES20.GL_UNSIGNED_SHORT, 0);
     ShaderUtil.checkGLError(TAG, "Drawing plane");
   }
 
   static class SortablePlane {
-    final float distance;
-    final Plane plane;
+    float distance;
+    Object plane;
+    // The center pose of the plane, read once per frame.
+    final float[] planeMatrix = new float[16];
+  }
 
-    SortablePlane(float distance, Plane plane) {
-      this.distance = distance;
-      this.plane = plane;
+  // Returns a pooled SortablePlane for the next plane of the frame.
+  private SortablePlane nextSortablePlane() {
+    if (numSortedPlanes == sortablePlanePool.size()) {
+      sortablePlanePool.add(new SortablePlane());
+    }
+    return sortablePlanePool.get(numSortedPlanes);
+  }
+
+  // Inserts the plane in distance order. There are few planes, so an insertion sort is fast
+  // enough, and unlike Collections.sort it never allocates.
+  private void insertSortedPlane(SortablePlane sortablePlane) {
+    if (numSortedPlanes == sortedPlanes.length) {
+      SortablePlane[] grown = new SortablePlane[sortedPlanes.length * 2];
+      System.arraycopy(sortedPlanes, 0, grown, 0, numSortedPlanes);
+      sortedPlanes = grown;
+    }
+    int i = numSortedPlanes;
+    while (i > 0 && sortedPlanes[i - 1].distance > sortablePlane.distance) {
+      sortedPlanes[i] = sortedPlanes[i - 1];
+      --i;
     }
+    sortedPlanes[i] = sortablePlane;
+    ++numSortedPlanes;
   }
 
   /**
@@ -292,42 +517,50 @@ public class PlaneRenderer {
    *     Camera#getProjectionMatrix(float[], int, float, float)}
    */
   public void drawPlanes(Collection<Plane> allPlanes, Pose cameraPose, float[] cameraPerspective) {
+    drawPlanes(allPlanes, ARCORE_PLANES, cameraPose, cameraPerspective);
+  }
+
+  // Draws planes of any kind, read through the adapter.
+  @SuppressWarnings("unchecked")
+  <P> void drawPlanes(Collection<P> allPlanes, PlaneAdapter<P> adapter, Pose cameraPose,
+      float[] cameraPerspective) {
     // Planes must be sorted by distance from camera so that we draw closer planes first, and
     // they occlude the farther planes.
-    List<SortablePlane> sortedPlanes = new ArrayList<>();
-    float[] normal = new float[3];
+    // The collection is iterated by index when it allows it, since an iterator would be
+    // allocated on every frame.
+    List<P> planeList = (allPlanes instanceof List && allPlanes instanceof RandomAccess)
+        ? (List<P>) allPlanes : null;
+    Iterator<P> planeIterator = (planeList == null) ? allPlanes.iterator() : null;
+    final int numPlanes = allPlanes.size();
     float cameraX = cameraPose.tx();
     float cameraY = cameraPose.ty();
     float cameraZ = cameraPose.tz();
-    for (Plane plane : allPlanes) {
-      if (plane.getTrackingState() != TrackingState.TRACKING || plane.getSubsumedBy() != null) {
+    numSortedPlanes = 0;
+    for (int i = 0; i < numPlanes; ++i) {
+      P plane = (planeList != null) ? planeList.get(i) : planeIterator.next();
+      if (!adapter.isDrawn(plane)) {
         continue;
       }
 
-      Pose center = plane.getCenterPose();
-      // Get transformed Y axis of plane's coordinate system.
-      center.getTransformedAxis(1, 1.0f, normal, 0);
-      // Compute dot product of plane's normal with vector from camera to plane center.
+      SortablePlane sortablePlane = nextSortablePlane();
+      float[] planeMatrix = sortablePlane.planeMatrix;
+      adapter.getCenterMatrix(plane, planeMatrix);
+      // Compute dot product of plane's normal, the transformed Y axis of plane's coordinate
+      // system, with vector from camera to plane center.
       float distance =
-          (cameraX - center.tx()) * normal[0]
-              + (cameraY - center.ty()) * normal[1]
-              + (cameraZ - center.tz()) * normal[2];
+          (cameraX - planeMatrix[12]) * planeMatrix[4]
+              + (cameraY - planeMatrix[13]) * planeMatrix[5]
+              + (cameraZ - planeMatrix[14]) * planeMatrix[6];
       if (distance < 0) { // Plane is back-facing.
         continue;
       }
-      sortedPlanes.add(new SortablePlane(distance, plane));
+      sortablePlane.distance = distance;
+      sortablePlane.plane = plane;
+      insertSortedPlane(sortablePlane);
     }
-    Collections.sort(
-        sortedPlanes,
-        new Comparator<SortablePlane>() {
-          @Override
-          public int compare(SortablePlane a, SortablePlane b) {
-            return Float.compare(a.distance, b.distance);
-          }
-        });
-
-    float[] cameraView = new float[16];
-    cameraPose.inverse().toMatrix(cameraView, 0);
+
+    cameraPose.toMatrix(cameraMatrix, 0);
+    Matrix.invertM(cameraView, 0, cameraMatrix, 0);
 
     // Planes are drawn with additive blending, masked by the alpha channel for occlusion.
 
@@ -362,47 +595,42 @@ public class PlaneRenderer {
 
     ShaderUtil.checkGLError(TAG, "Setting up to draw planes");
 
-    for (SortablePlane sortedPlane : sortedPlanes) {
-      Plane plane = sortedPlane.plane;
-      float[] planeMatrix = new float[16];
-      plane.getCenterPose().toMatrix(planeMatrix, 0);
-
-      updatePlaneParameters(
-          planeMatrix, plane.getExtentX(), plane.getExtentZ(), plane.getPolygon());
-
-      // Get plane index. Keep a map to assign same indices to same planes.
-      Integer planeIndex = planeIndexMap.get(plane);
-      if (planeIndex == null) {
-        planeIndex = planeIndexMap.size();
-        planeIndexMap.put(plane, planeIndex);
+    // All the planes are drawn in one pass over the shared state set up above; only the buffers
+    // and the per-plane uniforms change between planes.
+    ++frame;
+    for (int i = 0; i < numSortedPlanes; ++i) {
+      SortablePlane sortedPlane = sortedPlanes[i];
+      PlaneMesh mesh = getPlaneMesh((P) sortedPlane.plane, adapter);
+      mesh.lastDrawnFrame = frame;
+      if (mesh.numIndices == 0) {
+        continue;
       }
 
-      // Set plane color. Computed deterministically from the Plane index.
-      int colorIndex = planeIndex % PLANE_COLORS_RGBA.length;
-      colorRgbaToFloat(planeColor, PLANE_COLORS_RGBA[colorIndex]);
-      GLES20.glUniform4fv(lineColorUniform, 1, planeColor, 0);
-      GLES20.glUniform4fv(dotColorUniform, 1, planeColor, 0);
+      GLES20.glUniform4fv(lineColorUniform, 1, mesh.color, 0);
+      GLES20.glUniform4fv(dotColorUniform, 1, mesh.color, 0);
+      GLES20.glUniformMatrix2fv(planeUvMatrixUniform, 1, false, mesh.uvMatrix, 0);
 
-      // Each plane will have its own angle offset from others, to make them easier to
-      // distinguish. Compute a 2x2 rotation matrix from the angle.
-      float angleRadians = planeIndex * 0.144f;
-      float uScale = DOTS_PER_METER;
-      float vScale = DOTS_PER_METER * EQUILATERAL_TRIANGLE_SCALE;
-      planeAngleUvMatrix[0] = +(float) Math.cos(angleRadians) * uScale;
-      planeAngleUvMatrix[1] = -(float) Math.sin(angleRadians) * vScale;
-      planeAngleUvMatrix[2] = +(float) Math.sin(angleRadians) * uScale;
-      planeAngleUvMatrix[3] = +(float) Math.cos(angleRadians) * vScale;
-      GLES20.glUniformMatrix2fv(planeUvMatrixUniform, 1, false, planeAngleUvMatrix, 0);
-
-      draw(cameraView, cameraPerspective);
+      draw(mesh, sortedPlane.planeMatrix, cameraView, cameraPerspective);
     }
 
     // Clean up the state we set
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
     GLES20.glDisableVertexAttribArray(planeXZPositionAlphaAttribute);
     GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
     GLES20.glDisable(GLES20.GL_BLEND);
     GLES20.glDepthMask(true);
 
+    // Do not keep the planes of this frame alive.
+    for (int i = 0; i < numSortedPlanes; ++i) {
+      sortedPlanes[i].plane = null;
+      sortedPlanes[i] = null;
+    }
+    numSortedPlanes = 0;
+
+    deleteStalePlaneMeshes(adapter);
+    uploadStats.endFrame();
+
     ShaderUtil.checkGLError(TAG, "Cleaning up after drawing planes");
   }
 
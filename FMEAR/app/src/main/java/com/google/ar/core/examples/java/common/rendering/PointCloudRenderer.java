@@ -20,6 +20,9 @@ import android.opengl.GLSurfaceView;
 import android.opengl.Matrix;
 import com.google.ar.core.PointCloud;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 
 /** Renders a point cloud. */
 public class PointCloudRenderer {
@@ -34,8 +37,20 @@ public class PointCloudRenderer {
   private static final int BYTES_PER_POINT = BYTES_PER_FLOAT * FLOATS_PER_POINT;
   private static final int INITIAL_BUFFER_POINTS = 1000;
 
-  private int vbo;
-  private int vboSize;
+  // The accumulating mode keeps one point per 5cm voxel, up to 100k points (1.6MB of VBO).
+  public static final float DEFAULT_VOXEL_SIZE_M = 0.05f;
+  public static final int DEFAULT_MAX_ACCUMULATED_POINTS = 100000;
+  // Unchanged points between changed ones are uploaded with them when there are fewer than this
+  // many, since a glBufferSubData call costs more than a few extra bytes.
+  private static final int MAX_UPLOAD_GAP_POINTS = 64;
+
+  // The points are streamed through a ring of this many buffers, so that the buffer written in a
+  // frame is not one that the GPU may still be drawing the previous frames from.
+  public static final int DEFAULT_NUM_STREAMING_BUFFERS = 3;
+
+  private final StreamingVertexBuffer.Stats uploadStats =
+      new StreamingVertexBuffer.Stats("point-cloud");
+  private final StreamingVertexBuffer vertexBuffer;
 
   private int programName;
   private int positionAttribute;
@@ -45,11 +60,30 @@ public class PointCloudRenderer {
 
   private int numPoints = 0;
 
+  // Temporary matrix allocated here to reduce number of allocations for each frame.
+  private final float[] modelViewProjection = new float[16];
+
   // Keep track of the last point cloud rendered to avoid updating the VBO if point cloud
   // was not changed.
   private PointCloud lastPointCloud = null;
 
-  public PointCloudRenderer() {}
+  // The accumulated point cloud in the accumulating mode, or null to draw the current points.
+  private VoxelPointCloud accumulatedCloud = null;
+  private FloatBuffer uploadBuffer = null;
+
+  public PointCloudRenderer() {
+    this(DEFAULT_NUM_STREAMING_BUFFERS, true);
+  }
+
+  /**
+   * @param numStreamingBuffers The number of buffers the points are streamed through.
+   * @param orphanBuffers Whether a buffer is orphaned before it is rewritten. One buffer without
+   *     orphaning rewrites the buffer in place, which is what the upload stats are compared with.
+   */
+  public PointCloudRenderer(int numStreamingBuffers, boolean orphanBuffers) {
+    vertexBuffer = new StreamingVertexBuffer(
+        GLES20.GL_ARRAY_BUFFER, numStreamingBuffers, orphanBuffers, uploadStats);
+  }
 
   /**
    * Allocates and initializes OpenGL resources needed by the plane renderer. Must be called on the
@@ -60,14 +94,11 @@ public class PointCloudRenderer {
   public void createOnGlThread(Context context) throws IOException {
     ShaderUtil.checkGLError(TAG, "before create");
 
-    int[] buffers = new int[1];
-    GLES20.glGenBuffers(1, buffers, 0);
-    vbo = buffers[0];
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vbo);
-
-    vboSize = INITIAL_BUFFER_POINTS * BYTES_PER_POINT;
-    GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, vboSize, null, GLES20.GL_DYNAMIC_DRAW);
+    vertexBuffer.create();
+    vertexBuffer.next(INITIAL_BUFFER_POINTS * BYTES_PER_POINT);
     GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    numPoints = 0;
+    lastPointCloud = null;
 
     ShaderUtil.checkGLError(TAG, "buffer alloc");
 
@@ -92,6 +123,47 @@ public class PointCloudRenderer {
     ShaderUtil.checkGLError(TAG, "program  params");
   }
 
+  /**
+   * Switches to drawing the points of all the frames so far, merged into voxels of the given size,
+   * up to the given number of points. Switching drops the accumulated points, if any.
+   */
+  public void setAccumulating(float voxelSize, int maxPoints) {
+    accumulatedCloud = new VoxelPointCloud(voxelSize, maxPoints);
+    uploadBuffer = ByteBuffer.allocateDirect(maxPoints * BYTES_PER_POINT)
+        .order(ByteOrder.nativeOrder())
+        .asFloatBuffer();
+    // The buffers hold the points of the previous cloud, or of the current frame.
+    vertexBuffer.invalidate();
+    numPoints = 0;
+    lastPointCloud = null;
+  }
+
+  /** Switches back to drawing the points of the current frame only. */
+  public void stopAccumulating() {
+    accumulatedCloud = null;
+    uploadBuffer = null;
+    numPoints = 0;
+    lastPointCloud = null;
+  }
+
+  /** Drops the accumulated points, for example when tracking restarts with a new world origin. */
+  public void clearAccumulated() {
+    if (accumulatedCloud != null) {
+      accumulatedCloud.clear();
+      numPoints = 0;
+    }
+  }
+
+  /** The accumulated points, or null if not accumulating. */
+  public VoxelPointCloud getAccumulatedCloud() {
+    return accumulatedCloud;
+  }
+
+  /** The bytes uploaded per frame and the time spent in the upload calls. */
+  public StreamingVertexBuffer.Stats getUploadStats() {
+    return uploadStats;
+  }
+
   /**
    * Updates the OpenGL buffer contents to the provided point. Repeated calls with the same point
    * cloud will be ignored.
@@ -104,24 +176,73 @@ public class PointCloudRenderer {
 
     ShaderUtil.checkGLError(TAG, "before update");
 
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vbo);
     lastPointCloud = cloud;
 
-    // If the VBO is not large enough to fit the new point cloud, resize it.
-    numPoints = lastPointCloud.getPoints().remaining() / FLOATS_PER_POINT;
-    if (numPoints * BYTES_PER_POINT > vboSize) {
-      while (numPoints * BYTES_PER_POINT > vboSize) {
-        vboSize *= 2;
-      }
-      GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, vboSize, null, GLES20.GL_DYNAMIC_DRAW);
+    // The points are read once, since every call may wrap the native points in a new buffer.
+    updatePoints(lastPointCloud.getPoints());
+  }
+
+  // Uploads the points of a new cloud, as X,Y,Z,confidence from the position of the buffer. Only
+  // called directly by the render loop test, which streams points of its own since point clouds
+  // come from an ARCore session.
+  void updatePoints(FloatBuffer points) {
+    if (accumulatedCloud != null) {
+      accumulatedCloud.addPoints(points);
+      uploadAccumulatedPoints();
+      GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+      ShaderUtil.checkGLError(TAG, "after update");
+      return;
     }
-    GLES20.glBufferSubData(
-        GLES20.GL_ARRAY_BUFFER, 0, numPoints * BYTES_PER_POINT, lastPointCloud.getPoints());
+
+    // If the next buffer is not large enough to fit the new point cloud, it is resized.
+    numPoints = points.remaining() / FLOATS_PER_POINT;
+    vertexBuffer.next(numPoints * BYTES_PER_POINT);
+    vertexBuffer.replace(numPoints * BYTES_PER_POINT, points);
     GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
 
     ShaderUtil.checkGLError(TAG, "after update");
   }
 
+  // Brings the next buffer of the ring up to date with the accumulated points, uploading the runs
+  // of points that changed since the buffer was last written. The buffers hold the maximum number
+  // of points, so they are never resized while accumulating, and they keep their content since
+  // they are only updated in place.
+  private void uploadAccumulatedPoints() {
+    vertexBuffer.next(accumulatedCloud.getMaxPoints() * BYTES_PER_POINT);
+    final long sinceFrame = vertexBuffer.getContentVersion();
+
+    final int end = accumulatedCloud.getEndModifiedIndex(sinceFrame);
+    int index = accumulatedCloud.getFirstModifiedIndex(sinceFrame);
+    while (index < end) {
+      if (!accumulatedCloud.isModifiedSince(index, sinceFrame)) {
+        ++index;
+        continue;
+      }
+
+      // Extends the run over short gaps of unchanged points.
+      final int runStart = index;
+      int runEnd = index + 1;
+      int gap = 0;
+      for (int i = runEnd; i < end && gap < MAX_UPLOAD_GAP_POINTS; ++i) {
+        if (accumulatedCloud.isModifiedSince(i, sinceFrame)) {
+          runEnd = i + 1;
+          gap = 0;
+        } else {
+          ++gap;
+        }
+      }
+
+      uploadBuffer.clear();
+      accumulatedCloud.writePoints(runStart, runEnd, uploadBuffer);
+      uploadBuffer.flip();
+      vertexBuffer.upload(
+          runStart * BYTES_PER_POINT, (runEnd - runStart) * BYTES_PER_POINT, uploadBuffer);
+      index = runEnd;
+    }
+    vertexBuffer.setContentVersion(accumulatedCloud.getFrame());
+    numPoints = accumulatedCloud.getNumPoints();
+  }
+
   /**
    * Renders the point cloud. ArCore point cloud is given in world space.
    *
@@ -131,20 +252,20 @@ public class PointCloudRenderer {
    *     com.google.ar.core.Camera#getProjectionMatrix(float[], int, float, float)}.
    */
   public void draw(float[] cameraView, float[] cameraPerspective) {
-    float[] modelViewProjection = new float[16];
     Matrix.multiplyMM(modelViewProjection, 0, cameraPerspective, 0, cameraView, 0);
 
     ShaderUtil.checkGLError(TAG, "Before draw");
 
     GLES20.glUseProgram(programName);
     GLES20.glEnableVertexAttribArray(positionAttribute);
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vbo);
+    vertexBuffer.bind();
     GLES20.glVertexAttribPointer(positionAttribute, 4, GLES20.GL_FLOAT, false, BYTES_PER_POINT, 0);
     GLES20.glUniform4f(colorUniform, 31.0f / 255.0f, 188.0f / 255.0f, 210.0f / 255.0f, 1.0f);
     GLES20.glUniformMatrix4fv(modelViewProjectionUniform, 1, false, modelViewProjection, 0);
     GLES20.glUniform1f(pointSizeUniform, 5.0f);
 
     GLES20.glDrawArrays(GLES20.GL_POINTS, 0, numPoints);
+    uploadStats.endFrame();
     GLES20.glDisableVertexAttribArray(positionAttribute);
     GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
 
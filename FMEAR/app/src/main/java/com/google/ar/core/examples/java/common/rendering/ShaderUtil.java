@@ -16,6 +16,7 @@ package com.google.ar.core.examples.java.common.rendering;
 
 import android.content.Context;
 import android.opengl.GLES20;
+import android.opengl.GLES30;
 import android.util.Log;
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -75,6 +76,22 @@ public class ShaderUtil {
     }
   }
 
+  /**
+   * Checks whether the current context is OpenGL ES 3.0 or later. GL_MAJOR_VERSION is a 3.0 query,
+   * which a 2.0 context rejects with an error, so call this before any other GL call that may
+   * leave an error to be checked.
+   *
+   * @return true if the context is OpenGL ES 3.0 or later.
+   */
+  public static boolean isGles3Context() {
+    final int[] majorVersion = {2};
+    GLES20.glGetIntegerv(GLES30.GL_MAJOR_VERSION, majorVersion, 0);
+    // Drain the error of a 2.0 context.
+    while (GLES20.glGetError() != GLES20.GL_NO_ERROR) {
+    }
+    return majorVersion[0] >= 3;
+  }
+
   /**
    * Converts a raw text file into a string.
    *
@@ -0,0 +1,218 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.opengl.GLES20;
+
+import java.nio.Buffer;
+
+/**
+ * A buffer for data that is rewritten while the GPU may still be reading the previous version,
+ * such as per-frame vertex data. Writing into a buffer that a queued draw reads forces the driver
+ * to wait for that draw, or to copy the buffer, which tiled GPUs do often since they render a
+ * frame or two behind. This buffer avoids that in two ways:
+ *
+ * <ul>
+ *   <li>A ring of buffers: every {@link #next} moves to the buffer that was written the longest
+ *       ago, which the GPU is most likely done with.
+ *   <li>Orphaning: {@link #replace} re-specifies the buffer with glBufferData(null) before writing
+ *       it, so that the driver can hand out fresh storage instead of waiting on the old one.
+ * </ul>
+ *
+ * <p>Partial updates with {@link #upload} keep the content of the buffer, so a caller that updates
+ * a persistent buffer in place tracks what each buffer of the ring is missing with {@link
+ * #getContentVersion}. The time spent in the upload calls, where the driver blocks when it has to
+ * synchronize, and the uploaded bytes are added to a {@link Stats}.
+ *
+ * <p>The buffers are written with glBufferSubData, on OpenGL ES 3.0 as well. An unsynchronized
+ * glMapBufferRange would skip the copy, but the Java binding returns a new ByteBuffer for every
+ * mapping, and this buffer is written on every frame, where the render loop must not allocate
+ * (see RenderLoopAllocationTest). The ring and the orphaning already keep the writes from waiting
+ * on the GPU.
+ *
+ * <p>Must be used on the GL thread.
+ */
+public class StreamingVertexBuffer {
+
+  /** The upload counters of one or more streaming buffers. */
+  public static class Stats {
+    private final String name;
+    private long numFrames = 0;
+    private long numUploads = 0;
+    private long uploadBytes = 0;
+    private long uploadNanos = 0;
+    private long lastFrameUploadBytes = 0;
+    private long lastFrameUploadNanos = 0;
+    private long frameUploadBytes = 0;
+    private long frameUploadNanos = 0;
+
+    public Stats(String name) {
+      this.name = name;
+    }
+
+    /** Ends a frame, so that the counters can be reported per frame. */
+    public void endFrame() {
+      ++numFrames;
+      lastFrameUploadBytes = frameUploadBytes;
+      lastFrameUploadNanos = frameUploadNanos;
+      frameUploadBytes = 0;
+      frameUploadNanos = 0;
+    }
+
+    void record(long bytes, long nanos) {
+      ++numUploads;
+      uploadBytes += bytes;
+      uploadNanos += nanos;
+      frameUploadBytes += bytes;
+      frameUploadNanos += nanos;
+    }
+
+    public long getNumFrames() {
+      return numFrames;
+    }
+
+    public long getUploadBytes() {
+      return uploadBytes;
+    }
+
+    /** The time spent in the upload calls, including the driver stalls. */
+    public long getUploadNanos() {
+      return uploadNanos;
+    }
+
+    public long getLastFrameUploadBytes() {
+      return lastFrameUploadBytes;
+    }
+
+    public long getLastFrameUploadNanos() {
+      return lastFrameUploadNanos;
+    }
+
+    public void reset() {
+      numFrames = 0;
+      numUploads = 0;
+      uploadBytes = 0;
+      uploadNanos = 0;
+    }
+
+    @Override
+    public String toString() {
+      if (numFrames == 0) {
+        return name + ": no frames";
+      }
+      return name + ": " + (uploadBytes / numFrames) + " bytes/frame in "
+              + (numUploads * 100 / numFrames) / 100.0f + " uploads/frame, "
+              + (uploadNanos / numFrames / 1000) + " us/frame in upload calls";
+    }
+  }
+
+  private final int target;
+  private final int usage;
+  private final boolean orphan;
+  private final Stats stats;
+  private final int[] bufferIds;
+  private final int[] capacities;
+  private final long[] contentVersions;
+  private int current = -1;
+
+  /**
+   * @param target GL_ARRAY_BUFFER or GL_ELEMENT_ARRAY_BUFFER.
+   * @param numBuffers The number of buffers in the ring. 1 turns the ring off.
+   * @param orphan Whether {@link #replace} orphans the buffer before writing it.
+   * @param stats The counters the uploads are added to, possibly shared with other buffers.
+   */
+  public StreamingVertexBuffer(int target, int numBuffers, boolean orphan, Stats stats) {
+    this.target = target;
+    this.usage = GLES20.GL_STREAM_DRAW;
+    this.orphan = orphan;
+    this.stats = stats;
+    this.bufferIds = new int[numBuffers];
+    this.capacities = new int[numBuffers];
+    this.contentVersions = new long[numBuffers];
+  }
+
+  /** Creates the buffers. They are empty until the first {@link #next}. */
+  public void create() {
+    GLES20.glGenBuffers(bufferIds.length, bufferIds, 0);
+    for (int i = 0; i < bufferIds.length; ++i) {
+      capacities[i] = 0;
+      contentVersions[i] = -1;
+    }
+    current = -1;
+  }
+
+  /** Deletes the buffers. */
+  public void release() {
+    GLES20.glDeleteBuffers(bufferIds.length, bufferIds, 0);
+    for (int i = 0; i < bufferIds.length; ++i) {
+      bufferIds[i] = 0;
+      capacities[i] = 0;
+    }
+    current = -1;
+  }
+
+  /**
+   * Moves to the next buffer of the ring and binds it, growing it to at least the given capacity.
+   * A buffer that grows loses its content, and its content version is reset to -1.
+   */
+  public void next(int minCapacityBytes) {
+    current = (current + 1) % bufferIds.length;
+    GLES20.glBindBuffer(target, bufferIds[current]);
+    if (capacities[current] < minCapacityBytes) {
+      int capacity = Math.max(capacities[current], 1024);
+      while (capacity < minCapacityBytes) {
+        capacity *= 2;
+      }
+      final long startNanos = System.nanoTime();
+      GLES20.glBufferData(target, capacity, null, usage);
+      stats.record(0, System.nanoTime() - startNanos);
+      capacities[current] = capacity;
+      contentVersions[current] = -1;
+    }
+  }
+
+  /** Resets the content version of every buffer to -1, when the data is replaced wholesale. */
+  public void invalidate() {
+    for (int i = 0; i < contentVersions.length; ++i) {
+      contentVersions[i] = -1;
+    }
+  }
+
+  /** Binds the current buffer, for drawing from it. */
+  public void bind() {
+    GLES20.glBindBuffer(target, bufferIds[current]);
+  }
+
+  public int getBufferId() {
+    return bufferIds[current];
+  }
+
+  /** The version of the data the current buffer holds, as set by the caller, or -1. */
+  public long getContentVersion() {
+    return contentVersions[current];
+  }
+
+  public void setContentVersion(long version) {
+    contentVersions[current] = version;
+  }
+
+  /**
+   * Replaces the whole content of the current buffer with the data, from its position, orphaning
+   * the old content first if enabled.
+   */
+  public void replace(int sizeBytes, Buffer data) {
+    final long startNanos = System.nanoTime();
+    if (orphan) {
+      GLES20.glBufferData(target, capacities[current], null, usage);
+    }
+    if (sizeBytes > 0) {
+      GLES20.glBufferSubData(target, 0, sizeBytes, data);
+    }
+    stats.record(sizeBytes, System.nanoTime() - startNanos);
+  }
+
+  /** Writes the data, from its position, into part of the current buffer. */
+  public void upload(int offsetBytes, int sizeBytes, Buffer data) {
+    final long startNanos = System.nanoTime();
+    GLES20.glBufferSubData(target, offsetBytes, sizeBytes, data);
+    stats.record(sizeBytes, System.nanoTime() - startNanos);
+  }
+}
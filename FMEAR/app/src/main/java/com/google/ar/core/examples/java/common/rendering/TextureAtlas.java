@@ -0,0 +1,264 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+
+import java.nio.FloatBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Packs small textures into a few large atlas pages, so that the materials using them can share a
+ * texture and be merged into a single draw.
+ *
+ * <p>Tiles are packed onto shelves, tallest first. Every tile is surrounded by a gutter that
+ * repeats its edge pixels, so bilinear filtering and the first mipmap levels do not bleed between
+ * neighbouring tiles. Texture coordinates can only be moved into a tile if they stay within
+ * [0, 1]; materials with wrapping texture coordinates must keep their own texture.
+ */
+public class TextureAtlas {
+
+  /** Tiles up to this size are packed into atlas pages. */
+  public static final int MAX_TILE_SIZE = 512;
+  /** The gutter around every tile, in pixels. A multiple of 4 keeps tiles on ETC block bounds. */
+  public static final int PADDING = 4;
+  // How far texture coordinates may stray outside [0, 1] and still be clamped into the tile.
+  private static final float TEX_COORD_TOLERANCE = 1e-3f;
+
+  /** The position of a texture inside an atlas page. */
+  public static class Placement {
+    public final String textureKey;
+    public final TextureBudget.Plan plan;
+    public final int x;
+    public final int y;
+
+    Placement(String textureKey, TextureBudget.Plan plan, int x, int y) {
+      this.textureKey = textureKey;
+      this.plan = plan;
+      this.x = x;
+      this.y = y;
+    }
+  }
+
+  /** A single atlas texture and the tiles packed into it. */
+  public static class Page {
+    public final int width;
+    public final List<Placement> placements = new ArrayList<>();
+    public int height;
+
+    // Identifies the page by its tiles and their positions, so that it can be shared through the
+    // TextureCache like any other texture.
+    private String textureKey;
+    // The CompressedTextureCache key of the page, set by the TextureDecoder.
+    String compressedKey;
+
+    Page(int width) {
+      this.width = width;
+    }
+
+    public String getTextureKey() {
+      if (textureKey == null) {
+        StringBuilder description = new StringBuilder();
+        description.append(width).append('x').append(height);
+        for (Placement placement : placements) {
+          description.append('|').append(placement.textureKey).append('@').append(placement.x)
+                  .append(',').append(placement.y).append(',').append(placement.plan.targetWidth)
+                  .append('x').append(placement.plan.targetHeight);
+        }
+        textureKey = "atlas:" + sha1Hex(description.toString());
+      }
+      return textureKey;
+    }
+
+    /** Returns true if all of the tiles are opaque. */
+    public boolean isOpaque() {
+      for (Placement placement : placements) {
+        if (!placement.plan.opaque) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Packs the textures into pages of the given size. Textures that are too large, or that would be
+   * alone on their page, are left out of the result.
+   *
+   * @param plansByKey The textures to pack, keyed by their TextureCache key, at their target size.
+   * @param pageSize The width and the maximum height of a page, a power of two.
+   */
+  public static List<Page> pack(Map<String, TextureBudget.Plan> plansByKey, int pageSize) {
+    List<Map.Entry<String, TextureBudget.Plan>> tiles = new ArrayList<>();
+    for (Map.Entry<String, TextureBudget.Plan> entry : plansByKey.entrySet()) {
+      TextureBudget.Plan plan = entry.getValue();
+      if (plan.targetWidth <= MAX_TILE_SIZE && plan.targetHeight <= MAX_TILE_SIZE
+              && plan.targetWidth + 2 * PADDING <= pageSize
+              && plan.targetHeight + 2 * PADDING <= pageSize) {
+        tiles.add(entry);
+      }
+    }
+
+    // Tallest first keeps the shelves tight. The key makes the layout, and so the page keys,
+    // the same every time the dataset is loaded.
+    Collections.sort(tiles, new Comparator<Map.Entry<String, TextureBudget.Plan>>() {
+      @Override
+      public int compare(Map.Entry<String, TextureBudget.Plan> a,
+                         Map.Entry<String, TextureBudget.Plan> b) {
+        if (a.getValue().targetHeight != b.getValue().targetHeight) {
+          return b.getValue().targetHeight - a.getValue().targetHeight;
+        }
+        if (a.getValue().targetWidth != b.getValue().targetWidth) {
+          return b.getValue().targetWidth - a.getValue().targetWidth;
+        }
+        return a.getKey().compareTo(b.getKey());
+      }
+    });
+
+    List<Page> pages = new ArrayList<>();
+    Page page = null;
+    int shelfY = 0;
+    int shelfHeight = 0;
+    int cursorX = 0;
+    for (Map.Entry<String, TextureBudget.Plan> tile : tiles) {
+      final int paddedWidth = tile.getValue().targetWidth + 2 * PADDING;
+      final int paddedHeight = tile.getValue().targetHeight + 2 * PADDING;
+
+      if (page != null && cursorX + paddedWidth > pageSize) {
+        shelfY += shelfHeight;
+        shelfHeight = 0;
+        cursorX = 0;
+      }
+      if (page == null || shelfY + paddedHeight > pageSize) {
+        if (page != null) {
+          page.height = TextureBudget.ceilPowerOfTwo(shelfY + shelfHeight);
+        }
+        page = new Page(pageSize);
+        pages.add(page);
+        shelfY = 0;
+        shelfHeight = 0;
+        cursorX = 0;
+      }
+
+      page.placements.add(
+              new Placement(tile.getKey(), tile.getValue(), cursorX + PADDING, shelfY + PADDING));
+      cursorX += paddedWidth;
+      shelfHeight = Math.max(shelfHeight, paddedHeight);
+    }
+    if (page != null) {
+      page.height = TextureBudget.ceilPowerOfTwo(shelfY + shelfHeight);
+    }
+
+    // A page with a single tile saves no texture binds, it only adds the gutter.
+    List<Page> result = new ArrayList<>(pages.size());
+    for (Page candidate : pages) {
+      if (candidate.placements.size() > 1) {
+        result.add(candidate);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Creates the page bitmap. The tiles must be decoded at the target size of their plans.
+   *
+   * @param tiles The decoded tiles, in the order of {@link Page#placements}.
+   */
+  public static Bitmap compose(Page page, List<Bitmap> tiles) {
+    Bitmap atlas = Bitmap.createBitmap(page.width, page.height, Bitmap.Config.ARGB_8888);
+    // The unused space is opaque, so that it does not keep an opaque page from being compressed
+    // as ETC1.
+    atlas.eraseColor(0xff000000);
+
+    Canvas canvas = new Canvas(atlas);
+    Rect source = new Rect();
+    Rect destination = new Rect();
+    for (int i = 0; i < page.placements.size(); ++i) {
+      Placement placement = page.placements.get(i);
+      Bitmap tile = tiles.get(i);
+      final int x = placement.x;
+      final int y = placement.y;
+      final int w = tile.getWidth();
+      final int h = tile.getHeight();
+
+      canvas.drawBitmap(tile, x, y, null);
+
+      // Stretch the edge rows and columns over the gutter, then the corner pixels.
+      final int p = PADDING;
+      drawStretched(canvas, tile, source, 0, 0, w, 1, destination, x, y - p, x + w, y);
+      drawStretched(canvas, tile, source, 0, h - 1, w, h, destination, x, y + h, x + w, y + h + p);
+      drawStretched(canvas, tile, source, 0, 0, 1, h, destination, x - p, y, x, y + h);
+      drawStretched(canvas, tile, source, w - 1, 0, w, h, destination, x + w, y, x + w + p, y + h);
+      drawStretched(canvas, tile, source, 0, 0, 1, 1, destination, x - p, y - p, x, y);
+      drawStretched(canvas, tile, source, w - 1, 0, w, 1, destination, x + w, y - p, x + w + p, y);
+      drawStretched(canvas, tile, source, 0, h - 1, 1, h, destination, x - p, y + h, x, y + h + p);
+      drawStretched(canvas, tile, source, w - 1, h - 1, w, h,
+              destination, x + w, y + h, x + w + p, y + h + p);
+    }
+    return atlas;
+  }
+
+  private static void drawStretched(
+          Canvas canvas, Bitmap tile,
+          Rect source, int sourceLeft, int sourceTop, int sourceRight, int sourceBottom,
+          Rect destination, int left, int top, int right, int bottom) {
+    source.set(sourceLeft, sourceTop, sourceRight, sourceBottom);
+    destination.set(left, top, right, bottom);
+    canvas.drawBitmap(tile, source, destination, null);
+  }
+
+  /**
+   * Returns true if all the texture coordinates are within [0, 1], so that the texture does not
+   * need to repeat and can be moved into an atlas tile.
+   */
+  public static boolean isWithinUnitSquare(FloatBuffer texCoords) {
+    final int limit = texCoords.limit();
+    for (int i = 0; i < limit; ++i) {
+      final float value = texCoords.get(i);
+      if (value < -TEX_COORD_TOLERANCE || value > 1.0f + TEX_COORD_TOLERANCE) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Rewrites 2D texture coordinates of the tile texture into atlas coordinates, in place. The
+   * object shader flips v, since bitmaps are uploaded top row first, so the tile is addressed
+   * from the bottom of the page.
+   */
+  public static void remapTexCoords(FloatBuffer texCoords, Page page, Placement placement) {
+    final float scaleU = (float) placement.plan.targetWidth / page.width;
+    final float scaleV = (float) placement.plan.targetHeight / page.height;
+    final float offsetU = (float) placement.x / page.width;
+    final float offsetT = (float) placement.y / page.height;
+
+    final int limit = texCoords.limit() - 1;
+    for (int i = 0; i < limit; i += 2) {
+      final float u = clamp01(texCoords.get(i));
+      final float v = clamp01(texCoords.get(i + 1));
+      texCoords.put(i, offsetU + u * scaleU);
+      texCoords.put(i + 1, 1.0f - (offsetT + (1.0f - v) * scaleV));
+    }
+  }
+
+  private static float clamp01(float value) {
+    return Math.max(0.0f, Math.min(1.0f, value));
+  }
+
+  static String sha1Hex(String text) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      return CompressedTextureCache.toHex(digest.digest(text.getBytes(Charset.forName("UTF-8"))));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-1 is not available", e);
+    }
+  }
+}
@@ -0,0 +1,156 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Chooses the size that every texture of a dataset is uploaded at. Textures are shrunk to a power
+ * of two that fits the device's GL_MAX_TEXTURE_SIZE, so that they can be mipmapped, and then the
+ * largest textures are halved until the whole dataset fits in the texture memory budget.
+ */
+public class TextureBudget {
+
+  /** The source and target size of a single texture. */
+  public static class Plan {
+    public final File file;
+    public final int sourceWidth;
+    public final int sourceHeight;
+    // True if the image format cannot carry alpha (JPEG), so the texture can be stored as RGB565.
+    public final boolean opaque;
+    // The size of a texel on the GPU: 16 for RGB565, 32 for RGBA8, 4 for ETC1 and 8 for ETC2 RGBA8.
+    public int bitsPerPixel;
+
+    public int targetWidth;
+    public int targetHeight;
+
+    public Plan(File file, int sourceWidth, int sourceHeight, boolean opaque) {
+      this.file = file;
+      this.sourceWidth = sourceWidth;
+      this.sourceHeight = sourceHeight;
+      this.opaque = opaque;
+      this.bitsPerPixel = opaque ? 16 : 32;
+      this.targetWidth = sourceWidth;
+      this.targetHeight = sourceHeight;
+    }
+
+    /** The size of the full resolution image as an uncompressed RGBA8 texture without mipmaps. */
+    public long sourceBytes() {
+      return 4L * sourceWidth * sourceHeight;
+    }
+
+    /** The size of the texture at the target size, including the mipmap chain. */
+    public long targetBytes() {
+      return mipChainBytes(targetWidth, targetHeight, bitsPerPixel);
+    }
+
+    /**
+     * The largest power of two sample size that still decodes the image at least as large as the
+     * target size, for use as {@code BitmapFactory.Options.inSampleSize}.
+     */
+    public int sampleSize() {
+      int sampleSize = 1;
+      while (sourceWidth / (sampleSize * 2) >= targetWidth
+              && sourceHeight / (sampleSize * 2) >= targetHeight) {
+        sampleSize *= 2;
+      }
+      return sampleSize;
+    }
+  }
+
+  /** The texture memory of a dataset before and after the budget was applied. */
+  public static class Report {
+    public final int numTextures;
+    public final long sourceBytes;
+    public final long targetBytes;
+
+    Report(int numTextures, long sourceBytes, long targetBytes) {
+      this.numTextures = numTextures;
+      this.sourceBytes = sourceBytes;
+      this.targetBytes = targetBytes;
+    }
+
+    @Override
+    public String toString() {
+      return numTextures + " textures, " + (sourceBytes / 1024) + " KB at full resolution, "
+              + (targetBytes / 1024) + " KB mipmapped within the budget";
+    }
+  }
+
+  /**
+   * Sets the target size of every plan.
+   *
+   * @param plans The textures of the dataset.
+   * @param maxTextureSize The GL_MAX_TEXTURE_SIZE of the device.
+   * @param budgetBytes The total texture memory the dataset may use.
+   */
+  public static Report apply(Collection<Plan> plans, int maxTextureSize, long budgetBytes) {
+    final int maxSize = Math.max(1, floorPowerOfTwo(maxTextureSize));
+
+    long sourceBytes = 0;
+    long targetBytes = 0;
+    PriorityQueue<Plan> largestFirst = new PriorityQueue<>(
+            Math.max(1, plans.size()),
+            new Comparator<Plan>() {
+              @Override
+              public int compare(Plan a, Plan b) {
+                return Long.compare(b.targetBytes(), a.targetBytes());
+              }
+            });
+
+    for (Plan plan : plans) {
+      plan.targetWidth = Math.min(nearestPowerOfTwo(plan.sourceWidth), maxSize);
+      plan.targetHeight = Math.min(nearestPowerOfTwo(plan.sourceHeight), maxSize);
+      sourceBytes += plan.sourceBytes();
+      targetBytes += plan.targetBytes();
+      largestFirst.add(plan);
+    }
+
+    while (targetBytes > budgetBytes && !largestFirst.isEmpty()) {
+      Plan plan = largestFirst.poll();
+      if (plan.targetWidth == 1 && plan.targetHeight == 1) {
+        // Every remaining texture is at least this small, so nothing more can be saved.
+        break;
+      }
+      targetBytes -= plan.targetBytes();
+      plan.targetWidth = Math.max(1, plan.targetWidth / 2);
+      plan.targetHeight = Math.max(1, plan.targetHeight / 2);
+      targetBytes += plan.targetBytes();
+      largestFirst.add(plan);
+    }
+
+    return new Report(plans.size(), sourceBytes, targetBytes);
+  }
+
+  /** Returns the bytes of a texture and all its mipmap levels. */
+  public static long mipChainBytes(int width, int height, int bitsPerPixel) {
+    long bytes = 0;
+    int levelWidth = width;
+    int levelHeight = height;
+    while (true) {
+      bytes += (long) levelWidth * levelHeight * bitsPerPixel / 8;
+      if (levelWidth == 1 && levelHeight == 1) {
+        return bytes;
+      }
+      levelWidth = Math.max(1, levelWidth / 2);
+      levelHeight = Math.max(1, levelHeight / 2);
+    }
+  }
+
+  static int floorPowerOfTwo(int value) {
+    return (value <= 1) ? 1 : Integer.highestOneBit(value);
+  }
+
+  static int ceilPowerOfTwo(int value) {
+    int floor = floorPowerOfTwo(value);
+    return (floor < value) ? floor * 2 : floor;
+  }
+
+  // Rounds to the closer of the two neighbouring powers of two, so that a 1000 pixel image is
+  // scaled up to 1024 rather than down to 512.
+  static int nearestPowerOfTwo(int value) {
+    int floor = floorPowerOfTwo(value);
+    return (value - floor > floor / 2) ? floor * 2 : floor;
+  }
+}
@@ -0,0 +1,358 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Shares GL textures between all the materials that refer to the same image file. Entries are
+ * keyed by the image content (see {@link #keyFor(File)}) and reference counted, so a texture is
+ * uploaded once no matter how many materials or obj files use it, and it is deleted when the last
+ * material releases it.
+ *
+ * <p>Every uploaded texture is tracked by the {@link GpuResourceManager}. Compressed textures can
+ * be evicted to a lower level of detail, by uploading their mipmap chain from the {@link
+ * CompressedTextureCache} without the largest levels, and are restored from the same cache when
+ * they are drawn again. Both chains are read on a background stage, and a texture whose chain
+ * cannot be read is tried again a few times before it is left at the lower level of detail.
+ * Uncompressed textures have no copy to restore from, so they are never evicted and stay resident
+ * until they are released.
+ *
+ * <p>{@link #acquire} and {@link #release} must be called on the GL thread. {@link
+ * #retainIfPresent} may be called from the loader threads, to keep an already uploaded texture
+ * alive without decoding the image again.
+ */
+public class TextureCache {
+  private static final String TAG = TextureCache.class.getSimpleName();
+
+  // An evicted texture keeps its mipmap chain from this level down, 1/16 of the full size.
+  private static final int EVICTED_BASE_LEVEL = 2;
+  // The reads that may wait for the read stage, besides the one it is doing.
+  private static final int MAX_QUEUED_READS = 7;
+  // A failed reload is tried again after this delay, doubled after every further failure.
+  private static final long RELOAD_RETRY_DELAY_MS = 500;
+  private static final int MAX_RELOAD_ATTEMPTS = 5;
+
+  // A read of a mipmap chain from the CompressedTextureCache, from a level down.
+  private static class LevelRead {
+    final String compressedKey;
+    final int firstLevel;
+
+    LevelRead(String compressedKey, int firstLevel) {
+      this.compressedKey = compressedKey;
+      this.firstLevel = firstLevel;
+    }
+  }
+
+  // The mipmap chains are read from the CompressedTextureCache and copied into memory on the read
+  // stage, for both the eviction to a lower level of detail and the reload, so that the GL thread
+  // only swaps the levels of the texture once a read is done. Until then evict() and reload()
+  // return -1 and are asked again in a later frame.
+  private class Entry extends GpuResourceManager.Resource {
+    final int textureId;
+    final String compressedKey;
+    final long fullBytes;
+    int refCount;
+    // Only used on the GL thread.
+    Future<CompressedTexture> pendingEviction;
+    boolean evictable;
+    Future<CompressedTexture> pendingReload;
+    int numFailedReloads;
+    long nextReloadMs;
+
+    Entry(int textureId, String compressedKey, long fullBytes) {
+      super(GpuResourceManager.Kind.TEXTURE);
+      this.textureId = textureId;
+      this.compressedKey = compressedKey;
+      this.fullBytes = fullBytes;
+      // Uncompressed textures have no copy to restore from.
+      this.evictable = (compressedKey != null);
+    }
+
+    @Override
+    protected long evict() {
+      if (!evictable) {
+        return -1;
+      }
+      if (pendingEviction == null) {
+        pendingEviction = submitRead(compressedKey, EVICTED_BASE_LEVEL);
+        return -1;
+      }
+      if (!pendingEviction.isDone()) {
+        return -1;
+      }
+
+      CompressedTexture texture = getRead(pendingEviction);
+      pendingEviction = null;
+      if (texture == null) {
+        // Too small to have a lower level of detail, or no longer in the cache, which would not
+        // let it be reloaded either.
+        evictable = false;
+        return -1;
+      }
+      uploadLevels(textureId, texture);
+      return texture.byteCount();
+    }
+
+    @Override
+    protected long reload() {
+      if (pendingReload == null) {
+        if (numFailedReloads >= MAX_RELOAD_ATTEMPTS
+                || SystemClock.elapsedRealtime() < nextReloadMs) {
+          return -1;
+        }
+        // Tried again in a later frame if the stage is full.
+        pendingReload = submitRead(compressedKey, 0);
+        return -1;
+      }
+      if (!pendingReload.isDone()) {
+        return -1;
+      }
+
+      CompressedTexture texture = getRead(pendingReload);
+      pendingReload = null;
+      if (texture == null) {
+        onReloadFailed();
+        return -1;
+      }
+      numFailedReloads = 0;
+      uploadLevels(textureId, texture);
+      return fullBytes;
+    }
+
+    // Backs off before reading the chain again, since a failed read is likely to fail again
+    // right away, and gives up after a few attempts.
+    private void onReloadFailed() {
+      ++numFailedReloads;
+      if (numFailedReloads >= MAX_RELOAD_ATTEMPTS) {
+        Log.e(TAG, "Failed to reload texture " + compressedKey + " after " + numFailedReloads
+                + " attempts, keeping it at a lower level of detail");
+        return;
+      }
+      final long delayMs = RELOAD_RETRY_DELAY_MS << (numFailedReloads - 1);
+      nextReloadMs = SystemClock.elapsedRealtime() + delayMs;
+      Log.w(TAG, "Failed to reload texture " + compressedKey + ", retrying in " + delayMs
+              + " ms");
+    }
+
+    @Override
+    protected void delete() {
+      // Pending reads are left to finish, so that their stage slots are released; their results
+      // are dropped.
+      pendingEviction = null;
+      pendingReload = null;
+      deletedTextureName[0] = textureId;
+      GLES20.glDeleteTextures(1, deletedTextureName, 0);
+    }
+  }
+
+  private final Map<String, Entry> entries = new HashMap<>();
+  private final GpuResourceManager resourceManager;
+  private volatile CompressedTextureCache compressedTextureCache;
+  // Reads the mipmap chains of textures that are evicted or drawn again. Created with the first
+  // read and shut down when the last texture is released.
+  private LoadPipeline.Stage<LevelRead, CompressedTexture> readStage;
+  private final int[] deletedTextureName = new int[1];
+
+  public TextureCache(GpuResourceManager resourceManager) {
+    this.resourceManager = resourceManager;
+  }
+
+  /** Sets the cache that evicted compressed textures are restored from. */
+  public void setCompressedTextureCache(CompressedTextureCache compressedTextureCache) {
+    this.compressedTextureCache = compressedTextureCache;
+  }
+
+  private CompressedTexture getCachedTexture(String compressedKey) {
+    CompressedTextureCache cache = compressedTextureCache;
+    return (compressedKey == null || cache == null) ? null : cache.get(compressedKey);
+  }
+
+  // Queues the read of a mipmap chain without waiting, and returns null if the stage is full.
+  // The read returns null if the chain could not be read or has no levels from firstLevel down.
+  private synchronized Future<CompressedTexture> submitRead(String compressedKey,
+                                                            int firstLevel) {
+    if (readStage == null) {
+      readStage = new LoadPipeline.Stage<>("fmear-texture-read", 1, MAX_QUEUED_READS,
+              new LoadPipeline.Worker<LevelRead, CompressedTexture>() {
+                @Override
+                public CompressedTexture process(LevelRead read) {
+                  CompressedTexture texture = getCachedTexture(read.compressedKey);
+                  if (texture == null || texture.levels.length <= read.firstLevel) {
+                    return null;
+                  }
+                  return texture.copyLevels(read.firstLevel);
+                }
+
+                @Override
+                public long bytesOf(LevelRead read, CompressedTexture result) {
+                  return (result == null) ? 0 : result.byteCount();
+                }
+              });
+    }
+    return readStage.trySubmit(new LevelRead(compressedKey, firstLevel));
+  }
+
+  // Returns the mipmap chain of a finished read, or null if it could not be read.
+  private static CompressedTexture getRead(Future<CompressedTexture> read) {
+    try {
+      return read.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException e) {
+      Log.e(TAG, "Failed to read a compressed texture", e.getCause());
+      return null;
+    }
+  }
+
+  /**
+   * Returns the cache key for the image file. Two files have the same key only if they resolve to
+   * the same canonical path and have the same size and modification time.
+   */
+  public static String keyFor(File textureFile) throws IOException {
+    return textureFile.getCanonicalPath() + ':' + textureFile.length() + ':'
+            + textureFile.lastModified();
+  }
+
+  /**
+   * Adds a reference to the texture if it is already uploaded.
+   *
+   * @return true if the texture is resident and a reference was added, which must be balanced by
+   *     a call to {@link #release}.
+   */
+  public synchronized boolean retainIfPresent(String key) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      return false;
+    }
+    ++entry.refCount;
+    return true;
+  }
+
+  /**
+   * Adds a reference to the texture, uploading the decoded texture if nobody else holds the
+   * texture yet. The decoded texture is not recycled; the caller still owns it.
+   *
+   * @return the GL texture name.
+   */
+  public synchronized int acquire(String key, TextureDecoder.DecodedTexture decodedTexture) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      if (decodedTexture.compressed != null) {
+        entry = new Entry(upload(decodedTexture.compressed), decodedTexture.compressedKey,
+                decodedTexture.compressed.byteCount());
+      } else {
+        Bitmap bitmap = decodedTexture.bitmap;
+        entry = new Entry(upload(bitmap), null, TextureBudget.mipChainBytes(
+                bitmap.getWidth(), bitmap.getHeight(),
+                (bitmap.getConfig() == Bitmap.Config.RGB_565) ? 16 : 32));
+      }
+      entries.put(key, entry);
+      resourceManager.add(entry, entry.fullBytes);
+    }
+    ++entry.refCount;
+    return entry.textureId;
+  }
+
+  /** Returns the texture as a resource of the GpuResourceManager, or null if it is not cached. */
+  public synchronized GpuResourceManager.Resource getResource(String key) {
+    return entries.get(key);
+  }
+
+  /** Returns the GPU memory of the texture at full resolution, or 0 if it is not cached. */
+  public synchronized long getTextureBytes(String key) {
+    Entry entry = entries.get(key);
+    return (entry == null) ? 0 : entry.fullBytes;
+  }
+
+  /** Returns the GL texture name for a texture that is held by the caller, or 0 if none. */
+  public synchronized int getTextureId(String key) {
+    Entry entry = entries.get(key);
+    return (entry == null) ? 0 : entry.textureId;
+  }
+
+  /** Drops a reference to the texture and deletes it when there are no references left. */
+  public synchronized void release(String key) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      Log.w(TAG, "Releasing a texture that is not in the cache: " + key);
+      return;
+    }
+
+    if (--entry.refCount <= 0) {
+      entries.remove(key);
+      resourceManager.remove(entry);
+      if (entries.isEmpty() && readStage != null) {
+        readStage.shutdown();
+        readStage = null;
+      }
+    }
+  }
+
+  /** Returns the number of distinct textures that are currently uploaded. */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  private static int upload(Bitmap textureBitmap) {
+    final int textureId = createTexture();
+    GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, textureBitmap, 0);
+    GLES20.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+
+    ShaderUtil.checkGLError(TAG, "Texture loading");
+    return textureId;
+  }
+
+  // Compressed textures come with their whole mipmap chain, since glGenerateMipmap cannot be used
+  // on compressed formats.
+  private static int upload(CompressedTexture texture) {
+    final int textureId = createTexture();
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+    uploadLevels(textureId, texture);
+    return textureId;
+  }
+
+  // Specifies the texture from the whole chain. Levels left over from a larger chain are ignored
+  // by the sampler, since the new level 0 defines how many levels the texture has.
+  private static void uploadLevels(int textureId, CompressedTexture texture) {
+    GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+    for (int level = 0; level < texture.levels.length; ++level) {
+      GLES20.glCompressedTexImage2D(GLES20.GL_TEXTURE_2D, level, texture.glFormat,
+              texture.levelWidths[level], texture.levelHeights[level], 0,
+              texture.levels[level].remaining(), texture.levels[level]);
+    }
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+
+    ShaderUtil.checkGLError(TAG, "Compressed texture loading");
+  }
+
+  // Generates a texture name and leaves it bound to GL_TEXTURE_2D.
+  private static int createTexture() {
+    final int[] textureHandle = new int[]{0};
+    GLES20.glGenTextures(textureHandle.length, textureHandle, 0);
+    if (textureHandle[0] == 0) {
+      throw new RuntimeException("Error generating texture handle.");
+    }
+
+    GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureHandle[0]);
+    // The TextureDecoder scales every texture to a power of two, so it can be mipmapped and
+    // sampled with trilinear filtering.
+    GLES20.glTexParameteri(
+            GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR_MIPMAP_LINEAR);
+    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+    return textureHandle[0];
+  }
+}
@@ -0,0 +1,346 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Decodes texture images on a pool of background threads, so that the GL thread only has to
+ * upload the decoded pixels with texImage2D.
+ *
+ * <p>When a {@link CompressedTextureCache} is given, textures are also compressed on the pool:
+ * opaque textures to ETC1 and, if OpenGL ES 3.0 is available, textures with alpha to ETC2 RGBA8.
+ * Compressed mipmap chains are stored in the cache, so that loading the same image again skips
+ * both the decoding and the encoding.
+ */
+public class TextureDecoder {
+  private static final String TAG = TextureDecoder.class.getSimpleName();
+
+  /** The result of decoding a single texture image: either a bitmap or a compressed texture. */
+  public static class DecodedTexture {
+    public final File file;
+    public final Bitmap bitmap;
+    public final CompressedTexture compressed;
+    // The CompressedTextureCache key of the compressed texture, so that its mipmap chain can be
+    // mapped again after the texture was evicted to a lower level of detail.
+    public final String compressedKey;
+    public final long decodeTimeMs;
+
+    DecodedTexture(File file, Bitmap bitmap, CompressedTexture compressed, String compressedKey,
+                   long decodeTimeMs) {
+      this.file = file;
+      this.bitmap = bitmap;
+      this.compressed = compressed;
+      this.compressedKey = compressedKey;
+      this.decodeTimeMs = decodeTimeMs;
+    }
+
+    public boolean isValid() {
+      return bitmap != null || compressed != null;
+    }
+
+    /** Frees the decoded pixels once they are uploaded. */
+    public void recycle() {
+      if (bitmap != null) {
+        bitmap.recycle();
+      }
+    }
+  }
+
+  private final ExecutorService executor;
+  private final CompressedTextureCache compressedTextureCache;
+  private final boolean etc2Supported;
+
+  /** Creates a decoder that does not compress, with one thread per available core. */
+  public TextureDecoder() {
+    this(null, false);
+  }
+
+  /**
+   * Creates a decoder with one thread per available core.
+   *
+   * @param compressedTextureCache The cache of compressed textures, or null to upload textures
+   *     uncompressed.
+   * @param etc2Supported True if textures with alpha can be compressed as ETC2 RGBA8.
+   */
+  public TextureDecoder(CompressedTextureCache compressedTextureCache, boolean etc2Supported) {
+    this.executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    this.compressedTextureCache = compressedTextureCache;
+    this.etc2Supported = etc2Supported;
+  }
+
+  /** Returns the bits per pixel the texture will use on the GPU, for the texture budget. */
+  public int bitsPerPixel(TextureBudget.Plan plan) {
+    if (compressedTextureCache != null) {
+      if (plan.opaque) {
+        return 4;
+      } else if (etc2Supported) {
+        return 8;
+      }
+    }
+    return plan.opaque ? 16 : 32;
+  }
+
+  /** Queues the texture for decoding and returns a future for the decoded texture. */
+  public Future<DecodedTexture> submit(final TextureBudget.Plan plan) {
+    return executor.submit(new Callable<DecodedTexture>() {
+      @Override
+      public DecodedTexture call() {
+        return decode(plan);
+      }
+    });
+  }
+
+  /**
+   * Queues a tile of an atlas page for decoding at the target size of its plan. The tile is never
+   * compressed on its own.
+   */
+  public Future<Bitmap> submitTile(final TextureBudget.Plan plan) {
+    return executor.submit(new Callable<Bitmap>() {
+      @Override
+      public Bitmap call() {
+        Bitmap tile = decodeBitmap(plan, compressedTextureCache == null);
+        if (tile == null) {
+          Log.e(TAG, "Failed to decode atlas tile '" + plan.file + "'");
+        }
+        return tile;
+      }
+    });
+  }
+
+  /**
+   * Returns the compressed atlas page from the disk cache, or null if compression is disabled or
+   * the page has to be composed.
+   */
+  public DecodedTexture findCachedAtlas(TextureAtlas.Page page) {
+    if (compressedTextureCache == null) {
+      return null;
+    }
+
+    final long startTime = SystemClock.elapsedRealtime();
+    try {
+      if (page.compressedKey == null) {
+        StringBuilder description = new StringBuilder();
+        for (TextureAtlas.Placement placement : page.placements) {
+          description.append(CompressedTextureCache.sha1Hex(placement.plan.file)).append('@')
+                  .append(placement.x).append(',').append(placement.y).append(',')
+                  .append(placement.plan.targetWidth).append('x')
+                  .append(placement.plan.targetHeight).append('|');
+        }
+        page.compressedKey = CompressedTextureCache.keyFor(
+                TextureAtlas.sha1Hex(description.toString()), page.width, page.height,
+                etc2Supported);
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to read the tiles of an atlas page", e);
+      return null;
+    }
+
+    CompressedTexture compressed = compressedTextureCache.get(page.compressedKey);
+    if (compressed == null) {
+      return null;
+    }
+    final long loadTimeMs = SystemClock.elapsedRealtime() - startTime;
+    Log.i(TAG, "Loaded compressed atlas page of " + page.placements.size()
+            + " textures from the cache in " + loadTimeMs + " ms");
+    return new DecodedTexture(null, null, compressed, page.compressedKey, loadTimeMs);
+  }
+
+  /**
+   * Queues the composition of an atlas page from its decoded tiles. The page is compressed if
+   * compression is enabled and {@link #findCachedAtlas} was called for it. The task waits for the
+   * tiles, so they must be submitted before the page; the pool runs tasks in order, so the tiles
+   * are already running when the page task starts.
+   *
+   * @param tiles The tile futures, in the order of the page placements.
+   */
+  public Future<DecodedTexture> submitAtlas(
+          final TextureAtlas.Page page, final List<Future<Bitmap>> tiles) {
+    return executor.submit(new Callable<DecodedTexture>() {
+      @Override
+      public DecodedTexture call() throws InterruptedException, ExecutionException {
+        final long startTime = SystemClock.elapsedRealtime();
+        List<Bitmap> tileBitmaps = new ArrayList<>(tiles.size());
+        boolean tilesDecoded = true;
+        for (Future<Bitmap> tile : tiles) {
+          Bitmap tileBitmap = tile.get();
+          tilesDecoded &= (tileBitmap != null);
+          tileBitmaps.add(tileBitmap);
+        }
+
+        Bitmap bitmap = null;
+        if (tilesDecoded) {
+          bitmap = TextureAtlas.compose(page, tileBitmaps);
+        }
+        for (Bitmap tileBitmap : tileBitmaps) {
+          if (tileBitmap != null) {
+            tileBitmap.recycle();
+          }
+        }
+
+        CompressedTexture compressed = null;
+        if (bitmap != null && compressedTextureCache != null && page.compressedKey != null) {
+          compressed = compress(bitmap, page.compressedKey);
+          if (compressed != null) {
+            bitmap.recycle();
+            bitmap = null;
+          }
+        } else if (bitmap != null && compressedTextureCache == null && page.isOpaque()) {
+          Bitmap opaqueBitmap = bitmap.copy(Bitmap.Config.RGB_565, false);
+          if (opaqueBitmap != null) {
+            bitmap.recycle();
+            bitmap = opaqueBitmap;
+          }
+        }
+
+        final long decodeTimeMs = SystemClock.elapsedRealtime() - startTime;
+        Log.i(TAG, "Composed atlas page of " + page.placements.size() + " textures ("
+                + page.width + "x" + page.height + (compressed != null ? ", compressed" : "")
+                + ") in " + decodeTimeMs + " ms");
+        return new DecodedTexture(null, bitmap, compressed,
+                (compressed != null) ? page.compressedKey : null, decodeTimeMs);
+      }
+    });
+  }
+
+  /** Stops the worker threads once all the queued textures are decoded. */
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  /** Drops the queued textures and interrupts the decodes that are running. */
+  public void shutdownNow() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Reads the image size without decoding the pixels.
+   *
+   * @return a plan at the full image size, or null if the file is not a readable image.
+   */
+  public static TextureBudget.Plan readPlan(File textureFile) {
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inJustDecodeBounds = true;
+    BitmapFactory.decodeFile(textureFile.getPath(), options);
+    if (options.outWidth <= 0 || options.outHeight <= 0) {
+      Log.e(TAG, "Failed to read the size of texture '" + textureFile + "'");
+      return null;
+    }
+
+    boolean opaque = "image/jpeg".equals(options.outMimeType);
+    return new TextureBudget.Plan(textureFile, options.outWidth, options.outHeight, opaque);
+  }
+
+  /**
+   * Decodes the texture on the calling thread at the target size of the plan, and compresses it
+   * if compression is enabled. The result is not valid if the file could not be decoded.
+   */
+  public DecodedTexture decode(TextureBudget.Plan plan) {
+    final long startTime = SystemClock.elapsedRealtime();
+
+    String compressedKey = null;
+    if (compressedTextureCache != null) {
+      try {
+        compressedKey = CompressedTextureCache.keyFor(
+                plan.file, plan.targetWidth, plan.targetHeight, etc2Supported);
+        CompressedTexture compressed = compressedTextureCache.get(compressedKey);
+        if (compressed != null) {
+          final long loadTimeMs = SystemClock.elapsedRealtime() - startTime;
+          Log.i(TAG, "Loaded compressed texture '" + plan.file + "' from the cache in "
+                  + loadTimeMs + " ms");
+          return new DecodedTexture(plan.file, null, compressed, compressedKey, loadTimeMs);
+        }
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to read texture '" + plan.file + "'", e);
+        compressedKey = null;
+      }
+    }
+
+    // Compression works best from the full 8 bit channels, so RGB565 is only used when the texture
+    // will be uploaded uncompressed.
+    Bitmap bitmap = decodeBitmap(plan, compressedKey == null);
+    CompressedTexture compressed = null;
+    if (bitmap != null && compressedKey != null) {
+      compressed = compress(bitmap, compressedKey);
+      if (compressed != null) {
+        bitmap.recycle();
+        bitmap = null;
+      }
+    }
+
+    final long decodeTimeMs = SystemClock.elapsedRealtime() - startTime;
+    if (compressed != null) {
+      Log.i(TAG, "Decoded and compressed texture '" + plan.file + "' (" + plan.sourceWidth + "x"
+              + plan.sourceHeight + " to " + plan.targetWidth + "x" + plan.targetHeight + ", "
+              + (compressed.byteCount() / 1024) + " KB) in " + decodeTimeMs + " ms");
+    } else if (bitmap != null) {
+      Log.i(TAG, "Decoded texture '" + plan.file + "' (" + plan.sourceWidth + "x"
+              + plan.sourceHeight + " to " + bitmap.getWidth() + "x" + bitmap.getHeight() + " "
+              + bitmap.getConfig() + ") in " + decodeTimeMs + " ms");
+    } else {
+      Log.e(TAG, "Failed to decode texture '" + plan.file + "'");
+    }
+    return new DecodedTexture(plan.file, bitmap, compressed,
+            (compressed != null) ? compressedKey : null, decodeTimeMs);
+  }
+
+  private static Bitmap decodeBitmap(TextureBudget.Plan plan, boolean allowRgb565) {
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inScaled = false;
+    options.inSampleSize = plan.sampleSize();
+    options.inPreferredConfig = (plan.opaque && allowRgb565)
+            ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    Bitmap bitmap = BitmapFactory.decodeFile(plan.file.getPath(), options);
+
+    if (bitmap != null
+            && (bitmap.getWidth() != plan.targetWidth || bitmap.getHeight() != plan.targetHeight)) {
+      Bitmap scaledBitmap =
+              Bitmap.createScaledBitmap(bitmap, plan.targetWidth, plan.targetHeight, true);
+      bitmap.recycle();
+      bitmap = scaledBitmap;
+    }
+
+    if (allowRgb565 && bitmap != null && bitmap.getConfig() != Bitmap.Config.RGB_565
+            && !bitmap.hasAlpha()) {
+      Bitmap opaqueBitmap = bitmap.copy(Bitmap.Config.RGB_565, false);
+      if (opaqueBitmap != null) {
+        bitmap.recycle();
+        bitmap = opaqueBitmap;
+      }
+    }
+    return bitmap;
+  }
+
+  // Encodes the bitmap and stores it in the cache. Returns null if the texture has alpha and ETC2
+  // is not available, in which case the bitmap is uploaded uncompressed.
+  private CompressedTexture compress(Bitmap bitmap, String compressedKey) {
+    final int width = bitmap.getWidth();
+    final int height = bitmap.getHeight();
+    int[] argb = new int[width * height];
+    bitmap.getPixels(argb, 0, width, 0, 0, width, height);
+
+    boolean withAlpha = bitmap.hasAlpha() && EtcCodec.hasTransparency(argb);
+    if (withAlpha && !etc2Supported) {
+      return null;
+    }
+
+    CompressedTexture compressed = CompressedTexture.encode(argb, width, height, withAlpha);
+    try {
+      compressedTextureCache.put(compressedKey, compressed);
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to store the compressed texture in the cache", e);
+    }
+    return compressed;
+  }
+}
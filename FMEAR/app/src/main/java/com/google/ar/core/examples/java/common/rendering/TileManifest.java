@@ -0,0 +1,208 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A tree of tiles for a dataset that is too large to load at full detail, read from a tileset.json
+ * file in the subset of the 3D Tiles 1.0 format that FME writes: every tile has a bounding volume,
+ * a geometric error, optionally content files, and children that refine it. A parent with REPLACE
+ * refinement is a coarser version of its children and is replaced by them; a parent with ADD
+ * refinement is drawn along with them. See {@link TileSelector} for which tiles are drawn.
+ *
+ * <p>The content files are obj, glTF or .fmesh files, in the coordinates of the dataset, like the
+ * files of a dataset without tiles. The bounding volumes are boxes or spheres in the same
+ * coordinates; regions and tile transforms are not supported, and external tilesets are not
+ * followed.
+ */
+public class TileManifest {
+
+  public static final String FILE_NAME = "tileset.json";
+  private static final String FILE_NAME_SUFFIX = "." + FILE_NAME;
+
+  /** A tile of the tree. */
+  public static class Tile {
+    private int index = -1;
+    public final Tile parent;
+    public final int depth;
+    // The axis-aligned bounds: minimum x, y, z, then maximum x, y, z.
+    public final float[] bounds;
+    // The error, in the units of the dataset, of drawing this tile instead of its children.
+    public final float geometricError;
+    public final boolean additive;
+    public final List<File> contents = new ArrayList<>();
+    public final List<Tile> children = new ArrayList<>();
+
+    /** Creates a tile and adds it to the children of its parent, if it has one. */
+    public Tile(Tile parent, float[] bounds, float geometricError, boolean additive) {
+      this.parent = parent;
+      this.depth = (parent == null) ? 0 : parent.depth + 1;
+      this.bounds = bounds;
+      this.geometricError = geometricError;
+      this.additive = additive;
+      if (parent != null) {
+        parent.children.add(this);
+      }
+    }
+
+    /** The position of the tile in {@link #getTiles}. */
+    public int getIndex() {
+      return index;
+    }
+
+    public boolean hasContent() {
+      return !contents.isEmpty();
+    }
+
+    /** The distance from the point to the bounds, or 0 if the point is inside. */
+    public float distanceTo(float x, float y, float z) {
+      final float dx = Math.max(0.0f, Math.max(bounds[0] - x, x - bounds[3]));
+      final float dy = Math.max(0.0f, Math.max(bounds[1] - y, y - bounds[4]));
+      final float dz = Math.max(0.0f, Math.max(bounds[2] - z, z - bounds[5]));
+      return (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+  }
+
+  private final Tile root;
+  private final List<Tile> tiles = new ArrayList<>();
+
+  /** Creates the manifest of a tree, numbering its tiles parents first. */
+  public TileManifest(Tile root) {
+    this.root = root;
+    List<Tile> stack = new ArrayList<>();
+    stack.add(root);
+    while (!stack.isEmpty()) {
+      Tile tile = stack.remove(stack.size() - 1);
+      tile.index = tiles.size();
+      tiles.add(tile);
+      for (int i = tile.children.size() - 1; i >= 0; --i) {
+        stack.add(tile.children.get(i));
+      }
+    }
+  }
+
+  public Tile getRoot() {
+    return root;
+  }
+
+  /** All the tiles, every parent before its children. */
+  public List<Tile> getTiles() {
+    return Collections.unmodifiableList(tiles);
+  }
+
+  /** Returns whether the file name is that of a tileset, tileset.json or *.tileset.json. */
+  public static boolean isTileManifest(String fileName) {
+    final String lowerCaseName = fileName.toLowerCase();
+    return lowerCaseName.equals(FILE_NAME) || lowerCaseName.endsWith(FILE_NAME_SUFFIX);
+  }
+
+  /**
+   * Reads a tileset.json file. The content files are looked up in the manifest of the dataset, if
+   * there is one, and relative to the tileset otherwise.
+   *
+   * @throws IOException if the file is missing or malformed.
+   */
+  public static TileManifest read(File file, DatasetManifest datasetManifest) throws IOException {
+    try {
+      JSONObject tileset = new JSONObject(new String(readFully(file), StandardCharsets.UTF_8));
+      JSONObject asset = tileset.optJSONObject("asset");
+      final String version = (asset == null) ? "" : asset.optString("version", "");
+      if (!version.startsWith("1.")) {
+        throw new IOException("Unsupported tileset version '" + version + "'");
+      }
+      return new TileManifest(readTile(tileset.getJSONObject("root"), null, false, file,
+              datasetManifest));
+    } catch (JSONException e) {
+      throw new IOException("Malformed tileset '" + file + "'", e);
+    }
+  }
+
+  // A tile inherits the refinement of its parent if it does not have its own.
+  private static Tile readTile(JSONObject json, Tile parent, boolean parentAdditive, File file,
+                               DatasetManifest datasetManifest)
+          throws IOException, JSONException {
+    final String refine = json.optString("refine", parentAdditive ? "ADD" : "REPLACE");
+    Tile tile = new Tile(parent, readBounds(json.getJSONObject("boundingVolume"), file),
+            (float) json.getDouble("geometricError"), refine.equalsIgnoreCase("ADD"));
+
+    JSONObject content = json.optJSONObject("content");
+    if (content != null) {
+      addContent(tile, content, file, datasetManifest);
+    }
+    JSONArray contents = json.optJSONArray("contents");
+    for (int i = 0; contents != null && i < contents.length(); ++i) {
+      addContent(tile, contents.getJSONObject(i), file, datasetManifest);
+    }
+
+    JSONArray children = json.optJSONArray("children");
+    for (int i = 0; children != null && i < children.length(); ++i) {
+      readTile(children.getJSONObject(i), tile, tile.additive, file, datasetManifest);
+    }
+    return tile;
+  }
+
+  private static void addContent(Tile tile, JSONObject content, File file,
+                                 DatasetManifest datasetManifest) throws IOException {
+    // 3D Tiles 1.0 names the content "uri"; earlier tilesets name it "url".
+    final String uri = content.optString("uri", content.optString("url", ""));
+    if (uri.isEmpty()) {
+      return;
+    }
+    if (isTileManifest(uri) || uri.toLowerCase().endsWith(".json")) {
+      throw new IOException("External tileset '" + uri + "' is not supported");
+    }
+    File contentFile = (datasetManifest == null) ? null : datasetManifest.resolveFile(file, uri);
+    if (contentFile == null) {
+      contentFile = new File(file.getParentFile(), uri.replace('\\', '/'));
+    }
+    tile.contents.add(contentFile);
+  }
+
+  // The axis-aligned bounds of a box, given by its center and half axes, or of a sphere.
+  private static float[] readBounds(JSONObject boundingVolume, File file)
+          throws IOException, JSONException {
+    JSONArray box = boundingVolume.optJSONArray("box");
+    if (box != null && box.length() == 12) {
+      float[] bounds = new float[6];
+      for (int axis = 0; axis < 3; ++axis) {
+        final double center = box.getDouble(axis);
+        final double extent = Math.abs(box.getDouble(3 + axis))
+                + Math.abs(box.getDouble(6 + axis)) + Math.abs(box.getDouble(9 + axis));
+        bounds[axis] = (float) (center - extent);
+        bounds[3 + axis] = (float) (center + extent);
+      }
+      return bounds;
+    }
+    JSONArray sphere = boundingVolume.optJSONArray("sphere");
+    if (sphere != null && sphere.length() == 4) {
+      final double radius = sphere.getDouble(3);
+      float[] bounds = new float[6];
+      for (int axis = 0; axis < 3; ++axis) {
+        bounds[axis] = (float) (sphere.getDouble(axis) - radius);
+        bounds[3 + axis] = (float) (sphere.getDouble(axis) + radius);
+      }
+      return bounds;
+    }
+    throw new IOException("Unsupported bounding volume in '" + file + "': " + boundingVolume);
+  }
+
+  private static byte[] readFully(File file) throws IOException {
+    try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+      if (input.length() > Integer.MAX_VALUE) {
+        throw new IOException("'" + file + "' is too large");
+      }
+      byte[] bytes = new byte[(int) input.length()];
+      input.readFully(bytes);
+      return bytes;
+    }
+  }
+}
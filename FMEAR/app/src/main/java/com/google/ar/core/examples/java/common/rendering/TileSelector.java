@@ -0,0 +1,249 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Chooses the tiles of a {@link TileManifest} to draw from where the camera is, and which tiles to
+ * load and unload, so that a tiled dataset is drawn at the detail the screen can show within a
+ * memory budget.
+ *
+ * <p>A tile is refined into its children while its screen space error, its geometric error
+ * projected to pixels at its distance from the camera, is above the maximum. A tile with REPLACE
+ * refinement is drawn in place of its children until all of them are loaded, so that nothing
+ * disappears while the children load. Tiles that are not drawn are unloaded, least recently drawn
+ * first, once the loaded tiles are over the budget, and no tiles are requested while they are.
+ *
+ * <p>{@link #update} does not allocate, so it can be called every frame. Not thread-safe; the
+ * loaded and failed tiles are reported on the thread that updates. Pure Java, so that the
+ * selection can be tested on the JVM.
+ */
+public class TileSelector {
+
+  public static final float DEFAULT_MAXIMUM_SCREEN_SPACE_ERROR = 16.0f;
+
+  private static final int UNLOADED = 0;
+  private static final int REQUESTED = 1;
+  private static final int LOADED = 2;
+  private static final int FAILED = 3;
+
+  // The distance below which a tile is as close as it gets, so that the error of a tile around
+  // the camera is large rather than infinite.
+  private static final float MIN_DISTANCE = 1e-3f;
+
+  private final List<TileManifest.Tile> tiles;
+  private final int[] states;
+  private final long[] bytes;
+  private final long[] lastUsedFrames;
+  private final float[] screenSpaceErrors;
+  private final TileManifest.Tile[] stack;
+
+  private final List<TileManifest.Tile> selected;
+  private final List<TileManifest.Tile> requests;
+  private final List<TileManifest.Tile> unloads;
+
+  private float maximumScreenSpaceError = DEFAULT_MAXIMUM_SCREEN_SPACE_ERROR;
+  private long memoryBudgetBytes = Long.MAX_VALUE;
+  private long loadedBytes = 0;
+  private int numLoaded = 0;
+  private long frame = 0;
+
+  public TileSelector(TileManifest manifest) {
+    tiles = manifest.getTiles();
+    final int numTiles = tiles.size();
+    states = new int[numTiles];
+    bytes = new long[numTiles];
+    lastUsedFrames = new long[numTiles];
+    screenSpaceErrors = new float[numTiles];
+    stack = new TileManifest.Tile[numTiles];
+    selected = new ArrayList<>(numTiles);
+    requests = new ArrayList<>(numTiles);
+    unloads = new ArrayList<>(numTiles);
+  }
+
+  /** Sets the screen space error, in pixels, above which a tile is refined into its children. */
+  public void setMaximumScreenSpaceError(float maximumScreenSpaceError) {
+    this.maximumScreenSpaceError = maximumScreenSpaceError;
+  }
+
+  /** Sets the bytes of loaded tiles above which tiles that are not drawn are unloaded. */
+  public void setMemoryBudget(long memoryBudgetBytes) {
+    this.memoryBudgetBytes = memoryBudgetBytes;
+  }
+
+  public long getLoadedBytes() {
+    return loadedBytes;
+  }
+
+  public int getNumLoaded() {
+    return numLoaded;
+  }
+
+  /**
+   * Selects the tiles for a camera.
+   *
+   * @param cameraX The position of the camera in the coordinates of the dataset.
+   * @param screenSpaceErrorFactor The pixels per unit of geometric error at a distance of 1: half
+   *     the viewport height times the vertical focal length of the projection, proj[5].
+   */
+  public void update(float cameraX, float cameraY, float cameraZ, float screenSpaceErrorFactor) {
+    ++frame;
+    selected.clear();
+    requests.clear();
+    unloads.clear();
+
+    int stackSize = 0;
+    stack[stackSize++] = tiles.get(0);
+    while (stackSize > 0) {
+      final TileManifest.Tile tile = stack[--stackSize];
+      final float error = screenSpaceError(tile, cameraX, cameraY, cameraZ,
+              screenSpaceErrorFactor);
+      final List<TileManifest.Tile> children = tile.children;
+      // A tile without content has nothing to draw in place of its children.
+      if (children.isEmpty() || (error <= maximumScreenSpaceError && tile.hasContent())) {
+        use(tile);
+        continue;
+      }
+
+      boolean refine = tile.additive || !tile.hasContent();
+      if (!refine) {
+        refine = true;
+        for (int i = 0; i < children.size(); ++i) {
+          final TileManifest.Tile child = children.get(i);
+          final int state = states[child.getIndex()];
+          if (child.hasContent() && state != LOADED && state != FAILED) {
+            refine = false;
+            break;
+          }
+        }
+      }
+
+      if (tile.additive || !refine) {
+        use(tile);
+      }
+      if (refine) {
+        for (int i = children.size() - 1; i >= 0; --i) {
+          stack[stackSize++] = children.get(i);
+        }
+      } else {
+        // Draw this tile until its children are loaded, and keep the children that are.
+        for (int i = 0; i < children.size(); ++i) {
+          final TileManifest.Tile child = children.get(i);
+          screenSpaceError(child, cameraX, cameraY, cameraZ, screenSpaceErrorFactor);
+          request(child);
+          lastUsedFrames[child.getIndex()] = frame;
+        }
+      }
+    }
+
+    if (loadedBytes >= memoryBudgetBytes) {
+      requests.clear();
+      unloadLeastRecentlyUsed();
+    }
+    sortRequests();
+  }
+
+  /** The tiles to draw, in no particular order. */
+  public List<TileManifest.Tile> getSelected() {
+    return selected;
+  }
+
+  /**
+   * The tiles to load, the largest screen space error first. The tiles stay requested until they
+   * are reported loaded or failed.
+   */
+  public List<TileManifest.Tile> getRequests() {
+    return requests;
+  }
+
+  /** The tiles that were unloaded by the last update, whose resources are to be released. */
+  public List<TileManifest.Tile> getUnloads() {
+    return unloads;
+  }
+
+  /** Marks a tile as being loaded, so that it is not requested again until it is. */
+  public void onRequested(TileManifest.Tile tile) {
+    states[tile.getIndex()] = REQUESTED;
+  }
+
+  public void onLoaded(TileManifest.Tile tile, long tileBytes) {
+    final int index = tile.getIndex();
+    if (states[index] == LOADED) {
+      return;
+    }
+    states[index] = LOADED;
+    bytes[index] = tileBytes;
+    lastUsedFrames[index] = frame;
+    loadedBytes += tileBytes;
+    ++numLoaded;
+  }
+
+  /** Marks a tile as failed, so that it is neither requested again nor waited for. */
+  public void onFailed(TileManifest.Tile tile) {
+    states[tile.getIndex()] = FAILED;
+  }
+
+  private float screenSpaceError(TileManifest.Tile tile, float cameraX, float cameraY,
+                                 float cameraZ, float screenSpaceErrorFactor) {
+    final float distance = Math.max(MIN_DISTANCE, tile.distanceTo(cameraX, cameraY, cameraZ));
+    final float error = tile.geometricError * screenSpaceErrorFactor / distance;
+    screenSpaceErrors[tile.getIndex()] = error;
+    return error;
+  }
+
+  // Draws the tile if it is loaded, and requests it otherwise.
+  private void use(TileManifest.Tile tile) {
+    if (!tile.hasContent()) {
+      return;
+    }
+    final int index = tile.getIndex();
+    lastUsedFrames[index] = frame;
+    if (states[index] == LOADED) {
+      selected.add(tile);
+    } else {
+      request(tile);
+    }
+  }
+
+  private void request(TileManifest.Tile tile) {
+    if (tile.hasContent() && states[tile.getIndex()] == UNLOADED) {
+      requests.add(tile);
+    }
+  }
+
+  // Unloads the loaded tiles that were not used this frame, least recently used first, until the
+  // loaded tiles fit the budget.
+  private void unloadLeastRecentlyUsed() {
+    while (loadedBytes > memoryBudgetBytes) {
+      int leastRecentlyUsed = -1;
+      for (int i = 0; i < states.length; ++i) {
+        if (states[i] == LOADED && lastUsedFrames[i] < frame && (leastRecentlyUsed < 0
+                || lastUsedFrames[i] < lastUsedFrames[leastRecentlyUsed])) {
+          leastRecentlyUsed = i;
+        }
+      }
+      if (leastRecentlyUsed < 0) {
+        return;
+      }
+      states[leastRecentlyUsed] = UNLOADED;
+      loadedBytes -= bytes[leastRecentlyUsed];
+      bytes[leastRecentlyUsed] = 0;
+      --numLoaded;
+      unloads.add(tiles.get(leastRecentlyUsed));
+    }
+  }
+
+  // An insertion sort, since there are few requests and it does not allocate.
+  private void sortRequests() {
+    for (int i = 1; i < requests.size(); ++i) {
+      final TileManifest.Tile tile = requests.get(i);
+      final float error = screenSpaceErrors[tile.getIndex()];
+      int j = i - 1;
+      while (j >= 0 && screenSpaceErrors[requests.get(j).getIndex()] < error) {
+        requests.set(j + 1, requests.get(j));
+        --j;
+      }
+      requests.set(j + 1, tile);
+    }
+  }
+}
@@ -0,0 +1,364 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Feature points accumulated over many frames, decimated to one point per voxel. Points that fall
+ * in the same voxel are merged: the voxel's point is their confidence-weighted average position,
+ * with their average confidence. The voxels live in a sparse hash keyed by their grid
+ * coordinates, so memory depends on the number of occupied voxels, not on the extent of the map.
+ *
+ * <p>The number of voxels is capped. Once the cap is reached, a batch of the voxels with the
+ * lowest score, their confidence discounted by the time since they were last seen, is evicted.
+ * The voxels are kept densely packed, in the order of the vertex buffer they are drawn from, and
+ * every voxel records the frame it last changed in, so that a vertex buffer that holds the cloud
+ * as of an earlier frame is brought up to date by uploading only what changed since.
+ *
+ * <p>All the memory is allocated up front. Not thread safe.
+ */
+public class VoxelPointCloud {
+
+  public static final int FLOATS_PER_POINT = 4; // X,Y,Z,confidence.
+
+  // Grid coordinates are packed into 21 bits each.
+  private static final int COORDINATE_BITS = 21;
+  private static final long COORDINATE_MASK = (1L << COORDINATE_BITS) - 1;
+  private static final int COORDINATE_OFFSET = 1 << (COORDINATE_BITS - 1);
+  private static final long EMPTY_KEY = -1;
+
+  // The fraction of the cap that is evicted at once when the cloud is full, so that the cost of
+  // choosing the voxels is spread over many insertions.
+  private static final int EVICTION_BATCH_DIVISOR = 16;
+  // The index range of the voxels changed in each of the last frames, to find what changed since
+  // a recent frame without looking at every voxel.
+  private static final int MODIFIED_RANGE_HISTORY = 16;
+  // The score of a voxel is halved once it has not been seen for this many frames.
+  private static final float SCORE_HALF_LIFE_FRAMES = 300.0f;
+
+  private final float voxelSize;
+  private final int maxPoints;
+
+  // Open addressing with linear probing: the voxel keys and their indices.
+  private final long[] tableKeys;
+  private final int[] tableIndices;
+  private final int tableMask;
+
+  // The voxels, by index. The index is also the point's position in the vertex buffer.
+  private final long[] keys;
+  private final float[] weightedX;
+  private final float[] weightedY;
+  private final float[] weightedZ;
+  private final float[] weights;
+  private final float[] confidenceSums;
+  private final int[] numObservations;
+  private final long[] lastSeenFrames;
+  private int numPoints = 0;
+  private long frame = 0;
+
+  // The frame each voxel last changed in, and the range of the voxels changed in recent frames.
+  private final long[] modifiedFrames;
+  private final int[] firstModifiedIndices = new int[MODIFIED_RANGE_HISTORY];
+  private final int[] lastModifiedIndices = new int[MODIFIED_RANGE_HISTORY];
+
+  private final float[] scratchScores;
+  private long numEvictions = 0;
+
+  /**
+   * @param voxelSize The size of a voxel, in meters.
+   * @param maxPoints The maximum number of voxels, and so of points drawn.
+   */
+  public VoxelPointCloud(float voxelSize, int maxPoints) {
+    this.voxelSize = voxelSize;
+    this.maxPoints = maxPoints;
+
+    // A load factor of at most 0.5 keeps the probe sequences short.
+    int tableSize = Integer.highestOneBit(Math.max(2, maxPoints)) * 4;
+    tableKeys = new long[tableSize];
+    tableIndices = new int[tableSize];
+    tableMask = tableSize - 1;
+    for (int i = 0; i < tableSize; ++i) {
+      tableKeys[i] = EMPTY_KEY;
+    }
+
+    keys = new long[maxPoints];
+    weightedX = new float[maxPoints];
+    weightedY = new float[maxPoints];
+    weightedZ = new float[maxPoints];
+    weights = new float[maxPoints];
+    confidenceSums = new float[maxPoints];
+    numObservations = new int[maxPoints];
+    lastSeenFrames = new long[maxPoints];
+    modifiedFrames = new long[maxPoints];
+    for (int i = 0; i < MODIFIED_RANGE_HISTORY; ++i) {
+      firstModifiedIndices[i] = Integer.MAX_VALUE;
+      lastModifiedIndices[i] = -1;
+    }
+    scratchScores = new float[maxPoints];
+  }
+
+  public int getNumPoints() {
+    return numPoints;
+  }
+
+  public int getMaxPoints() {
+    return maxPoints;
+  }
+
+  public long getNumEvictions() {
+    return numEvictions;
+  }
+
+  /** The current frame, which counts the calls to {@link #addPoints}. */
+  public long getFrame() {
+    return frame;
+  }
+
+  /** Removes all the points. */
+  public void clear() {
+    for (int i = 0; i < tableKeys.length; ++i) {
+      tableKeys[i] = EMPTY_KEY;
+    }
+    numPoints = 0;
+  }
+
+  /**
+   * Merges the points of a frame into the cloud.
+   *
+   * @param points X, Y, Z and confidence of every point, from the position to the limit.
+   */
+  public void addPoints(FloatBuffer points) {
+    ++frame;
+    final int historyIndex = (int) (frame % MODIFIED_RANGE_HISTORY);
+    firstModifiedIndices[historyIndex] = Integer.MAX_VALUE;
+    lastModifiedIndices[historyIndex] = -1;
+    final int limit = points.limit() - FLOATS_PER_POINT + 1;
+    for (int i = points.position(); i < limit; i += FLOATS_PER_POINT) {
+      addPoint(points.get(i), points.get(i + 1), points.get(i + 2), points.get(i + 3));
+    }
+  }
+
+  /** Merges a point into the voxel it falls in. */
+  public void addPoint(float x, float y, float z, float confidence) {
+    final long key = keyOf(x, y, z);
+    if (key == EMPTY_KEY) {
+      // Out of the grid.
+      return;
+    }
+    // A zero weight would never move the point, so every observation counts a little.
+    final float weight = Math.max(confidence, 1e-3f);
+
+    int slot = findSlot(key);
+    int index;
+    if (tableKeys[slot] == key) {
+      index = tableIndices[slot];
+    } else {
+      if (numPoints == maxPoints) {
+        evictBatch();
+        slot = findSlot(key);
+      }
+      index = numPoints++;
+      tableKeys[slot] = key;
+      tableIndices[slot] = index;
+      keys[index] = key;
+      weightedX[index] = 0;
+      weightedY[index] = 0;
+      weightedZ[index] = 0;
+      weights[index] = 0;
+      confidenceSums[index] = 0;
+      numObservations[index] = 0;
+    }
+
+    weightedX[index] += x * weight;
+    weightedY[index] += y * weight;
+    weightedZ[index] += z * weight;
+    weights[index] += weight;
+    confidenceSums[index] += confidence;
+    ++numObservations[index];
+    lastSeenFrames[index] = frame;
+    markModified(index);
+  }
+
+  /** Returns whether the point changed after the given frame. */
+  public boolean isModifiedSince(int index, long sinceFrame) {
+    return modifiedFrames[index] > sinceFrame;
+  }
+
+  /**
+   * The index of the first point that changed after the given frame, or the number of points if
+   * none did. A frame too long ago, or -1, gives 0: everything is treated as changed.
+   */
+  public int getFirstModifiedIndex(long sinceFrame) {
+    if (sinceFrame < 0 || frame - sinceFrame >= MODIFIED_RANGE_HISTORY) {
+      return 0;
+    }
+    int first = Integer.MAX_VALUE;
+    for (long f = sinceFrame + 1; f <= frame; ++f) {
+      first = Math.min(first, firstModifiedIndices[(int) (f % MODIFIED_RANGE_HISTORY)]);
+    }
+    return Math.min(first, numPoints);
+  }
+
+  /** One past the index of the last point that changed after the given frame, or 0. */
+  public int getEndModifiedIndex(long sinceFrame) {
+    if (sinceFrame < 0 || frame - sinceFrame >= MODIFIED_RANGE_HISTORY) {
+      return numPoints;
+    }
+    int last = -1;
+    for (long f = sinceFrame + 1; f <= frame; ++f) {
+      last = Math.max(last, lastModifiedIndices[(int) (f % MODIFIED_RANGE_HISTORY)]);
+    }
+    return Math.min(last + 1, numPoints);
+  }
+
+  /** Writes the points from first to end, exclusive, to the buffer at its position. */
+  public void writePoints(int first, int end, FloatBuffer buffer) {
+    for (int i = first; i < end; ++i) {
+      final float weight = weights[i];
+      buffer.put(weightedX[i] / weight);
+      buffer.put(weightedY[i] / weight);
+      buffer.put(weightedZ[i] / weight);
+      buffer.put(confidenceSums[i] / numObservations[i]);
+    }
+  }
+
+  private void markModified(int index) {
+    modifiedFrames[index] = frame;
+    final int historyIndex = (int) (frame % MODIFIED_RANGE_HISTORY);
+    firstModifiedIndices[historyIndex] = Math.min(firstModifiedIndices[historyIndex], index);
+    lastModifiedIndices[historyIndex] = Math.max(lastModifiedIndices[historyIndex], index);
+  }
+
+  // Evicts the voxels with the lowest scores, a batch at a time. The threshold score is found
+  // with a selection over a copy of the scores, so that no voxel list needs to be sorted.
+  private void evictBatch() {
+    final int numToEvict = Math.max(1, maxPoints / EVICTION_BATCH_DIVISOR);
+    for (int i = 0; i < numPoints; ++i) {
+      scratchScores[i] = scoreOf(i);
+    }
+    final float threshold = select(scratchScores, numPoints, numToEvict - 1);
+
+    // Swap-removal moves the last voxel into the evicted one's place; going backwards, that voxel
+    // was already looked at.
+    int numEvicted = 0;
+    for (int i = numPoints - 1; i >= 0 && numEvicted < numToEvict; --i) {
+      if (scoreOf(i) <= threshold) {
+        remove(i);
+        ++numEvicted;
+      }
+    }
+    numEvictions += numEvicted;
+  }
+
+  private float scoreOf(int index) {
+    final float confidence = confidenceSums[index] / numObservations[index];
+    final long age = frame - lastSeenFrames[index];
+    return confidence / (1.0f + age / SCORE_HALF_LIFE_FRAMES);
+  }
+
+  private void remove(int index) {
+    removeFromTable(keys[index]);
+    final int last = numPoints - 1;
+    if (index != last) {
+      keys[index] = keys[last];
+      weightedX[index] = weightedX[last];
+      weightedY[index] = weightedY[last];
+      weightedZ[index] = weightedZ[last];
+      weights[index] = weights[last];
+      confidenceSums[index] = confidenceSums[last];
+      numObservations[index] = numObservations[last];
+      lastSeenFrames[index] = lastSeenFrames[last];
+      tableIndices[findSlot(keys[index])] = index;
+      markModified(index);
+    }
+    --numPoints;
+  }
+
+  // Removes the key, shifting back the keys after it in its probe sequence so that lookups do
+  // not need tombstones.
+  private void removeFromTable(long key) {
+    int slot = findSlot(key);
+    int next = slot;
+    while (true) {
+      next = (next + 1) & tableMask;
+      if (tableKeys[next] == EMPTY_KEY) {
+        break;
+      }
+      final int home = hashOf(tableKeys[next]);
+      // Moves the key back if its home is not between the hole and its slot, cyclically.
+      final boolean canMove = (slot <= next)
+              ? (home <= slot || home > next)
+              : (home <= slot && home > next);
+      if (canMove) {
+        tableKeys[slot] = tableKeys[next];
+        tableIndices[slot] = tableIndices[next];
+        slot = next;
+      }
+    }
+    tableKeys[slot] = EMPTY_KEY;
+  }
+
+  // Returns the slot of the key, or the empty slot where it would be inserted.
+  private int findSlot(long key) {
+    int slot = hashOf(key);
+    while (tableKeys[slot] != EMPTY_KEY && tableKeys[slot] != key) {
+      slot = (slot + 1) & tableMask;
+    }
+    return slot;
+  }
+
+  private int hashOf(long key) {
+    // The finalizer of MurmurHash3, since neighbouring voxels have nearly equal keys.
+    long h = key;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return (int) h & tableMask;
+  }
+
+  private long keyOf(float x, float y, float z) {
+    final long gridX = (long) Math.floor(x / voxelSize) + COORDINATE_OFFSET;
+    final long gridY = (long) Math.floor(y / voxelSize) + COORDINATE_OFFSET;
+    final long gridZ = (long) Math.floor(z / voxelSize) + COORDINATE_OFFSET;
+    if (gridX < 0 || gridX > COORDINATE_MASK || gridY < 0 || gridY > COORDINATE_MASK
+            || gridZ < 0 || gridZ > COORDINATE_MASK) {
+      return EMPTY_KEY;
+    }
+    return (gridX << (2 * COORDINATE_BITS)) | (gridY << COORDINATE_BITS) | gridZ;
+  }
+
+  // Returns the k-th smallest of the first n values, reordering them. Quickselect.
+  private static float select(float[] values, int n, int k) {
+    int left = 0;
+    int right = n - 1;
+    while (left < right) {
+      final float pivot = values[(left + right) >>> 1];
+      int i = left;
+      int j = right;
+      while (i <= j) {
+        while (values[i] < pivot) {
+          ++i;
+        }
+        while (values[j] > pivot) {
+          --j;
+        }
+        if (i <= j) {
+          final float swap = values[i];
+          values[i] = values[j];
+          values[j] = swap;
+          ++i;
+          --j;
+        }
+      }
+      if (k <= j) {
+        right = j;
+      } else if (k >= i) {
+        left = i;
+      } else {
+        break;
+      }
+    }
+    return values[k];
+  }
+}
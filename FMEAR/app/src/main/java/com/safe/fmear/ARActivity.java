@@ -1,6 +1,7 @@
 package com.safe.fmear;
 
 import android.app.Activity;
+import android.app.ActivityManager;
 import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
@@ -8,6 +9,8 @@ import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.provider.OpenableColumns;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
@@ -37,10 +40,17 @@ import com.google.ar.core.examples.java.common.helpers.FullScreenHelper;
 import com.google.ar.core.examples.java.common.helpers.SnackbarHelper;
 import com.google.ar.core.examples.java.common.helpers.StoragePermissionHelper;
 import com.google.ar.core.examples.java.common.helpers.TapHelper;
+import com.google.ar.core.examples.java.common.rendering.ArchiveReader;
 import com.google.ar.core.examples.java.common.rendering.BackgroundRenderer;
+import com.google.ar.core.examples.java.common.rendering.CompressedMeshFile;
+import com.google.ar.core.examples.java.common.rendering.DatasetManifest;
+import com.google.ar.core.examples.java.common.rendering.FrameProfiler;
+import com.google.ar.core.examples.java.common.rendering.LoadMetrics;
 import com.google.ar.core.examples.java.common.rendering.ObjectRenderer;
 import com.google.ar.core.examples.java.common.rendering.PlaneRenderer;
 import com.google.ar.core.examples.java.common.rendering.PointCloudRenderer;
+import com.google.ar.core.examples.java.common.rendering.StreamingVertexBuffer;
+import com.google.ar.core.examples.java.common.rendering.TileManifest;
 import com.google.ar.core.exceptions.CameraNotAvailableException;
 import com.google.ar.core.exceptions.UnavailableApkTooOldException;
 import com.google.ar.core.exceptions.UnavailableArcoreNotInstalledException;
@@ -54,10 +64,19 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 import javax.microedition.khronos.egl.EGLConfig;
@@ -83,8 +102,37 @@ public class ARActivity extends AppCompatActivity implements GLSurfaceView.Rende
     private final PlaneRenderer planeRenderer = new PlaneRenderer();
     private final PointCloudRenderer pointCloudRenderer = new PointCloudRenderer();
 
-    // Temporary matrix allocated here to reduce number of allocations for each frame.
+    // The phases of onDrawFrame timed by the frame profiler.
+    public static final int PHASE_SESSION_UPDATE = 0;
+    public static final int PHASE_INPUT = 1;
+    public static final int PHASE_BACKGROUND = 2;
+    public static final int PHASE_POINT_CLOUD = 3;
+    public static final int PHASE_PLANES = 4;
+    public static final int PHASE_OBJECT_UPDATE = 5;
+    public static final int PHASE_OBJECT_OPAQUE = 6;
+    public static final int PHASE_OBJECT_TRANSPARENT = 7;
+    private static final String[] PHASE_NAMES = {
+            "session-update", "input", "background", "point-cloud", "planes", "object-update",
+            "object-opaque", "object-transparent"
+    };
+
+    // The camera runs at 30 fps, and session.update() throttles the frames to it.
+    private static final long FRAME_BUDGET_NANOS = 1000000000L / 30;
+    private static final int FRAME_HISTORY_SIZE = 120;
+    private final FrameProfiler frameProfiler =
+            new FrameProfiler(PHASE_NAMES, FRAME_HISTORY_SIZE, FRAME_BUDGET_NANOS);
+
+    // Temporary matrices allocated here to reduce number of allocations for each frame.
     private final float[] anchorMatrix = new float[16];
+    private final float[] projmtx = new float[16];
+    private final float[] viewmtx = new float[16];
+    private final float[] colorCorrectionRgba = new float[4];
+
+    // The object passes, created once instead of on every frame.
+    private static final EnumSet<ObjectRenderer.RenderingOptions> DRAW_OPAQUE =
+            EnumSet.of(ObjectRenderer.RenderingOptions.DRAW_OPAQUE);
+    private static final EnumSet<ObjectRenderer.RenderingOptions> DRAW_TRANSPARENT =
+            EnumSet.of(ObjectRenderer.RenderingOptions.DRAW_TRANSPARENT);
 
     // Anchors created from taps used for object placing.
     private final ArrayList<Anchor> anchors = new ArrayList<>();
@@ -94,8 +142,52 @@ public class ARActivity extends AppCompatActivity implements GLSurfaceView.Rende
     private boolean fileUnzippedSuccessfully = false;
     private boolean objFilesLoadRequested = false;
 
+    // The SHA-1 of the .fmear file, computed before it is unzipped when it can be read twice and
+    // while it is unzipped otherwise. The renderer caches the processed dataset under this key, so
+    // opening the same file again skips the unzipping and the processing.
+    private volatile String datasetKey = null;
+    // True if the dataset was found in the renderer's dataset cache before it was unzipped, in
+    // which case it is loaded from the cache and nothing is unzipped.
+    private volatile boolean datasetCached = false;
+
+    // If true, the obj and mtl files are parsed while the .fmear file is unzipped and only the
+    // textures are written to the temp directory. Otherwise every file is unzipped to the temp
+    // directory and the obj files are read from there. Either way a file that is in the dataset
+    // cache is neither unzipped nor parsed.
+    private boolean parseWhileUnzipping = true;
+    private volatile List<ArchiveReader.ParsedObj> parsedObjs = null;
+
+    // The entries of the dataset, recorded while it is unzipped, so that its files are looked up
+    // without walking the temp directory.
+    private volatile DatasetManifest datasetManifest = null;
+
+    // If true, the context is requested as OpenGL ES 3.0 on devices that support it, and the object
+    // renderer uses its OpenGL ES 3.0 backend. Otherwise, and on older devices, the context is
+    // OpenGL ES 2.0. The CPU time per draw of the backend is logged on pause, to compare the two.
+    private boolean preferGles3 = true;
+
+    // If true, the feature points of every frame are accumulated into a voxel map of the walk-
+    // through. Otherwise only the points of the current frame are drawn.
+    private boolean accumulatePointCloud = true;
+    // The tracking state of the camera in the previous frame. The accumulated points are dropped
+    // when tracking is lost, since ARCore may resume with a new world origin.
+    private TrackingState lastTrackingState = null;
+
+    // The metrics of the dataset, from unzipping to the upload. The renderer writes them to a
+    // JSON report in the app cache directory once the dataset is loaded, outside the temp
+    // directory that the next open deletes.
+    private volatile LoadMetrics loadMetrics = null;
+
+    // The task unzipping the selected file, if any. Selecting another file cancels it; a cancelled
+    // task stops reading the archive and never publishes what it unzipped.
+    private UnzipTask unzipTask = null;
+
     private static final int READ_REQUEST_CODE = 1337;
 
+    // Archive entries are unzipped on this many threads when the archive is seekable.
+    private static final int NUM_UNZIP_THREADS =
+            Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
     // One finger scroll gesture detecting
     private final float kTranslationMultiplier = 0.001f;
     private float[] mTranslateFactor = new float[3];
@@ -127,7 +219,9 @@ public class ARActivity extends AppCompatActivity implements GLSurfaceView.Rende
 
         // Set up renderer.
         surfaceView.setPreserveEGLContextOnPause(true);
-        surfaceView.setEGLContextClientVersion(2);
+        final int glesVersion = chooseGlesVersion();
+        surfaceView.setEGLContextClientVersion(glesVersion);
+        objectRenderer.setContextClientVersion(glesVersion);
         surfaceView.setEGLConfigChooser(8, 8, 8, 8, 16, 0); // Alpha used for plane blending.
         surfaceView.setRenderer(this);
         surfaceView.setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
@@ -157,8 +251,9 @@ public class ARActivity extends AppCompatActivity implements GLSurfaceView.Rende
         // geometry.
 
         // Pass null to unzipping AsyncTask to set fileUnzippedSuccessfully.
-        if (!fileUnzippedSuccessfully) {
-            new UnzipTask().execute((Intent) null);
+        if (!fileUnzippedSuccessfully && unzipTask == null) {
+            unzipTask = new UnzipTask();
+            unzipTask.execute((Intent) null);
         }
 
         if (session == null) {
@@ -243,6 +338,45 @@ public class ARActivity extends AppCompatActivity implements GLSurfaceView.Rende
             surfaceView.onPause();
             session.pause();
         }
+
+        if (frameProfiler.getNumFrames() > 0) {
+            Log.i(TAG, "Frame timings: " + frameProfiler.getSummary());
+            frameProfiler.reset();
+        }
+
+        // The GL thread is paused, so the draw and upload counters can be read and reset from here.
+        ObjectRenderer.SubmitStats submitStats = objectRenderer.getSubmitStats();
+        if (submitStats.getNumDraws() > 0) {
+            Log.i(TAG, "Draw submission: " + submitStats);
+            submitStats.reset();
+        }
+        StreamingVertexBuffer.Stats[] uploadStats = {
+                pointCloudRenderer.getUploadStats(), planeRenderer.getUploadStats()};
+        for (StreamingVertexBuffer.Stats stats : uploadStats) {
+            if (stats.getNumFrames() > 0) {
+                Log.i(TAG, "Uploads: " + stats);
+                stats.reset();
+            }
+        }
+    }
+
+    // -----------------------------------------------------------------------------------------
+    // The OpenGL ES version to request: 3 if it is preferred and the device supports it, 2
+    // otherwise.
+    private int chooseGlesVersion() {
+        ActivityManager activityManager = (ActivityManager) getSystemService(ACTIVITY_SERVICE);
+        final int deviceVersion = (activityManager == null)
+                ? 0 : activityManager.getDeviceConfigurationInfo().reqGlEsVersion;
+        final int version = (preferGles3 && deviceVersion >= 0x30000) ? 3 : 2;
+        Log.i(TAG, "Requesting an OpenGL ES " + version + ".0 context, the device supports "
+                + (deviceVersion >> 16) + "." + (deviceVersion & 0xffff));
+        return version;
+    }
+
+    // -----------------------------------------------------------------------------------------
+    // The per-phase frame timings: p50/p95/p99 histograms and the last frames.
+    public FrameProfiler getFrameProfiler() {
+        return frameProfiler;
     }
 
     @Override
@@ -286,6 +420,10 @@ public class ARActivity extends AppCompatActivity implements GLSurfaceView.Rende
             backgroundRenderer.createOnGlThread(/*context=*/ this);
             planeRenderer.createOnGlThread(/*context=*/ this, "models/trigrid.png");
             pointCloudRenderer.createOnGlThread(/*context=*/ this);
+            if (accumulatePointCloud) {
+                pointCloudRenderer.setAccumulating(PointCloudRenderer.DEFAULT_VOXEL_SIZE_M,
+                        PointCloudRenderer.DEFAULT_MAX_ACCUMULATED_POINTS);
+            }
 
             // TODO: uncomment this when re-introducing transparency (PR83631)
 //            objectRenderer.setBlendMode(ObjectRenderer.BlendMode.Grid);
@@ -300,12 +438,23 @@ public class ARActivity extends AppCompatActivity implements GLSurfaceView.Rende
     public void onSurfaceChanged(GL10 gl, int width, int height) {
         displayRotationHelper.onSurfaceChanged(width, height);
         GLES20.glViewport(0, 0, width, height);
+        objectRenderer.setViewportSize(width, height);
     }
 
 
 
     @Override
     public void onDrawFrame(GL10 gl) {
+        frameProfiler.beginFrame();
+        try {
+            drawFrame();
+        } finally {
+            frameProfiler.endFrame();
+        }
+    }
+
+    // -----------------------------------------------------------------------------------------
+    private void drawFrame() {
         // Clear screen to notify driver it should not load any pixels from previous frame.
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
 
@@ -321,6 +470,7 @@ public class ARActivity extends AppCompatActivity implements GLSurfaceView.Rende
         displayRotationHelper.updateSessionIfNeeded(session);
 
         try {
+            frameProfiler.beginPhase(PHASE_SESSION_UPDATE);
             session.setCameraTextureName(backgroundRenderer.getTextureId());
 
             // Obtain the current frame from ARSession. When the configuration is set to
@@ -328,6 +478,14 @@ public class ARActivity extends AppCompatActivity implements GLSurfaceView.Rende
             // camera framerate.
             Frame frame = session.update();
             Camera camera = frame.getCamera();
+            TrackingState trackingState = camera.getTrackingState();
+            if (lastTrackingState == TrackingState.TRACKING
+                    && trackingState != TrackingState.TRACKING) {
+                pointCloudRenderer.clearAccumulated();
+            }
+            lastTrackingState = trackingState;
+
+            frameProfiler.beginPhase(PHASE_INPUT);
 
             // If there is no anchors on the detected plane yet and the obj model is ready, we
             // should generate an anchor so that the model can be displayed at the anchor
@@ -392,7 +550,9 @@ public class ARActivity extends AppCompatActivity implements GLSurfaceView.Rende
             }
 
             // Draw background.
+            frameProfiler.beginPhase(PHASE_BACKGROUND);
             backgroundRenderer.draw(frame);
+            frameProfiler.endPhase();
 
             // If not tracking, don't draw 3d objects.
             if (camera.getTrackingState() == TrackingState.PAUSED) {
@@ -400,20 +560,18 @@ public class ARActivity extends AppCompatActivity implements GLSurfaceView.Rende
             }
 
             // Get projection matrix.
-            float[] projmtx = new float[16];
             camera.getProjectionMatrix(projmtx, 0, 0.1f, 100.0f);
 
             // Get camera matrix and draw.
-            float[] viewmtx = new float[16];
             camera.getViewMatrix(viewmtx, 0);
 
             // Compute lighting from average intensity of the image.
             // The first three components are color scaling factors.
             // The last one is the average pixel intensity in gamma space.
-            final float[] colorCorrectionRgba = new float[4];
             frame.getLightEstimate().getColorCorrection(colorCorrectionRgba, 0);
 
             // Visualize tracked points.
+            frameProfiler.beginPhase(PHASE_POINT_CLOUD);
             PointCloud pointCloud = frame.acquirePointCloud();
             pointCloudRenderer.update(pointCloud);
             pointCloudRenderer.draw(viewmtx, projmtx);
@@ -423,6 +581,7 @@ public class ARActivity extends AppCompatActivity implements GLSurfaceView.Rende
             pointCloud.release();
 
             // Check if we detected at least one plane. If so, hide the loading message.
+            frameProfiler.beginPhase(PHASE_PLANES);
             if (messageSnackbarHelper.isShowing()) {
                 for (Plane plane : session.getAllTrackables(Plane.class)) {
                     if (plane.getType() == com.google.ar.core.Plane.Type.HORIZONTAL_UPWARD_FACING
@@ -436,33 +595,68 @@ public class ARActivity extends AppCompatActivity implements GLSurfaceView.Rende
             // Visualize planes.
             planeRenderer.drawPlanes(
                     session.getAllTrackables(Plane.class), camera.getDisplayOrientedPose(), projmtx);
+            frameProfiler.endPhase();
 
-            // Visualize anchors created by touch.
-            for (Anchor anchor : anchors) {
+            // Visualize anchors created by touch. Indexed, since an iterator would be allocated on
+            // every frame.
+            for (int i = 0; i < anchors.size(); ++i) {
+                Anchor anchor = anchors.get(i);
                 if (anchor.getTrackingState() != TrackingState.TRACKING) {
                     continue;
                 }
                 // Get the current pose of an Anchor in world space. The Anchor pose is updated
                 // during calls to session.update() as ARCore refines its estimate of the world.
                 anchor.getPose().toMatrix(anchorMatrix, 0);
+                frameProfiler.beginPhase(PHASE_OBJECT_UPDATE);
 
                 // Load the new obj files if any
                 if (objFilesLoadRequested) {
 
                     objFilesLoadRequested = false;
+                    // The points seen before the dataset was opened are not drawn with it.
+                    pointCloudRenderer.clearAccumulated();
                     try {
-                        List<File> objFiles = new FileFinder(".obj").find(tempDirectory());
-                        int numObjFiles = objFiles.size();
-
-                        if (numObjFiles == 0) {
-                            showToast("No assets to load from file");
-                        } else if (numObjFiles == 1) {
-                            showToast("Loading the asset from file...");
+                        // The parsed obj files are handed over to the renderer, so that they do
+                        // not stay in memory after they are loaded.
+                        List<ArchiveReader.ParsedObj> objs = parsedObjs;
+                        parsedObjs = null;
+                        LoadMetrics metrics = loadMetrics;
+                        loadMetrics = null;
+                        DatasetManifest manifest = datasetManifest;
+                        File tilesetFile = findTileset(manifest);
+                        if (datasetCached) {
+                            showToast("Loading the assets from the cache...");
+                            objectRenderer.loadCachedDataset(datasetKey, metrics, this);
+                        } else if (tilesetFile != null) {
+                            // The tiles are loaded as the camera needs them, not all up front.
+                            showToast("Streaming the tiles from file...");
+                            objectRenderer.loadTileset(tilesetFile, manifest, metrics, this);
                         } else {
-                            showToast("Loading " + objFiles.size() + " assets from file...");
-                        }
+                            List<File> objFiles = (objs == null)
+                                    ? manifest.findFiles(".obj")
+                                    : new ArrayList<File>();
+                            // glTF and .fmesh files are always staged, and loaded from their
+                            // files.
+                            objFiles.addAll(findModelFiles(manifest));
+                            int numObjFiles =
+                                    objFiles.size() + ((objs == null) ? 0 : objs.size());
+
+                            if (numObjFiles == 0) {
+                                showToast("No assets to load from file");
+                            } else if (numObjFiles == 1) {
+                                showToast("Loading the asset from file...");
+                            } else {
+                                showToast("Loading " + numObjFiles + " assets from file...");
+                            }
 
-                        objectRenderer.loadObjFiles(objFiles, this);
+                            if (objs == null) {
+                                objectRenderer.loadObjFiles(objFiles, manifest, datasetKey,
+                                        metrics, this);
+                            } else {
+                                objectRenderer.loadParsedObjs(objs, objFiles, datasetKey,
+                                        metrics, this);
+                            }
+                        }
                     } catch (IOException e) {
                         Log.e(TAG, "Failed to read an asset file", e);
                         showToast("ERROR: Failed to read assets from file");
@@ -487,12 +681,16 @@ public class ARActivity extends AppCompatActivity implements GLSurfaceView.Rende
 
                     // Update the model matrix
                     objectRenderer.updateModelMatrix(anchorMatrix, mTranslateFactor, mScaleFactor, mRotateAngle);
+                    objectRenderer.updateTiles(viewmtx, projmtx);
 
                     // Draw the model
                     // Draw Opaque first and then transparent objects
-                    objectRenderer.draw(viewmtx, projmtx, colorCorrectionRgba, EnumSet.of(ObjectRenderer.RenderingOptions.DRAW_OPAQUE));
-                    objectRenderer.draw(viewmtx, projmtx, colorCorrectionRgba, EnumSet.of(ObjectRenderer.RenderingOptions.DRAW_TRANSPARENT));
+                    frameProfiler.beginPhase(PHASE_OBJECT_OPAQUE);
+                    objectRenderer.draw(viewmtx, projmtx, colorCorrectionRgba, DRAW_OPAQUE);
+                    frameProfiler.beginPhase(PHASE_OBJECT_TRANSPARENT);
+                    objectRenderer.draw(viewmtx, projmtx, colorCorrectionRgba, DRAW_TRANSPARENT);
                 }
+                frameProfiler.endPhase();
 
                 // We only want to use the first anchor
                 break;
@@ -590,8 +788,18 @@ public class ARActivity extends AppCompatActivity implements GLSurfaceView.Rende
                 // auto create a new one on a tracking plane.
                 anchors.clear();
 
+                // Cancel the file that is still being unzipped, and drop the one that was
+                // unzipped but not loaded yet.
+                if (unzipTask != null) {
+                    unzipTask.cancel(true);
+                }
+                objFilesLoadRequested = false;
+                parsedObjs = null;
+                loadMetrics = null;
+
                 // Call anon AsyncTask to unzip files in background
-                new UnzipTask().execute(resultData);
+                unzipTask = new UnzipTask();
+                unzipTask.execute(resultData);
             }
             // END_INCLUDE (parse_open_document_response)
         }
@@ -668,6 +876,26 @@ public class ARActivity extends AppCompatActivity implements GLSurfaceView.Rende
         fileOrDirectory.delete();
     }
 
+    // ---------------------------------------------------------------------------------------------
+    // Finds the binary and text glTF files and the compressed mesh files of the dataset.
+    private List<File> findModelFiles(DatasetManifest manifest) {
+        return manifest.findFiles(".glb", ".gltf", CompressedMeshFile.EXTENSION);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Finds the tileset of a tiled dataset, the one closest to the root if there are several, or
+    // returns null.
+    private File findTileset(DatasetManifest manifest) {
+        File tilesetFile = null;
+        for (File file : manifest.findFiles(".json")) {
+            if (TileManifest.isTileManifest(file.getName()) && (tilesetFile == null
+                    || file.getPath().length() < tilesetFile.getPath().length())) {
+                tilesetFile = file;
+            }
+        }
+        return tilesetFile;
+    }
+
     // ---------------------------------------------------------------------------------------------
     // This function returns a directory named "fmear" in the cache directory.
     private File tempDirectory() {
@@ -702,6 +930,15 @@ public class ARActivity extends AppCompatActivity implements GLSurfaceView.Rende
 
         private ProgressBar progressBar;
         private Exception exception;
+        // The results of the unzipping, published in onPostExecute unless the task is cancelled.
+        private String unzippedDatasetKey;
+        private boolean unzippedDatasetCached;
+        private List<ArchiveReader.ParsedObj> unzippedParsedObjs;
+        private DatasetManifest unzippedManifest;
+        private LoadMetrics unzippedMetrics;
+        // A copy of an archive that could only be read once, made while it was hashed, so that it
+        // is unzipped from the copy on a dataset cache miss. Deleted once the task is done.
+        private File stagedArchive;
 
         @Override
         protected void onPreExecute() {
@@ -719,13 +956,35 @@ public class ARActivity extends AppCompatActivity implements GLSurfaceView.Rende
             }
         }
 
+        @Override
+        protected void onCancelled(Boolean result) {
+            Log.i("FME AR", "Cancelled unzipping");
+            if (unzipTask == this) {
+                unzipTask = null;
+                progressBar.setVisibility(View.INVISIBLE);
+            }
+        }
+
         @Override
         protected void onPostExecute(Boolean result) {
 
+            unzipTask = null;
+            datasetKey = unzippedDatasetKey;
+            datasetCached = unzippedDatasetCached;
+            parsedObjs = unzippedParsedObjs;
+            datasetManifest = unzippedManifest;
+            loadMetrics = unzippedMetrics;
             fileUnzippedSuccessfully = result;
-            if (fileUnzippedSuccessfully) {
-                List<File> objFiles = new FileFinder(".obj").find(tempDirectory());
-                objFilesLoadRequested = !objFiles.isEmpty();
+            if (fileUnzippedSuccessfully && datasetCached) {
+                objFilesLoadRequested = true;
+            } else if (fileUnzippedSuccessfully && findTileset(datasetManifest) != null) {
+                objFilesLoadRequested = true;
+            } else if (fileUnzippedSuccessfully && parsedObjs != null) {
+                objFilesLoadRequested = !parsedObjs.isEmpty()
+                        || !findModelFiles(datasetManifest).isEmpty();
+            } else if (fileUnzippedSuccessfully) {
+                objFilesLoadRequested = !datasetManifest.findFiles(".obj").isEmpty()
+                        || !findModelFiles(datasetManifest).isEmpty();
             }
 
             if (exception == null) {
@@ -788,17 +1047,70 @@ public class ARActivity extends AppCompatActivity implements GLSurfaceView.Rende
                     // Get the temp directory
                     File tempDir = tempDirectory();
                     initDirectory(tempDir);
+                    unzippedMetrics = new LoadMetrics(getFileName(uri));
+                    unzippedMetrics.setReportFile(objectRenderer.getLoadMetricsReportFile());
+                    unzippedManifest = new DatasetManifest(tempDir);
+
+                    // A dataset that was loaded before is uploaded from the renderer's dataset
+                    // cache, so neither the archive is unzipped nor its obj files parsed.
+                    try {
+                        unzippedDatasetKey = hashArchive(uri);
+                    } catch (InterruptedIOException e) {
+                        throw e;
+                    } catch (IOException e) {
+                        // The dataset is still loaded, it just cannot be cached.
+                        Log.e("FME AR", "Failed to hash the selected file", e);
+                    }
+                    if (unzippedDatasetKey != null
+                            && objectRenderer.hasCachedDataset(unzippedDatasetKey)) {
+                        Log.d("FME AR", "Found the dataset " + unzippedDatasetKey
+                                + " in the dataset cache, skipping the unzip");
+                        unzippedDatasetCached = true;
+                        if (stagedArchive != null) {
+                            stagedArchive.delete();
+                            stagedArchive = null;
+                        }
+                        mScaleFactor = 1.0f;
+                        return true;
+                    }
 
                     // Unzip the content to the temporary directory
                     try {
                         unzipContent(uri, tempDir);
                     } catch (IOException e) {
                         throw new IOException("Failed to unpack selected file", e);
+                    } finally {
+                        if (stagedArchive != null) {
+                            stagedArchive.delete();
+                            stagedArchive = null;
+                        }
+                    }
+
+                    Log.d("FME AR", "Unpacked " + unzippedManifest.size() + " entries ("
+                            + (unzippedManifest.getTotalSize() / 1024) + " KB)");
+                    File tilesetFile = findTileset(unzippedManifest);
+                    if (tilesetFile != null) {
+                        Log.d("FME AR", "Tileset: " + tilesetFile.toString());
+                        return true;
+                    }
+                    List<File> modelFiles = findModelFiles(unzippedManifest);
+                    for (File file : modelFiles) {
+                        Log.d("FME AR", "Model File: " + file.toString());
+                    }
+
+                    if (unzippedParsedObjs != null) {
+                        if (unzippedParsedObjs.isEmpty() && modelFiles.isEmpty()) {
+                            throw new IOException("No renderable objects found");
+                        }
+                        for (ArchiveReader.ParsedObj parsedObj : unzippedParsedObjs) {
+                            Log.d("FME AR", "OBJ File: " + parsedObj.entryName);
+                        }
+                        return true;
                     }
 
                     // Find all the .obj files
-                    List<File> objFiles = new FileFinder(".obj").find(tempDir);
-                    if (objFiles.size() == 0){
+                    List<File> objFiles = unzippedManifest.findFiles(".obj");
+                    if (objFiles.size() == 0 && modelFiles.isEmpty()){
                         throw new IOException("No renderable objects found");
                     }
                     for (File file : objFiles) {
@@ -810,10 +1122,160 @@ public class ARActivity extends AppCompatActivity implements GLSurfaceView.Rende
             return false;
         }
 
+        // -----------------------------------------------------------------------------------------
+        // Returns the SHA-1 of the archive, so that it can be looked up in the dataset cache before
+        // it is unzipped, and the obj files are only parsed on a cache miss. An archive that can
+        // only be read once, such as a pipe, is copied to stagedArchive while it is hashed.
+        private String hashArchive(Uri inputUri) throws IOException {
+            String uriScheme = inputUri.getScheme();
+            if ("file".equalsIgnoreCase(uriScheme)) {
+                return sha1Hex(new File(inputUri.getPath()));
+            }
+            if (!"content".equalsIgnoreCase(uriScheme)) {
+                return null;
+            }
+            ParcelFileDescriptor descriptor =
+                    getContentResolver().openFileDescriptor(inputUri, "r");
+            if (descriptor == null) {
+                return null;
+            }
+            try {
+                if (descriptor.getStatSize() >= 0) {
+                    return sha1Hex(new File("/proc/self/fd/" + descriptor.getFd()));
+                }
+            } finally {
+                descriptor.close();
+            }
+            return stageArchive(inputUri);
+        }
+
+        // -----------------------------------------------------------------------------------------
+        // Copies the archive from its stream to stagedArchive, and returns its SHA-1.
+        private String stageArchive(Uri inputUri) throws IOException {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("SHA-1 is not available", e);
+            }
+            File stagedFile = new File(getCacheDir(), "fmear-staged.fmear");
+            boolean staged = false;
+            try (InputStream inputStream = getContentResolver().openInputStream(inputUri)) {
+                if (inputStream == null) {
+                    return null;
+                }
+                try (OutputStream outputStream = new FileOutputStream(stagedFile)) {
+                    DigestInputStream digestStream = new DigestInputStream(inputStream, digest);
+                    byte[] buffer = new byte[256 * 1024];
+                    int numBytes;
+                    while ((numBytes = digestStream.read(buffer)) > 0) {
+                        if (isCancelled()) {
+                            throw new InterruptedIOException("Unzipping was cancelled");
+                        }
+                        outputStream.write(buffer, 0, numBytes);
+                    }
+                }
+                staged = true;
+            } finally {
+                if (!staged) {
+                    stagedFile.delete();
+                }
+            }
+            stagedArchive = stagedFile;
+            return String.format("%040x", new BigInteger(1, digest.digest()));
+        }
+
         // -----------------------------------------------------------------------------------------
         // This function unzip the content from the contentPath to the destinationFolder. This
-        // function creates all the directories necessary for the unzipped files.
+        // function creates all the directories necessary for the unzipped files. If
+        // parseWhileUnzipping is set, the obj and mtl files are parsed into unzippedParsedObjs
+        // instead of being unzipped.
         private void unzipContent(Uri inputUri, File destinationFolder) throws IOException {
+            // An archive in a file, or behind a seekable content descriptor, is read through its
+            // central directory with all the entries unzipped in parallel. Otherwise, such as for
+            // a pipe, it is read sequentially from the stream.
+            File archiveFile = null;
+            ParcelFileDescriptor descriptor = null;
+            String uriScheme = inputUri.getScheme();
+            if (stagedArchive != null) {
+                archiveFile = stagedArchive;
+            } else if ("file".equalsIgnoreCase(uriScheme)) {
+                archiveFile = new File(inputUri.getPath());
+            } else if ("content".equalsIgnoreCase(uriScheme)) {
+                descriptor = getContentResolver().openFileDescriptor(inputUri, "r");
+                if (descriptor != null) {
+                    archiveFile = new File("/proc/self/fd/" + descriptor.getFd());
+                }
+            }
+            try {
+                if (archiveFile != null && unzipInParallel(archiveFile, destinationFolder)) {
+                    return;
+                }
+            } finally {
+                if (descriptor != null) {
+                    descriptor.close();
+                }
+            }
+            unzipSequentially(inputUri, destinationFolder);
+        }
+
+        // -----------------------------------------------------------------------------------------
+        // Unzips the archive file through a ZipFile, with the entries inflated in parallel. The
+        // archive was already hashed by hashArchive. Returns false if the file cannot be opened
+        // as a ZipFile, for example because the descriptor is not seekable.
+        private boolean unzipInParallel(final File archiveFile, File destinationFolder)
+                throws IOException {
+            ZipFile zipFile;
+            try {
+                zipFile = new ZipFile(archiveFile);
+            } catch (IOException e) {
+                Log.i("FME AR", "Cannot open '" + archiveFile + "' as a zip file, unzipping it "
+                        + "sequentially: " + e.getMessage());
+                return false;
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(NUM_UNZIP_THREADS);
+            try {
+                if (parseWhileUnzipping) {
+                    unzippedParsedObjs = ArchiveReader.read(zipFile, destinationFolder, executor,
+                            unzippedManifest, unzippedMetrics);
+                } else {
+                    ArchiveReader.extract(zipFile, destinationFolder, executor, unzippedManifest,
+                            unzippedMetrics);
+                }
+            } finally {
+                // Interrupts the workers that are still running if the task was cancelled.
+                executor.shutdownNow();
+                zipFile.close();
+            }
+            mScaleFactor = 1.0f;
+            return true;
+        }
+
+        // -----------------------------------------------------------------------------------------
+        private String sha1Hex(File file) throws IOException {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("SHA-1 is not available", e);
+            }
+            try (InputStream inputStream = new FileInputStream(file)) {
+                byte[] buffer = new byte[256 * 1024];
+                int numBytes;
+                while ((numBytes = inputStream.read(buffer)) > 0) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedIOException("Interrupted while hashing " + file);
+                    }
+                    digest.update(buffer, 0, numBytes);
+                }
+            }
+            return String.format("%040x", new BigInteger(1, digest.digest()));
+        }
+
+        // -----------------------------------------------------------------------------------------
+        // Unzips the archive entry by entry from its stream, hashing it on the way.
+        private void unzipSequentially(Uri inputUri, File destinationFolder) throws IOException {
             InputStream inputStream;
             String uriScheme = inputUri.getScheme();
             if ("content".equalsIgnoreCase(uriScheme)) {
@@ -827,7 +1289,24 @@ public class ARActivity extends AppCompatActivity implements GLSurfaceView.Rende
                 if (inputStream == null) {
                     return;
                 }
-                try (ZipInputStream zipInputStream = new ZipInputStream(new BufferedInputStream(inputStream))) {
+                MessageDigest digest;
+                try {
+                    digest = MessageDigest.getInstance("SHA-1");
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IOException("SHA-1 is not available", e);
+                }
+                BufferedInputStream archiveStream =
+                        new BufferedInputStream(new DigestInputStream(inputStream, digest));
+                if (parseWhileUnzipping) {
+                    unzippedParsedObjs = ArchiveReader.read(
+                            archiveStream, destinationFolder, unzippedManifest, unzippedMetrics);
+                    unzippedDatasetKey = String.format("%040x", new BigInteger(1, digest.digest()));
+                    mScaleFactor = 1.0f;
+                    return;
+                }
+                final long startTime = SystemClock.elapsedRealtime();
+                long numUnzippedBytes = 0;
+                try (ZipInputStream zipInputStream = new ZipInputStream(archiveStream)) {
                     // Create a buffer to read the zip file content
                     byte[] buffer = new byte[1024];
                     int numBytes;
@@ -835,6 +1314,9 @@ public class ARActivity extends AppCompatActivity implements GLSurfaceView.Rende
                     String zipEntryName;
                     ZipEntry zipEntry;
                     while ((zipEntry = zipInputStream.getNextEntry()) != null) {
+                        if (isCancelled()) {
+                            throw new InterruptedIOException("Unzipping was cancelled");
+                        }
                         zipEntryName = zipEntry.getName();
 
                         File unzippedFile = new File(destinationFolder, zipEntryName);
@@ -858,16 +1340,35 @@ public class ARActivity extends AppCompatActivity implements GLSurfaceView.Rende
 
                                 // Now we can unzip the file
                                 Log.i("FME AR", "Unzipping '" + unzippedFile.toString() + "' ...");
+                                LoadMetrics.Section section =
+                                        unzippedMetrics.begin(zipEntryName, "unzip");
                                 FileOutputStream fileOutputStream = new FileOutputStream(unzippedFile);
+                                long numEntryBytes = 0;
                                 while ((numBytes = zipInputStream.read(buffer)) > 0) {
                                     fileOutputStream.write(buffer, 0, numBytes);
+                                    numEntryBytes += numBytes;
+                                    section.bytesOut(numBytes);
                                 }
                                 fileOutputStream.close();
+                                numUnzippedBytes += numEntryBytes;
+                                unzippedManifest.add(ArchiveReader.normalize("", zipEntryName),
+                                        unzippedFile, numEntryBytes);
+                                section.bytesIn(Math.max(0, zipEntry.getCompressedSize())).end();
                             }
                         }
                         zipInputStream.closeEntry();
                     }
+
+                    // The zip stream stops at the central directory, read the rest so that the
+                    // hash covers the whole file.
+                    while (archiveStream.read(buffer) >= 0) {
+                        // Only hashed.
+                    }
                 }
+                final long timeMs = Math.max(1, SystemClock.elapsedRealtime() - startTime);
+                Log.i("FME AR", "Unzipped " + (numUnzippedBytes / 1024) + " KB sequentially in "
+                        + timeMs + " ms (" + (numUnzippedBytes / 1024 / timeMs) + " MB/s)");
+                unzippedDatasetKey = String.format("%040x", new BigInteger(1, digest.digest()));
                 mScaleFactor = 1.0f;
             } finally {
                 if (inputStream != null) {
@@ -885,4 +1386,9 @@ public class ARActivity extends AppCompatActivity implements GLSurfaceView.Rende
             hideToast();
         }
     }
+
+    @Override
+    public void objFilesLoadFailed(Throwable error) {
+        showToast("ERROR: Failed to load the assets");
+    }
 }
@@ -36,8 +36,7 @@ public class FileFinder implements FileFilter {
         for (File file : files) {
             if (file.isDirectory()) {
                 findRecursively(results, file.listFiles(this));
-            } else  {
-                boolean b = accept(file);
+            } else if (accept(file)) {
                 results.add(file);
             }
         }
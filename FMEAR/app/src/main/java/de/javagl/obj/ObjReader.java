@@ -30,6 +30,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.Reader;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
@@ -44,6 +45,15 @@ import java.util.StringTokenizer;
  */
 public class ObjReader
 {
+    // ---------------------------------------------------------------
+    // SAFE SOFTWARE INC.
+    /**
+     * The interrupt flag of the reading thread is checked every
+     * 4096 lines
+     */
+    private static final int INTERRUPT_CHECK_MASK = 4096 - 1;
+    // ---------------------------------------------------------------
+
     /**
      * Read the OBJ data from the given stream and return it as an {@link Obj}.
      * The caller is responsible for closing the given stream.
@@ -122,7 +132,8 @@ public class ObjReader
      * @param reader The reader to read from
      * @param output The {@link WritableObj} to store the read data
      * @return The output
-     * @throws IOException If an IO error occurs
+     * @throws IOException If an IO error occurs, or if the thread is
+     * interrupted while reading
      */
     private static <T extends WritableObj> T readImpl(
         BufferedReader reader, T output)
@@ -141,6 +152,7 @@ public class ObjReader
         int vertexCounter = 0;
         int texCoordCounter = 0;
         int normalCounter = 0;
+        int lineCounter = 0;
         while(true)
         {
             String line = reader.readLine();
@@ -149,6 +161,18 @@ public class ObjReader
                 break;
             }
 
+            // -----------------------------------------------------------
+            // SAFE SOFTWARE INC.
+            // Reading a large file takes seconds, so a cancelled load
+            // interrupts the reading thread and the read stops here.
+            if ((++lineCounter & INTERRUPT_CHECK_MASK) == 0 &&
+                Thread.currentThread().isInterrupted())
+            {
+                throw new InterruptedIOException(
+                    "Interrupted after " + lineCounter + " lines");
+            }
+            // -----------------------------------------------------------
+
             line = line.trim();
 
             //System.out.println("read line: "+line);
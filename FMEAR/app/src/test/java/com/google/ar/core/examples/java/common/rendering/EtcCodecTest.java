@@ -0,0 +1,117 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round-trips synthetic images through the ETC1 and ETC2 RGBA8 encoders and checks the quality of
+ * the decoded result.
+ */
+public class EtcCodecTest {
+
+  private static final int SIZE = 256;
+
+  // Smooth gradients in every channel, which is what most photographic textures look like.
+  private static int[] createImage(int width, int height) {
+    int[] argb = new int[width * height];
+    for (int y = 0; y < height; ++y) {
+      for (int x = 0; x < width; ++x) {
+        int r = (int) (127 + 120 * Math.sin(x * 0.05));
+        int g = (int) (127 + 120 * Math.cos(y * 0.07));
+        int b = (x * y / 256) & 0xff;
+        int a = (int) (127 + 127 * Math.sin((x + y) * 0.03));
+        argb[y * width + x] = a << 24 | r << 16 | g << 8 | b;
+      }
+    }
+    return argb;
+  }
+
+  private static double psnr(int[] expected, int[] actual, int firstShift, int lastShift) {
+    double squaredError = 0;
+    int numSamples = 0;
+    for (int i = 0; i < expected.length; ++i) {
+      for (int shift = firstShift; shift <= lastShift; shift += 8) {
+        int difference = ((expected[i] >>> shift) & 0xff) - ((actual[i] >>> shift) & 0xff);
+        squaredError += difference * difference;
+        ++numSamples;
+      }
+    }
+    double meanSquaredError = squaredError / numSamples;
+    return (meanSquaredError == 0) ? 99 : 10 * Math.log10(255.0 * 255.0 / meanSquaredError);
+  }
+
+  @Test
+  public void etc1_roundTripQuality() {
+    int[] image = createImage(SIZE, SIZE);
+    byte[] encoded = EtcCodec.encodeEtc1(image, SIZE, SIZE);
+    assertEquals(EtcCodec.etc1Size(SIZE, SIZE), encoded.length);
+    assertEquals(SIZE * SIZE / 2, encoded.length);
+
+    int[] decoded = EtcCodec.decodeEtc1(encoded, SIZE, SIZE);
+    assertTrue(psnr(image, decoded, 0, 16) > 34.0);
+    assertEquals(0xff, decoded[0] >>> 24);
+  }
+
+  @Test
+  public void etc2Rgba8_roundTripQuality() {
+    int[] image = createImage(SIZE, SIZE);
+    byte[] encoded = EtcCodec.encodeEtc2Rgba8(image, SIZE, SIZE);
+    assertEquals(EtcCodec.etc2Rgba8Size(SIZE, SIZE), encoded.length);
+    assertEquals(SIZE * SIZE, encoded.length);
+
+    int[] decoded = EtcCodec.decodeEtc2Rgba8(encoded, SIZE, SIZE);
+    assertTrue(psnr(image, decoded, 0, 16) > 34.0);
+    assertTrue(psnr(image, decoded, 24, 24) > 40.0);
+  }
+
+  @Test
+  public void flatBlock_staysWithinQuantizationError() {
+    int[] image = new int[16];
+    Arrays.fill(image, 0x80336699);
+    int[] decoded = EtcCodec.decodeEtc2Rgba8(EtcCodec.encodeEtc2Rgba8(image, 4, 4), 4, 4);
+    for (int pixel : decoded) {
+      for (int shift = 0; shift <= 24; shift += 8) {
+        int difference = ((pixel >>> shift) & 0xff) - ((image[0] >>> shift) & 0xff);
+        assertTrue(Math.abs(difference) <= 4);
+      }
+    }
+  }
+
+  @Test
+  public void nonMultipleOfFourSizes_arePadded() {
+    assertEquals(8, EtcCodec.etc1Size(1, 1));
+    assertEquals(8, EtcCodec.etc1Size(2, 2));
+    assertEquals(32, EtcCodec.etc2Rgba8Size(5, 3));
+
+    int[] pixel = {0xff102030};
+    int[] decoded = EtcCodec.decodeEtc1(EtcCodec.encodeEtc1(pixel, 1, 1), 1, 1);
+    assertEquals(1, decoded.length);
+  }
+
+  @Test
+  public void hasTransparency() {
+    assertFalse(EtcCodec.hasTransparency(new int[] {0xff000000, 0xffffffff}));
+    assertTrue(EtcCodec.hasTransparency(new int[] {0xff000000, 0xfeffffff}));
+  }
+
+  @Test
+  public void compressedTexture_hasFullMipChain() {
+    CompressedTexture opaque = CompressedTexture.encode(createImage(SIZE, SIZE), SIZE, SIZE, false);
+    assertEquals(CompressedTexture.GL_ETC1_RGB8_OES, opaque.glFormat);
+    assertEquals(9, opaque.levels.length);
+    assertEquals(SIZE, opaque.levelWidths[0]);
+    assertEquals(1, opaque.levelWidths[8]);
+    assertEquals(1, opaque.levelHeights[8]);
+    assertEquals(EtcCodec.etc1Size(SIZE, SIZE), opaque.levels[0].remaining());
+    assertEquals(EtcCodec.ETC1_BLOCK_BYTES, opaque.levels[8].remaining());
+
+    CompressedTexture translucent = CompressedTexture.encode(createImage(64, 16), 64, 16, true);
+    assertEquals(CompressedTexture.GL_COMPRESSED_RGBA8_ETC2_EAC, translucent.glFormat);
+    assertEquals(7, translucent.levels.length);
+    assertEquals(1, translucent.levelHeights[4]);
+    assertEquals(4, translucent.levelWidths[4]);
+  }
+}
@@ -0,0 +1,211 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reads a small .glb file with one quantized triangle mesh that two nodes use, one of them
+ * mirrored, and an embedded image, and checks the flattened primitives in the z-up frame.
+ */
+public class GltfReaderTest {
+
+  private static final float EPSILON = 1e-4f;
+  private static final byte[] IMAGE = {1, 2, 3, 4, 5, 6, 7, 8};
+
+  // The mesh is used by a translated node and by a node mirrored along X. The normals are
+  // normalized bytes, padded to four bytes, and the texture coordinates normalized shorts.
+  private static final String JSON = ("{'asset': {'version': '2.0'},"
+          + " 'extensionsRequired': ['KHR_mesh_quantization'],"
+          + " 'scene': 0, 'scenes': [{'nodes': [0, 1]}],"
+          + " 'nodes': [{'mesh': 0, 'translation': [1, 0, 0]}, {'mesh': 0, 'scale': [-1, 1, 1]}],"
+          + " 'meshes': [{'primitives': [{'attributes': {'POSITION': 0, 'NORMAL': 1,"
+          + " 'TEXCOORD_0': 2}, 'indices': 3, 'material': 0}]}],"
+          + " 'materials': [{'name': 'red', 'pbrMetallicRoughness': {'baseColorFactor':"
+          + " [1, 0, 0, 1], 'baseColorTexture': {'index': 0}}}],"
+          + " 'textures': [{'source': 0}],"
+          + " 'images': [{'bufferView': 4, 'mimeType': 'image/png'}],"
+          + " 'accessors': ["
+          + "{'bufferView': 0, 'componentType': 5126, 'count': 3, 'type': 'VEC3'},"
+          + " {'bufferView': 1, 'componentType': 5120, 'normalized': true, 'count': 3,"
+          + " 'type': 'VEC3'},"
+          + " {'bufferView': 2, 'componentType': 5123, 'normalized': true, 'count': 3,"
+          + " 'type': 'VEC2'},"
+          + " {'bufferView': 3, 'componentType': 5123, 'count': 3, 'type': 'SCALAR'}],"
+          + " 'bufferViews': ["
+          + "{'buffer': 0, 'byteOffset': 0, 'byteLength': 36},"
+          + " {'buffer': 0, 'byteOffset': 36, 'byteLength': 12, 'byteStride': 4},"
+          + " {'buffer': 0, 'byteOffset': 48, 'byteLength': 12},"
+          + " {'buffer': 0, 'byteOffset': 60, 'byteLength': 6},"
+          + " {'buffer': 0, 'byteOffset': 68, 'byteLength': 8}],"
+          + " 'buffers': [{'byteLength': 76}]}").replace('\'', '"');
+
+  private File directory;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = File.createTempFile("gltf", "");
+    assertTrue(directory.delete());
+    assertTrue(directory.mkdirs());
+  }
+
+  @After
+  public void tearDown() {
+    deleteRecursively(directory);
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] files = file.listFiles();
+    if (files != null) {
+      for (File child : files) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+
+  // The binary chunk: a triangle in the XY plane facing +Z, its normals and texture coordinates,
+  // its indices and the image.
+  private static byte[] createBinaryChunk() {
+    ByteBuffer bin = ByteBuffer.allocate(76).order(ByteOrder.LITTLE_ENDIAN);
+    bin.putFloat(0).putFloat(0).putFloat(0);
+    bin.putFloat(1).putFloat(0).putFloat(0);
+    bin.putFloat(0).putFloat(1).putFloat(0);
+    for (int i = 0; i < 3; ++i) {
+      bin.put((byte) 0).put((byte) 0).put((byte) 127).put((byte) 0);
+    }
+    bin.putShort((short) 0).putShort((short) 0);
+    bin.putShort((short) 65535).putShort((short) 0);
+    bin.putShort((short) 0).putShort((short) 65535);
+    bin.putShort((short) 0).putShort((short) 1).putShort((short) 2).putShort((short) 0);
+    bin.put(IMAGE);
+    return bin.array();
+  }
+
+  private File writeGlb() throws IOException {
+    byte[] json = JSON.getBytes(StandardCharsets.UTF_8);
+    final int jsonLength = (json.length + 3) & ~3;
+    byte[] bin = createBinaryChunk();
+    ByteBuffer glb = ByteBuffer.allocate(12 + 8 + jsonLength + 8 + bin.length)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    glb.putInt(0x46546C67).putInt(2).putInt(glb.capacity());
+    glb.putInt(jsonLength).putInt(0x4E4F534A).put(json);
+    for (int i = json.length; i < jsonLength; ++i) {
+      glb.put((byte) ' ');
+    }
+    glb.putInt(bin.length).putInt(0x004E4942).put(bin);
+
+    File file = new File(directory, "triangle.glb");
+    try (OutputStream output = new FileOutputStream(file)) {
+      output.write(glb.array());
+    }
+    return file;
+  }
+
+  private static void assertVector(float x, float y, float z, FloatBuffer buffer, int vertex) {
+    assertEquals(x, buffer.get(vertex * 3), EPSILON);
+    assertEquals(y, buffer.get(vertex * 3 + 1), EPSILON);
+    assertEquals(z, buffer.get(vertex * 3 + 2), EPSILON);
+  }
+
+  @Test
+  public void glb_isFlattenedIntoTheZUpFrame() throws IOException {
+    GltfReader.Model model = GltfReader.read(writeGlb());
+
+    assertEquals(2, model.primitives.size());
+    assertEquals(6, model.numVertices);
+    assertEquals(2, model.numTriangles);
+
+    // (x, y, z) in glTF is (x, -z, y) in the obj frame, after the translation of the node.
+    GltfReader.Primitive translated = model.primitives.get(0);
+    assertVector(1, 0, 0, translated.positions, 0);
+    assertVector(2, 0, 0, translated.positions, 1);
+    assertVector(1, 0, 1, translated.positions, 2);
+    IntBuffer indices = translated.indices;
+    assertEquals(0, indices.get(0));
+    assertEquals(1, indices.get(1));
+    assertEquals(2, indices.get(2));
+  }
+
+  @Test
+  public void mirroredNode_reversesTheWindingAndKeepsTheNormals() throws IOException {
+    GltfReader.Model model = GltfReader.read(writeGlb());
+
+    GltfReader.Primitive mirrored = model.primitives.get(1);
+    assertVector(0, 0, 0, mirrored.positions, 0);
+    assertVector(-1, 0, 0, mirrored.positions, 1);
+    assertVector(0, 0, 1, mirrored.positions, 2);
+    assertEquals(0, mirrored.indices.get(0));
+    assertEquals(2, mirrored.indices.get(1));
+    assertEquals(1, mirrored.indices.get(2));
+
+    // The quantized +Z normals face -Y in the obj frame, mirrored along X or not.
+    for (GltfReader.Primitive primitive : model.primitives) {
+      for (int i = 0; i < 3; ++i) {
+        assertVector(0, -1, 0, primitive.normals, i);
+      }
+    }
+  }
+
+  @Test
+  public void quantizedTexCoords_areDequantizedAndFlipped() throws IOException {
+    GltfReader.Model model = GltfReader.read(writeGlb());
+
+    for (GltfReader.Primitive primitive : model.primitives) {
+      FloatBuffer texCoords = primitive.texCoords;
+      assertEquals(6, texCoords.remaining());
+      assertEquals(0, texCoords.get(0), EPSILON);
+      assertEquals(1, texCoords.get(1), EPSILON);
+      assertEquals(1, texCoords.get(2), EPSILON);
+      assertEquals(1, texCoords.get(3), EPSILON);
+      assertEquals(0, texCoords.get(4), EPSILON);
+      assertEquals(0, texCoords.get(5), EPSILON);
+    }
+  }
+
+  @Test
+  public void sharedMesh_sharesItsMaterial() throws IOException {
+    GltfReader.Model model = GltfReader.read(writeGlb());
+
+    GltfReader.Material material = model.primitives.get(0).material;
+    assertSame(material, model.primitives.get(1).material);
+    assertEquals("red", material.name);
+    assertArrayEquals(new float[] {1, 0, 0, 1}, material.baseColorFactor, EPSILON);
+    // Every node has its own buffers.
+    assertNotSame(model.primitives.get(0).positions, model.primitives.get(1).positions);
+  }
+
+  @Test
+  public void embeddedImage_isWrittenOnceAndRewrittenWhenItChanges() throws IOException {
+    File glbFile = writeGlb();
+    GltfReader.Model model = GltfReader.read(glbFile);
+    File imageFile = model.primitives.get(0).material.baseColorTexture;
+    assertEquals(new File(new File(directory, "triangle.glb.images"), "image0.png"), imageFile);
+    assertArrayEquals(IMAGE, Files.readAllBytes(imageFile.toPath()));
+
+    // The same bytes are not written again, so the modification time is kept.
+    assertTrue(imageFile.setLastModified(1000000000L));
+    GltfReader.read(glbFile);
+    assertEquals(1000000000L, imageFile.lastModified());
+
+    // Other bytes of the same size are replaced.
+    try (OutputStream output = new FileOutputStream(imageFile)) {
+      output.write(new byte[IMAGE.length]);
+    }
+    GltfReader.read(glbFile);
+    assertArrayEquals(IMAGE, Files.readAllBytes(imageFile.toPath()));
+  }
+}
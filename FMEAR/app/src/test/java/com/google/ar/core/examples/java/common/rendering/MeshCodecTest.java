@@ -0,0 +1,154 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round-trips vertex and index buffers through the mesh codecs, and checks that a typical mesh
+ * compresses well.
+ */
+public class MeshCodecTest {
+
+  private static final int GRID_SIZE = 64;
+
+  // A grid of quads, quantized like an .fmesh file with positions, normals and texture
+  // coordinates: 13 bytes per vertex.
+  private static byte[] createGridVertices() {
+    final int stride = 13;
+    ByteBuffer vertices = ByteBuffer.allocate(GRID_SIZE * GRID_SIZE * stride)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    for (int y = 0; y < GRID_SIZE; ++y) {
+      for (int x = 0; x < GRID_SIZE; ++x) {
+        vertices.putShort((short) (x * 1000));
+        vertices.putShort((short) (y * 1000));
+        vertices.putShort((short) (20000 + 3000 * Math.sin(x * 0.1) * Math.cos(y * 0.1)));
+        vertices.put((byte) 0).put((byte) 0).put((byte) 127);
+        vertices.putShort((short) (x * 65535 / GRID_SIZE));
+        vertices.putShort((short) (y * 65535 / GRID_SIZE));
+      }
+    }
+    return vertices.array();
+  }
+
+  private static int[] createGridIndices() {
+    int[] indices = new int[(GRID_SIZE - 1) * (GRID_SIZE - 1) * 6];
+    int i = 0;
+    for (int y = 0; y < GRID_SIZE - 1; ++y) {
+      for (int x = 0; x < GRID_SIZE - 1; ++x) {
+        final int corner = y * GRID_SIZE + x;
+        indices[i++] = corner;
+        indices[i++] = corner + 1;
+        indices[i++] = corner + GRID_SIZE;
+        indices[i++] = corner + 1;
+        indices[i++] = corner + GRID_SIZE + 1;
+        indices[i++] = corner + GRID_SIZE;
+      }
+    }
+    return indices;
+  }
+
+  private static byte[] roundTripVertices(byte[] vertices, int count, int stride)
+          throws IOException {
+    byte[] encoded = MeshCodec.encodeVertices(vertices, count, stride);
+    assertTrue(encoded.length <= MeshCodec.maxEncodedVerticesSize(count, stride));
+    byte[] decoded = new byte[count * stride];
+    MeshCodec.decodeVertices(encoded, 0, encoded.length, decoded, count, stride);
+    return decoded;
+  }
+
+  @Test
+  public void randomVertices_roundTrip() throws IOException {
+    Random random = new Random(1);
+    for (int stride : new int[] {1, 4, 6, 9, 10, 13, 32, 256}) {
+      for (int count : new int[] {0, 1, 15, 16, 17, 255, 256, 257, 1000}) {
+        byte[] vertices = new byte[count * stride];
+        random.nextBytes(vertices);
+        assertArrayEquals("stride " + stride + ", count " + count,
+                vertices, roundTripVertices(vertices, count, stride));
+      }
+    }
+  }
+
+  @Test
+  public void smallDeltas_roundTrip() throws IOException {
+    // Deltas around the 2 and 4 bit escapes of every group mode.
+    Random random = new Random(2);
+    final int stride = 8;
+    final int count = 4096;
+    byte[] vertices = new byte[count * stride];
+    for (int i = stride; i < vertices.length; ++i) {
+      final int range = 1 << (i / stride % 5);
+      vertices[i] = (byte) (vertices[i - stride] + random.nextInt(2 * range + 1) - range);
+    }
+    assertArrayEquals(vertices, roundTripVertices(vertices, count, stride));
+  }
+
+  @Test
+  public void gridVertices_compress() throws IOException {
+    byte[] vertices = createGridVertices();
+    final int count = GRID_SIZE * GRID_SIZE;
+    assertArrayEquals(vertices, roundTripVertices(vertices, count, 13));
+    byte[] encoded = MeshCodec.encodeVertices(vertices, count, 13);
+    assertTrue("Encoded to " + encoded.length + " bytes", encoded.length < vertices.length / 2);
+  }
+
+  @Test
+  public void gridIndices_roundTripAndCompress() throws IOException {
+    int[] indices = createGridIndices();
+    int[] expected = indices.clone();
+    final int[] remap = MeshCodec.reorderForFetch(indices, indices.length, GRID_SIZE * GRID_SIZE);
+    for (int i = 0; i < indices.length; ++i) {
+      assertEquals(remap[expected[i]], indices[i]);
+    }
+
+    byte[] encoded = MeshCodec.encodeIndices(indices, indices.length);
+    int[] decoded = new int[indices.length];
+    MeshCodec.decodeIndices(encoded, 0, encoded.length, decoded, decoded.length,
+            GRID_SIZE * GRID_SIZE);
+    assertArrayEquals(indices, decoded);
+    assertTrue("Encoded to " + encoded.length + " bytes", encoded.length < indices.length * 2);
+  }
+
+  @Test
+  public void unorderedIndices_roundTrip() throws IOException {
+    Random random = new Random(3);
+    int[] indices = new int[3000];
+    for (int i = 0; i < indices.length; ++i) {
+      indices[i] = random.nextInt(1 << 20);
+    }
+    byte[] encoded = MeshCodec.encodeIndices(indices, indices.length);
+    int[] decoded = new int[indices.length];
+    MeshCodec.decodeIndices(encoded, 0, encoded.length, decoded, decoded.length, 1 << 20);
+    assertArrayEquals(indices, decoded);
+  }
+
+  @Test
+  public void truncatedData_throws() {
+    byte[] vertices = createGridVertices();
+    byte[] encoded = MeshCodec.encodeVertices(vertices, GRID_SIZE * GRID_SIZE, 13);
+    try {
+      MeshCodec.decodeVertices(Arrays.copyOf(encoded, encoded.length / 2), 0, encoded.length / 2,
+              new byte[vertices.length], GRID_SIZE * GRID_SIZE, 13);
+      fail("Decoded truncated vertices");
+    } catch (IOException e) {
+      // expected
+    }
+
+    int[] indices = createGridIndices();
+    byte[] encodedIndices = MeshCodec.encodeIndices(indices, indices.length);
+    try {
+      MeshCodec.decodeIndices(encodedIndices, 0, encodedIndices.length - 1,
+              new int[indices.length], indices.length, GRID_SIZE * GRID_SIZE);
+      fail("Decoded truncated indices");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+}
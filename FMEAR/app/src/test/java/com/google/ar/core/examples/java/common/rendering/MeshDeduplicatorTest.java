@@ -0,0 +1,105 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Deduplicates translated copies of a triangle, and lays out a batch of its instances.
+ */
+public class MeshDeduplicatorTest {
+
+  private static final float[] TRIANGLE = {0, 0, 0, 1, 0, 0, 0, 1, 0};
+  private static final float[] TEX_COORDS = {0, 0, 0, 1, 0, 0, 0, 1, 0};
+  private static final float[] NORMALS = {0, 0, 1, 0, 0, 1, 0, 0, 1};
+  private static final int[] INDICES = {0, 1, 2};
+
+  private static float[] translate(float[] positions, float x, float y, float z) {
+    float[] translated = positions.clone();
+    for (int i = 0; i < translated.length; i += 3) {
+      translated[i] += x;
+      translated[i + 1] += y;
+      translated[i + 2] += z;
+    }
+    return translated;
+  }
+
+  private static int add(MeshDeduplicator deduplicator, String key, float[] positions) {
+    return deduplicator.add(key, FloatBuffer.wrap(positions), FloatBuffer.wrap(TEX_COORDS),
+            FloatBuffer.wrap(NORMALS), IntBuffer.wrap(INDICES));
+  }
+
+  @Test
+  public void translatedCopies_areDeduplicated() {
+    MeshDeduplicator deduplicator = new MeshDeduplicator(
+            MeshDeduplicator.positionToleranceFor(new float[] {0, 0, 0, 1000, 1000, 10}));
+    assertEquals(0, add(deduplicator, "a", TRIANGLE));
+    assertEquals(0, add(deduplicator, "a", translate(TRIANGLE, 500.25f, 20.5f, 3)));
+    assertEquals(0, add(deduplicator, "a", translate(TRIANGLE, 999, 999, 0)));
+    assertEquals(3, deduplicator.getNumMeshes());
+    assertEquals(1, deduplicator.getNumUnique());
+
+    float[] offset = new float[3];
+    deduplicator.getOffset(0, 1, offset);
+    assertEquals(500.25f, offset[0], 1e-3f);
+    assertEquals(20.5f, offset[1], 1e-3f);
+    assertEquals(3.0f, offset[2], 1e-3f);
+  }
+
+  @Test
+  public void differentMeshes_areNotDeduplicated() {
+    MeshDeduplicator deduplicator = new MeshDeduplicator(
+            MeshDeduplicator.positionToleranceFor(new float[] {0, 0, 0, 100, 100, 100}));
+    assertEquals(0, add(deduplicator, "a", TRIANGLE));
+    // Scaled, with another key, and with a moved vertex.
+    assertEquals(1, add(deduplicator, "a", new float[] {0, 0, 0, 2, 0, 0, 0, 2, 0}));
+    assertEquals(2, add(deduplicator, "b", translate(TRIANGLE, 10, 0, 0)));
+    assertEquals(3, add(deduplicator, "a", new float[] {0, 0, 0, 1, 0, 0, 0, 1.01f, 0}));
+    assertEquals(4, deduplicator.getNumUnique());
+
+    // A copy of the moved one is found among the meshes with other geometry.
+    assertEquals(3, add(deduplicator, "a", new float[] {5, 0, 0, 6, 0, 0, 5, 1.01f, 0}));
+    assertEquals(4, deduplicator.getNumUnique());
+  }
+
+  @Test
+  public void batch_repeatsAttributesAndOffsetsIndices() {
+    ByteBuffer vertexData = ByteBuffer.allocate(4 * 27).order(ByteOrder.nativeOrder());
+    for (float[] values : new float[][] {TRIANGLE, TEX_COORDS, NORMALS}) {
+      for (float value : values) {
+        vertexData.putFloat(value);
+      }
+    }
+    ByteBuffer indexData = ByteBuffer.allocate(4 * 3).order(ByteOrder.nativeOrder());
+    for (int index : INDICES) {
+      indexData.putInt(index);
+    }
+
+    ByteBuffer vertices = MeshDeduplicator.batchVertices(vertexData, 9, 9, 9, 2);
+    assertEquals(4 * (27 + 3) * 2, vertices.remaining());
+    // The positions of both instances, then the texture coordinates.
+    assertEquals(1.0f, vertices.getFloat(4 * 3), 0.0f);
+    assertEquals(1.0f, vertices.getFloat(4 * (9 + 3)), 0.0f);
+    assertEquals(0.0f, vertices.getFloat(4 * 18), 0.0f);
+    // The instance indices after the normals.
+    assertEquals(0.0f, vertices.getFloat(4 * (54 + 2)), 0.0f);
+    assertEquals(1.0f, vertices.getFloat(4 * (54 + 3)), 0.0f);
+
+    ByteBuffer indices = MeshDeduplicator.batchIndices(indexData, 3, 3, 2);
+    assertEquals(4 * 6, indices.remaining());
+    assertEquals(2, indices.getInt(4 * 2));
+    assertEquals(3, indices.getInt(4 * 3));
+    assertEquals(5, indices.getInt(4 * 5));
+  }
+
+  @Test
+  public void batchSize_isCappedByTheUniformArray() {
+    assertEquals(5, MeshDeduplicator.batchSize(5));
+    assertEquals(MeshDeduplicator.MAX_BATCH_INSTANCES, MeshDeduplicator.batchSize(1000));
+  }
+}
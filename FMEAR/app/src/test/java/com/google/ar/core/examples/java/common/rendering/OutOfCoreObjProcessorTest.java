@@ -0,0 +1,282 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import de.javagl.obj.Obj;
+import de.javagl.obj.ObjData;
+import de.javagl.obj.ObjReader;
+import de.javagl.obj.ObjSplitting;
+import de.javagl.obj.ObjUtils;
+import de.javagl.obj.Objs;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Processes generated obj files whose geometry is many times larger than the heap ceiling, and
+ * checks that the chunks hold all of the triangles, and the same triangles as the in-memory path.
+ */
+public class OutOfCoreObjProcessorTest {
+
+  private static final long HEAP_CEILING_BYTES = 1024 * 1024;
+  // A grid of 450 by 450 quads in two materials, half of them written as triangles.
+  private static final int GRID_SIZE = 450;
+
+  private File directory;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = File.createTempFile("outofcore", "");
+    assertTrue(directory.delete());
+    assertTrue(directory.mkdirs());
+  }
+
+  @After
+  public void tearDown() {
+    deleteRecursively(directory);
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] files = file.listFiles();
+    if (files != null) {
+      for (File child : files) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+
+  private File writeGrid(boolean withNormals) throws IOException {
+    return writeGrid(GRID_SIZE, withNormals);
+  }
+
+  private File writeGrid(int gridSize, boolean withNormals) throws IOException {
+    File objFile = new File(directory, "grid.obj");
+    try (Writer writer = new BufferedWriter(new FileWriter(objFile))) {
+      writer.write("# grid\nmtllib grid.mtl\n");
+      final int size = gridSize + 1;
+      for (int y = 0; y < size; ++y) {
+        for (int x = 0; x < size; ++x) {
+          writer.write("v " + x * 0.5f + " " + y * 0.5f + " " + (float) Math.sin(x * 0.1) + "\n");
+          writer.write("vt " + x / (float) gridSize + " " + y / (float) gridSize + "\n");
+        }
+      }
+      if (withNormals) {
+        writer.write("vn 0 0 1\n");
+      }
+      for (int y = 0; y < gridSize; ++y) {
+        writer.write("usemtl " + ((y < gridSize / 2) ? "ground" : "water") + "\n");
+        for (int x = 0; x < gridSize; ++x) {
+          final int a = y * size + x + 1;
+          final int b = a + 1;
+          final int c = a + size + 1;
+          final int d = a + size;
+          if (x % 2 == 0) {
+            writer.write("f " + corner(a, withNormals) + corner(b, withNormals)
+                    + corner(c, withNormals) + corner(d, withNormals) + "\n");
+          } else {
+            writer.write("f " + corner(a, withNormals) + corner(b, withNormals)
+                    + corner(c, withNormals) + "\n");
+            writer.write("f " + corner(a, withNormals) + corner(c, withNormals)
+                    + corner(d, withNormals) + "\n");
+          }
+        }
+      }
+    }
+    return objFile;
+  }
+
+  private static String corner(int index, boolean withNormals) {
+    return withNormals ? index + "/" + index + "/1 " : index + "/" + index + " ";
+  }
+
+  private void assertProcessed(File objFile, boolean expectUpNormals) throws IOException {
+    final long numQuads = (long) GRID_SIZE * GRID_SIZE;
+    // The welded geometry on the GPU: positions, texture coordinates and normals of every grid
+    // vertex, and six indices for every quad.
+    final long geometryBytes = ChunkBlob.gpuBytes(3 * (GRID_SIZE + 1) * (GRID_SIZE + 1),
+            2 * (GRID_SIZE + 1) * (GRID_SIZE + 1), 3 * (GRID_SIZE + 1) * (GRID_SIZE + 1),
+            (int) (6 * numQuads));
+    assertTrue(geometryBytes > 10 * HEAP_CEILING_BYTES);
+    assertTrue(OutOfCoreObjProcessor.needsOutOfCore(objFile.length(), HEAP_CEILING_BYTES));
+
+    File chunkDirectory = new File(directory, "chunks");
+    assertTrue(chunkDirectory.mkdirs());
+    OutOfCoreObjProcessor processor = new OutOfCoreObjProcessor(
+            new File(directory, "scratch"), chunkDirectory, HEAP_CEILING_BYTES);
+    OutOfCoreObjProcessor.Result result = processor.process(objFile);
+
+    assertEquals(1, result.mtlFileNames.size());
+    assertEquals("grid.mtl", result.mtlFileNames.get(0));
+    assertEquals((GRID_SIZE + 1) * (GRID_SIZE + 1), result.numPositions);
+    assertEquals(2 * numQuads, result.numTriangles);
+    assertTrue(result.chunks.size() > 2);
+    assertEquals(0, new File(directory, "scratch").list().length);
+
+    long numIndices = 0;
+    String previousMaterialName = null;
+    for (OutOfCoreObjProcessor.Chunk chunk : result.chunks) {
+      if (previousMaterialName != null && !previousMaterialName.equals(chunk.materialName)) {
+        assertEquals("ground", previousMaterialName);
+        assertEquals("water", chunk.materialName);
+      }
+      previousMaterialName = chunk.materialName;
+      assertTrue(chunk.hasTexCoords);
+
+      ChunkBlob blob = ChunkBlob.map(chunk.file);
+      assertEquals(3 * chunk.numVertices, blob.numVertexFloats);
+      assertEquals(2 * chunk.numVertices, blob.numTexCoordFloats);
+      assertEquals(3 * chunk.numVertices, blob.numNormalFloats);
+      assertEquals(chunk.numIndices, blob.numIndices);
+      for (int i = 0; i < blob.numIndices; ++i) {
+        final int index = blob.indexData.getInt(4 * i);
+        assertTrue(index >= 0 && index < chunk.numVertices);
+      }
+
+      ByteBuffer vertexData = blob.vertexData;
+      for (int v = 0; v < chunk.numVertices; ++v) {
+        final float x = vertexData.getFloat(4 * (3 * v));
+        final float u = vertexData.getFloat(4 * (3 * chunk.numVertices + 2 * v));
+        assertEquals(x / (0.5f * GRID_SIZE), u, 1e-4f);
+        assertTrue(x >= chunk.bounds[0] && x <= chunk.bounds[3]);
+        final int normal = 4 * (5 * chunk.numVertices + 3 * v);
+        final float nz = vertexData.getFloat(normal + 8);
+        if (expectUpNormals) {
+          assertEquals(1.0f, nz, 0.0f);
+        } else {
+          final float nx = vertexData.getFloat(normal);
+          final float ny = vertexData.getFloat(normal + 4);
+          assertEquals(1.0f, nx * nx + ny * ny + nz * nz, 1e-4f);
+          assertTrue(nz > 0.5f);
+        }
+      }
+      numIndices += chunk.numIndices;
+    }
+    assertEquals(6 * numQuads, numIndices);
+    assertEquals("water", previousMaterialName);
+  }
+
+  @Test
+  public void gridWithNormals_fitsHeapCeiling() throws IOException {
+    assertProcessed(writeGrid(true), true);
+  }
+
+  @Test
+  public void gridWithoutNormals_generatesSmoothNormals() throws IOException {
+    assertProcessed(writeGrid(false), false);
+  }
+
+  @Test
+  public void smallFile_matchesInMemoryPath() throws IOException {
+    File objFile = writeGrid(12, true);
+    assertFalse(OutOfCoreObjProcessor.needsOutOfCore(objFile.length(), HEAP_CEILING_BYTES));
+
+    // Processed out of core although it would fit the ceiling in memory.
+    File chunkDirectory = new File(directory, "chunks");
+    assertTrue(chunkDirectory.mkdirs());
+    OutOfCoreObjProcessor processor = new OutOfCoreObjProcessor(
+            new File(directory, "scratch"), chunkDirectory, HEAP_CEILING_BYTES);
+    Map<String, List<String>> outOfCore = new HashMap<>();
+    for (OutOfCoreObjProcessor.Chunk chunk : processor.process(objFile).chunks) {
+      ChunkBlob blob = ChunkBlob.map(chunk.file);
+      ByteBuffer vertexData = blob.vertexData;
+      final int numVertices = chunk.numVertices;
+      addTriangles(outOfCore, chunk.materialName, blob.indexData.asIntBuffer(),
+              slice(vertexData, 0, 3 * numVertices),
+              slice(vertexData, 3 * numVertices, 2 * numVertices),
+              slice(vertexData, 5 * numVertices, 3 * numVertices));
+    }
+
+    // The steps of ObjFilesLoader.processObj, for an obj that has normals.
+    Obj obj;
+    try (InputStream input = new FileInputStream(objFile)) {
+      obj = ObjReader.read(input);
+    }
+    obj = ObjUtils.triangulate(obj);
+    obj = ObjUtils.makeTexCoordsUnique(obj);
+    obj = ObjUtils.makeNormalsUnique(obj);
+    obj = ObjUtils.makeVertexIndexed(obj, Objs.create());
+    Map<String, List<String>> inMemory = new HashMap<>();
+    for (Map.Entry<String, Obj> entry : ObjSplitting.splitByMaterialGroups(obj).entrySet()) {
+      Obj materialObj = entry.getValue();
+      addTriangles(inMemory, entry.getKey(), ObjData.getFaceVertexIndices(materialObj, 3),
+              ObjData.getVertices(materialObj), ObjData.getTexCoords(materialObj, 2),
+              ObjData.getNormals(materialObj));
+    }
+
+    assertEquals(2, inMemory.size());
+    assertEquals(inMemory.keySet(), outOfCore.keySet());
+    for (String materialName : inMemory.keySet()) {
+      List<String> expected = inMemory.get(materialName);
+      List<String> actual = outOfCore.get(materialName);
+      Collections.sort(expected);
+      Collections.sort(actual);
+      assertEquals(expected, actual);
+    }
+  }
+
+  private static FloatBuffer slice(ByteBuffer data, int firstFloat, int numFloats) {
+    ByteBuffer slice = data.duplicate().order(data.order());
+    slice.position(4 * firstFloat);
+    slice.limit(4 * (firstFloat + numFloats));
+    return slice.slice().order(data.order()).asFloatBuffer();
+  }
+
+  // Adds the triangles of a material, each as the attributes of its corners in order, so that
+  // meshes can be compared however their vertices are indexed and chunked.
+  private static void addTriangles(Map<String, List<String>> trianglesByMaterial,
+                                   String materialName, IntBuffer indices, FloatBuffer positions,
+                                   FloatBuffer texCoords, FloatBuffer normals) {
+    List<String> triangles = trianglesByMaterial.get(materialName);
+    if (triangles == null) {
+      triangles = new ArrayList<>();
+      trianglesByMaterial.put(materialName, triangles);
+    }
+    for (int i = 0; i + 2 < indices.limit(); i += 3) {
+      StringBuilder triangle = new StringBuilder();
+      for (int k = 0; k < 3; ++k) {
+        final int index = indices.get(i + k);
+        triangle.append('(')
+                .append(positions.get(3 * index)).append(' ')
+                .append(positions.get(3 * index + 1)).append(' ')
+                .append(positions.get(3 * index + 2)).append(' ')
+                .append(texCoords.get(2 * index)).append(' ')
+                .append(texCoords.get(2 * index + 1)).append(' ')
+                .append(normals.get(3 * index)).append(' ')
+                .append(normals.get(3 * index + 1)).append(' ')
+                .append(normals.get(3 * index + 2)).append(')');
+      }
+      triangles.add(triangle.toString());
+    }
+  }
+
+  @Test
+  public void tinyHeapCeiling_throws() throws IOException {
+    File objFile = writeGrid(true);
+    OutOfCoreObjProcessor processor = new OutOfCoreObjProcessor(
+            new File(directory, "scratch"), directory, 64 * 1024);
+    try {
+      processor.process(objFile);
+      fail("Processed within a 64 KB heap ceiling");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,146 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Selects tiles of a two level quadtree from near and far cameras, and checks the refinement,
+ * the request order and the memory budget.
+ */
+public class TileSelectorTest {
+
+  // Half the height of a 1000 pixel viewport with a 90 degree field of view.
+  private static final float SSE_FACTOR = 500.0f;
+  private static final long TILE_BYTES = 1000;
+
+  private TileManifest.Tile root;
+  private TileManifest.Tile[] children;
+
+  // A 100 by 100 root tile with four 50 by 50 children.
+  private TileManifest createQuadtree(boolean additive) {
+    root = createTile(null, 0, 0, 100, 10.0f, additive);
+    children = new TileManifest.Tile[4];
+    for (int i = 0; i < 4; ++i) {
+      children[i] = createTile(root, 50 * (i % 2), 50 * (i / 2), 50, 0.0f, additive);
+    }
+    return new TileManifest(root);
+  }
+
+  private static TileManifest.Tile createTile(TileManifest.Tile parent, float x, float y,
+                                              float size, float geometricError,
+                                              boolean additive) {
+    TileManifest.Tile tile = new TileManifest.Tile(parent,
+            new float[] {x, y, 0, x + size, y + size, 10}, geometricError, additive);
+    tile.contents.add(new File("tile" + x + "_" + y + "_" + size + ".obj"));
+    return tile;
+  }
+
+  private static void loadRequests(TileSelector selector) {
+    List<TileManifest.Tile> requests = selector.getRequests();
+    for (int i = 0; i < requests.size(); ++i) {
+      selector.onRequested(requests.get(i));
+      selector.onLoaded(requests.get(i), TILE_BYTES);
+    }
+  }
+
+  @Test
+  public void farCamera_drawsRoot() {
+    TileSelector selector = new TileSelector(createQuadtree(false));
+    selector.update(50, 50, 10000, SSE_FACTOR);
+    assertEquals(1, selector.getRequests().size());
+    assertSame(root, selector.getRequests().get(0));
+    assertTrue(selector.getSelected().isEmpty());
+
+    loadRequests(selector);
+    selector.update(50, 50, 10000, SSE_FACTOR);
+    assertEquals(1, selector.getSelected().size());
+    assertSame(root, selector.getSelected().get(0));
+    assertTrue(selector.getRequests().isEmpty());
+  }
+
+  @Test
+  public void nearCamera_replacesRootOnceChildrenLoad() {
+    TileSelector selector = new TileSelector(createQuadtree(false));
+    selector.update(10, 10, 20, SSE_FACTOR);
+    assertEquals(5, selector.getRequests().size());
+    assertSame(root, selector.getRequests().get(0));
+    selector.onRequested(root);
+    selector.onLoaded(root, TILE_BYTES);
+
+    // The root is drawn while the children are requested, the nearest first.
+    selector.update(10, 10, 20, SSE_FACTOR);
+    assertEquals(1, selector.getSelected().size());
+    assertSame(root, selector.getSelected().get(0));
+    assertEquals(4, selector.getRequests().size());
+    assertSame(children[0], selector.getRequests().get(0));
+    assertSame(children[3], selector.getRequests().get(3));
+
+    // Requested tiles are not requested again.
+    selector.onRequested(children[0]);
+    selector.update(10, 10, 20, SSE_FACTOR);
+    assertEquals(3, selector.getRequests().size());
+    assertSame(root, selector.getSelected().get(0));
+
+    selector.onLoaded(children[0], TILE_BYTES);
+    loadRequests(selector);
+    selector.update(10, 10, 20, SSE_FACTOR);
+    assertEquals(4, selector.getSelected().size());
+    assertFalse(selector.getSelected().contains(root));
+  }
+
+  @Test
+  public void failedChild_doesNotBlockRefinement() {
+    TileSelector selector = new TileSelector(createQuadtree(false));
+    selector.update(10, 10, 20, SSE_FACTOR);
+    loadRequests(selector);
+    selector.update(10, 10, 20, SSE_FACTOR);
+    selector.onFailed(children[3]);
+    loadRequests(selector);
+    selector.update(10, 10, 20, SSE_FACTOR);
+    assertEquals(3, selector.getSelected().size());
+    assertTrue(selector.getRequests().isEmpty());
+  }
+
+  @Test
+  public void additiveRefinement_drawsRootAndChildren() {
+    TileSelector selector = new TileSelector(createQuadtree(true));
+    selector.update(10, 10, 20, SSE_FACTOR);
+    assertEquals(5, selector.getRequests().size());
+    loadRequests(selector);
+    selector.update(10, 10, 20, SSE_FACTOR);
+    assertEquals(5, selector.getSelected().size());
+    assertTrue(selector.getSelected().contains(root));
+  }
+
+  @Test
+  public void memoryBudget_unloadsLeastRecentlyUsed() {
+    TileSelector selector = new TileSelector(createQuadtree(false));
+    selector.update(10, 10, 20, SSE_FACTOR);
+    loadRequests(selector);
+    selector.update(10, 10, 20, SSE_FACTOR);
+    loadRequests(selector);
+    assertEquals(5 * TILE_BYTES, selector.getLoadedBytes());
+
+    // Far away only the root is drawn; the children go to fit the budget.
+    selector.setMemoryBudget(3 * TILE_BYTES);
+    selector.update(50, 50, 10000, SSE_FACTOR);
+    assertEquals(1, selector.getSelected().size());
+    assertEquals(2, selector.getUnloads().size());
+    assertFalse(selector.getUnloads().contains(root));
+    assertEquals(3 * TILE_BYTES, selector.getLoadedBytes());
+    assertEquals(3, selector.getNumLoaded());
+    assertTrue(selector.getRequests().isEmpty());
+
+    // Tiles that are drawn are kept even over the budget, and nothing more is requested.
+    selector.setMemoryBudget(0);
+    selector.update(10, 10, 20, SSE_FACTOR);
+    assertTrue(selector.getRequests().isEmpty());
+    assertSame(root, selector.getSelected().get(0));
+    assertTrue(selector.getUnloads().isEmpty());
+    assertEquals(3, selector.getNumLoaded());
+  }
+}
@@ -0,0 +1,178 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Merges points into voxels, fills the cloud past its cap, and checks the swap-removal of the
+ * evicted voxels and the ranges of the voxels modified since a frame.
+ */
+public class VoxelPointCloudTest {
+
+  private static final float VOXEL_SIZE = 0.5f;
+  private static final float EPSILON = 1e-5f;
+
+  // A frame of points, X,Y,Z,confidence each.
+  private static FloatBuffer frameOf(float... points) {
+    return FloatBuffer.wrap(points);
+  }
+
+  private static float[] pointAt(VoxelPointCloud cloud, int index) {
+    FloatBuffer buffer = FloatBuffer.allocate(VoxelPointCloud.FLOATS_PER_POINT);
+    cloud.writePoints(index, index + 1, buffer);
+    return buffer.array();
+  }
+
+  // A full cloud of one voxel per meter along X, in the first frame. The voxel at lowIndex has a
+  // lower confidence than the others.
+  private static VoxelPointCloud createFullCloud(int maxPoints, int lowIndex) {
+    VoxelPointCloud cloud = new VoxelPointCloud(VOXEL_SIZE, maxPoints);
+    float[] points = new float[maxPoints * VoxelPointCloud.FLOATS_PER_POINT];
+    for (int i = 0; i < maxPoints; ++i) {
+      points[i * 4] = i + 0.25f;
+      points[i * 4 + 3] = (i == lowIndex) ? 0.1f : 0.9f;
+    }
+    cloud.addPoints(frameOf(points));
+    assertEquals(maxPoints, cloud.getNumPoints());
+    return cloud;
+  }
+
+  @Test
+  public void pointsInTheSameVoxel_areMerged() {
+    VoxelPointCloud cloud = new VoxelPointCloud(VOXEL_SIZE, 16);
+    cloud.addPoints(frameOf(0.1f, 0.1f, 0.1f, 1.0f, 0.4f, 0.1f, 0.1f, 0.5f));
+
+    assertEquals(1, cloud.getNumPoints());
+    float[] point = pointAt(cloud, 0);
+    // The position is weighted by confidence, the confidence is averaged.
+    assertEquals((0.1f * 1.0f + 0.4f * 0.5f) / 1.5f, point[0], EPSILON);
+    assertEquals(0.1f, point[1], EPSILON);
+    assertEquals(0.1f, point[2], EPSILON);
+    assertEquals(0.75f, point[3], EPSILON);
+  }
+
+  @Test
+  public void pointsInDifferentVoxels_areKeptApart() {
+    VoxelPointCloud cloud = new VoxelPointCloud(VOXEL_SIZE, 16);
+    cloud.addPoints(frameOf(0.1f, 0.1f, 0.1f, 1.0f, -0.1f, 0.1f, 0.1f, 1.0f));
+    cloud.addPoints(frameOf(0.1f, 0.6f, 0.1f, 1.0f));
+
+    assertEquals(3, cloud.getNumPoints());
+    assertEquals(0.1f, pointAt(cloud, 0)[0], EPSILON);
+    assertEquals(-0.1f, pointAt(cloud, 1)[0], EPSILON);
+    assertEquals(0.6f, pointAt(cloud, 2)[1], EPSILON);
+  }
+
+  @Test
+  public void fullCloud_evictsLowestScoreBySwappingInTheLastVoxel() {
+    // A cap of 16 evicts one voxel at a time.
+    VoxelPointCloud cloud = createFullCloud(16, 3);
+    cloud.addPoints(frameOf(100.25f, 0, 0, 0.9f));
+
+    assertEquals(16, cloud.getNumPoints());
+    assertEquals(1, cloud.getNumEvictions());
+    // The last voxel took the place of the evicted one, and the new voxel went last.
+    assertEquals(15.25f, pointAt(cloud, 3)[0], EPSILON);
+    assertEquals(100.25f, pointAt(cloud, 15)[0], EPSILON);
+    for (int i = 0; i < 16; ++i) {
+      assertTrue(Math.abs(pointAt(cloud, i)[0] - 3.25f) > EPSILON);
+    }
+  }
+
+  @Test
+  public void movedVoxel_isStillFoundByItsPosition() {
+    VoxelPointCloud cloud = createFullCloud(16, 3);
+    cloud.addPoints(frameOf(100.25f, 0, 0, 0.9f));
+
+    // Merges into the voxel that was moved to index 3 instead of adding one.
+    cloud.addPoints(frameOf(15.25f, 0, 0, 0.9f));
+    assertEquals(16, cloud.getNumPoints());
+    assertEquals(1, cloud.getNumEvictions());
+    assertEquals(15.25f, pointAt(cloud, 3)[0], EPSILON);
+  }
+
+  @Test
+  public void modifiedRange_coversTheChangedVoxelsOnly() {
+    VoxelPointCloud cloud = createFullCloud(16, -1);
+    final long loadedFrame = cloud.getFrame();
+    cloud.addPoints(frameOf(5.25f, 0, 0, 0.9f, 9.25f, 0, 0, 0.9f));
+
+    assertEquals(5, cloud.getFirstModifiedIndex(loadedFrame));
+    assertEquals(10, cloud.getEndModifiedIndex(loadedFrame));
+    assertTrue(cloud.isModifiedSince(5, loadedFrame));
+    assertFalse(cloud.isModifiedSince(7, loadedFrame));
+    assertTrue(cloud.isModifiedSince(9, loadedFrame));
+    // Nothing changed since the current frame.
+    assertEquals(cloud.getNumPoints(), cloud.getFirstModifiedIndex(cloud.getFrame()));
+    assertEquals(0, cloud.getEndModifiedIndex(cloud.getFrame()));
+  }
+
+  @Test
+  public void modifiedRange_includesTheSwapRemovedVoxel() {
+    VoxelPointCloud cloud = createFullCloud(16, 3);
+    final long loadedFrame = cloud.getFrame();
+    cloud.addPoints(frameOf(100.25f, 0, 0, 0.9f));
+
+    assertEquals(3, cloud.getFirstModifiedIndex(loadedFrame));
+    assertEquals(16, cloud.getEndModifiedIndex(loadedFrame));
+    assertTrue(cloud.isModifiedSince(3, loadedFrame));
+    assertFalse(cloud.isModifiedSince(4, loadedFrame));
+    assertTrue(cloud.isModifiedSince(15, loadedFrame));
+  }
+
+  @Test
+  public void modifiedRange_ofAnUnknownOrOldFrame_isEverything() {
+    VoxelPointCloud cloud = createFullCloud(16, -1);
+    assertEquals(0, cloud.getFirstModifiedIndex(-1));
+    assertEquals(16, cloud.getEndModifiedIndex(-1));
+
+    final long loadedFrame = cloud.getFrame();
+    for (int i = 0; i < 20; ++i) {
+      cloud.addPoints(frameOf(0.25f, 0, 0, 0.9f));
+    }
+    assertEquals(0, cloud.getFirstModifiedIndex(loadedFrame));
+    assertEquals(16, cloud.getEndModifiedIndex(loadedFrame));
+  }
+
+  @Test
+  public void clear_removesAllThePoints() {
+    VoxelPointCloud cloud = createFullCloud(16, -1);
+    cloud.clear();
+    assertEquals(0, cloud.getNumPoints());
+
+    cloud.addPoints(frameOf(3.25f, 0, 0, 0.9f));
+    assertEquals(1, cloud.getNumPoints());
+    assertEquals(3.25f, pointAt(cloud, 0)[0], EPSILON);
+  }
+
+  @Test
+  public void manyEvictions_keepEveryVoxelFindable() {
+    final int maxPoints = 256;
+    VoxelPointCloud cloud = new VoxelPointCloud(VOXEL_SIZE, maxPoints);
+    Random random = new Random(42);
+    float[] frame = new float[64 * VoxelPointCloud.FLOATS_PER_POINT];
+    for (int f = 0; f < 50; ++f) {
+      for (int i = 0; i < frame.length; i += 4) {
+        frame[i] = random.nextInt(40) + 0.25f;
+        frame[i + 1] = random.nextInt(40) + 0.25f;
+        frame[i + 2] = 0.25f;
+        frame[i + 3] = random.nextFloat();
+      }
+      cloud.addPoints(frameOf(frame));
+    }
+    assertTrue(cloud.getNumEvictions() > 0);
+
+    // Seeing every voxel again merges into it, so none is added or evicted.
+    final int numPoints = cloud.getNumPoints();
+    final long numEvictions = cloud.getNumEvictions();
+    float[] points = new float[numPoints * VoxelPointCloud.FLOATS_PER_POINT];
+    cloud.writePoints(0, numPoints, FloatBuffer.wrap(points));
+    cloud.addPoints(frameOf(points));
+    assertEquals(numPoints, cloud.getNumPoints());
+    assertEquals(numEvictions, cloud.getNumEvictions());
+  }
+}